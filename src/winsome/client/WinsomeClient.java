@@ -35,6 +35,7 @@ public final class WinsomeClient implements AutoCloseable {
 		ALREADY_LOGGED = "there is still a user logged in",
 		INV_PARAM = "Invalid parameter: '%s'",
 		INV_CMD = "Invalid command: '%s'",
+		INV_PAGE = "Invalid page: '%s'",
 		ILLARG = "Illegal argument passed";
 	
 	/* Logging strings */
@@ -46,6 +47,11 @@ public final class WinsomeClient implements AutoCloseable {
 		WNOTIFIERNAME = "WalletNotifier",
 		EMPTY = "";
 	
+	/* Wallet transactions formatting strings */
+	private static final String
+		TRANSMARK = "#",
+		TRANSEPAR = " : ";
+	
 	private CommandParser parser = null;
 	/* Output stream */
 	private PrintStream out = System.out;
@@ -195,7 +201,12 @@ public final class WinsomeClient implements AutoCloseable {
 		}
 		sb.append("Valore (wincoin): " + args.get(0) + "\n");
 		sb.append("Transazioni effettuate:");
-		for (int i = 1; i < args.size(); i++) sb.append("\n" + args.get(i));
+		for (int i = 1; i < args.size(); i++) {
+			Pair<long[], Double> trans = Serialization.deserializeTransaction(args.get(i));
+			long[] seqTime = trans.getKey();
+			sb.append("\n" + TRANSMARK + seqTime[0] + TRANSEPAR + new Date(seqTime[1]).toString()
+				+ TRANSEPAR + "+" + trans.getValue());
+		}
 		return sb.toString();
 	}
 
@@ -274,6 +285,12 @@ public final class WinsomeClient implements AutoCloseable {
 				result = (code == 0);
 			}
 			
+			else if ( id.equals(CommandParser.BACKUP) ) {
+				Pair<Boolean, String> pair = this.backup(args.get(0), args.get(1));
+				result = pair.getKey().booleanValue();
+				this.out.println(pair.getValue());
+			}
+			
 			else if ( id.equals(CommandParser.WAIT) ) {
 				long millis = ConfigUtils.newLong.apply(args.get(0));
 				result = Common.sleep(millis * 1000);
@@ -305,7 +322,11 @@ public final class WinsomeClient implements AutoCloseable {
 			
 			else if ( id.equals(Message.SHOW) ) {
 				if (param.equals(Message.FEED)) result = this.showFeed();
-				else if (param.equals(Message.POST)) result = this.showPost(Long.parseLong(args.get(0)));
+				else if (param.equals(Message.POST)) {
+					int page = this.page(args.subList(1, args.size()));
+					if (page < 0) return this.printError(Common.excStr(INV_PAGE, args.get(1)));
+					result = this.showPost(Long.parseLong(args.get(0)), page);
+				}
 				else return this.printError(Common.excStr(INV_PARAM, param));
 			}
 			
@@ -318,9 +339,11 @@ public final class WinsomeClient implements AutoCloseable {
 			else if ( id.equals(Message.COMMENT) ) result = this.addComment(Long.parseLong(args.get(0)), args.get(1));
 			
 			else if ( id.equals(Message.WALLET) ) {
+				int page = this.page(args);
+				if (page < 0) return this.printError(Common.excStr(INV_PAGE, args.get(0)));
 				switch (param) {
-					case Message.EMPTY : { result = this.getWallet(); break; }
-					case Message.BTC : { result = this.getWalletInBitcoin(); break; }
+					case Message.EMPTY : { result = this.getWallet(page); break; }
+					case Message.BTC : { result = this.getWalletInBitcoin(page); break; }
 					case Message.NOTIFY : { 
 						List<String> notifies = this.walletNotifies();
 						StringBuilder sb = new StringBuilder();
@@ -373,16 +396,28 @@ public final class WinsomeClient implements AutoCloseable {
 		} catch (MessageException mex) { logger.logStackTrace(mex); return false; }		
 	}
 	
+	/**
+	 * @param args Arguments of a paged command (wallet, show post) as {[page]}.
+	 * @return The requested page (0 if not given), or -1 if it is not a valid page (e.g. too large).
+	 */
+	private int page(List<String> args) {
+		if (args.isEmpty()) return 0;
+		try { return Integer.parseInt(args.get(0)); }
+		catch (NumberFormatException ex) { return -1; }
+	}
+	
 	/**
 	 * Handles a wallet request: sends a (WALLET, EMPTY/BTC) message and receives
 	 *  a message (OK, WALLET) with value(s) and transaction history.
 	 * @param btc If true, the request is with parameter BTC.
+	 * @param page Page of the transaction history (0 for the most recent transactions).
 	 * @return true on success, false on error.
 	 * @throws IOException On I/O errors.
 	 */
-	private boolean walletRequest(boolean btc) throws IOException {
+	private boolean walletRequest(boolean btc, int page) throws IOException {
 		try {
-			Message msg = new Message(Message.WALLET, (btc ? Message.BTC : Message.EMPTY), null);
+			List<String> args = (page > 0 ? Common.toList(Integer.toString(page)) : null);
+			Message msg = new Message(Message.WALLET, (btc ? Message.BTC : Message.EMPTY), args);
 			if (!msg.sendToStream(tcpOut)) return this.printError(CLOSED);
 			if ((msg = Message.recvFromStream(tcpIn)) == null) return this.printError(CLOSED);
 			String[] strCodes = msg.getIdParam();
@@ -520,6 +555,11 @@ public final class WinsomeClient implements AutoCloseable {
 		return this.svHandler.register(username, password, tags);
 	}
 	
+	public Pair<Boolean, String> backup(String password, String filename) throws RemoteException {
+		Common.notNull(password, filename);
+		return this.svHandler.backup(password, filename);
+	}
+	
 	
 	public boolean login(String username, String password) throws IOException {
 		Common.notNull(username, password);
@@ -725,10 +765,12 @@ public final class WinsomeClient implements AutoCloseable {
 		} catch (MessageException mex) { logger.logStackTrace(mex); return false; }		
 	}
 	
-	public boolean showPost(long idPost) throws IOException {
-		Common.allAndArgs(idPost >= 0);
+	public boolean showPost(long idPost, int page) throws IOException {
+		Common.allAndArgs(idPost >= 0, page >= 0);
 		try {
-			Message msg = new Message( Message.SHOW, Message.POST, Common.toList(Long.toString(idPost)) );
+			List<String> args = Common.toList(Long.toString(idPost));
+			if (page > 0) args.add(Integer.toString(page));
+			Message msg = new Message( Message.SHOW, Message.POST, args );
 			if (!msg.sendToStream(tcpOut)) return this.printError(CLOSED);
 			else {
 				msg = Message.recvFromStream(tcpIn);
@@ -770,19 +812,21 @@ public final class WinsomeClient implements AutoCloseable {
 	}
 	
 	/**
-	 * Prints current wincoin value with the history of all transactions (one per line).
+	 * Prints current wincoin value with a page of the history of transactions (one per line).
+	 * @param page Page of the history (0 for the most recent transactions).
 	 * @return true on success, false on error (connection closed, wrong answer etc.).
 	 * @throws IOException If an IO error (different from connection closing) occurs.
 	 */
-	public boolean getWallet() throws IOException { return this.walletRequest(false); }
+	public boolean getWallet(int page) throws IOException { return this.walletRequest(false, page); }
 
 	/**
-	 * Prints current wincoin value and its bitcoin correspondent with the history of
-	 * all transactions (one per line).
+	 * Prints current wincoin value and its bitcoin correspondent with a page of the history of
+	 * transactions (one per line).
+	 * @param page Page of the history (0 for the most recent transactions).
 	 * @return true on success, false on error (connection closed, wrong answer etc.).
 	 * @throws IOException If an IO error (different from connection closing) occurs.
 	 */	
-	public boolean getWalletInBitcoin() throws IOException { return this.walletRequest(true); }
+	public boolean getWalletInBitcoin(int page) throws IOException { return this.walletRequest(true, page); }
 	
 	
 	public List<String> walletNotifies() {
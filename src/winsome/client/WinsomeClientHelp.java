@@ -47,7 +47,8 @@ final class WinsomeClientHelp {
 		CommandParser.QUIT,
 		CommandParser.EXIT,
 		CommandParser.CLEAR,
-		CommandParser.WAIT
+		CommandParser.WAIT,
+		CommandParser.BACKUP
 	);
 	
 	private static final Map<String, String> quitMap = newMap(list(""), list("Closes this program if user is logged out"));
@@ -121,7 +122,7 @@ final class WinsomeClientHelp {
 					+ "and a content must have at most 500 ones.")
 			),
 			newMap(
-				list("feed", "post <idPost>"),
+				list("feed", "post <idPost> [<page>]"),
 				list(
 					"Shows the post(s) in all the blogs of all the users that the current one is following. The list is of\n"
 					+ "the form e.g.:\nId | Author | Title\n--------------------\n1  | user1  | title1\n2  | user2  | "
@@ -129,7 +130,8 @@ final class WinsomeClientHelp {
 					+ "blogs.",
 					
 					"Shows the post specified by <idPost> if there is a post with that id, otherwise it returns an error\n"
-					+ "message. The output is of the form e.g.:\nTitle: Title of the post\nContent: Content of the post\n"
+					+ "message. Comments are shown in order of time and a page at a time (<page> = 0 for the most recent ones,\n"
+					+ "the default). The output is of the form e.g.:\nTitle: Title of the post\nContent: Content of the post\n"
 					+ "Votes: 2 likes, 1 dislikes\nComments:\n  user1: Content of comment 1\n  user2: Content of comment 2\n")
 			),
 			newMap(
@@ -155,15 +157,16 @@ final class WinsomeClientHelp {
 					+ "must NOT be its author.")
 			),
 			newMap(
-				list(Command.EMPTY, "btc"),
+				list("[<page>]", "btc [<page>]"),
 				list(
-					"Returns the value of the wallet as calculated in the last period with a history of all transactions,\n"
-					+ "sorted from the most recent to the least recent in order of time. The output is of the form:\n"
+					"Returns the value of the wallet as calculated in the last period with a page of the history of\n"
+					+ "transactions (<page> = 0 for the most recent ones, the default), sorted from the most recent to the\n"
+					+ "least recent in order of time. The output is of the form:\n"
 					+ "Value (wincoin): 4.00\nTransactions:\n#2 : Fri Jan 07 17:02:29 CET 2022 : +2.00\n#1 : Fri Jan 07 "
 					+ "17:00:29 CET 2022 : +2.00\nfor a value of 4.00 wincoins gained with 2 rewards.",
 					
-					"Returns the value of the wallet converted in bitcoin together with the value in bitcoin and the history\n"
-					+ "of all transactions. The output is of the form:\nValue (bitcoin): +3.20\nValue (wincoin): +4.00\n"
+					"Returns the value of the wallet converted in bitcoin together with the value in bitcoin and a page of\n"
+					+ "the history of transactions as above. The output is of the form:\nValue (bitcoin): +3.20\nValue (wincoin): +4.00\n"
 					+ "Transactions:\n#2 : Fri Jan 07 17:02:29 CET 2022 : +2.00\n#1 : Fri Jan 07 17:00:29 CET 2022 : +2.00\n"
 					+ "for a value of 4.00 wincoins gained with 2 rewards and an exchange rate (1 bitcoin = 0.8 wincoins)."
 				)
@@ -182,6 +185,12 @@ final class WinsomeClientHelp {
 			newMap(
 				list("<secs>"),
 				list("Waits for <secs> seconds, unless interrupted by another thread.")
+			),
+			newMap(
+				list("<password> <file>"),
+				list("Writes an online backup of the server to <file> on the host of the server, which must not exist yet.\n"
+					+ "Only the administrator of the server can do it, by providing its password as <password>. The backup\n"
+					+ "is a ZIP archive that can be extracted in the working directory of the server for restoring it.")
 			)
 		)
 	);
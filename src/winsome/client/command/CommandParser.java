@@ -40,7 +40,8 @@ public final class CommandParser implements AutoCloseable, Iterable<CommandDef>
 		QUIT = "quit",
 		EXIT = "exit",
 		CLEAR = "clear",
-		WAIT = "wait";
+		WAIT = "wait",
+		BACKUP = "backup";
 	
 	/* Param strings */
 	public static final String
@@ -112,6 +113,12 @@ public final class CommandParser implements AutoCloseable, Iterable<CommandDef>
 			},
 			/* Commands with a single numeric argument */
 			numTest = (list) -> { return (list.size() == 1 ? testLong(list.get(0)) : false); },
+			/* show post <idPost> [<page>] */
+			showPostTest = (list) -> {
+				if (list.isEmpty() || list.size() > 2) return false;
+				for (String arg : list) if (!testLong(arg)) return false;
+				return true;
+			},
 			/* rate <idPost> <vote> */
 			rateTest = (list) -> {
 				return (list.size() == 2) && testLong(list.get(0)) && testRate(list.get(1));
@@ -185,7 +192,7 @@ public final class CommandParser implements AutoCloseable, Iterable<CommandDef>
 		
 		Map<String, CommandArgs> showMap = new HashMap<>();
 		showMap.put(FEED, CommandArgs.NULL);
-		showMap.put(POST, new CommandArgs(numTest, NUM));
+		showMap.put(POST, new CommandArgs(showPostTest, 1, 2, NUM, NUM));
 		
 		Map<String, CommandArgs> numMap = new HashMap<>();
 		numMap.put(Command.EMPTY, new CommandArgs(numTest, NUM));
@@ -197,10 +204,13 @@ public final class CommandParser implements AutoCloseable, Iterable<CommandDef>
 		commentMap.put(Command.EMPTY, new CommandArgs(commentTest, NUM, QUOTED) );
 		
 		Map<String, CommandArgs> walletMap = new HashMap<>();
-		walletMap.put(Command.EMPTY, CommandArgs.NULL);
-		walletMap.put(BTC, CommandArgs.NULL);
+		walletMap.put(Command.EMPTY, new CommandArgs(0, 1, NUM));
+		walletMap.put(BTC, new CommandArgs(0, 1, NUM));
 		walletMap.put(NOTIFY, CommandArgs.NULL);
 		
+		Map<String, CommandArgs> backupMap = new HashMap<>();
+		backupMap.put(Command.EMPTY, new CommandArgs(PASSWORD, PASSWORD));
+		
 		Map<String, CommandArgs> helpMap = new HashMap<>();
 		helpMap.put(Command.EMPTY, new CommandArgs(0, 1, CommandDef.IdParamRegex));
 		
@@ -224,7 +234,8 @@ public final class CommandParser implements AutoCloseable, Iterable<CommandDef>
 			new CommandDef(QUIT, idOnlyMap),
 			new CommandDef(EXIT, idOnlyMap),
 			new CommandDef(CLEAR, idOnlyMap),
-			new CommandDef(WAIT, numMap)
+			new CommandDef(WAIT, numMap),
+			new CommandDef(BACKUP, backupMap)
 		);
 	}
 	
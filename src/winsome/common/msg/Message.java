@@ -262,7 +262,7 @@ public final class Message {
 	/**
 	 * Creates a new wallet message.
 	 * @param value Wincoin wallet value.
-	 * @param transactions List of transactions as formatted in {@link winsome.server.data.Wallet#history()}.
+	 * @param transactions List of transactions as formatted in {@link winsome.server.data.Wallet#history(int, int)}.
 	 * @param fmt Format string.
 	 * @param objects Objects to format.
 	 * @return A new (OK, WALLET) Message object.
@@ -279,7 +279,7 @@ public final class Message {
 	 * Creates a new wallet message with the value of the wincoin -> bitcoin conversion as first argument.
 	 * @param btcValue Bitcoin value.
 	 * @param value Wincoin value.
-	 * @param transactions List of transactions as formatted in {@link winsome.server.data.Wallet#history()}.
+	 * @param transactions List of transactions as formatted in {@link winsome.server.data.Wallet#history(int, int)}.
 	 * @param fmt Format string.
 	 * @param objects Objects to format.
 	 * @return A new (OK, WALLET) Message object.
@@ -18,4 +18,6 @@ public interface ServerRMI extends Remote {
 		
 	public boolean followersRegister(String username, ClientRMI client) throws RemoteException;
 	public boolean followersUnregister(String username) throws RemoteException;
+	
+	public Pair<Boolean, String> backup(String password, String filename) throws RemoteException;
 }
\ No newline at end of file
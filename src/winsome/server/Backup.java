@@ -0,0 +1,223 @@
+package winsome.server;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.*;
+
+import com.google.gson.JsonIOException;
+
+import winsome.annotations.NotNull;
+import winsome.server.data.Snapshot;
+import winsome.util.*;
+
+/**
+ * Archive of an online backup of the server (see {@link WinsomeServer#backup(String, String)}), i.e. a ZIP file
+ *  whose entries are the files of a snapshot of the server named by their paths relative to the working directory
+ *  of the server, such that extracting the archive there gives a state from which the server can be restarted.
+ *  Entries are written at most at {@link #rate} bytes per second (of uncompressed data), such that a backup does not
+ *  compete for disk and CPU with the requests of the clients, and the progress is logged every {@link #PROGRESSPERIOD}
+ *  milliseconds. The archive is written to a temporary file, that is atomically renamed only when the backup is
+ *  complete.
+ * @author Salvatore Correnti
+ * @see WinsomeServer
+ */
+final class Backup implements Closeable {
+	
+	/** Period in milliseconds between two progress messages. */
+	public static final long PROGRESSPERIOD = 1000;
+	
+	private static final int BUFSIZE = 1 << 16;
+	private static final String TMPEXT = ".tmp";
+	
+	@NotNull
+	private final Path path, tmp;
+	private final FileChannel channel;
+	private final ZipOutputStream zip;
+	/* Maximum throughput in bytes per second (<= 0 for no limit) */
+	private final long rate;
+	@NotNull
+	private final Logger logger;
+	private final long start;
+	private long bytes, lastReport;
+	private int entries;
+	private boolean closed;
+	
+	/** Output stream of the current entry that paces the written bytes and never closes the archive. */
+	private final class EntryStream extends FilterOutputStream {
+	
+		private EntryStream() { super(zip); }
+	
+		public void write(int b) throws IOException { out.write(b); pace(1); }
+	
+		public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); pace(len); }
+	
+		public void close() throws IOException { out.flush(); }
+	}
+	
+	/**
+	 * Creates the archive.
+	 * @param filename Name of the archive.
+	 * @param rate Maximum throughput in bytes per second (&le; 0 for no limit).
+	 * @param logger Logger for progress messages.
+	 * @throws IOException On I/O errors.
+	 * @throws IllegalArgumentException If the archive already exists.
+	 */
+	public Backup(String filename, long rate, Logger logger) throws IOException {
+		Common.notNull(filename, logger);
+		this.path = Paths.get(filename).toAbsolutePath();
+		Common.allAndArgs(!Files.exists(path));
+		this.tmp = path.resolveSibling(path.getFileName() + TMPEXT);
+		Path parent = path.getParent();
+		if (parent != null) Files.createDirectories(parent);
+		this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		this.zip = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFSIZE));
+		this.rate = rate;
+		this.logger = logger;
+		this.start = System.currentTimeMillis();
+		this.bytes = 0;
+		this.lastReport = start;
+		this.entries = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * @param file Path of a file of the server.
+	 * @return The name of the entry of the given file, i.e. its path relative to the working directory of the
+	 *  server (or to the root, if the file is not under the working directory).
+	 */
+	@NotNull
+	public static String entryName(Path file) {
+		Common.notNull(file);
+		Path abs = file.toAbsolutePath().normalize(), cwd = Paths.get("").toAbsolutePath();
+		Path rel = (abs.startsWith(cwd) ? cwd.relativize(abs) : abs.getRoot().relativize(abs));
+		return rel.toString().replace(File.separatorChar, '/');
+	}
+	
+	/** Accounts for the given number of written bytes, sleeping as long as needed for not exceeding the rate. */
+	private void pace(int written) throws IOException {
+		bytes += written;
+		long now = System.currentTimeMillis();
+		if (rate > 0) {
+			long due = start + (bytes * 1000) / rate;
+			if (due > now) {
+				try { Thread.sleep(due - now); }
+				catch (InterruptedException ie) { throw new InterruptedIOException("Backup interrupted"); }
+				now = System.currentTimeMillis();
+			}
+		}
+		if (now - lastReport >= PROGRESSPERIOD) {
+			lastReport = now;
+			logger.log("Backup to '%s' in progress: %d entries, %d bytes in %d ms", path, entries, bytes, now - start);
+		}
+	}
+	
+	/** Starts a new entry with the given name and returns a stream for its content. */
+	@NotNull
+	private OutputStream entry(String name) throws IOException {
+		Common.allAndState(!closed);
+		zip.putNextEntry(new ZipEntry(name));
+		entries++;
+		return new EntryStream();
+	}
+	
+	/**
+	 * Adds an entry with the given content.
+	 * @param name Name of the entry.
+	 * @param content Content of the entry.
+	 * @throws IOException On I/O errors.
+	 */
+	public void addString(String name, String content) throws IOException {
+		Common.notNull(name, content);
+		try (OutputStream out = this.entry(name)) { out.write(content.getBytes(StandardCharsets.UTF_8)); }
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Adds an entry with an object written as JSON, streaming it without building the whole string.
+	 * @param name Name of the entry.
+	 * @param obj The object.
+	 * @param type Type of the object.
+	 * @throws IOException On I/O errors.
+	 */
+	public void addJson(String name, Object obj, Type type) throws IOException {
+		Common.notNull(name, obj, type);
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(this.entry(name), StandardCharsets.UTF_8), BUFSIZE)) {
+			Snapshot.GSON.toJson(obj, type, Snapshot.GSON.newJsonWriter(writer));
+		} catch (JsonIOException ex) { throw new IOException(ex); }
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Adds an entry with the content of the given file as it is when it is opened, i.e. bytes appended to the file
+	 *  while copying it are not included. Nothing is done if the file does not exist.
+	 * @param file The file.
+	 * @return true if the file has been added, false if it does not exist.
+	 * @throws IOException On I/O errors.
+	 */
+	public boolean addFile(Path file) throws IOException {
+		Common.notNull(file);
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ); InputStream stream = Channels.newInputStream(in);
+			OutputStream out = this.entry(entryName(file))) {
+			long remaining = in.size();
+			byte[] buf = new byte[BUFSIZE];
+			int read;
+			while (remaining > 0 && (read = stream.read(buf, 0, (int)Math.min(buf.length, remaining))) > 0) {
+				out.write(buf, 0, read);
+				remaining -= read;
+			}
+		} catch (NoSuchFileException ex) { return false; }
+		zip.closeEntry();
+		return true;
+	}
+	
+	/**
+	 * Adds an entry for the given file with the content of the given buffers (from their position to their limit).
+	 * @param file The file.
+	 * @param content Content of the file.
+	 * @throws IOException On I/O errors.
+	 */
+	public void addFile(Path file, ByteBuffer... content) throws IOException {
+		Common.notNull(file, content);
+		try (OutputStream out = this.entry(entryName(file))) {
+			byte[] buf = new byte[BUFSIZE];
+			for (ByteBuffer part : content) {
+				ByteBuffer src = part.duplicate();
+				while (src.hasRemaining()) {
+					int length = Math.min(buf.length, src.remaining());
+					src.get(buf, 0, length);
+					out.write(buf, 0, length);
+				}
+			}
+		}
+		zip.closeEntry();
+	}
+	
+	/** @return The number of bytes (of uncompressed data) written until now. */
+	public long bytes() { return bytes; }
+	
+	/** @return The number of entries written until now. */
+	public int entries() { return entries; }
+	
+	/** Completes the archive, forces it to disk and renames it to its final name. */
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		zip.finish();
+		zip.flush();
+		channel.force(true);
+		zip.close();
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/** Discards an archive that has not been completed. */
+	public void abort() {
+		closed = true;
+		try { zip.close(); } catch (IOException ioe) {}
+		try { Files.deleteIfExists(tmp); } catch (IOException ioe) {}
+	}
+}
\ No newline at end of file
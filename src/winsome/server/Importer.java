@@ -0,0 +1,600 @@
+package winsome.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+import com.google.gson.*;
+
+import winsome.annotations.NotNull;
+import winsome.common.config.ConfigParser;
+import winsome.common.config.ConfigUtils;
+import winsome.server.data.*;
+import winsome.util.*;
+
+/**
+ * Offline bulk importer that builds the tables of a new server from files of users, follows, posts, votes and
+ *  comments, and writes a snapshot from which the server can be started, instead of registering each user by RMI and
+ *  sending each other request by TCP. Each file is CSV if its name ends with ".csv" (with a header line naming the
+ *  columns and fields optionally quoted as in RFC 4180), otherwise NDJSON (a JSON object per line), with the following
+ *  columns:
+ *  - users: username, password, tags (separated by ';' or spaces, or a JSON array);
+ *  - follows: follower, followed;
+ *  - posts: id, author, title, content;
+ *  - votes: user, post, vote ("+1" or "-1");
+ *  - comments: user, post, time (milliseconds, optional), content.
+ *  Usernames and post ids are sorted and replaced by their positions, such that follows, votes and comments are encoded
+ *  as longs and sorted in parallel (see {@link Arrays#parallelSort(long[])}): the followings, followers and blog of each
+ *  user and the votes and comments of each post are then contiguous ranges of sorted arrays, from which users and posts
+ *  are built in parallel without contention. Malformed rows, rows that refer to missing users or posts, duplicated
+ *  users, posts, follows and votes, self-follows, votes and comments of the author of the post and opposite votes of
+ *  the same user to the same post are skipped and counted. Imported votes and comments are never rewarded.
+ *  Tables are kept in the configured stores (see {@link Store}) while building them, and written with the configured
+ *  format and partitions (see {@link Snapshot} and {@link BinarySnapshot}) together with the state of the server.
+ *  Since the state of an existing server would be overwritten, the importer refuses to run if it already exists.
+ * @author Salvatore Correnti
+ * @see WinsomeServer
+ */
+public final class Importer {
+	
+	private static final String USAGE = "Usage: Importer <config> users=<file> [follows=<file>] [posts=<file>] [votes=<file>] [comments=<file>]";
+	private static final String
+		USERS = "users",
+		FOLLOWS = "follows",
+		POSTS = "posts",
+		VOTES = "votes",
+		COMMENTS = "comments",
+		CSVEXT = ".csv";
+	
+	/* Columns of each file */
+	private static final String[]
+		USERCOLS = {"username", "password", "tags"},
+		FOLLOWCOLS = {"follower", "followed"},
+		POSTCOLS = {"id", "author", "title", "content"},
+		VOTECOLS = {"user", "post", "vote"},
+		COMMENTCOLS = {"user", "post", "time", "content"};
+	
+	private static final Pattern
+		USERNAME = Pattern.compile("[a-zA-Z0-9_]+"),
+		TAG = Pattern.compile("[a-z0-9_]+"),
+		TAGSEP = Pattern.compile("[;\\s]+");
+	
+	private static final int MAXTAGS = 5;
+	/* Mask of the low 32 bits of an encoded pair */
+	private static final long LOW = 0xFFFFFFFFL;
+	/* Number of ranges per thread of the common pool in which users and posts are built */
+	private static final int SPLIT = 4;
+	
+	private Importer() {}
+	
+	/** Handler of the values of a row, in the order of the requested columns (null if missing). */
+	@FunctionalInterface
+	private static interface RowHandler {
+		/** @return true if the row has been accepted, false if it must be skipped. */
+		public boolean handle(String[] row);
+	}
+	
+	/** Task on a range [from, to) of elements. */
+	@FunctionalInterface
+	private static interface RangeTask<R> {
+		public R run(int from, int to) throws Exception;
+	}
+	
+	/** Growable array of longs. */
+	private static final class LongList {
+	
+		private long[] data = new long[1024];
+		private int size = 0;
+	
+		public void add(long value) {
+			if (size == data.length) data = Arrays.copyOf(data, (int)Math.min(Integer.MAX_VALUE - 8, 2L * size));
+			data[size++] = value;
+		}
+	
+		public long get(int index) { return data[index]; }
+	
+		public int size() { return size; }
+	
+		@NotNull
+		public long[] toArray() { return Arrays.copyOf(data, size); }
+	}
+	
+	/** Users sorted by username. */
+	private static final class Users {
+		private String[] names, passwords;
+		private List<List<String>> tags;
+		private long skipped;
+	
+		/** @return The position of the given username, or a negative value if it is missing. */
+		public int index(String name) { return (name != null ? Arrays.binarySearch(names, name) : -1); }
+	}
+	
+	/** Posts sorted by id. */
+	private static final class Posts {
+		private long[] ids;
+		private String[] authors, titles, contents;
+		private long skipped;
+	
+		/** @return The position of the post with the given id, or a negative value if it is missing or malformed. */
+		public int index(String id) {
+			try { return (id != null ? Arrays.binarySearch(ids, Long.parseLong(id.trim())) : -1); }
+			catch (NumberFormatException ex) { return -1; }
+		}
+	}
+	
+	/** Comments sorted by post and time. */
+	private static final class Comments {
+		/* (post << 32 | user) */
+		private long[] keys;
+		private long[] times;
+		private String[] contents;
+		private long skipped;
+	}
+	
+	/** Sorted array of (a << 32 | b) pairs. */
+	private static final class Pairs {
+		private long[] pairs;
+		private long skipped;
+	}
+	
+	/**
+	 * Parses a CSV line.
+	 * @return The fields of the line, or null if it is malformed.
+	 */
+	private static List<String> parseCsv(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		int i = 0, n = line.length();
+		while (true) {
+			field.setLength(0);
+			if (i < n && line.charAt(i) == '"') {
+				i++;
+				while (true) {
+					if (i >= n) return null;
+					char ch = line.charAt(i++);
+					if (ch != '"') field.append(ch);
+					else if (i < n && line.charAt(i) == '"') { field.append('"'); i++; }
+					else break;
+				}
+				if (i < n && line.charAt(i) != ',') return null;
+			} else {
+				int end = line.indexOf(',', i);
+				if (end < 0) end = n;
+				field.append(line, i, end);
+				i = end;
+			}
+			fields.add(field.toString());
+			if (i >= n) return fields;
+			i++;
+		}
+	}
+	
+	/**
+	 * Parses an NDJSON line, joining arrays with ';'.
+	 * @return The values of the given columns (null if missing), or null if the line is malformed.
+	 */
+	private static String[] parseJson(String line, String[] columns) {
+		try {
+			JsonElement elem = JsonParser.parseString(line);
+			if (!elem.isJsonObject()) return null;
+			JsonObject obj = elem.getAsJsonObject();
+			String[] row = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				JsonElement value = obj.get(columns[i]);
+				if (value == null || value.isJsonNull()) continue;
+				if (value.isJsonArray()) {
+					StringJoiner joiner = new StringJoiner(";");
+					for (JsonElement item : value.getAsJsonArray()) joiner.add(item.getAsString());
+					row[i] = joiner.toString();
+				} else if (value.isJsonPrimitive()) row[i] = value.getAsString();
+				else return null;
+			}
+			return row;
+		} catch (JsonParseException | IllegalStateException | UnsupportedOperationException ex) { return null; }
+	}
+	
+	/**
+	 * Reads the rows of the given file and passes the values of the given columns to handler.
+	 * @param filename Name of the file (CSV if it ends with {@link #CSVEXT}, NDJSON otherwise).
+	 * @param columns Names of the columns.
+	 * @param handler Handler of the rows.
+	 * @return The number of skipped rows, i.e. malformed ones and the ones rejected by handler.
+	 * @throws IOException On I/O errors.
+	 */
+	private static long read(String filename, String[] columns, RowHandler handler) throws IOException {
+		boolean csv = filename.toLowerCase().endsWith(CSVEXT);
+		long skipped = 0;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+			String line;
+			int[] index = null;
+			if (csv) {
+				List<String> header = null;
+				while ((line = reader.readLine()) != null && line.isBlank());
+				if (line == null || (header = parseCsv(line)) == null) return 0;
+				index = new int[columns.length];
+				for (int i = 0; i < columns.length; i++) index[i] = header.indexOf(columns[i]);
+			}
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) continue;
+				String[] row = null;
+				if (csv) {
+					List<String> fields = parseCsv(line);
+					if (fields != null) {
+						row = new String[columns.length];
+						for (int i = 0; i < columns.length; i++)
+							if (index[i] >= 0 && index[i] < fields.size()) row[i] = fields.get(index[i]);
+					}
+				} else row = parseJson(line, columns);
+				if (row == null || !handler.handle(row)) skipped++;
+			}
+		}
+		return skipped;
+	}
+	
+	/** @return The positions [0, n) sorted with the given comparator (stable w.r.t. input order). */
+	@NotNull
+	private static int[] sortedOrder(int n, Comparator<Integer> comparator) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Arrays.parallelSort(order, comparator.thenComparingInt((i) -> i));
+		int[] result = new int[n];
+		for (int i = 0; i < n; i++) result[i] = order[i];
+		return result;
+	}
+	
+	/** @return The parsed tags (1 to {@link #MAXTAGS} distinct lowercase tags), or null if they are not valid. */
+	private static List<String> parseTags(String tags) {
+		if (tags == null) return null;
+		Set<String> result = new LinkedHashSet<>();
+		for (String tag : TAGSEP.split(tags.trim())) {
+			if (tag.isEmpty()) continue;
+			if (!TAG.matcher(tag).matches()) return null;
+			result.add(tag);
+		}
+		return (result.size() >= 1 && result.size() <= MAXTAGS ? new ArrayList<>(result) : null);
+	}
+	
+	/** Reads and sorts the users, keeping the first occurrence of each username. */
+	@NotNull
+	private static Users readUsers(String filename) throws IOException {
+		List<String> names = new ArrayList<>(), passwords = new ArrayList<>();
+		List<List<String>> tags = new ArrayList<>();
+		long skipped = read(filename, USERCOLS, (row) -> {
+			List<String> userTags = parseTags(row[2]);
+			if (row[0] == null || !USERNAME.matcher(row[0]).matches() || row[1] == null || row[1].isEmpty() ||
+				userTags == null) return false;
+			names.add(row[0]); passwords.add(row[1]); tags.add(userTags);
+			return true;
+		});
+		int[] order = sortedOrder(names.size(), (a, b) -> names.get(a).compareTo(names.get(b)));
+		Users users = new Users();
+		List<String> sortedNames = new ArrayList<>(), sortedPasswords = new ArrayList<>();
+		users.tags = new ArrayList<>();
+		for (int i : order) {
+			String name = names.get(i);
+			if (!sortedNames.isEmpty() && sortedNames.get(sortedNames.size() - 1).equals(name)) { skipped++; continue; }
+			sortedNames.add(name); sortedPasswords.add(passwords.get(i)); users.tags.add(tags.get(i));
+		}
+		users.names = sortedNames.toArray(new String[0]);
+		users.passwords = sortedPasswords.toArray(new String[0]);
+		users.skipped = skipped;
+		return users;
+	}
+	
+	/** Reads and sorts the posts, keeping the first occurrence of each id (authors are checked later). */
+	@NotNull
+	private static Posts readPosts(String filename) throws IOException {
+		LongList ids = new LongList();
+		List<String> authors = new ArrayList<>(), titles = new ArrayList<>(), contents = new ArrayList<>();
+		long skipped = read(filename, POSTCOLS, (row) -> {
+			long id;
+			try { id = Long.parseLong(row[0].trim()); }
+			catch (NullPointerException | NumberFormatException ex) { return false; }
+			if (id <= 0 || row[1] == null || row[2] == null || row[2].isBlank() || row[3] == null || row[3].isBlank())
+				return false;
+			ids.add(id); authors.add(row[1]); titles.add(row[2]); contents.add(row[3]);
+			return true;
+		});
+		int[] order = sortedOrder(ids.size(), (a, b) -> Long.compare(ids.get(a), ids.get(b)));
+		LongList sortedIds = new LongList();
+		List<String> sortedAuthors = new ArrayList<>(), sortedTitles = new ArrayList<>(), sortedContents = new ArrayList<>();
+		for (int i : order) {
+			long id = ids.get(i);
+			if (sortedIds.size() > 0 && sortedIds.get(sortedIds.size() - 1) == id) { skipped++; continue; }
+			sortedIds.add(id); sortedAuthors.add(authors.get(i)); sortedTitles.add(titles.get(i)); sortedContents.add(contents.get(i));
+		}
+		Posts posts = new Posts();
+		posts.ids = sortedIds.toArray();
+		posts.authors = sortedAuthors.toArray(new String[0]);
+		posts.titles = sortedTitles.toArray(new String[0]);
+		posts.contents = sortedContents.toArray(new String[0]);
+		posts.skipped = skipped;
+		return posts;
+	}
+	
+	/** Removes the posts whose author is not a user. */
+	private static void checkAuthors(Posts posts, Users users) {
+		int size = 0;
+		for (int i = 0; i < posts.ids.length; i++) {
+			if (users.index(posts.authors[i]) < 0) { posts.skipped++; continue; }
+			posts.ids[size] = posts.ids[i]; posts.authors[size] = posts.authors[i];
+			posts.titles[size] = posts.titles[i]; posts.contents[size] = posts.contents[i];
+			size++;
+		}
+		posts.ids = Arrays.copyOf(posts.ids, size);
+		posts.authors = Arrays.copyOf(posts.authors, size);
+		posts.titles = Arrays.copyOf(posts.titles, size);
+		posts.contents = Arrays.copyOf(posts.contents, size);
+	}
+	
+	/** Sorts the given pairs and removes duplicated ones, counting them as skipped. */
+	@NotNull
+	private static Pairs sortPairs(LongList list, long skipped) {
+		long[] pairs = list.toArray();
+		Arrays.parallelSort(pairs);
+		int size = 0;
+		for (int i = 0; i < pairs.length; i++) {
+			if (size > 0 && pairs[size - 1] == pairs[i]) { skipped++; continue; }
+			pairs[size++] = pairs[i];
+		}
+		Pairs result = new Pairs();
+		result.pairs = Arrays.copyOf(pairs, size);
+		result.skipped = skipped;
+		return result;
+	}
+	
+	/** Reads the follows as (follower << 32 | followed) pairs. */
+	@NotNull
+	private static Pairs readFollows(String filename, Users users) throws IOException {
+		LongList follows = new LongList();
+		long skipped = read(filename, FOLLOWCOLS, (row) -> {
+			int follower = users.index(row[0]), followed = users.index(row[1]);
+			if (follower < 0 || followed < 0 || follower == followed) return false;
+			follows.add(((long)follower << 32) | followed);
+			return true;
+		});
+		return sortPairs(follows, skipped);
+	}
+	
+	/**
+	 * Reads the votes as (post << 32 | user << 1 | like) pairs. Opposite votes of the same user to the same post are
+	 *  all skipped.
+	 */
+	@NotNull
+	private static Pairs readVotes(String filename, Users users, Posts posts) throws IOException {
+		LongList votes = new LongList();
+		long skipped = read(filename, VOTECOLS, (row) -> {
+			int user = users.index(row[0]), post = posts.index(row[1]);
+			String vote = (row[2] != null ? row[2].trim() : null);
+			boolean like = ServerUtils.LIKE.equals(vote);
+			if (user < 0 || post < 0 || !(like || ServerUtils.DISLIKE.equals(vote)) || posts.authors[post].equals(users.names[user]))
+				return false;
+			votes.add(((long)post << 32) | ((long)user << 1) | (like ? 1 : 0));
+			return true;
+		});
+		Pairs result = sortPairs(votes, skipped);
+		long[] pairs = result.pairs;
+		int size = 0;
+		for (int i = 0; i < pairs.length; i++) {
+			if (i + 1 < pairs.length && (pairs[i] >>> 1) == (pairs[i + 1] >>> 1)) { result.skipped += 2; i++; continue; }
+			pairs[size++] = pairs[i];
+		}
+		result.pairs = Arrays.copyOf(pairs, size);
+		return result;
+	}
+	
+	/** Reads the comments and sorts them by post and time (and then by input order). */
+	@NotNull
+	private static Comments readComments(String filename, Users users, Posts posts, long now) throws IOException {
+		LongList keys = new LongList(), times = new LongList();
+		List<String> contents = new ArrayList<>();
+		long skipped = read(filename, COMMENTCOLS, (row) -> {
+			int user = users.index(row[0]), post = posts.index(row[1]);
+			long time = now;
+			if (row[2] != null && !row[2].isBlank()) {
+				try { time = Long.parseLong(row[2].trim()); }
+				catch (NumberFormatException ex) { return false; }
+			}
+			if (user < 0 || post < 0 || row[3] == null || row[3].isBlank() || posts.authors[post].equals(users.names[user]))
+				return false;
+			keys.add(((long)post << 32) | user); times.add(time); contents.add(row[3]);
+			return true;
+		});
+		int[] order = sortedOrder(keys.size(), (a, b) -> {
+			int cmp = Long.compare(keys.get(a) >>> 32, keys.get(b) >>> 32);
+			return (cmp != 0 ? cmp : Long.compare(times.get(a), times.get(b)));
+		});
+		Comments comments = new Comments();
+		comments.keys = new long[order.length];
+		comments.times = new long[order.length];
+		comments.contents = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			comments.keys[i] = keys.get(order[i]);
+			comments.times[i] = times.get(order[i]);
+			comments.contents[i] = contents.get(order[i]);
+		}
+		comments.skipped = skipped;
+		return comments;
+	}
+	
+	/** @return The start of the range of each group [0, groups] in the given sorted pairs (grouped by the high 32 bits). */
+	@NotNull
+	private static int[] ranges(long[] pairs, int groups) {
+		int[] start = new int[groups + 1];
+		for (long pair : pairs) start[(int)(pair >>> 32) + 1]++;
+		for (int i = 0; i < groups; i++) start[i + 1] += start[i];
+		return start;
+	}
+	
+	/** Runs task on consecutive ranges of [0, n) in the common pool and returns the results in order of range. */
+	@NotNull
+	private static <R> List<R> parallel(int n, RangeTask<R> task) throws Exception {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int count = Math.max(1, Math.min(n, SPLIT * pool.getParallelism()));
+		List<Future<R>> futures = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int from = (int)((long)n * i / count), to = (int)((long)n * (i + 1) / count);
+			futures.add(pool.submit(() -> task.run(from, to)));
+		}
+		List<R> results = new ArrayList<>();
+		try { for (Future<R> future : futures) results.add(future.get()); }
+		catch (ExecutionException ex) {
+			Throwable cause = Snapshot.cause(ex);
+			throw (cause instanceof Exception ? (Exception)cause : ex);
+		}
+		return results;
+	}
+	
+	/** @return The result of the given future, unwrapping the cause of the failure. */
+	private static <R> R get(Future<R> future) throws Exception {
+		try { return future.get(); }
+		catch (ExecutionException ex) {
+			Throwable cause = Snapshot.cause(ex);
+			throw (cause instanceof Exception ? (Exception)cause : ex);
+		}
+	}
+	
+	/**
+	 * Imports the given files (see {@link Importer}), printing the number of imported and skipped rows and the time
+	 *  taken by each phase.
+	 * @param args Configuration file of the server followed by name=file arguments as in {@link #USAGE}.
+	 * @throws Exception On failure.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> files = new HashMap<>();
+		List<String> names = Arrays.asList(USERS, FOLLOWS, POSTS, VOTES, COMMENTS);
+		boolean valid = (args.length >= 2);
+		for (int i = 1; valid && i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			valid = (eq > 0 && names.contains(args[i].substring(0, eq)) && files.put(args[i].substring(0, eq), args[i].substring(eq + 1)) == null);
+		}
+		if (!valid || !files.containsKey(USERS)) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		Map<String, String> configMap = ConfigParser.parseFile(args[0], ConfigParser.LOWER);
+		String
+			serverJson = ConfigUtils.setValueOrDefault(configMap, "serverjson", ConfigUtils.newStr, WinsomeServer.DFLSERVERJSON),
+			userJson = ConfigUtils.setValueOrDefault(configMap, "userjson", ConfigUtils.newStr, WinsomeServer.DFLUSERJSON),
+			postJson = ConfigUtils.setValueOrDefault(configMap, "postjson", ConfigUtils.newStr, WinsomeServer.DFLPOSTJSON),
+			walletJson = ConfigUtils.setValueOrDefault(configMap, "walletjson", ConfigUtils.newStr, WinsomeServer.DFLWALLETJSON);
+		for (String filename : Arrays.asList(serverJson, userJson, postJson, walletJson)) {
+			if (Files.exists(Paths.get(filename)) || Files.exists(Paths.get(Snapshot.manifestFile(filename))) ||
+				Files.exists(Paths.get(BinarySnapshot.binaryFile(filename)))) {
+				System.err.printf("'%s' already exists: the importer can only be run for a new server%n", filename);
+				System.exit(1);
+			}
+		}
+		int partitions = ConfigUtils.setValueOrDefault(configMap, "partitions", ConfigUtils.newInt, Table.DFLPARTITIONS);
+		if (partitions <= 0) partitions = Table.DFLPARTITIONS;
+		boolean binary = WinsomeServer.binarySnapshot(configMap);
+		long now = System.currentTimeMillis(), start = System.nanoTime(), phase = start;
+	
+		/* Phase 1: users and posts */
+		ExecutorService readers = Executors.newFixedThreadPool(3);
+		Users users;
+		Posts posts;
+		Pairs follows, votes;
+		Comments comments;
+		try {
+			Future<Users> usersFuture = readers.submit(() -> readUsers(files.get(USERS)));
+			Future<Posts> postsFuture = (files.containsKey(POSTS) ? readers.submit(() -> readPosts(files.get(POSTS))) : null);
+			users = get(usersFuture);
+			posts = (postsFuture != null ? get(postsFuture) : new Posts());
+			if (postsFuture == null) { posts.ids = new long[0]; posts.authors = posts.titles = posts.contents = new String[0]; }
+			checkAuthors(posts, users);
+			System.out.printf("Read %d users (%d skipped) and %d posts (%d skipped) in %d ms%n", users.names.length, users.skipped,
+				posts.ids.length, posts.skipped, (System.nanoTime() - phase) / 1_000_000);
+			phase = System.nanoTime();
+	
+			/* Phase 2: follows, votes and comments */
+			Users u = users;
+			Posts p = posts;
+			Future<Pairs> followsFuture = (files.containsKey(FOLLOWS) ? readers.submit(() -> readFollows(files.get(FOLLOWS), u)) : null);
+			Future<Pairs> votesFuture = (files.containsKey(VOTES) ? readers.submit(() -> readVotes(files.get(VOTES), u, p)) : null);
+			Future<Comments> commentsFuture = (files.containsKey(COMMENTS) ?
+				readers.submit(() -> readComments(files.get(COMMENTS), u, p, now)) : null);
+			follows = (followsFuture != null ? get(followsFuture) : sortPairs(new LongList(), 0));
+			votes = (votesFuture != null ? get(votesFuture) : sortPairs(new LongList(), 0));
+			if (commentsFuture != null) comments = get(commentsFuture);
+			else { comments = new Comments(); comments.keys = comments.times = new long[0]; comments.contents = new String[0]; }
+		} finally { readers.shutdownNow(); }
+		System.out.printf("Read %d follows (%d skipped), %d votes (%d skipped) and %d comments (%d skipped) in %d ms%n",
+			follows.pairs.length, follows.skipped, votes.pairs.length, votes.skipped, comments.keys.length, comments.skipped,
+			(System.nanoTime() - phase) / 1_000_000);
+		phase = System.nanoTime();
+	
+		/* Phase 3: tables */
+		int userCount = users.names.length, postCount = posts.ids.length;
+		long[] followers = new long[follows.pairs.length], blog = new long[postCount];
+		for (int i = 0; i < followers.length; i++) followers[i] = Long.rotateLeft(follows.pairs[i], 32);
+		for (int i = 0; i < postCount; i++) blog[i] = ((long)users.index(posts.authors[i]) << 32) | i;
+		Arrays.parallelSort(followers);
+		Arrays.parallelSort(blog);
+		int[] followingStart = ranges(follows.pairs, userCount), followerStart = ranges(followers, userCount),
+			blogStart = ranges(blog, userCount);
+		int[] voteStart = ranges(votes.pairs, postCount), commentStart = ranges(comments.keys, postCount);
+	
+		Table<String, Wallet> wallets = new Table<>(partitions, WinsomeServer.openStore(configMap, "walletstore", "wallets", Wallet.class));
+		Table<Long, Post> postTable = new Table<>(partitions, WinsomeServer.openStore(configMap, "poststore", "posts", Post.class));
+		Table<String, User> userTable = new Table<>(partitions, WinsomeServer.openStore(configMap, "userstore", "users", User.class));
+		try {
+			IDGen postGen = new IDGen(1);
+			Post.setGen(postGen);
+			for (long id : posts.ids) postGen.advance(id);
+			Users u = users;
+			Posts p = posts;
+			List<Map<String, List<String>>> chunkTags = parallel(userCount, (from, to) -> {
+				Map<String, List<String>> tags = new HashMap<>();
+				for (int i = from; i < to; i++) {
+					List<String> following = new ArrayList<>(), userFollowers = new ArrayList<>();
+					List<Long> userBlog = new ArrayList<>();
+					for (int j = followingStart[i]; j < followingStart[i + 1]; j++) following.add(u.names[(int)(follows.pairs[j] & LOW)]);
+					for (int j = followerStart[i]; j < followerStart[i + 1]; j++) userFollowers.add(u.names[(int)(followers[j] & LOW)]);
+					for (int j = blogStart[i]; j < blogStart[i + 1]; j++) userBlog.add(p.ids[(int)(blog[j] & LOW)]);
+					userTable.putIfAbsent(User.build(u.names[i], u.passwords[i], u.tags.get(i), following, userFollowers, userBlog));
+					wallets.putIfAbsent(new Wallet(u.names[i]));
+					for (String tag : u.tags.get(i)) tags.computeIfAbsent(tag, (t) -> new ArrayList<>()).add(u.names[i]);
+				}
+				return tags;
+			});
+			ConcurrentMap<String, NavigableSet<String>> tagsMap = new ConcurrentHashMap<>();
+			for (Map<String, List<String>> tags : chunkTags)
+				for (Map.Entry<String, List<String>> entry : tags.entrySet())
+					tagsMap.computeIfAbsent(entry.getKey(), (t) -> new TreeSet<>()).addAll(entry.getValue());
+			parallel(postCount, (from, to) -> {
+				for (int i = from; i < to; i++) {
+					Post post = new Post(p.ids[i], p.titles[i], p.contents[i], p.authors[i]);
+					for (int j = voteStart[i]; j < voteStart[i + 1]; j++)
+						post.addRate(u.names[(int)((votes.pairs[j] & LOW) >>> 1)], (votes.pairs[j] & 1) == 1);
+					for (int j = commentStart[i]; j < commentStart[i + 1]; j++)
+						post.addComment(u.names[(int)(comments.keys[j] & LOW)], comments.contents[j], comments.times[j]);
+					postTable.putIfAbsent(post);
+					post.inserted();
+				}
+				return null;
+			});
+			System.out.printf("Built %d users and %d posts in %d ms%n", userTable.size(), postTable.size(),
+				(System.nanoTime() - phase) / 1_000_000);
+			phase = System.nanoTime();
+	
+			/* Phase 4: snapshot */
+			List<Table<?, ?>> tables = Arrays.asList(wallets, postTable, userTable);
+			List<String> filenames = Arrays.asList(walletJson, postJson, userJson);
+			ExecutorService pool = ForkJoinPool.commonPool();
+			long[] stats = (binary ?
+				BinarySnapshot.writeTables(tables, filenames, Arrays.asList(Wallet.class, Post.class, User.class), pool) :
+				Snapshot.writeTables(tables, filenames, Arrays.asList(ServerUtils.WALLETSTYPE, ServerUtils.POSTSTYPE, ServerUtils.USERSTYPE), pool));
+			stats[1] += Snapshot.writeString(WinsomeServer.initialState(tagsMap, postGen), serverJson);
+			System.out.printf("Snapshot of %d bytes written in %d ms (%d ms in total)%n", stats[1],
+				(System.nanoTime() - phase) / 1_000_000, (System.nanoTime() - start) / 1_000_000);
+		} finally {
+			wallets.close();
+			postTable.close();
+			userTable.close();
+		}
+	}
+}
\ No newline at end of file
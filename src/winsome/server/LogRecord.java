@@ -0,0 +1,226 @@
+package winsome.server;
+
+import java.io.*;
+import java.util.*;
+
+import winsome.annotations.NotNull;
+import winsome.server.data.User;
+import winsome.util.*;
+
+/**
+ * A record of the {@link WriteAheadLog}, i.e. a mutation of the state of the server. Each record has a type and
+ *  only the fields that are meaningful for that type are encoded (strings are encoded as [int length][UTF-8 bytes]):
+ *  	1) REGISTER -> actor (username), texts = {pwAppend, hashStr, tags...};
+ *  	2) FOLLOW, UNFOLLOW -> actor (follower), target (followed);
+ *  	3) CREATEPOST -> actor (author), idPost, texts = {title, content};
+ *  	4) DELETEPOST, REWIN -> actor, idPost;
+ *  	5) RATE -> actor, idPost, like;
+ *  	6) COMMENT -> actor, idPost, time, count (number of comments of actor to the post), texts = {content};
+ *  	7) SETTLEMENT -> round, time, rewards.
+ * @author Salvatore Correnti
+ * @see WriteAheadLog
+ */
+final class LogRecord {
+	
+	static enum Type { REGISTER, FOLLOW, UNFOLLOW, CREATEPOST, DELETEPOST, REWIN, RATE, COMMENT, SETTLEMENT };
+	
+	private static final Type[] TYPES = Type.values();
+	
+	@NotNull
+	private final Type type;
+	private final String actor, target;
+	/* Id of the post (or of the reward round for SETTLEMENT) */
+	private final long id;
+	private final long time;
+	/* Number of comments of the actor to the post after a COMMENT */
+	private final int count;
+	private final boolean like;
+	@NotNull
+	private final List<String> texts;
+	private final Map<String, Double> rewards;
+	
+	private LogRecord(Type type, String actor, String target, long id, long time, int count, boolean like,
+		List<String> texts, Map<String, Double> rewards) {
+		Common.notNull(type, texts);
+		this.type = type;
+		this.actor = actor;
+		this.target = target;
+		this.id = id;
+		this.time = time;
+		this.count = count;
+		this.like = like;
+		this.texts = texts;
+		this.rewards = rewards;
+	}
+	
+	private LogRecord(Type type, String actor, String target, long id, long time, boolean like, List<String> texts,
+		Map<String, Double> rewards) {
+		this(type, actor, target, id, time, 0, like, texts, rewards);
+	}
+	
+	private LogRecord(Type type, String actor, long idPost) {
+		this(type, actor, null, idPost, 0, false, Collections.emptyList(), null);
+	}
+	
+	public static LogRecord newRegister(User user) {
+		Common.notNull(user);
+		List<String> texts = new ArrayList<>();
+		texts.add(user.pwAppend()); texts.add(user.hashStr());
+		texts.addAll(user.tags());
+		return new LogRecord(Type.REGISTER, user.key(), null, 0, 0, false, texts, null);
+	}
+	
+	public static LogRecord newFollow(String follower, String followed) {
+		Common.notNull(follower, followed);
+		return new LogRecord(Type.FOLLOW, follower, followed, 0, 0, false, Collections.emptyList(), null);
+	}
+	
+	public static LogRecord newUnfollow(String follower, String followed) {
+		Common.notNull(follower, followed);
+		return new LogRecord(Type.UNFOLLOW, follower, followed, 0, 0, false, Collections.emptyList(), null);
+	}
+	
+	public static LogRecord newCreatePost(String author, long idPost, String title, String content) {
+		Common.notNull(author, title, content);
+		return new LogRecord(Type.CREATEPOST, author, null, idPost, 0, false, Common.toList(title, content), null);
+	}
+	
+	public static LogRecord newDeletePost(String author, long idPost) {
+		Common.notNull(author);
+		return new LogRecord(Type.DELETEPOST, author, idPost);
+	}
+	
+	public static LogRecord newRewin(String user, long idPost) {
+		Common.notNull(user);
+		return new LogRecord(Type.REWIN, user, idPost);
+	}
+	
+	public static LogRecord newRate(String user, long idPost, boolean like) {
+		Common.notNull(user);
+		return new LogRecord(Type.RATE, user, null, idPost, 0, like, Collections.emptyList(), null);
+	}
+	
+	public static LogRecord newComment(String user, long idPost, long time, int count, String content) {
+		Common.notNull(user, content);
+		return new LogRecord(Type.COMMENT, user, null, idPost, time, count, false, Common.toList(content), null);
+	}
+	
+	public static LogRecord newSettlement(long round, long time, Map<String, Double> rewards) {
+		Common.notNull(rewards);
+		return new LogRecord(Type.SETTLEMENT, null, null, round, time, false, Collections.emptyList(), new HashMap<>(rewards));
+	}
+	
+	public Type getType() { return type; }
+	public String getActor() { return actor; }
+	public String getTarget() { return target; }
+	public long getIdPost() { return id; }
+	public long getRound() { return id; }
+	public long getTime() { return time; }
+	public int getCount() { return count; }
+	public boolean getLike() { return like; }
+	public List<String> getTexts() { return Collections.unmodifiableList(texts); }
+	public Map<String, Double> getRewards() { return (rewards != null ? Collections.unmodifiableMap(rewards) : null); }
+	
+	private static void writeString(DataOutput out, String str) throws IOException { Serialization.writeString(out, str); }
+	
+	private static String readString(DataInput in) throws IOException { return Serialization.readString(in); }
+	
+	/**
+	 * Writes this record in binary format.
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	public void encode(DataOutput out) throws IOException {
+		out.writeByte(type.ordinal());
+		switch (type) {
+			case REGISTER : {
+				writeString(out, actor);
+				out.writeInt(texts.size());
+				for (String s : texts) writeString(out, s);
+				break;
+			}
+			case FOLLOW :
+			case UNFOLLOW : { writeString(out, actor); writeString(out, target); break; }
+			case CREATEPOST : {
+				writeString(out, actor); out.writeLong(id);
+				writeString(out, texts.get(0)); writeString(out, texts.get(1));
+				break;
+			}
+			case DELETEPOST :
+			case REWIN : { writeString(out, actor); out.writeLong(id); break; }
+			case RATE : { writeString(out, actor); out.writeLong(id); out.writeBoolean(like); break; }
+			case COMMENT : {
+				writeString(out, actor); out.writeLong(id); out.writeLong(time); out.writeInt(count);
+				writeString(out, texts.get(0));
+				break;
+			}
+			case SETTLEMENT : {
+				out.writeLong(id); out.writeLong(time);
+				out.writeInt(rewards.size());
+				for (Map.Entry<String, Double> e : rewards.entrySet()) { writeString(out, e.getKey()); out.writeDouble(e.getValue()); }
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Reads a record written by {@link #encode(DataOutput)}.
+	 * @param in Input.
+	 * @return The record.
+	 * @throws IOException On I/O errors or if the record is malformed.
+	 */
+	@NotNull
+	public static LogRecord decode(DataInput in) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= TYPES.length) throw new IOException(Common.excStr("Unknown record type %d", ordinal));
+		Type type = TYPES[ordinal];
+		switch (type) {
+			case REGISTER : {
+				String actor = readString(in);
+				int n = in.readInt();
+				if (n < 2) throw new IOException("Malformed register record");
+				List<String> texts = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) texts.add(readString(in));
+				return new LogRecord(type, actor, null, 0, 0, false, texts, null);
+			}
+			case FOLLOW :
+			case UNFOLLOW : {
+				String actor = readString(in), target = readString(in);
+				return new LogRecord(type, actor, target, 0, 0, false, Collections.emptyList(), null);
+			}
+			case CREATEPOST : {
+				String actor = readString(in);
+				long id = in.readLong();
+				String title = readString(in), content = readString(in);
+				return new LogRecord(type, actor, null, id, 0, false, Common.toList(title, content), null);
+			}
+			case DELETEPOST :
+			case REWIN : {
+				String actor = readString(in);
+				return new LogRecord(type, actor, in.readLong());
+			}
+			case RATE : {
+				String actor = readString(in);
+				long id = in.readLong();
+				return new LogRecord(type, actor, null, id, 0, in.readBoolean(), Collections.emptyList(), null);
+			}
+			case COMMENT : {
+				String actor = readString(in);
+				long id = in.readLong(), time = in.readLong();
+				int count = in.readInt();
+				return new LogRecord(type, actor, null, id, time, count, false, Common.toList(readString(in)), null);
+			}
+			default : {
+				long round = in.readLong(), time = in.readLong();
+				int n = in.readInt();
+				if (n < 0) throw new IOException("Malformed settlement record");
+				Map<String, Double> rewards = new HashMap<>();
+				for (int i = 0; i < n; i++) { String user = readString(in); rewards.put(user, in.readDouble()); }
+				return new LogRecord(type, null, null, round, time, false, Collections.emptyList(), rewards);
+			}
+		}
+	}
+	
+	@NotNull
+	public String toString() { return Common.jsonString(this); }
+}
\ No newline at end of file
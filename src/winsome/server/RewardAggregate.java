@@ -0,0 +1,119 @@
+package winsome.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import winsome.annotations.NotNull;
+import winsome.server.action.*;
+import winsome.util.Common;
+
+/**
+ * Running aggregates of the actions ended in a reward period, updated as each action ends (see
+ *  {@link ActionRegistry#setAggregator(java.util.function.Supplier)}) such that closing the period only evaluates the
+ *  vote and comment strategies on the posts touched in it (see {@link RewardCalculatorImpl#computeReward(RewardAggregate)}).
+ *  Actions can be added concurrently by different threads.
+ * @author Salvatore Correnti
+ * @see RewardCalculatorImpl
+ */
+final class RewardAggregate implements Consumer<Action> {
+	
+	/** Aggregate of the actions of a single post. */
+	static final class PostAggregate {
+	
+		/* Author of the post */
+		private String author;
+		/* Vote of each voter */
+		@NotNull
+		private final Map<String, Integer> votes;
+		/* Maximum number of comments of each commenter (when each comment was added) */
+		@NotNull
+		private final Map<String, Integer> comments;
+		/* Users other than the author that liked or commented the post */
+		@NotNull
+		private final Set<String> curators;
+	
+		PostAggregate() {
+			this.author = null;
+			this.votes = new HashMap<>();
+			this.comments = new HashMap<>();
+			this.curators = new HashSet<>();
+		}
+	
+		/**
+		 * Adds an action to this aggregate.
+		 * @param act The action (of any type but DELETE).
+		 * @return true if the action is a vote or a comment, false otherwise.
+		 */
+		synchronized boolean add(Action act) {
+			if (author == null) author = act.getAuthor();
+			ActionType type = act.getType();
+			String actor = act.getActor();
+			switch (type) {
+				case LIKE : { votes.put(actor, 1); break; }
+				case DISLIKE : { votes.put(actor, -1); break; }
+				case COMMENT : { comments.merge(actor, act.getNComments(), Math::max); break; }
+				default : return false;
+			}
+			if (type != ActionType.DISLIKE && !actor.equals(author)) curators.add(actor);
+			return true;
+		}
+	
+		synchronized String author() { return author; }
+	
+		@NotNull
+		synchronized Map<String, Integer> votes() { return votes; }
+	
+		/** @return A map from each commenter to a singleton list of its maximum number of comments. */
+		@NotNull
+		synchronized Map<String, List<Integer>> comments() {
+			Map<String, List<Integer>> result = new HashMap<>();
+			for (Map.Entry<String, Integer> entry : comments.entrySet())
+				result.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+			return result;
+		}
+	
+		@NotNull
+		synchronized Set<String> curators() { return curators; }
+	}
+	
+	/* Aggregates of the posts touched in the period (also by creation) */
+	@NotNull
+	private final ConcurrentMap<Long, PostAggregate> posts;
+	/* Posts deleted in the period */
+	@NotNull
+	private final Set<Long> deleted;
+	
+	public RewardAggregate() {
+		this.posts = new ConcurrentHashMap<>();
+		this.deleted = ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * @param actions Actions.
+	 * @return A new aggregate of the given actions.
+	 */
+	@NotNull
+	public static RewardAggregate of(List<Action> actions) {
+		Common.notNull(actions);
+		RewardAggregate aggregate = new RewardAggregate();
+		for (Action act : actions) aggregate.accept(act);
+		return aggregate;
+	}
+	
+	public void accept(Action act) {
+		Common.notNull(act);
+		if (act.getType() == ActionType.DELETE) deleted.add(act.getIdPost());
+		else posts.computeIfAbsent(act.getIdPost(), (id) -> new PostAggregate()).add(act);
+	}
+	
+	/** @return The aggregates of the posts touched in the period (including the deleted ones). */
+	@NotNull
+	Map<Long, PostAggregate> posts() { return posts; }
+	
+	/** @return The ids of the posts deleted in the period. */
+	@NotNull
+	Set<Long> deleted() { return deleted; }
+	
+	public String toString() { return Common.jsonString(this); }
+}
\ No newline at end of file
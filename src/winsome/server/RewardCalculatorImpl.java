@@ -1,17 +1,23 @@
 package winsome.server;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 import winsome.server.action.*;
 import winsome.util.*;
 
 /**
- * Implementation of {@link RewardCalculator}.
+ * Implementation of {@link RewardCalculator}. When a {@link ForkJoinPool} is given, the rewards of a period are
+ *  computed in parallel on it (see {@link #computeReward(RewardAggregate)}), with exactly the same results of the
+ *  sequential computation.
  * @author Salvatore Correnti
  */
 final class RewardCalculatorImpl implements RewardCalculator<Integer, List<Integer>> {
 	
+	/** Minimum number of posts for each parallel task. */
+	private static final int MINPARTSIZE = 256;
+	
 	private static final double transf(int cp) { return 2.0 / (1.0 + Math.exp(1-cp)); }
 	
 	/** Default vote strategy as described in project specification. */
@@ -31,21 +37,46 @@ final class RewardCalculatorImpl implements RewardCalculator<Integer, List<Integ
 	private final ToDoubleFunction< Map<String, Integer> > voteStrategy;
 	/** Comment strategy for calculating comments-related rewards. */
 	private final ToDoubleFunction< Map<String, List<Integer>> > commentStrategy;
-	/** Map of iterations. */
-	private final Map<Long, Double> iterationMap;
+	/**
+	 * Map of the births of the posts that have been rewarded at least once (see {@link winsome.server.data.Post#getBirth()}),
+	 *  such that the iteration of a post in the current round is round - birth.
+	 */
+	private final Map<Long, Long> birthMap;
+	/** Last reward round computed. */
+	private long round;
+	/** Posts born in the last reward round (i.e. rewarded for the first time). */
+	private transient Map<Long, Long> lastBirths;
+	/** Pool for computing rewards in parallel (null for computing them sequentially). */
+	private final transient ForkJoinPool pool;
 	
-	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Double> map,
+	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Long> map, long round,
 			ToDoubleFunction< Map<String, Integer> > voteStrategy,
-			ToDoubleFunction< Map<String, List<Integer>> > commentStrategy) {
+			ToDoubleFunction< Map<String, List<Integer>> > commentStrategy, ForkJoinPool pool) {
+		Common.allAndArgs(round >= 0);
 		double total = rewAuth + rewCur;
 		this.rewAuth = rewAuth/total;
 		this.rewCurs = rewCur/total;
-		this.iterationMap = (map != null ? map : new HashMap<>());
+		this.birthMap = (map != null ? map : new HashMap<>());
+		this.round = round;
+		this.lastBirths = new HashMap<>();
 		this.voteStrategy = (voteStrategy != null ? voteStrategy : voteSumStrategy);
 		this.commentStrategy = (commentStrategy != null ? commentStrategy : maxCpStrategy);
+		this.pool = pool;
+	}
+	
+	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Long> map, long round,
+			ToDoubleFunction< Map<String, Integer> > voteStrategy,
+			ToDoubleFunction< Map<String, List<Integer>> > commentStrategy) {
+		this(rewAuth, rewCur, map, round, voteStrategy, commentStrategy, null);
+	}
+	
+	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Long> map, long round, ForkJoinPool pool) {
+		this(rewAuth, rewCur, map, round, null, null, pool);
 	}
 	
-	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Double> map) { this(rewAuth, rewCur, map, null, null); }
+	public RewardCalculatorImpl(double rewAuth, double rewCur, Map<Long, Long> map, long round) {
+		this(rewAuth, rewCur, map, round, null, null, null);
+	}
 	
 	/**
 	 * Calculates the reward for a single post.
@@ -55,109 +86,175 @@ final class RewardCalculatorImpl implements RewardCalculator<Integer, List<Integ
 	 */
 	public double postReward(double iteration, List<Action> actions) { //Only likes, dislikes and comments!
 		Common.notNull(actions);
-		Map<String, Integer> voteMap = new HashMap<>();
-		Map<String, List<Integer>> commentMap = new HashMap<>();
-		for (Action act : actions) {
-			switch (act.getType()) {
-				case LIKE : { voteMap.put(new String(act.getActor()), 1); break; }
-				case DISLIKE : { voteMap.put(new String(act.getActor()), -1); break; }
-				case COMMENT : {
-					List<Integer> l = commentMap.get(act.getActor());
-					if (l == null) { l = new ArrayList<>(); commentMap.put(new String(act.getActor()), l); }
-					l.add(act.getNComments());
-					break;
-				}
-				default : { throw new IllegalStateException(); }
-			}
-		}
+		RewardAggregate.PostAggregate post = new RewardAggregate.PostAggregate();
+		for (Action act : actions) if (!post.add(act)) throw new IllegalStateException();
+		return this.postReward(iteration, post);
+	}
+	
+	/**
+	 * Calculates the reward for a single post from the aggregate of its actions.
+	 * @param iteration "Age of the post".
+	 * @param post Aggregate of the actions committed for that post.
+	 * @return Total reward for that post.
+	 */
+	public double postReward(double iteration, RewardAggregate.PostAggregate post) {
+		Common.notNull(post);
 		double
-			voteRew = voteStrategy.applyAsDouble(voteMap),
-			commentRew = commentStrategy.applyAsDouble(commentMap);
-		return (voteRew + commentRew) / iteration++;
+			voteRew = voteStrategy.applyAsDouble(post.votes()),
+			commentRew = commentStrategy.applyAsDouble(post.comments());
+		return (voteRew + commentRew) / iteration;
 	}
 
 	/**
 	 * Calculates the total reward for each user.
 	 * @param actions Actions committed in the last period.
 	 */
-	public Map<String, Double> computeReward(List<Action> actions){
-		
-		Map< Long, List<Action>> actsForPost = new HashMap<>(); /* Azioni compiute su ogni post */
-		Map< Long, Pair<String, Set<String>> > authCursForPost = new HashMap<>(); /*  <autore, {curatori}> */
-		Set<Long> deletedPosts = new HashSet<>(); /* Post eliminati nell'ultimo periodo */
-		Map<String, Double> rewardsForUser = new HashMap<>(); /* Rewards totali per ogni utente */
-		
-		Long idPost;
-		List<Action> list;
-		Pair<String, Set<String>> pair;
-		ActionType type;
-		/* Costruisce le mappe */
-		for (Action act : actions) {
-			type = act.getType();
-			if (type != ActionType.DELETE) {
-				
-				idPost = act.getIdPost();
-				
-				list = actsForPost.get(idPost);
-				if (list == null) { list = new ArrayList<>(); actsForPost.put(idPost, list); }
-				
-				pair = authCursForPost.get(idPost);
-				if (pair == null) {
-					pair = new Pair<String, Set<String>>(act.getAuthor(), new HashSet<>());
-					authCursForPost.put(idPost, pair);
-				}
-				
-				if (type == ActionType.LIKE || type == ActionType.DISLIKE || type == ActionType.COMMENT) {
-					list.add(act);
-					if (type != ActionType.DISLIKE && !act.getActor().equals(act.getAuthor()))
-						pair.getValue().add(act.getActor());
-				}
-				
-			} else deletedPosts.add(act.getIdPost());
+	public Map<String, Double> computeReward(List<Action> actions) { return this.computeReward(RewardAggregate.of(actions)); }
+	
+	/** Rewards of users (in the order in which they have been added) given by the posts of a range to a partition of users. */
+	private static final class Contributions {
+	
+		private String[] users = new String[16];
+		private double[] rewards = new double[16];
+		private int size = 0;
+	
+		private void add(String user, double reward) {
+			if (size == users.length) {
+				users = Arrays.copyOf(users, 2 * size);
+				rewards = Arrays.copyOf(rewards, 2 * size);
+			}
+			users[size] = user;
+			rewards[size++] = reward;
 		}
+	}
+	
+	/**
+	 * Runs task(i) for each i in [0, count), in parallel on the pool if count &gt; 1, and waits for all of them.
+	 * @throws IllegalStateException If any of the tasks throws an exception (the first one that has thrown it
+	 *  is rethrown if it is unchecked).
+	 */
+	private void fork(int count, IntConsumer task) {
+		if (count == 1) { task.accept(0); return; }
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int index = i;
+			tasks.add( pool.submit(() -> task.accept(index)) );
+		}
+		for (ForkJoinTask<?> t : tasks) {
+			try { t.get(); }
+			catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				else throw new IllegalStateException(cause);
+			} catch (InterruptedException ie) {
+				for (ForkJoinTask<?> other : tasks) other.cancel(false);
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(ie);
+			}
+		}
+	}
+	
+	/**
+	 * Calculates the total reward for each user from the aggregate of the actions committed in the last period, i.e.
+	 *  evaluating the vote and comment strategies only on the posts touched in the period. If this calculator has a
+	 *  pool and there are at least 2*{@link #MINPARTSIZE} touched posts, they are partitioned by id into at most
+	 *  one range per worker of the pool and:
+	 *  <ol>
+	 *  <li>the reward of each post is computed in parallel on its range, where the task of each range collects the
+	 *  rewards it gives to the users by ascending post id and splits them by partitions of users by hash;</li>
+	 *  <li>the total rewards of the users are reduced in parallel, where the task of each partition of users sums
+	 *  the rewards given to them by each range in ascending order of range.</li>
+	 *  </ol>
+	 *  Since the sum for each user is always made in ascending order of post id, the result is the same (bit for bit)
+	 *  for any parallelism, including the sequential case. The iteration of each post is derived from its birth, such
+	 *  that only the posts touched in the period are visited: the ones rewarded for the first time are born in the
+	 *  previous round (see {@link #getLastBirths()}).
+	 * @param aggregate Aggregate of the actions committed in the last period (see {@link ActionRegistry#lastAggregate()}).
+	 */
+	public Map<String, Double> computeReward(RewardAggregate aggregate) {
+		Common.notNull(aggregate);
+		Map<Long, RewardAggregate.PostAggregate> posts = aggregate.posts();
+		Set<Long> deletedPosts = aggregate.deleted(); /* Post eliminati nell'ultimo periodo */
 		/* Eliminazione post */
-		for (long id : deletedPosts) { iterationMap.remove(id); actsForPost.remove(id); authCursForPost.remove(id); }
-		/* Calcolo ricompense  e #iterazione per ogni post */
-		for (long id : iterationMap.keySet()) {
-			double iter = iterationMap.get(id);
-			iterationMap.put(id, iter + 1.0);
+		for (long id : deletedPosts) birthMap.remove(id);
+		this.round++;
+		this.lastBirths = new HashMap<>();
+		/* Post toccati nel periodo (e non eliminati) per id crescente */
+		long[] ids = new long[posts.size()];
+		int size = 0;
+		for (long id : posts.keySet()) if (!deletedPosts.contains(id)) ids[size++] = id;
+		Arrays.sort(ids, 0, size);
+		RewardAggregate.PostAggregate[] aggs = new RewardAggregate.PostAggregate[size];
+		double[] iters = new double[size];
+		for (int i = 0; i < size; i++) {
+			aggs[i] = posts.get(ids[i]);
+			/* #iterazione = round - nascita */
+			Long birth = birthMap.get(ids[i]);
+			if (birth == null) {
+				birth = Long.valueOf(round - 1);
+				birthMap.put(ids[i], birth);
+				lastBirths.put(ids[i], birth);
+			}
+			iters[i] = (double)(round - birth.longValue());
 		}
-		for (long id : actsForPost.keySet()) {
-			
-			Double iter = iterationMap.get(id);
-			if (iter == null) { iter = Double.valueOf(1.0); iterationMap.put(id, 1.0); }
-			
-			double prew, authrew, currew;
-			String author;
-			Set<String> curators;
-			prew = this.postReward(iter.doubleValue(), actsForPost.get(id));
-			if (prew > 0.0) {
-				pair = authCursForPost.get(id);
-				author = new String(pair.getKey());
-				curators = pair.getValue();
-				Common.allAndState(!curators.isEmpty());
-				/* Le ricompense sono generate dagli utenti diversi dall'autore del post che interagiscono
-				 * con lo stesso, quindi l'insieme dei curatori NON può essere vuoto!
-				 */
-				authrew = this.rewAuth * prew;
-				currew = (this.rewCurs * prew) / ((double)curators.size());
-				/* Ricompensa autore */
-				if (rewardsForUser.containsKey(author)) authrew += rewardsForUser.get(author);
-				rewardsForUser.put(author, authrew);
-				/* Ricompensa curatori */
-				for (String cur : curators) {
-					double d = currew;
-					if (rewardsForUser.containsKey(cur)) d += rewardsForUser.get(cur);
-					rewardsForUser.put(new String(cur), d);
+		int nparts = (pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), size / MINPARTSIZE)));
+		int n = size;
+		/* contributions[range][shard] : ricompense date dai post di range agli utenti di shard */
+		Contributions[][] contributions = new Contributions[nparts][nparts];
+		/* Ricompensa di ogni post */
+		this.fork(nparts, (range) -> {
+			Contributions[] byShard = contributions[range];
+			for (int j = 0; j < nparts; j++) byShard[j] = new Contributions();
+			for (int i = (int)((long)n * range / nparts), end = (int)((long)n * (range + 1) / nparts); i < end; i++) {
+				double prew = this.postReward(iters[i], aggs[i]);
+				if (prew > 0.0) {
+					String author = aggs[i].author();
+					Set<String> curators = aggs[i].curators();
+					Common.allAndState(!curators.isEmpty());
+					/* Le ricompense sono generate dagli utenti diversi dall'autore del post che interagiscono
+					 * con lo stesso, quindi l'insieme dei curatori NON può essere vuoto!
+					 */
+					/* Ricompensa autore */
+					byShard[Math.floorMod(author.hashCode(), nparts)].add(author, this.rewAuth * prew);
+					/* Ricompensa curatori */
+					double currew = (this.rewCurs * prew) / ((double)curators.size());
+					for (String cur : curators) byShard[Math.floorMod(cur.hashCode(), nparts)].add(cur, currew);
 				}
 			}
-		}
+		});
+		/* Rewards totali per ogni utente, per partizione di utenti */
+		List<Map<String, Double>> shards = new ArrayList<>();
+		for (int i = 0; i < nparts; i++) shards.add(new HashMap<>());
+		this.fork(nparts, (shard) -> {
+			Map<String, Double> rewardsForUser = shards.get(shard);
+			for (int range = 0; range < nparts; range++) {
+				Contributions part = contributions[range][shard];
+				for (int i = 0; i < part.size; i++) rewardsForUser.merge(new String(part.users[i]), part.rewards[i], Double::sum);
+			}
+		});
+		if (nparts == 1) return shards.get(0);
+		Map<String, Double> rewardsForUser = new HashMap<>();
+		for (Map<String, Double> shard : shards) rewardsForUser.putAll(shard);
 		return rewardsForUser;
 	}
 	
 	public ToDoubleFunction<Map<String, Integer>> getVoteStrategy() { return voteStrategy; }
 	public ToDoubleFunction<Map<String, List<Integer>>> getCommentStrategy() { return commentStrategy; }
-	public Map<Long, Double> getIterationMap(){ return iterationMap; } 
+	public Map<Long, Long> getBirthMap(){ return birthMap; }
+	/** @return The last reward round computed. */
+	public long getRound() { return round; }
+	/** @return The posts born in the last reward round computed, with their birth. */
+	public Map<Long, Long> getLastBirths() { return lastBirths; }
+	
+	/**
+	 * @param idPost Id of a post.
+	 * @return The reward iteration of the post in the last round computed, or 0.0 if it has not been rewarded yet.
+	 */
+	public double getIteration(long idPost) {
+		Long birth = birthMap.get(idPost);
+		return (birth != null ? (double)(round - birth.longValue()) : 0.0);
+	}
+	
 	public double getRewAuth() { return rewAuth; }
 	public double getRewCurs() { return rewCurs; }
 	
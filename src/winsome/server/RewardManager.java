@@ -2,6 +2,8 @@ package winsome.server;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.io.IOException;
 import java.net.*;
 
@@ -27,7 +29,7 @@ final class RewardManager extends Thread {
 	private InetAddress address;
 	private transient Table<String, Wallet> wallets;
 	private ActionRegistry registry;
-	private RewardCalculator<Integer, List<Integer>> calculator;
+	private RewardCalculatorImpl calculator;
 	private State state;
 	
 	private DatagramPacket buildPacket() {
@@ -42,7 +44,7 @@ final class RewardManager extends Thread {
 	 * 2. Aggiorna i portafogli degli utenti.
 	 */
 	public RewardManager(WinsomeServer server, String mcastAddr, int socketPort, int mcastPort, Table<String, Wallet> wallets, ActionRegistry registry,
-		double rewAuth, double rewCur, Map<Long, Double> iterationMap, List<Action> toReward) throws IOException {
+		double rewAuth, double rewCur, Map<Long, Long> birthMap, List<Action> toReward) throws IOException {
 		
 		Common.notNull(server, mcastAddr, wallets, registry);
 		Common.allAndArgs(mcastPort >= 0, rewAuth >= 0.0, rewCur >= 0, rewAuth + rewCur == TOTREWPERC);
@@ -53,26 +55,42 @@ final class RewardManager extends Thread {
 		this.mcastPort = mcastPort;
 		this.wallets = wallets;
 		this.registry = registry;
-		this.calculator = new RewardCalculatorImpl(rewAuth, rewCur, iterationMap);
+		this.calculator = new RewardCalculatorImpl(rewAuth, rewCur, birthMap, Wallet.visibleRound(), ForkJoinPool.commonPool());
 		if ((toReward != null) && !toReward.isEmpty()) {
-			Map<String, Double> rewards = calculator.computeReward(toReward);
-			for (String user : rewards.keySet()) {
-				Wallet w = wallets.get(user);
-				Common.allAndState( w.newTransaction(rewards.get(user)) );
-			}
+			try { this.settle(calculator.computeReward(toReward)); }
+			catch (InterruptedException ie) { throw new IOException(ie); }
 		}
 	}
 	
+	/**
+	 * Settles the given rewards into the wallets as the next reward round.
+	 * @param rewards Map user -> reward.
+	 * @throws InterruptedException If interrupted while waiting for settlement.
+	 * @throws IllegalStateException If a rewarded user has no wallet or on failure when logging the round.
+	 */
+	private void settle(Map<String, Double> rewards) throws InterruptedException {
+		long round = Wallet.visibleRound() + 1, time = System.currentTimeMillis();
+		/* A round that cannot be settled is never logged, otherwise it would fail again on every replay */
+		Settlement.validate(wallets, rewards.keySet());
+		server.logMutation(LogRecord.newSettlement(round, time, rewards));
+		Settlement.settle(wallets, round, time, rewards, ForkJoinPool.commonPool());
+		server.settled(rewards.keySet());
+		server.updateBirths(calculator.getLastBirths());
+	}
+	
+	/** @return The calculator of the rewards (to be accessed while holding {@link WinsomeServer#rewardLock()}). */
+	RewardCalculatorImpl getCalculator() { return calculator; }
+	
 	public RewardManager(WinsomeServer server, String mcastAddr, int socketPort, int mcastPort, Table<String, Wallet> wallets,
-		ActionRegistry registry, double rewAuth, double rewCur, Map<Long, Double> iterationMap) throws IOException {
-		this(server, mcastAddr, socketPort, mcastPort, wallets, registry, rewAuth, rewCur, iterationMap, null);
+		ActionRegistry registry, double rewAuth, double rewCur, Map<Long, Long> birthMap) throws IOException {
+		this(server, mcastAddr, socketPort, mcastPort, wallets, registry, rewAuth, rewCur, birthMap, null);
 	}
 	
 	public RewardManager(WinsomeServer server, String mcastAddr, int socketPort, int mcastPort,
 		Table<String, Wallet> wallets, Pair<Long, TimeUnit> pair, double rwAuthPerc, double rwCurPerc,
-		Map<Long, Double> iterationMap) throws IOException {
+		Map<Long, Long> birthMap) throws IOException {
 		this(server, mcastAddr, socketPort, mcastPort, wallets, new ActionRegistry(pair), rwAuthPerc,
-			rwCurPerc, iterationMap);
+			rwCurPerc, birthMap);
 	}
 
 	public void run() {
@@ -98,11 +116,17 @@ final class RewardManager extends Thread {
 			
 			while (!this.isClosed()) {
 				if (registry.getActions(completed)) {
-					rewards = calculator.computeReward(completed);
-					for (String user : rewards.keySet()) {
-						Wallet w = wallets.get(user);
-						Common.allAndState( w.newTransaction(rewards.get(user)) );
-					}
+					ReentrantLock lock = server.rewardLock();
+					/* Snapshots are never taken in the middle of a settlement */
+					try {
+						lock.lock();
+						/* Actions are aggregated as they end, unless the registry has no aggregator */
+						Consumer<Action> aggregate = registry.lastAggregate();
+						rewards = (aggregate instanceof RewardAggregate ? calculator.computeReward((RewardAggregate)aggregate) :
+							calculator.computeReward(completed));
+						this.settle(rewards);
+						server.demoteColdPosts(calculator);
+					} finally { lock.unlock(); }
 					packet = buildPacket();
 					socket.send(packet);
 					logger.log("Reward update notify sent (#%d time)", time);
@@ -120,10 +144,6 @@ final class RewardManager extends Thread {
 			socket.close();
 			registry.close();
 			logger.log("Registry closed");
-			if ( !server.updateIters(((RewardCalculatorImpl)calculator).getIterationMap()) ) {
-				logger.log("Failed to update posts iteration");
-				server.signalIllegalState(new DataException());
-			} else logger.log("Posts iterations updated");
 			logger.log("RewardManager service ended");
 		}
 	}
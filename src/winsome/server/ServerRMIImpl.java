@@ -69,6 +69,19 @@ final class ServerRMIImpl extends UnicastRemoteObject implements ServerRMI {
 		Common.notNull(username);
 		return (this.clients.remove(username) != null);
 	}
+	
+	/**
+	 * Writes an online backup of the server to the given file on the host of the server (administrator only).
+	 * @param password Password of the administrator.
+	 * @param filename Name of the backup file, that must not exist.
+	 * @return A pair (true, message) on success, (false, message) on failure.
+	 * @throws RemoteException On RMI errors.
+	 * @throws NullPointerException If any of the parameters is null.
+	 */
+	public Pair<Boolean, String> backup(String password, String filename) throws RemoteException {
+		Common.notNull(password, filename);
+		return this.server.backup(password, filename);
+	}
 		
 	boolean addFollower(String follower, String followed, List<String> tags) throws RemoteException { //Tag di chi segue!
 		Common.notNull(follower, followed, tags);
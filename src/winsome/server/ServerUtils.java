@@ -55,8 +55,16 @@ public final class ServerUtils {
 		INV_VOTE_SYNTAX = "Sintassi del voto non valida: usa '+1' per like e '-1' per dislike",
 		//Rewin
 		REWON_ALREADY = "Hai già fatto il rewin di questo post",
+		//Show post
+		POST_INVPAGE = "Pagina dei commenti (%s) non valida",
+		//Wallet
+		WALLET_INVPAGE = "Pagina della cronologia (%s) non valida",
 		//Bitcoin wallet
-		BTC_CONV = "Errore durante la conversione del portafoglio in bitcoin";
+		BTC_CONV = "Errore durante la conversione del portafoglio in bitcoin",
+		//Backup
+		BACKUP_OK = "Backup scritto su '%s' (%d file, %d bytes)",
+		BACKUP_EXISTING = "Il file '%s' esiste già",
+		BACKUP_ERR = "Errore durante il backup: %s";
 	
 
 	/* TypeTokens for server tables */
@@ -0,0 +1,64 @@
+package winsome.server;
+
+import java.io.IOException;
+
+import winsome.util.*;
+
+/**
+ * Background service that periodically takes an online snapshot of the server (see {@link WinsomeServer#snapshot(boolean)}).
+ *  The thread is never interrupted while writing a snapshot (an interrupt would close the channels it is writing to),
+ *  but it is stopped by {@link #shutdown()}.
+ * @author Salvatore Correnti
+ * @see WinsomeServer
+ */
+final class Snapshotter extends Thread {
+	
+	private final WinsomeServer server;
+	private final long period;
+	private boolean closed;
+	
+	/**
+	 * @param server The server.
+	 * @param period Period in milliseconds between two snapshots.
+	 * @throws IllegalArgumentException If period &le; 0.
+	 */
+	public Snapshotter(WinsomeServer server, long period) {
+		Common.notNull(server);
+		Common.allAndArgs(period > 0);
+		this.server = server;
+		this.period = period;
+		this.closed = false;
+	}
+	
+	/**
+	 * Waits for the next period.
+	 * @return true if the service has not been stopped meanwhile, false otherwise.
+	 */
+	private synchronized boolean await() {
+		long end = System.currentTimeMillis() + period, now;
+		while (!closed && (now = System.currentTimeMillis()) < end) {
+			try { this.wait(end - now); }
+			catch (InterruptedException ie) { closed = true; }
+		}
+		return !closed;
+	}
+	
+	/** Stops the service after the current snapshot (if any) has been written. */
+	public synchronized void shutdown() { closed = true; this.notifyAll(); }
+	
+	public void run() {
+		Logger logger = server.logger();
+		logger.log("Snapshotter service started (period = %d ms)", period);
+		while (this.await()) {
+			try { server.snapshot(false); }
+			catch (IOException ioe) { logger.logStackTrace(ioe); }
+			catch (InterruptedException ie) { break; }
+			catch (Exception ex) {
+				logger.logStackTrace(ex);
+				server.signalIllegalState(ex);
+				break;
+			}
+		}
+		logger.log("Snapshotter service ended");
+	}
+}
\ No newline at end of file
@@ -2,7 +2,7 @@ package winsome.server;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.*;
 import java.util.function.*;
 
 import com.google.gson.*;
@@ -12,7 +12,11 @@ import com.google.gson.reflect.TypeToken;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
 import java.rmi.AlreadyBoundException;
 import java.rmi.*;
 import java.rmi.registry.*;
@@ -44,7 +48,36 @@ public final class WinsomeServer implements AutoCloseable {
 		DFLCOREPOOLSIZE = Runtime.getRuntime().availableProcessors(),
 		DFLMAXPOOLSIZE = 2 * DFLCOREPOOLSIZE,
 		DFLKEEPALIVETIME = 60_000,
-		DFLBUFFERCAP = 4096; //4 KB
+		DFLBUFFERCAP = 4096, //4 KB
+		DFLWALLETPAGE = 50,
+		DFLFEEDLIMIT = 100,
+		DFLCOMMENTPAGE = 50,
+		DFLCOLDITERATION = 10,
+		DFLCOLDSWEEP = 4096;
+	
+	/* Default minimum idle time in milliseconds before demoting a post to the cold store */
+	private static final long DFLCOLDIDLE = 600_000;
+	
+	/* Default write-ahead log fsync policy and interval in milliseconds between forces (for PERIODIC policy) */
+	private static final WriteAheadLog.SyncPolicy DFLWALSYNC = WriteAheadLog.SyncPolicy.ALWAYS;
+	private static final long DFLWALSYNCINTERVAL = 1000;
+	
+	/* Default period in milliseconds between two online snapshots */
+	private static final long DFLSNAPSHOTPERIOD = 60_000;
+	
+	/* Default maximum throughput in bytes per second of online backups */
+	private static final long DFLBACKUPRATE = 16 << 20; //16 MB/s
+	
+	/* Formats of the snapshots of the tables (see Snapshot and BinarySnapshot) */
+	private static final String JSONFORMAT = "json", BINARYFORMAT = "binary", DFLSNAPSHOTFORMAT = JSONFORMAT;
+	
+	/* Default recovery mode when loading the tables (see Snapshot#readTable) */
+	private static final String DFLRECOVERY = "false";
+	
+	/* Default store of the tables, directory of the files of the stores and capacity of their caches (see Store) */
+	private static final Store.Kind DFLSTORE = Store.Kind.HEAP;
+	private static final String DFLSTOREDIR = "stores";
+	private static final int DFLSTORECACHE = 1 << 16;
 	
 	private static final TimeUnit DFLKEEPALIVEUNIT = TimeUnit.MILLISECONDS;
 	
@@ -70,7 +103,8 @@ public final class WinsomeServer implements AutoCloseable {
 	/* Static locks for a singleton instance */
 	private static final ReentrantLock
 		ILLSTATELOCK = new ReentrantLock(),
-		SERVERLOCK = new ReentrantLock();
+		SERVERLOCK = new ReentrantLock(),
+		REGLOCK = new ReentrantLock(); //Registrations are logged in the same order in which they are applied
 	
 	/* Default Exception handler for workers. */
 	static final BiConsumer<SelectionKey, Exception> DFLEXCHANDLER = (key, ex) -> {
@@ -98,11 +132,21 @@ public final class WinsomeServer implements AutoCloseable {
 		DFLSERVERJSON = "server.json",
 		DFLUSERJSON = "users.json",
 		DFLPOSTJSON = "posts.json",
-		DFLWALLETJSON = "wallets.json";
+		DFLWALLETJSON = "wallets.json",
+		DFLCONTENTDIR = "content",
+		DFLCOLDSTORE = "cold.dat",
+		DFLWALFILE = "wal.log",
+		DFLJOURNALFILE = "actions.journal";
+	
+	/* Default size in bytes of the segments of the content store */
+	public static final int DFLSEGMENTSIZE = 16 << 20; //16 MB
 	
 	/* Default name for the reward manager s*/
 	public static final String REWMANAGERNAME = "RewardManager";
 	
+	/* Default name for the snapshotter */
+	public static final String SNAPSHOTTERNAME = "Snapshotter";
+	
 	/* Connection state */
 	private transient State state;
 	
@@ -141,6 +185,12 @@ public final class WinsomeServer implements AutoCloseable {
 	private transient ExecutorService workers;
 	/* MessageBuffer capacity */
 	private int bufferCap;
+	/* Number of transactions per page of wallet history */
+	private int walletPage;
+	/* Maximum number of (newest) posts sent when showing the feed */
+	private int feedLimit;
+	/* Number of comments per page when showing a post */
+	private int commentPage;
 	/* Thread di calcolo ricompense ("writer" dell'actReg) + notifica client su multicast */
 	private String mcastAddr;
 	private int mcastPort;
@@ -152,6 +202,29 @@ public final class WinsomeServer implements AutoCloseable {
 	
 	/* Conversione in bitcoin */
 	private transient BitcoinService bitcoinService;
+	/* Off-heap store of titles and contents of posts */
+	private transient ContentStore contentStore;
+	/* On-disk store of cold posts, with demotion thresholds (reward iteration and idle time) */
+	private transient ColdStore coldStore;
+	private transient int coldIteration;
+	private transient long coldIdle;
+	/* Maximum number of posts examined for demotion in each period, and id of the next one (null for the first) */
+	private transient int coldSweep;
+	private transient Long coldCursor;
+	/* Write-ahead log of the mutations since the last snapshot */
+	private transient WriteAheadLog wal;
+	/* Journal of the actions of the reward periods not yet settled */
+	private transient ActionJournal journal;
+	/* Online snapshots: period, thread and locks for capturing the state of the server and of the reward manager */
+	private transient long snapshotPeriod;
+	private transient boolean binarySnapshot;
+	private transient Snapshotter snapshotter;
+	private transient ReentrantReadWriteLock captureLock;
+	private transient ReentrantLock rewardLock;
+	/* Online backups: lock that excludes snapshots while writing one, maximum throughput and administrator password */
+	private transient ReentrantLock snapshotLock;
+	private transient long backupRate;
+	private transient String adminPassword;
 	
 	/* "Database" */
 	private transient Table<String, User> users;
@@ -169,30 +242,77 @@ public final class WinsomeServer implements AutoCloseable {
 	@NotNull
 	private Pair<String, String> illegalState;
 	
+	/** Actions to be rewarded in the next period, only read from snapshots written before {@link ActionJournal}. */
 	private List<Action> oldActions;
 	
+	/** Id of the last reward round settled into the wallets (see {@link Settlement}). */
+	private long settledRound;
+	
+	/** Lsn of the last record of the write-ahead log contained in the snapshot (see {@link WriteAheadLog}). */
+	private long checkpointLsn;
+	
 	/**
-	 * Initializes a table by reading the given file and casting to the given type.
+	 * Initializes a table by reading the given file(s) and casting to the given type (see
+	 *  {@link Snapshot#readTable(String, Type, ExecutorService)} and {@link BinarySnapshot#readTable(String, Class, ExecutorService)}).
+	 *  The table is read in the configured format and, if it has not been saved in that format, in the other one.
 	 * @param <T> Type of keys.
 	 * @param <V> Type of values.
 	 * @param filename Filename of the serialized data.
 	 * @param type Type of the resulting table.
-	 * @return A Table object deserialized on success, null on failure. NOTE: The elements
+	 * @param elemType Class of the elements of the table.
+	 * @param binary If true, the table is read in binary format first.
+	 * @param skipped If not null, partitions that are not valid are skipped and reported in this list (recovery mode).
+	 * @param store Empty store of the table.
+	 * @return A Table object deserialized on success, an empty table if there is no file for it. NOTE: The elements
 	 *  of the table are NOT deserialized (i.e. their transient fields must be initialized).
 	 * @throws IOException On I/O errors.
 	 * @throws DeserializationException On table deserialization failure.
+	 * @throws InterruptedException If interrupted while reading.
 	 */
-	private static <T extends Comparable<T>,V extends Indexable<T>> Table<T, V> initTable(String filename, Type type)
-		throws IOException, DeserializationException {
-		Table<T, V> table = null;
-		JsonReader reader = Serialization.fileReader(filename);
-		if (reader != null) {
-			try { table = Serialization.GSON.fromJson(reader, type); }
-			catch (JsonIOException | JsonSyntaxException ex) { ex.printStackTrace(); table = null; }
-			finally { reader.close(); }
-		}
-		if (table != null) table.deserialize();
-		return table;
+	private static <T extends Comparable<T>,V extends Indexable<T>> Table<T, V> initTable(String filename, Type type,
+		Class<V> elemType, boolean binary, List<String> skipped, Store<T, V> store) throws IOException, DeserializationException, InterruptedException {
+		ExecutorService pool = ForkJoinPool.commonPool();
+		String binaryFile = BinarySnapshot.binaryFile(filename);
+		Table<T, V> table = (binary ? BinarySnapshot.readTable(binaryFile, elemType, pool, skipped, store) :
+			Snapshot.readTable(filename, type, pool, skipped, store));
+		if (table == null) table = (binary ? Snapshot.readTable(filename, type, pool, skipped, store) :
+			BinarySnapshot.readTable(binaryFile, elemType, pool, skipped, store));
+		return (table != null ? table : new Table<>(Table.DFLPARTITIONS, store));
+	}
+	
+	/**
+	 * Opens the configured store of a table (see {@link Store#open(Store.Kind, String, Class, int)}).
+	 * @param configMap Configuration map.
+	 * @param key Configuration key of the kind of store.
+	 * @param name Name of the files of the store.
+	 * @param type Class of the elements of the table.
+	 * @return The store.
+	 * @throws IOException On I/O errors.
+	 */
+	static <T extends Comparable<T>, V extends Indexable<T>> Store<T, V> openStore(Map<String, String> configMap,
+		String key, String name, Class<V> type) throws IOException {
+		Store.Kind kind = ConfigUtils.setValueOrDefault(configMap, key, (str) -> Store.Kind.valueOf(str.trim().toUpperCase()), DFLSTORE);
+		String dir = ConfigUtils.setValueOrDefault(configMap, "storedir", ConfigUtils.newStr, DFLSTOREDIR);
+		int cache = ConfigUtils.setValueOrDefault(configMap, "storecache", ConfigUtils.newInt, DFLSTORECACHE);
+		return Store.open(kind, Paths.get(dir, name).toString(), type, (cache > 0 ? cache : DFLSTORECACHE));
+	}
+	
+	/**
+	 * @param configMap Configuration map.
+	 * @return true if the tables are saved in binary format, false if they are saved in JSON format.
+	 */
+	static boolean binarySnapshot(Map<String, String> configMap) {
+		String format = ConfigUtils.setValueOrDefault(configMap, "snapshotformat", ConfigUtils.newStr, DFLSNAPSHOTFORMAT);
+		return BINARYFORMAT.equalsIgnoreCase(format.trim());
+	}
+	
+	/**
+	 * @param configMap Configuration map.
+	 * @return true if partitions of the tables that are not valid must be skipped when loading (recovery mode).
+	 */
+	private static boolean recovery(Map<String, String> configMap) {
+		String recovery = ConfigUtils.setValueOrDefault(configMap, "recovery", ConfigUtils.newStr, DFLRECOVERY);
+		return Boolean.parseBoolean(recovery.trim());
 	}
 	
 	/**
@@ -231,21 +351,52 @@ public final class WinsomeServer implements AutoCloseable {
 			throws IOException, AlreadyBoundException, DeserializationException {
 		if (postGen == null) this.postGen = new IDGen(1);
 		Post.setGen(postGen);
-		Map<Long, Double> iterationMap = new HashMap<>();
+		Wallet.publishRound(settledRound);
+		String contentDir = ConfigUtils.setValueOrDefault(configMap, "contentdir", ConfigUtils.newStr, DFLCONTENTDIR);
+		int segmentSize = ConfigUtils.setValueOrDefault(configMap, "segmentsize", ConfigUtils.newInt, DFLSEGMENTSIZE);
+		this.contentStore = new ContentStore(contentDir, Math.max(segmentSize, ContentStore.MINSEGMENTSIZE));
+		Post.setStore(contentStore);
+		this.coldStore = new ColdStore(ConfigUtils.setValueOrDefault(configMap, "coldstore", ConfigUtils.newStr, DFLCOLDSTORE));
+		Post.setColdStore(coldStore);
+		Map<Long, Long> birthMap = new HashMap<>();
 		this.bitcoinService = new BitcoinService();
 		this.users = ( users != null ? users : new Table<String, User>() );
 		this.posts = (posts != null ? posts : new Table<Long, Post>() );
 		this.wallets = (wallets != null ? wallets : new Table<String, Wallet>() );
+		/* Elements read again by a store that is not on the heap (see Store) */
+		this.users.setLoader((u) -> u.deserialize(this.users, this.posts, this.wallets));
+		this.wallets.setLoader(Wallet::deserialize);
 		for (Wallet w : this.wallets.getAll()) { w.deserialize(); }
+		Set<Long> coldPosts = new HashSet<>();
 		for (Post p : this.posts.getAll()) {
 			p.deserialize();
-			iterationMap.putIfAbsent(p.key(), p.getIteration());
+			p.migrateIteration(settledRound);
+			/* Title and content could have been moved to the content store, and the birth set from the old iteration */
+			this.posts.touch(p.key());
+			long birth = p.getBirth();
+			if (birth != Post.NOBIRTH) birthMap.put(p.key(), birth);
+			if (p.isCold()) coldPosts.add(p.key());
 		}
+		this.posts.setLoader(Post::restore);
+		this.coldStore.retainAll(coldPosts);
+		this.coldStore.compact();
 		for (User u : this.users.getAll()) { u.deserialize(this.users, this.posts, this.wallets); }
+		this.contentStore.attach(this.posts);
+		this.contentStore.compact();
+		/* The first snapshot rewrites all the partitions (e.g. after replaying the log or changing their number) */
+		int partitions = ConfigUtils.setValueOrDefault(configMap, "partitions", ConfigUtils.newInt, Table.DFLPARTITIONS);
+		if (partitions <= 0) partitions = Table.DFLPARTITIONS;
+		this.users.repartition(partitions);
+		this.posts.repartition(partitions);
+		this.wallets.repartition(partitions);
+		this.captureLock = new ReentrantReadWriteLock();
+		this.rewardLock = new ReentrantLock();
+		this.snapshotLock = new ReentrantLock();
 		
 		this.configFieldsInit(configMap);
 		PrintStream logStream = (logName != EMPTY ? new PrintStream(logName) : System.out);
 		this.logger = new Logger(LOGSTR, ERRLOGSTR, logStream);
+		this.openLog(configMap, birthMap);
 		this.tcpSockAddr = new InetSocketAddress(InetAddress.getByName(serverHost), tcpPort);
 		this.loggedMap = new ConcurrentHashMap<>();
 		this.unlogged = new HashSet<>();
@@ -265,7 +416,9 @@ public final class WinsomeServer implements AutoCloseable {
 			new ThreadPoolExecutor.AbortPolicy()
 		);
 		this.actReg = new ActionRegistry( new Pair<>(rewPeriod, rewUnit) );
-		this.actReg.putOldActions(oldActions);
+		this.actReg.setAggregator(RewardAggregate::new);
+		this.actReg.putOldActions(journal.open(Wallet.visibleRound(), oldActions));
+		this.actReg.setJournal(journal);
 		this.oldActions.clear();
 		this.rewManager = new RewardManager(
 			this,
@@ -276,10 +429,15 @@ public final class WinsomeServer implements AutoCloseable {
 			this.actReg,
 			this.rwAuthPerc,
 			this.rwCurPerc,
-			iterationMap
+			birthMap
 		);
 		this.rewManager.setName(REWMANAGERNAME);
 		this.rewManager.setDaemon(true);
+		if (snapshotPeriod > 0) {
+			this.snapshotter = new Snapshotter(this, snapshotPeriod);
+			this.snapshotter.setName(SNAPSHOTTERNAME);
+			this.snapshotter.setDaemon(true);
+		} else this.snapshotter = null;
 		this.svHandler = new ServerRMIImpl(this);
 		this.rmiReg = LocateRegistry.createRegistry(regPort);
 		this.rmiReg.bind(ServerRMI.REGSERVNAME, this.svHandler);
@@ -303,10 +461,243 @@ public final class WinsomeServer implements AutoCloseable {
 		Common.notNull(configMap);		
 		tagsMap = new ConcurrentHashMap<>();
 		oldActions = new ArrayList<Action>();
+		settledRound = 0;
+		checkpointLsn = 0;
 		illegalState = WinsomeServer.ILLSTATE_OK;
 		this.transientsInit(configMap, users, posts, wallets);
 	}
 	
+	/** Creates a server that is only serialized (see {@link #initialState(ConcurrentMap, IDGen)}). */
+	private WinsomeServer(ConcurrentMap<String, NavigableSet<String>> tagsMap, IDGen postGen) {
+		this.tagsMap = tagsMap;
+		this.postGen = postGen;
+		this.oldActions = new ArrayList<Action>();
+		this.settledRound = 0;
+		this.checkpointLsn = 0;
+		this.illegalState = WinsomeServer.ILLSTATE_OK;
+	}
+	
+	/**
+	 * Serializes the state of a server that has never been started, to be written together with tables that have been
+	 *  built offline (see {@link Importer}) such that the server can be started from them. Configuration fields are
+	 *  set from the configuration file when the server is started.
+	 * @param tagsMap Map from tags to the users that have that tags.
+	 * @param postGen Id generator of the posts, that must not generate the ids of the existing posts.
+	 * @return The JSON string of the state of the server.
+	 */
+	@NotNull
+	static String initialState(ConcurrentMap<String, NavigableSet<String>> tagsMap, IDGen postGen) {
+		Common.notNull(tagsMap, postGen);
+		return Snapshot.GSON.toJson(new WinsomeServer(tagsMap, postGen), WinsomeServer.TYPE);
+	}
+	
+	/**
+	 * Loads the action journal and then opens the write-ahead log and replays the records that are not contained in
+	 *  the loaded snapshot (i.e. the ones with lsn greater than {@link #checkpointLsn}) on top of it. The births of the
+	 *  posts rewarded for the first time are set on each replayed settlement with the actions of its round read from the journal (see
+	 *  {@link ActionJournal#rewarded(long)}). Only if the journal does not exist yet (i.e. the snapshot has been written
+	 *  before it), the actions are rebuilt from the replayed records and the ones after the last settlement are added
+	 *  to {@link #oldActions}, such that they are rewarded in the next period. Since snapshots are taken online, the
+	 *  snapshot may already contain the effects of some of the replayed records: records that have no effect are
+	 *  simply counted.
+	 * @param configMap Configuration map.
+	 * @param birthMap Map of the births of the posts (see {@link Post#getBirth()}).
+	 * @throws IOException On I/O errors.
+	 */
+	private void openLog(Map<String, String> configMap, Map<Long, Long> birthMap) throws IOException {
+		String walFile = ConfigUtils.setValueOrDefault(configMap, "walfile", ConfigUtils.newStr, DFLWALFILE);
+		WriteAheadLog.SyncPolicy policy = ConfigUtils.setValueOrDefault(configMap, "walsync",
+			(str) -> WriteAheadLog.SyncPolicy.valueOf(str.toUpperCase()), DFLWALSYNC);
+		long interval = ConfigUtils.setValueOrDefault(configMap, "walsyncinterval", ConfigUtils.newLong, DFLWALSYNCINTERVAL);
+		this.wal = new WriteAheadLog(walFile, policy, (interval > 0 ? interval : DFLWALSYNCINTERVAL));
+		String journalFile = ConfigUtils.setValueOrDefault(configMap, "actionjournal", ConfigUtils.newStr, DFLJOURNALFILE);
+		this.journal = new ActionJournal(journalFile, policy == WriteAheadLog.SyncPolicy.ALWAYS);
+		
+		RewardCalculatorImpl calculator = new RewardCalculatorImpl(rwAuthPerc, rwCurPerc, birthMap, Wallet.visibleRound(),
+			ForkJoinPool.commonPool());
+		List<Action> pending = new ArrayList<>();
+		Map<String, Integer> commentBase = new HashMap<>();
+		int[] skipped = new int[] {0};
+		long start = System.currentTimeMillis();
+		int replayed = wal.replay(checkpointLsn, (record, lsn) -> {
+			boolean applied;
+			try { applied = this.replay(record, pending, calculator, commentBase); }
+			catch (DataException | InterruptedException | IllegalArgumentException | IllegalStateException ex) { applied = false; }
+			if (!applied) skipped[0]++;
+		});
+		if (journal.isEmpty()) this.oldActions.addAll(pending);
+		logger.log("Write-ahead log '%s' (%s) replayed: %d records (%d skipped) in %d ms", walFile, policy.toString(),
+			replayed, skipped[0], System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Applies a record of the write-ahead log without any further logging. Records are applied directly to the
+	 *  tables, i.e. without checking feeds (they have already been checked when logging them).
+	 * @param record The record.
+	 * @param pending List of the actions not yet rewarded, updated with the action corresponding to record (if any).
+	 * @param calculator Calculator used for updating the births of the posts on settlements.
+	 * @param commentBase Map (idPost, author) -> number of comments of author to the post in the snapshot, filled
+	 *  at the first COMMENT record of each pair: a comment is contained in the snapshot iff its count does not
+	 *  exceed that number.
+	 * @return true if the record has been applied, false if it had no effect (e.g. if it refers to a user or
+	 *  to a post that does not exist or if it is already contained in the snapshot).
+	 * @throws DataException If thrown by the tables.
+	 * @throws InterruptedException If interrupted while settling rewards.
+	 */
+	private boolean replay(LogRecord record, List<Action> pending, RewardCalculatorImpl calculator,
+		Map<String, Integer> commentBase) throws DataException, InterruptedException {
+		LogRecord.Type type = record.getType();
+		if (type == LogRecord.Type.SETTLEMENT) {
+			Settlement.settle(wallets, record.getRound(), record.getTime(), record.getRewards(), ForkJoinPool.commonPool());
+			List<Action> rewarded = journal.rewarded(record.getRound());
+			if (rewarded != null) calculator.computeReward(rewarded);
+			else {
+				/* Actions in the snapshot and replayed until now have been rewarded by this settlement */
+				this.oldActions.addAll(pending);
+				calculator.computeReward(oldActions);
+				this.oldActions.clear();
+			}
+			this.updateBirths(calculator.getLastBirths());
+			pending.clear();
+			return true;
+		}
+		String actor = record.getActor();
+		User user = users.get(actor);
+		if (type == LogRecord.Type.REGISTER) {
+			List<String> texts = record.getTexts();
+			List<String> tags = new ArrayList<>(texts.subList(2, texts.size()));
+			/* Tags are added anyway, since the users table may be more recent than tagsMap */
+			this.addTags(actor, tags);
+			user = User.restore(actor, texts.get(0), texts.get(1), users, posts, wallets, tags);
+			return (user != null && users.putIfAbsent(user));
+		} else if (user == null) return false;
+		long idPost = record.getIdPost();
+		Post p = posts.get(idPost);
+		Action a;
+		switch (type) {
+			case FOLLOW :
+			case UNFOLLOW : {
+				User followed = users.get(record.getTarget());
+				if (followed == null) return false;
+				return User.restoreFollower(user, followed, type == LogRecord.Type.FOLLOW);
+			}
+			case CREATEPOST : {
+				List<String> texts = record.getTexts();
+				/* The post may be in the snapshot while the blog of its author is not */
+				if (user.restorePost(idPost, texts.get(0), texts.get(1)) < 0) {
+					if (p == null || !p.getAuthor().equals(actor)) return false;
+					user.blog().add(idPost);
+				}
+				a = Action.newCreatePost(actor);
+				a.setIdPost(idPost);
+				break;
+			}
+			case DELETEPOST : {
+				if (p != null) user.deletePost(idPost);
+				calculator.getBirthMap().remove(idPost);
+				a = Action.newDeletePost(actor, idPost);
+				break;
+			}
+			case REWIN : {
+				if (p == null) return false;
+				boolean added = user.blog().add(idPost);
+				return p.rewin(actor) || added;
+			}
+			/* Votes and comments are rewarded anyway, since the calculator ignores duplicated actions */
+			case RATE : {
+				if (p == null) return false;
+				p.addRate(actor, record.getLike());
+				a = Action.newRatePost(record.getLike(), actor, p.getAuthor(), idPost);
+				break;
+			}
+			case COMMENT : {
+				if (p == null) return false;
+				String key = idPost + "/" + actor;
+				Integer base = commentBase.get(key);
+				if (base == null) commentBase.put(key, base = p.commentCount(actor));
+				if (record.getCount() > base) p.addComment(actor, record.getTexts().get(0), record.getTime());
+				a = Action.newAddComment(actor, p.getAuthor(), idPost);
+				a.setNComments(record.getCount());
+				break;
+			}
+			default : { return false; }
+		}
+		a.markEnded();
+		pending.add(a);
+		return true;
+	}
+	
+	/**
+	 * Marks as dirty the partitions of the tables modified by the given record, then appends it to the write-ahead log
+	 *  and waits until it is committed (see {@link WriteAheadLog#log(LogRecord)}). The partitions are marked before the
+	 *  lsn is assigned, such that a snapshot whose checkpoint covers the record always rewrites them (see
+	 *  {@link Table#clean(int)}) before the log is truncated. NOTE: The record must be logged AFTER having applied the
+	 *  mutation, or while holding the read lock of {@link #captureLock}.
+	 * @param record The record.
+	 * @return The lsn of the record.
+	 * @throws IllegalStateException On I/O errors, since the mutation could not be made durable.
+	 */
+	final long logMutation(LogRecord record) throws IllegalStateException {
+		String actor = record.getActor();
+		switch (record.getType()) {
+			case REGISTER : { users.touch(actor); wallets.touch(actor); break; }
+			case FOLLOW :
+			case UNFOLLOW : { users.touch(actor); users.touch(record.getTarget()); break; }
+			case CREATEPOST :
+			case DELETEPOST :
+			case REWIN : { posts.touch(record.getIdPost()); users.touch(actor); break; }
+			case RATE :
+			case COMMENT : { posts.touch(record.getIdPost()); break; }
+			default : break;
+		}
+		try { return wal.log(record); }
+		catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to write to the write-ahead log: %s", ioe.getMessage())); }
+	}
+	
+	/**
+	 * Logs the record of a mutation applied by a request (see {@link #logMutation(LogRecord)}). If the record cannot be
+	 *  written, the mutation is visible but not durable: the action registered for it (if any) is aborted, such that it
+	 *  is neither rewarded nor carried to the following epochs of the {@link ActionRegistry}, and the server is brought
+	 *  down before replying to the client (the exception is rethrown to the worker, see {@link #DFLEXCHANDLER}).
+	 * @param record The record.
+	 * @param action Action registered for the mutation (null if none).
+	 * @return The lsn of the record.
+	 * @throws IllegalStateException On I/O errors, as above.
+	 */
+	private long logRequest(LogRecord record, Action action) throws IllegalStateException {
+		try { return this.logMutation(record); }
+		catch (IllegalStateException ise) {
+			if (action != null) this.actReg.abortAction(action);
+			this.signalIllegalState(ise);
+			throw ise;
+		}
+	}
+	
+	/**
+	 * Records that a reward round has been settled (called by the {@link RewardManager} while holding {@link #rewardLock()}).
+	 * @param rewarded Users whose wallet has been modified.
+	 */
+	final void settled(Collection<String> rewarded) {
+		for (String user : rewarded) wallets.touch(user);
+	}
+	
+	/** @return The lock held by the {@link RewardManager} while computing and settling rewards. */
+	final ReentrantLock rewardLock() { return rewardLock; }
+	
+	/**
+	 * Adds username to the set of users of each of the given tags in {@link #tagsMap}.
+	 * @param username Username.
+	 * @param tags Tags of the user.
+	 */
+	private void addTags(String username, List<String> tags) {
+		NavigableSet<String> set; 
+		for (String t : tags) {
+			String tag = new String(t);
+			set = tagsMap.get(tag);
+			if (set == null) { set = new TreeSet<>(); tagsMap.put(tag, set); }
+			set.add(new String(username));
+		}
+	}
 	
 	private void configFieldsInit(Map<String, String> configMap) {
 		Common.notNull(configMap);
@@ -344,6 +735,26 @@ public final class WinsomeServer implements AutoCloseable {
 		tmp = ConfigUtils.setValueOrDefault(configMap, "buffercap", newInt, DFLBUFFERCAP);
 		bufferCap = (tmp >= 0 ? tmp : DFLBUFFERCAP);
 		
+		tmp = ConfigUtils.setValueOrDefault(configMap, "walletpage", newInt, DFLWALLETPAGE);
+		walletPage = (tmp > 0 ? tmp : DFLWALLETPAGE);
+		
+		tmp = ConfigUtils.setValueOrDefault(configMap, "feedlimit", newInt, DFLFEEDLIMIT);
+		feedLimit = (tmp > 0 ? tmp : DFLFEEDLIMIT);
+		
+		tmp = ConfigUtils.setValueOrDefault(configMap, "commentpage", newInt, DFLCOMMENTPAGE);
+		commentPage = (tmp > 0 ? tmp : DFLCOMMENTPAGE);
+		
+		snapshotPeriod = ConfigUtils.setValueOrDefault(configMap, "snapshotperiod", newLong, DFLSNAPSHOTPERIOD);
+		binarySnapshot = binarySnapshot(configMap);
+		backupRate = ConfigUtils.setValueOrDefault(configMap, "backuprate", newLong, DFLBACKUPRATE);
+		adminPassword = ConfigUtils.setValueOrDefault(configMap, "adminpassword", newStr, EMPTY);
+		
+		coldIteration = ConfigUtils.setValueOrDefault(configMap, "colditeration", newInt, DFLCOLDITERATION);
+		long coldIdle = ConfigUtils.setValueOrDefault(configMap, "coldidle", newLong, DFLCOLDIDLE);
+		this.coldIdle = (coldIdle >= 0 ? coldIdle : DFLCOLDIDLE);
+		tmp = ConfigUtils.setValueOrDefault(configMap, "coldsweep", newInt, DFLCOLDSWEEP);
+		coldSweep = (tmp > 0 ? tmp : DFLCOLDSWEEP);
+		
 		regPort = ConfigUtils.setValueOrDefault(configMap, "regport", newInt, DFLREGPORT);
 		mcastPort = ConfigUtils.setValueOrDefault(configMap, "mcastport", newInt, DFLMCASTPORT);
 		mcastAddr = ConfigUtils.setValueOrDefault(configMap, "multicast", newStr, DFLMCASTADDR);
@@ -371,9 +782,27 @@ public final class WinsomeServer implements AutoCloseable {
 				walletJson = ConfigUtils.setValueOrDefault(configMap, "walletjson", ConfigUtils.newStr, DFLWALLETJSON);
 			
 			
-			Table<String, Wallet> wallets = initTable(walletJson, ServerUtils.WALLETSTYPE);
-			Table<Long, Post> posts = initTable(postJson, ServerUtils.POSTSTYPE);
-			Table<String, User> users = initTable(userJson, ServerUtils.USERSTYPE);
+			/* Tables are read in parallel (and each one reads its partitions or sections in parallel) */
+			boolean binary = binarySnapshot(configMap);
+			List<String> skipped = (recovery(configMap) ? Collections.synchronizedList(new ArrayList<>()) : null);
+			Store<String, Wallet> walletStore = openStore(configMap, "walletstore", "wallets", Wallet.class);
+			Store<Long, Post> postStore = openStore(configMap, "poststore", "posts", Post.class);
+			Store<String, User> userStore = openStore(configMap, "userstore", "users", User.class);
+			ExecutorService loader = Executors.newFixedThreadPool(3);
+			Table<String, Wallet> wallets;
+			Table<Long, Post> posts;
+			Table<String, User> users;
+			try {
+				Future<Table<String, Wallet>> walletsResult = loader.submit(() -> initTable(walletJson, ServerUtils.WALLETSTYPE, Wallet.class, binary, skipped, walletStore));
+				Future<Table<Long, Post>> postsResult = loader.submit(() -> initTable(postJson, ServerUtils.POSTSTYPE, Post.class, binary, skipped, postStore));
+				Future<Table<String, User>> usersResult = loader.submit(() -> initTable(userJson, ServerUtils.USERSTYPE, User.class, binary, skipped, userStore));
+				wallets = walletsResult.get();
+				posts = postsResult.get();
+				users = usersResult.get();
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				throw (cause instanceof Exception ? (Exception) cause : ex);
+			} finally { loader.shutdownNow(); }
 			
 			JsonReader serverReader = Serialization.fileReader(serverJson);
 			WinsomeServer server = null;
@@ -389,6 +818,7 @@ public final class WinsomeServer implements AutoCloseable {
 				} else server.transientsInit(configMap, serverJson, userJson, postJson, walletJson, users, posts, wallets);
 			}
 			else server = new WinsomeServer(configMap, users, posts, wallets);
+			if (skipped != null) for (String partition : skipped) server.logger().log("Recovery: skipped %s", partition);
 			WinsomeServer.server = server;
 			return true;
 		} finally { WinsomeServer.SERVERLOCK.unlock(); }
@@ -416,6 +846,7 @@ public final class WinsomeServer implements AutoCloseable {
 			else {
 				state = State.ACTIVE;
 				rewManager.start();
+				if (snapshotter != null) snapshotter.start();
 				tcpListener.register(selector, SelectionKey.OP_ACCEPT);
 			}
 		}
@@ -554,16 +985,15 @@ public final class WinsomeServer implements AutoCloseable {
 	 */
 	@NotNull
 	Pair<Boolean, String> register(String username, String password, List<String> tags) {
-		User user = User.newUser(username, password, users, posts, wallets, tags);
-		if (user == null) return new Pair<>(false, String.format(ServerUtils.REG_EXISTING, username));
-		if (!users.putIfAbsent(user)) return new Pair<>(false, ServerUtils.INTERROR);
-		NavigableSet<String> set; 
-		for (String t : tags) {
-			String tag = new String(t);
-			set = tagsMap.get(tag);
-			if (set == null) { set = new TreeSet<>(); tagsMap.put(tag, set); }
-			set.add(new String(username));
-		}
+		try {
+			REGLOCK.lock();
+			captureLock.readLock().lock();
+			User user = User.newUser(username, password, users, posts, wallets, tags);
+			if (user == null) return new Pair<>(false, String.format(ServerUtils.REG_EXISTING, username));
+			this.logRequest(LogRecord.newRegister(user), null);
+			if (!users.putIfAbsent(user)) return new Pair<>(false, ServerUtils.INTERROR);
+			this.addTags(username, tags);
+		} finally { captureLock.readLock().unlock(); REGLOCK.unlock(); }
 		logger.log("Registrato nuovo utente: '%s' con tags: '%s'", username, tags.toString());
 		return new Pair<>(true, String.format(ServerUtils.REG_OK, username));
 	}
@@ -682,6 +1112,7 @@ public final class WinsomeServer implements AutoCloseable {
 		
 		int res = User.addFollower(follower, followed);
 		if (res == 0) {
+			this.logRequest(LogRecord.newFollow(follower.key(), followed.key()), null);
 			try {
 				if (!svHandler.addFollower(follower.key(), followed.key(), follower.tags()) ) {
 					return Message.newError(ServerUtils.INTERROR);
@@ -710,6 +1141,7 @@ public final class WinsomeServer implements AutoCloseable {
 		if (followed == null) return Message.newError(ServerUtils.U_NEXISTING, args.get(0));
 		int res = User.removeFollower(follower, followed);
 		if (res == 0) {
+			this.logRequest(LogRecord.newUnfollow(follower.key(), followed.key()), null);
 			try {
 				if ( !svHandler.removeFollower(follower.key(), followed.key()) ) {
 					return Message.newError(ServerUtils.INTERROR);
@@ -752,7 +1184,13 @@ public final class WinsomeServer implements AutoCloseable {
 		Action a = Action.newCreatePost(author);
 		this.actReg.putAction(a);
 		try {
-			long idPost = user.createPost(title, content);
+			/* The post is logged before being published, such that any successive record refers to a logged post */
+			long idPost;
+			try {
+				captureLock.readLock().lock();
+				idPost = user.createPost(title, content,
+					(p) -> this.logRequest(LogRecord.newCreatePost(author, p.key(), title, content), a));
+			} finally { captureLock.readLock().unlock(); }
 			a.setIdPost(idPost);
 			this.actReg.endAction(a);
 			return Message.newOK("Post creato correttamente (id = %d)", idPost);
@@ -772,14 +1210,14 @@ public final class WinsomeServer implements AutoCloseable {
 		SocketChannel client = (SocketChannel)skey.channel();
 		User user = loggedMap.get(client);
 		if (user == null) return Message.newError(ServerUtils.U_NONELOGGED);
-		List<String> feed = user.getFeed();
+		List<String> feed = user.getFeed(feedLimit);
 		return Message.newPostList(feed, Message.OK);
 	}
 	
 	/**
-	 * Show feed.
+	 * Show post.
 	 * @param skey Selection key.
-	 * @param args List of args as {idPost}.
+	 * @param args List of args as {idPost, [page]}.
 	 * @return A Message object to send back to the client.
 	 */
 	@NotNull
@@ -789,16 +1227,22 @@ public final class WinsomeServer implements AutoCloseable {
 		Long id = this.checkIdPost(args.get(0));
 		if (id == null) return Message.newError(ServerUtils.POST_INVID, args.get(0));
 		else idPost = id.longValue();
+		Integer page = this.checkPage(args.subList(1, args.size()));
+		if (page == null) return Message.newError(ServerUtils.POST_INVPAGE, args.get(1));
 		User user = loggedMap.get(client);
 		if (user == null) return Message.newError(ServerUtils.U_NONELOGGED);
 		List<String> posts;
 		try {
-			posts = user.getPost(idPost);
+			posts = user.getPost(idPost, page, commentPage);
 			Common.allAndState(posts.size() >= 4);
 			String title = posts.remove(0), content = posts.remove(0);
 			String likes = posts.remove(0), dislikes = posts.remove(0);
 			return Message.newPost(title, content, likes, dislikes, posts, Message.OK); }
-		catch (DataException de) { return Message.newError(de.getMessage()); }
+		catch (DataException de) {
+			if (!de.getMessage().equals(DataException.POST_COLD)) return Message.newError(de.getMessage());
+			logger.logStackTrace(de);
+			return Message.newError(ServerUtils.INTERROR);
+		}
 	}
 	
 	/**
@@ -821,6 +1265,7 @@ public final class WinsomeServer implements AutoCloseable {
 		try {
 			this.actReg.putAction(a);
 			user.deletePost(idPost);
+			this.logRequest(LogRecord.newDeletePost(actor, idPost), a);
 			this.actReg.endAction(a);
 			return Message.newOK(Message.OK);
 		} catch (DataException de) {
@@ -848,14 +1293,17 @@ public final class WinsomeServer implements AutoCloseable {
 		User user = loggedMap.get(client);
 		if (user == null) return Message.newError(ServerUtils.U_NONELOGGED);
 		try {
-			if (user.rewinPost(idPost)) return Message.newOK(ServerUtils.OK);
-			else return Message.newError(ServerUtils.REWON_ALREADY);
+			if (user.rewinPost(idPost)) {
+				this.logRequest(LogRecord.newRewin(user.key(), idPost), null);
+				return Message.newOK(ServerUtils.OK);
+			} else return Message.newError(ServerUtils.REWON_ALREADY);
 		} catch (DataException de) {
 			String msg = de.getMessage();
 			if (msg.equals(DataException.NOT_IN_FEED)) return Message.newError(ServerUtils.POST_NINFEED, idPost);
 			else if (msg.equals(DataException.SAME_AUTHOR))
 				return Message.newError("%s: %s", ServerUtils.PERMDEN, ServerUtils.POST_AUTHOR);
-			else return Message.newError(ServerUtils.INTERROR);
+			logger.logStackTrace(de);
+			return Message.newError(ServerUtils.INTERROR);
 		}
 	}
 	
@@ -890,6 +1338,7 @@ public final class WinsomeServer implements AutoCloseable {
 		try {
 			this.actReg.putAction(a);
 			if (user.ratePost(idPost, like)) {
+				this.logRequest(LogRecord.newRate(actor, idPost, like), a);
 				this.actReg.endAction(a);
 				return Message.newOK(ServerUtils.OK);
 			} else { this.actReg.abortAction(a); return Message.newError(ServerUtils.VOTED_ALREADY); }
@@ -897,7 +1346,8 @@ public final class WinsomeServer implements AutoCloseable {
 			this.actReg.abortAction(a);
 			String msg = de.getMessage();
 			if (msg.equals(DataException.NOT_IN_FEED)) return Message.newError(ServerUtils.POST_NINFEED, idPost);
-			else return Message.newError(ServerUtils.INTERROR);
+			logger.logStackTrace(de);
+			return Message.newError(ServerUtils.INTERROR);
 		}
 	}
 	
@@ -924,7 +1374,9 @@ public final class WinsomeServer implements AutoCloseable {
 		Action a = Action.newAddComment(actor, author, idPost);
 		try {
 			this.actReg.putAction(a);
-			int ncomm = user.addComment(idPost, comment);
+			long time = System.currentTimeMillis();
+			int ncomm = user.addComment(idPost, comment, time);
+			this.logRequest(LogRecord.newComment(actor, idPost, time, ncomm, comment), a);
 			a.setNComments(ncomm);
 			this.actReg.endAction(a);
 			return Message.newOK(ServerUtils.OK);
@@ -935,23 +1387,38 @@ public final class WinsomeServer implements AutoCloseable {
 				case DataException.SAME_AUTHOR : { return Message.newError("%s : %s", ServerUtils.PERMDEN, ServerUtils.POST_AUTHOR); }
 				case DataException.UNADD_COMMENT :
 				default : 
-				{ return Message.newError(ServerUtils.INTERROR); }
+				{ logger.logStackTrace(de); return Message.newError(ServerUtils.INTERROR); }
 			}
 		}
 	}
 	
+	/**
+	 * @param args List of args of a paged request (e.g. wallet) as {[page]}.
+	 * @return The number of the requested page (0 if not given), or null if invalid.
+	 */
+	Integer checkPage(List<String> args) {
+		if (args == null || args.isEmpty()) return 0;
+		try {
+			int page = Integer.parseInt(args.get(0));
+			return (page >= 0 ? page : null);
+		} catch (NumberFormatException ex) { return null; }
+	}
+	
 	/**
 	 * Get wallet in wincoin.
 	 * @param skey Selection key.
+	 * @param args List of args as {[page]}.
 	 * @return A Message object to send back to the client.
 	 */
 	@NotNull
-	Message getWallet(SelectionKey skey) {
+	Message getWallet(SelectionKey skey, List<String> args) {
 		SocketChannel client = (SocketChannel)skey.channel();
 		User user = loggedMap.get(client);
 		if (user == null) return Message.newError(ServerUtils.U_NONELOGGED);
+		Integer page = this.checkPage(args);
+		if (page == null) return Message.newError(ServerUtils.WALLET_INVPAGE, args.get(0));
 		try {
-			List<String> history = user.getWallet();
+			List<String> history = user.getWallet(page, walletPage);
 			double value = Double.parseDouble(history.get(0));
 			return Message.newWallet(value, history.subList(1, history.size()), ServerUtils.OK);
 		} finally { }
@@ -960,16 +1427,19 @@ public final class WinsomeServer implements AutoCloseable {
 	/**
 	 * Get wallet in bitcoin and wincoin.
 	 * @param skey Selection key.
+	 * @param args List of args as {[page]}.
 	 * @return A Message object to send back to the client.
 	 */
 	@NotNull
-	Message getWalletInBitcoin(SelectionKey skey) {
+	Message getWalletInBitcoin(SelectionKey skey, List<String> args) {
 		SocketChannel client = (SocketChannel)skey.channel();
 		User user = loggedMap.get(client);
 		if (user == null) return Message.newError(ServerUtils.U_NONELOGGED);
+		Integer page = this.checkPage(args);
+		if (page == null) return Message.newError(ServerUtils.WALLET_INVPAGE, args.get(0));
 		double value, btcValue;
 		try {
-			List<String> history = user.getWallet();
+			List<String> history = user.getWallet(page, walletPage);
 			value = Double.parseDouble(history.get(0));
 			btcValue = bitcoinService.convert(value);
 			return Message.newBtcWallet(btcValue, value, history.subList(1, history.size()), ServerUtils.OK);
@@ -995,59 +1465,186 @@ public final class WinsomeServer implements AutoCloseable {
 	protected final Selector selector() { return selector; }
 	
 	/**
-	 * Update the iteration fields of the posts still alive.
-	 * @param map Map idPost -> iteration num.
-	 * @return true on success, false otherwise.
+	 * Sets the births of the posts rewarded for the first time in the last round (posts deleted meanwhile are skipped),
+	 *  such that they are saved with the next snapshot.
+	 * @param births Map idPost -> birth (see {@link RewardCalculatorImpl#getLastBirths()}).
 	 */
-	protected final boolean updateIters(Map<Long, Double> map) {
-		Common.notNull(map);
-		Post p;
-		for (long id : map.keySet()) {
-			p = posts.get(id);
-			if (p == null) return false;
-			else p.setIteration(map.get(id));
+	protected final void updateBirths(Map<Long, Long> births) {
+		Common.notNull(births);
+		for (Map.Entry<Long, Long> entry : births.entrySet()) {
+			Post p = posts.get(entry.getKey());
+			if (p == null) continue;
+			p.setBirth(entry.getValue());
+			posts.touch(p.key());
 		}
-		return true;
+	}
+	
+	/**
+	 * Examines the next {@link #coldSweep} posts of the table (starting again from the first one after the last)
+	 *  and demotes to the cold store the ones whose reward iteration is at least {@link #coldIteration} and
+	 *  that have not been accessed in the last {@link #coldIdle} milliseconds, such that each period costs the
+	 *  same regardless of the number of posts. Then logs the size of the two tiers (from the cold store, without
+	 *  scanning the posts) and the reload statistics. Nothing is done if {@link #coldIteration} &le; 0.
+	 * @param calculator Calculator of the current reward iterations (see {@link RewardCalculatorImpl#getIteration(long)}).
+	 */
+	protected final void demoteColdPosts(RewardCalculatorImpl calculator) {
+		Common.notNull(calculator);
+		if (coldIteration <= 0) return;
+		long now = System.currentTimeMillis();
+		int demoted = 0, examined = 0;
+		Iterator<Post> slice = posts.scan(coldCursor, null);
+		Post p = null;
+		while (examined < coldSweep && slice.hasNext()) {
+			p = slice.next();
+			examined++;
+			try {
+				if (calculator.getIteration(p.key()) >= coldIteration && p.demote(coldIdle, now)) {
+					posts.touch(p.key());
+					demoted++;
+				}
+			} catch (DataException de) { logger.logStackTrace(de); }
+		}
+		coldCursor = (p != null && slice.hasNext() ? Long.valueOf(p.key() + 1) : null);
+		int cold = coldStore.size(), hot = Math.max(0, posts.size() - cold);
+		try {
+			logger.log("Post tiers: %d hot, %d cold (%d demoted of %d examined, %d bytes on disk); %d reloads, " +
+				"%.3f ms average reload time", hot, cold, demoted, examined, coldStore.fileSize(), coldStore.reloads(),
+				coldStore.avgReloadMillis());
+		} catch (IOException ioe) { logger.logStackTrace(ioe); }
 	}
 	
 	protected final Logger logger() { return logger; }
 	
 	/**
-	 * Serializes server data into 4 JSON files: one for the server, one for the users,
-	 *  one for the posts and one for the wallets.
-	 * @throws IllegalStateException If thrown by called methods.
+	 * Takes a snapshot of the server. The state of the server and of the reward manager is captured while holding
+	 *  {@link #rewardLock} and the write lock of {@link #captureLock} (the only phase in which registrations and new
+	 *  posts are stalled), then the dirty partitions of the tables are written while the server keeps running (see
+	 *  {@link Snapshot}) and finally the state of the server is written. Since the tables are written after the
+	 *  capture, they may also contain the effects of successive records of the write-ahead log: this is harmless,
+	 *  since these records are replayed idempotently (see {@link #openLog(Map, Map)}).
+	 *  Snapshots are checkpointed at the end of the log when captured, since the actions of the reward periods not yet
+	 *  settled are kept in the action journal. Log segments, content segments and journal segments of settled rounds
+	 *  that are not needed anymore are deleted only after the snapshot is complete. Snapshots are not taken while an
+	 *  online backup is being written (see {@link #backup(String, String)}).
+	 * @param shutdown If true, the snapshot is taken at shutdown (i.e. after workers and reward manager have been
+	 *  stopped).
+	 * @throws IOException On I/O errors (the previous snapshot remains valid).
+	 * @throws InterruptedException If interrupted while writing the tables (as above).
 	 */
-	private void serialize() throws IllegalStateException {
-		Gson gson = Serialization.GSON;
-		logger.log("Serializing on (%s, %s, %s, %s)", userJson, postJson, walletJson, serverJson);
-		
-		try (JsonWriter walletsWriter = Serialization.fileWriter(walletJson)){
-			gson.toJson(wallets, ServerUtils.WALLETSTYPE, walletsWriter);
-		} catch (IOException ioe) {
-			logger.logStackTrace(ioe);
-			throw new IllegalStateException(Common.excStr("Unable to write to '%s'", walletJson));
-		}
-		
-		try (JsonWriter postsWriter = Serialization.fileWriter(postJson)){
-			gson.toJson(posts, ServerUtils.POSTSTYPE, postsWriter);
-		} catch (IOException ioe) {
-			logger.logStackTrace(ioe);
-			throw new IllegalStateException(Common.excStr("Unable to write to '%s'", postJson));
-		}
-		
-		try (JsonWriter usersWriter = Serialization.fileWriter(userJson)){
-			gson.toJson(users, ServerUtils.USERSTYPE, usersWriter);
-		} catch (IOException ioe) {
-			logger.logStackTrace(ioe);
-			throw new IllegalStateException(Common.excStr("Unable to write to '%s'", userJson));
+	void snapshot(boolean shutdown) throws IOException, InterruptedException {
+		try {
+			snapshotLock.lock();
+			long start = System.nanoTime(), stall, epoch, checkpoint, round;
+			String serverState;
+			try {
+				rewardLock.lock();
+				captureLock.writeLock().lock();
+				checkpoint = wal.lastLsn();
+				this.checkpointLsn = checkpoint;
+				this.settledRound = round = Wallet.visibleRound();
+				epoch = contentStore.retireEpoch();
+				serverState = Snapshot.GSON.toJson(this, WinsomeServer.TYPE);
+			} finally {
+				captureLock.writeLock().unlock();
+				rewardLock.unlock();
+			}
+			stall = System.nanoTime() - start;
+			/* Records after the checkpoint go to a new segment, such that the older ones can be deleted */
+			wal.rotate();
+			/* The state of the server is written last, since it refers to the tables and to the stores */
+			List<Table<?, ?>> tables = Arrays.asList(wallets, posts, users);
+			List<String> filenames = Arrays.asList(walletJson, postJson, userJson);
+			long[] stats;
+			/* Files in the other format are deleted only after the tables have been written */
+			if (binarySnapshot) {
+				stats = BinarySnapshot.writeTables(tables, filenames, Arrays.asList(Wallet.class, Post.class, User.class),
+					ForkJoinPool.commonPool());
+				for (String filename : filenames) Snapshot.deleteTable(filename);
+			} else {
+				stats = Snapshot.writeTables(tables, filenames,
+					Arrays.asList(ServerUtils.WALLETSTYPE, ServerUtils.POSTSTYPE, ServerUtils.USERSTYPE), ForkJoinPool.commonPool());
+				for (String filename : filenames) BinarySnapshot.deleteTable(filename);
+			}
+			contentStore.flush();
+			coldStore.flush();
+			stats[1] += Snapshot.writeString(serverState, serverJson);
+			wal.truncate(checkpoint);
+			journal.trim(round);
+			contentStore.purge(epoch);
+			int partitions = 0;
+			for (Table<?, ?> table : tables) partitions += table.partitions();
+			logger.log("Snapshot at lsn %d: %d/%d partitions written (%d bytes) in %d ms (stall %.3f ms)", checkpoint,
+				stats[0], partitions, stats[1], (System.nanoTime() - start) / 1_000_000, stall / 1e6);
+		} finally { snapshotLock.unlock(); }
+	}
+	
+	/**
+	 * Writes an online backup of the server to the given archive on the host of the server (see {@link Backup}), for
+	 *  the administrator only. The state of the server is captured as by {@link #snapshot(boolean)}, then the tables
+	 *  are streamed to the archive (in the JSON format of a single file, see {@link Snapshot#readTable(String, Type, ExecutorService)})
+	 *  while the server keeps running, followed by the files of the content store and of the cold store, the segments
+	 *  of the write-ahead log and the ones of the action journal. Since no snapshot is taken meanwhile, none of these
+	 *  files is deleted while writing the backup, and the tables together with the log after the captured checkpoint
+	 *  make up a consistent state as after a crash of the server at the end of the backup (see {@link #openLog(Map, Map)}).
+	 *  Neither the snapshot of the server nor its log are modified by a backup.
+	 * @param password Password of the administrator (see the ADMINPASSWORD configuration key).
+	 * @param filename Name of the archive, that must not exist.
+	 * @return A pair (true, message) on success, a pair (false, message) on error.
+	 */
+	@NotNull
+	Pair<Boolean, String> backup(String password, String filename) {
+		Common.notNull(password, filename);
+		if (adminPassword.isEmpty() || !MessageDigest.isEqual(adminPassword.getBytes(StandardCharsets.UTF_8),
+			password.getBytes(StandardCharsets.UTF_8))) {
+			logger.log("Backup to '%s' refused: wrong administrator password", filename);
+			return new Pair<>(false, ServerUtils.PERMDEN);
 		}
-		
-		try (JsonWriter serverWriter = Serialization.fileWriter(serverJson)){
-			gson.toJson(this, WinsomeServer.TYPE, serverWriter);
+		Backup backup = null;
+		long start = System.currentTimeMillis(), checkpoint;
+		String serverState;
+		try {
+			snapshotLock.lock();
+			if (state != State.ACTIVE) return new Pair<>(false, ServerUtils.INTERROR);
+			if (Files.exists(Paths.get(filename))) return new Pair<>(false, String.format(ServerUtils.BACKUP_EXISTING, filename));
+			backup = new Backup(filename, backupRate, logger);
+			logger.log("Backup to '%s' started (rate = %d bytes/s)", filename, backupRate);
+			try {
+				rewardLock.lock();
+				captureLock.writeLock().lock();
+				long lastCheckpoint = this.checkpointLsn, lastRound = this.settledRound;
+				checkpoint = wal.lastLsn();
+				this.checkpointLsn = checkpoint;
+				this.settledRound = Wallet.visibleRound();
+				serverState = Snapshot.GSON.toJson(this, WinsomeServer.TYPE);
+				this.checkpointLsn = lastCheckpoint;
+				this.settledRound = lastRound;
+			} finally {
+				captureLock.writeLock().unlock();
+				rewardLock.unlock();
+			}
+			backup.addJson(Backup.entryName(Paths.get(walletJson)), wallets, ServerUtils.WALLETSTYPE);
+			backup.addJson(Backup.entryName(Paths.get(postJson)), posts, ServerUtils.POSTSTYPE);
+			backup.addJson(Backup.entryName(Paths.get(userJson)), users, ServerUtils.USERSTYPE);
+			/* Records referred to by the tables have been appended before the tables were written */
+			for (Map.Entry<Path, ByteBuffer[]> entry : contentStore.contents().entrySet()) backup.addFile(entry.getKey(), entry.getValue());
+			for (Path file : contentStore.retiredFiles()) backup.addFile(file);
+			coldStore.flush();
+			backup.addFile(coldStore.file());
+			/* The log is copied until its end, after the records written while copying the tables */
+			wal.commit(wal.lastLsn());
+			for (Path file : wal.files()) backup.addFile(file);
+			journal.commit();
+			for (Path file : journal.files()) backup.addFile(file);
+			backup.addString(Backup.entryName(Paths.get(serverJson)), serverState);
+			backup.close();
 		} catch (IOException ioe) {
+			if (backup != null) backup.abort();
 			logger.logStackTrace(ioe);
-			throw new IllegalStateException(Common.excStr("Unable to write to '%s'", serverJson));
-		}
+			return new Pair<>(false, String.format(ServerUtils.BACKUP_ERR, ioe.getMessage()));
+		} finally { snapshotLock.unlock(); }
+		logger.log("Backup to '%s' completed at lsn %d: %d entries, %d bytes in %d ms", filename, checkpoint,
+			backup.entries(), backup.bytes(), System.currentTimeMillis() - start);
+		return new Pair<>(true, String.format(ServerUtils.BACKUP_OK, filename, backup.entries(), backup.bytes()));
 	}
 		
 	public synchronized void close() throws Exception {
@@ -1061,6 +1658,12 @@ public final class WinsomeServer implements AutoCloseable {
 			rewManager.join();
 			logger.log("Rew manager joined");
 			
+			if (snapshotter != null) {
+				snapshotter.shutdown();
+				snapshotter.join();
+				logger.log("Snapshotter joined");
+			}
+			
 			tcpListener.close();
 			logger.log("TCP Listener closed");
 			
@@ -1073,18 +1676,35 @@ public final class WinsomeServer implements AutoCloseable {
 			workersFactory.joinAll();
 			logger.log("Workers pool closed");
 			
-			List<Action> act = new ArrayList<>();
-			actReg.getActions(act);
-			this.oldActions.addAll(act);
-			logger.log("Old actions saved");
-			
 			for (SocketChannel chan : loggedMap.keySet()) chan.close();
 			for (SocketChannel chan : unlogged) chan.close();
 			logger.log("All SocketChannels closed");
 			
-			this.serialize();
+			logger.log("Serializing on (%s, %s, %s, %s)", userJson, postJson, walletJson, serverJson);
+			try { this.snapshot(true); }
+			catch (IOException ioe) {
+				logger.logStackTrace(ioe);
+				throw new IllegalStateException(Common.excStr("Unable to write the snapshot: %s", ioe.getMessage()));
+			}
 			logger.log("Serialization done");
 			
+			long[] walStats = wal.stats();
+			wal.close();
+			logger.log("Write-ahead log checkpointed at lsn %d and closed (%d records in %d batches)",
+				checkpointLsn, walStats[0], walStats[1]);
+			
+			journal.close();
+			logger.log("Action journal closed");
+			
+			users.close();
+			posts.close();
+			wallets.close();
+			logger.log("Table stores closed");
+			
+			contentStore.close();
+			coldStore.close();
+			logger.log("Content and cold stores closed");
+			
 			loggedMap.clear();
 			unlogged.clear();
 			logger.log("Data cleared");
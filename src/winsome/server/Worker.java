@@ -76,8 +76,8 @@ final class Worker implements Runnable {
 				case Message.COMMENT : {msg = server.addComment(skey, args); break;}
 				case Message.WALLET : {
 					switch (param) {
-						case Message.EMPTY: {msg = server.getWallet(skey); break;}
-						case Message.BTC: {msg = server.getWalletInBitcoin(skey); break;}
+						case Message.EMPTY: {msg = server.getWallet(skey, args); break;}
+						case Message.BTC: {msg = server.getWalletInBitcoin(skey, args); break;}
 						default : break;
 					};
 					break;
@@ -0,0 +1,362 @@
+package winsome.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Append-only write-ahead log of the mutations of the server ({@link LogRecord}). Records are framed as
+ *  [int length][int crc][long lsn][record], where lsn is a strictly increasing log sequence number and crc is the
+ *  CRC-32 of [lsn][record], such that a torn or corrupted tail (e.g. after a crash) is detected and discarded
+ *  when replaying.
+ *  Records are appended to an in-memory batch ({@link #append(LogRecord)}) and made durable by {@link #commit(long)}
+ *  with group commit: the first committer (the "leader") writes the whole pending batch and forces it with a single
+ *  {@link FileChannel#force(boolean)}, while the other committers whose records have been written by the leader
+ *  return without any further I/O. How often the file is forced depends on the {@link SyncPolicy}.
+ *  The log is made up of segments, i.e. files named "filename.firstLsn" where firstLsn is the lsn of the first
+ *  record that could be contained in the segment. A new segment is started by {@link #rotate()} when a snapshot of
+ *  the server is taken, such that the segments containing only records already covered by a snapshot can be deleted
+ *  ({@link #truncate(long)}), while sequence numbers keep growing.
+ * @author Salvatore Correnti
+ * @see LogRecord
+ * @see WinsomeServer
+ */
+final class WriteAheadLog implements Closeable {
+	
+	/**
+	 * Policies for forcing the log to the storage device:
+	 * 	1) ALWAYS -> each batch is forced before its committers return (no committed record is lost on crash);
+	 * 	2) PERIODIC -> batches are only written when committed and a background thread forces the file periodically
+	 * 	(committed records survive a crash of the server but may be lost on a crash of the system);
+	 * 	3) NEVER -> batches are only written when committed and forcing is left to the operating system.
+	 */
+	static enum SyncPolicy { ALWAYS, PERIODIC, NEVER };
+	
+	private static final int HEADER = 2 * Integer.BYTES + Long.BYTES;
+	/* Maximum length of a single frame, larger values are considered as corruption */
+	private static final int MAXFRAME = 1 << 28;
+	private static final String SEGMENTFORMAT = "%s.%020d";
+	
+	/* Path of the log without the segment suffix */
+	@NotNull
+	private final Path path;
+	/* Map firstLsn -> segment file (guarded by flushLock) */
+	@NotNull
+	private final NavigableMap<Long, Path> segments;
+	/* Channel of the current (i.e. last) segment (guarded by flushLock) */
+	private FileChannel channel;
+	@NotNull
+	private final SyncPolicy policy;
+	/* Records appended but not yet written (guarded by this) */
+	private final ByteArrayOutputStream pending;
+	private final DataOutputStream pendingOut;
+	private final CRC32 crc;
+	private long nextLsn;
+	private boolean replayed, closed;
+	/* Only one leader at a time writes and forces the file */
+	private final Object flushLock = new Object();
+	/* Last lsn written by a leader (and forced if policy is ALWAYS) */
+	private volatile long writtenLsn;
+	/* First failure in writing or forcing a batch: since that batch is lost, no later record can be committed */
+	private volatile Exception failure;
+	/* Statistics (guarded by flushLock) */
+	private long records, batches;
+	private final Thread syncer;
+	
+	/**
+	 * Opens (or creates) the log with the given filename. The log must be replayed ({@link #replay(long, ObjLongConsumer)})
+	 *  before appending any record. A log written as a single file (i.e. without segments) is taken as the first segment.
+	 * @param filename Name of the log.
+	 * @param policy Fsync policy.
+	 * @param syncInterval Interval in milliseconds between two forces of the file (only for {@link SyncPolicy#PERIODIC}).
+	 * @throws IOException On I/O errors.
+	 * @throws NullPointerException If filename == null or policy == null.
+	 * @throws IllegalArgumentException If policy is PERIODIC and syncInterval &le; 0.
+	 */
+	public WriteAheadLog(String filename, SyncPolicy policy, long syncInterval) throws IOException {
+		Common.notNull(filename, policy);
+		Common.allAndArgs(policy != SyncPolicy.PERIODIC || syncInterval > 0);
+		this.path = Paths.get(filename).toAbsolutePath();
+		this.policy = policy;
+		this.segments = new TreeMap<>();
+		Path parent = path.getParent();
+		if (parent != null) Files.createDirectories(parent);
+		if (Files.isRegularFile(path)) Files.move(path, this.segmentPath(0), StandardCopyOption.ATOMIC_MOVE);
+		String prefix = path.getFileName().toString() + ".";
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(parent, prefix + "*")) {
+			for (Path seg : dir) {
+				try { segments.put(Long.parseLong(seg.getFileName().toString().substring(prefix.length())), seg); }
+				catch (NumberFormatException ex) { }
+			}
+		}
+		this.channel = null;
+		this.pending = new ByteArrayOutputStream();
+		this.pendingOut = new DataOutputStream(pending);
+		this.crc = new CRC32();
+		this.nextLsn = 1;
+		this.writtenLsn = 0;
+		this.failure = null;
+		this.replayed = false;
+		this.closed = false;
+		if (policy == SyncPolicy.PERIODIC) {
+			this.syncer = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(syncInterval);
+						synchronized (flushLock) { if (channel != null && channel.isOpen()) channel.force(false); else break; }
+					}
+				} catch (InterruptedException ie) {
+				} catch (IOException ioe) { this.failure = ioe; }
+			});
+			this.syncer.setName("WALSyncer");
+			this.syncer.setDaemon(true);
+		} else this.syncer = null;
+	}
+	
+	private Path segmentPath(long firstLsn) { return Paths.get(String.format(SEGMENTFORMAT, path.toString(), firstLsn)); }
+	
+	/**
+	 * Passes to consumer all the valid records in the log with lsn greater than fromLsn, in order of lsn.
+	 *  The log is truncated at the first torn or corrupted frame (if any), deleting all the successive segments,
+	 *  and successive appends start from max(fromLsn, last lsn in the log) + 1.
+	 * @param fromLsn Lsn of the last record already contained in the snapshot of the server.
+	 * @param consumer Consumer of the records and of their lsn.
+	 * @return The number of records passed to consumer.
+	 * @throws IOException On I/O errors.
+	 * @throws IllegalStateException If the log has already been replayed.
+	 */
+	public int replay(long fromLsn, ObjLongConsumer<LogRecord> consumer) throws IOException {
+		Common.notNull(consumer);
+		synchronized (flushLock) {
+			synchronized (this) {
+				Common.allAndState(!replayed);
+				long lastLsn = fromLsn, prevLsn = 0;
+				int count = 0;
+				boolean corrupted = false;
+				Iterator<Path> iter = segments.values().iterator();
+				while (iter.hasNext()) {
+					Path seg = iter.next();
+					if (corrupted) { Files.delete(seg); iter.remove(); continue; }
+					try (FileChannel in = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+						long[] state = {prevLsn, lastLsn, count};
+						long pos = this.replaySegment(in, fromLsn, state, consumer);
+						prevLsn = state[0]; lastLsn = state[1]; count = (int)state[2];
+						if (pos < in.size()) { in.truncate(pos); in.force(true); corrupted = true; }
+					}
+				}
+				this.nextLsn = Math.max(lastLsn, prevLsn) + 1;
+				this.writtenLsn = nextLsn - 1;
+				/* Appends always start in a new segment */
+				this.openSegment();
+				this.replayed = true;
+				if (syncer != null) syncer.start();
+				return count;
+			}
+		}
+	}
+	
+	/**
+	 * Replays the records of a single segment.
+	 * @param state Array {lsn of the previous record, lsn of the last consumed record, number of consumed records},
+	 *  updated by this method.
+	 * @return The position after the last valid frame of the segment.
+	 */
+	private long replaySegment(FileChannel in, long fromLsn, long[] state, ObjLongConsumer<LogRecord> consumer)
+		throws IOException {
+		long pos = 0, size = in.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		/* The stream is not closed, since that would close the channel */
+		DataInputStream stream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.position(0))));
+		try {
+			while (pos + HEADER <= size) {
+				header.clear();
+				stream.readFully(header.array());
+				int length = header.getInt(0), checksum = header.getInt(Integer.BYTES);
+				long lsn = header.getLong(2 * Integer.BYTES);
+				if (length < 0 || length > MAXFRAME || pos + HEADER + length > size) break;
+				byte[] body = new byte[length];
+				stream.readFully(body);
+				crc.reset();
+				crc.update(header.array(), 2 * Integer.BYTES, Long.BYTES);
+				crc.update(body);
+				if ((int)crc.getValue() != checksum || lsn <= state[0]) break;
+				LogRecord record;
+				try { record = LogRecord.decode(new DataInputStream(new ByteArrayInputStream(body))); }
+				catch (IOException ioe) { break; }
+				pos += HEADER + length;
+				state[0] = lsn;
+				if (lsn > fromLsn) { consumer.accept(record, lsn); state[1] = lsn; state[2]++; }
+			}
+		} catch (EOFException eof) { }
+		return pos;
+	}
+	
+	/** Opens a new (empty) segment starting from {@link #nextLsn}. Both this and flushLock must be held. */
+	private void openSegment() throws IOException {
+		Path seg = this.segmentPath(nextLsn);
+		this.channel = FileChannel.open(seg, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		segments.put(nextLsn, seg);
+	}
+	
+	/**
+	 * Appends a record to the current batch. The record is NOT durable until {@link #commit(long)} returns.
+	 * @param record The record.
+	 * @return The lsn of the record.
+	 * @throws IllegalStateException If the log has not been replayed or it is closed.
+	 */
+	public long append(LogRecord record) {
+		Common.notNull(record);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try { record.encode(new DataOutputStream(bytes)); }
+		catch (IOException ioe) { throw new IllegalStateException(ioe); }
+		byte[] body = bytes.toByteArray();
+		synchronized (this) {
+			Common.allAndState(replayed, !closed);
+			long lsn = nextLsn++;
+			ByteBuffer lsnBytes = ByteBuffer.allocate(Long.BYTES).putLong(0, lsn);
+			crc.reset();
+			crc.update(lsnBytes.array());
+			crc.update(body);
+			try {
+				pendingOut.writeInt(body.length);
+				pendingOut.writeInt((int)crc.getValue());
+				pendingOut.writeLong(lsn);
+				pendingOut.write(body);
+			} catch (IOException ioe) { throw new IllegalStateException(ioe); }
+			return lsn;
+		}
+	}
+	
+	/**
+	 * Waits until the record with the given lsn (and all the previous ones) has been written according to the
+	 *  fsync policy, writing the current batch if no other thread is doing it. If writing a batch fails, the log
+	 *  is failed: this and all the successive invocations throw an IOException, such that no record of that batch
+	 *  (and no later one) is ever acknowledged.
+	 * @param lsn Lsn as returned by {@link #append(LogRecord)}.
+	 * @throws IOException On I/O errors, or if the log has failed.
+	 */
+	public void commit(long lsn) throws IOException {
+		this.checkFailure();
+		if (writtenLsn >= lsn) return;
+		synchronized (flushLock) {
+			this.checkFailure();
+			/* Another leader could have written this record while waiting */
+			if (writtenLsn >= lsn) return;
+			byte[] batch;
+			long last;
+			synchronized (this) {
+				batch = pending.toByteArray();
+				pending.reset();
+				last = nextLsn - 1;
+			}
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(batch);
+				while (buf.hasRemaining()) channel.write(buf);
+				if (policy == SyncPolicy.ALWAYS) channel.force(false);
+			} catch (IOException | RuntimeException ex) {
+				/* writtenLsn is never advanced past the lost batch */
+				this.failure = ex;
+				throw ex;
+			}
+			records += last - writtenLsn;
+			batches++;
+			writtenLsn = last;
+		}
+	}
+	
+	/** @throws IOException If writing a batch has failed (see {@link #commit(long)}). */
+	private void checkFailure() throws IOException {
+		Exception failure = this.failure;
+		if (failure != null) throw new IOException("Write-ahead log failed", failure);
+	}
+	
+	/** Same as {@link #commit(long)} on the lsn returned by {@link #append(LogRecord)}. */
+	public long log(LogRecord record) throws IOException {
+		long lsn = this.append(record);
+		this.commit(lsn);
+		return lsn;
+	}
+	
+	/** @return The lsn of the last appended record. */
+	public synchronized long lastLsn() { return nextLsn - 1; }
+	
+	/**
+	 * Writes the pending records and starts a new segment, such that all the records appended until now can be
+	 *  deleted by {@link #truncate(long)} once they are covered by a snapshot.
+	 * @return The lsn of the last record before the new segment.
+	 * @throws IOException On I/O errors.
+	 */
+	public long rotate() throws IOException {
+		synchronized (flushLock) {
+			synchronized (this) {
+				Common.allAndState(replayed, !closed);
+				/* No record can be appended before the new segment has been opened */
+				this.commit(nextLsn - 1);
+				channel.force(true);
+				channel.close();
+				this.openSegment();
+				return nextLsn - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Deletes all the segments (except the current one) that contain only records with lsn &le; the given one.
+	 * @param lsn Lsn of the last record covered by a snapshot.
+	 * @return The number of deleted segments.
+	 * @throws IOException On I/O errors.
+	 */
+	public int truncate(long lsn) throws IOException {
+		synchronized (flushLock) {
+			int deleted = 0;
+			/* The records of a segment have lsn < the first lsn of the next one (the last segment is never deleted) */
+			while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= lsn + 1) {
+				Files.deleteIfExists(segments.pollFirstEntry().getValue());
+				deleted++;
+			}
+			return deleted;
+		}
+	}
+	
+	/**
+	 * Empties the log after a snapshot containing all the records up to {@link #lastLsn()} has been written.
+	 *  No record must be appended concurrently.
+	 * @throws IOException On I/O errors.
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (flushLock) { this.truncate(this.rotate()); }
+	}
+	
+	/** @return The files of the segments of the log, in ascending order of lsn (e.g. for copying them in a backup). */
+	@NotNull
+	public List<Path> files() { synchronized (flushLock) { return new ArrayList<>(segments.values()); } }
+	
+	/** @return An array {records, batches} with the number of records and batches written since opening. */
+	@NotNull
+	public long[] stats() { synchronized (flushLock) { return new long[] {records, batches}; } }
+	
+	public void close() throws IOException {
+		synchronized (this) { if (closed) return; }
+		try { this.commit(this.lastLsn()); }
+		finally {
+			synchronized (this) { closed = true; }
+			synchronized (flushLock) {
+				if (syncer != null) syncer.interrupt();
+				if (channel != null) {
+					try { if (failure == null) channel.force(true); }
+					finally { channel.close(); }
+				}
+			}
+		}
+	}
+	
+	@NotNull
+	public String toString() { return String.format("%s : %s (%s)", this.getClass().getSimpleName(), path, policy); }
+}
\ No newline at end of file
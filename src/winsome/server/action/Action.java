@@ -1,5 +1,11 @@
 package winsome.server.action;
 
+import java.io.*;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.*;
+
 import winsome.annotations.NotNull;
 import winsome.util.*;
 
@@ -9,6 +15,7 @@ import winsome.util.*;
  * @author Salvatore Correnti
  * @see ActionRegistry
  */
+@JsonAdapter(Action.Adapter.class)
 public final class Action {
 
 	/* 
@@ -31,6 +38,12 @@ public final class Action {
 	private int ncomments;
 	/** Milliseconds time (since the epoch) when the action is marked as ended */
 	private long endTime;
+	/* Id of the action in the journal (see ActionJournal), 0 if not journaled */
+	private transient long seq = 0;
+	/* State of the action in an ActionRegistry */
+	private transient boolean registered = false, aborted = false;
+	/* Epoch of the registry in which the action has been ended, -1 if ended before being registered (e.g. restored) */
+	private transient long endEpoch = -1;
 	
 	/**
 	 * @throws NullPointerException If type == null or actor == null.
@@ -103,5 +116,131 @@ public final class Action {
 	public final Long getEndTime() {return endTime;}
 	public final Integer getNComments() {return ncomments;}
 	
+	/**
+	 * Marks the action as registered in an {@link ActionRegistry}.
+	 * @return true if the action was not registered yet, false otherwise.
+	 */
+	synchronized boolean register() {
+		if (registered) return false;
+		registered = true;
+		return true;
+	}
+	
+	/**
+	 * Marks the registered action as ended (see {@link #markEnded()}) in the given epoch of the registry.
+	 * @return true if the action is registered and not aborted, false otherwise.
+	 */
+	synchronized boolean end(long epoch) {
+		if (!registered || aborted) return false;
+		if (endTime < 0) { this.markEnded(); this.endEpoch = epoch; }
+		return true;
+	}
+	
+	/**
+	 * Marks the registered action as aborted, such that it is discarded by the registry.
+	 * @return true if the action is registered and was neither ended nor aborted yet, false otherwise.
+	 */
+	synchronized boolean abort() {
+		if (!registered || aborted || endTime >= 0) return false;
+		aborted = true;
+		return true;
+	}
+	
+	synchronized boolean isAborted() { return aborted; }
+	synchronized long getEndEpoch() { return endEpoch; }
+	
+	synchronized long getSeq() { return seq; }
+	synchronized void setSeq(long seq) { this.seq = seq; }
+	
+	/**
+	 * Writes this action in binary format (see {@link ActionJournal}).
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	synchronized void encode(DataOutput out) throws IOException {
+		out.writeByte(type.ordinal());
+		Serialization.writeString(out, actor);
+		out.writeLong(idPost);
+		out.writeBoolean(author != null);
+		if (author != null) Serialization.writeString(out, author);
+		out.writeInt(ncomments);
+		out.writeLong(endTime);
+	}
+	
+	/**
+	 * Reads an action written by {@link #encode(DataOutput)}.
+	 * @param in Input.
+	 * @return The action.
+	 * @throws IOException On I/O errors or if the action is malformed.
+	 */
+	@NotNull
+	static Action decode(DataInput in) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		ActionType[] types = ActionType.values();
+		if (ordinal >= types.length) throw new IOException("Unknown action type");
+		String actor = Serialization.readString(in);
+		long idPost = in.readLong();
+		String author = (in.readBoolean() ? Serialization.readString(in) : null);
+		int ncomments = in.readInt();
+		long endTime = in.readLong();
+		if (idPost < 0 || ncomments < 0) throw new IOException("Malformed action");
+		Action action = new Action(types[ordinal], actor, author, idPost, ncomments);
+		action.endTime = endTime;
+		return action;
+	}
+	
 	public String toString() { return Common.jsonString(this); }
+	
+	/**
+	 * Gson adapter that writes an action with the same fields as the reflective one and reads it through the
+	 *  constructor of this class.
+	 */
+	static final class Adapter extends TypeAdapter<Action> {
+		
+		private static final String TYPE = "type", ACTOR = "actor", IDPOST = "idPost", AUTHOR = "author",
+			NCOMMENTS = "ncomments", ENDTIME = "endTime";
+		
+		public void write(JsonWriter out, Action action) throws IOException {
+			if (action == null) { out.nullValue(); return; }
+			synchronized (action) {
+				out.beginObject();
+				if (action.type != null) out.name(TYPE).value(action.type.name());
+				out.name(ACTOR).value(action.actor);
+				out.name(IDPOST).value(action.idPost);
+				if (action.author != null) out.name(AUTHOR).value(action.author);
+				out.name(NCOMMENTS).value(action.ncomments);
+				out.name(ENDTIME).value(action.endTime);
+				out.endObject();
+			}
+		}
+		
+		public Action read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			ActionType type = null;
+			String actor = null, author = null;
+			long idPost = 0, endTime = -1;
+			int ncomments = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case TYPE : {
+						try { type = ActionType.valueOf(in.nextString()); }
+						catch (IllegalArgumentException ex) { throw new IOException("Unknown action type", ex); }
+						break;
+					}
+					case ACTOR : { actor = in.nextString(); break; }
+					case IDPOST : { idPost = in.nextLong(); break; }
+					case AUTHOR : { author = in.nextString(); break; }
+					case NCOMMENTS : { ncomments = in.nextInt(); break; }
+					case ENDTIME : { endTime = in.nextLong(); break; }
+					default : { in.skipValue(); break; }
+				}
+			}
+			in.endObject();
+			if (type == null || actor == null || idPost < 0 || ncomments < 0) throw new IOException("Malformed action");
+			Action action = new Action(type, actor, author, idPost, ncomments);
+			action.endTime = endTime;
+			return action;
+		}
+	}
 }
\ No newline at end of file
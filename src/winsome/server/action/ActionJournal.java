@@ -0,0 +1,387 @@
+package winsome.server.action;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Durable journal of the actions of an {@link ActionRegistry}, such that the actions of the reward periods that have
+ *  not been settled yet survive a crash of the server. Each {@link ActionRegistry#putAction(Action)},
+ *  {@link ActionRegistry#endAction(Action)} and {@link ActionRegistry#abortAction(Action)} appends a record
+ *  [byte kind][long seq][action] to the journal, where seq identifies the action, framed as [int length][int crc][record]
+ *  (crc is the CRC-32 of the record), such that a torn or corrupted tail (e.g. after a crash) is detected and discarded
+ *  when loading.
+ *  The journal is segmented by reward period: the file "filename.round" contains the records of the period that is
+ *  rewarded by the given round. When a period is closed by {@link ActionRegistry#getActions(List)}, the actions that
+ *  are not rewarded in it are marked as carried in its segment and put again in the segment of the next period
+ *  ({@link #rotate(Collection)}), such that each segment contains exactly the actions rewarded by its round
+ *  ({@link #rewarded(long)}). The segments of the rounds that have been settled are deleted by {@link #trim(long)}
+ *  once the settlement is covered by a snapshot of the server.
+ *  Records are appended to an in-memory batch and written by {@link #commit()} with group commit (and forced to disk
+ *  if so configured), which is done whenever an action is ended, since only ended actions are rewarded.
+ *  Records are tagged with the epoch of the registry in which they are appended: since the registry swaps its epoch
+ *  before closing the period, records of the next epoch are kept in a separate batch that is written at the head of
+ *  the new segment (after the carried actions) by {@link #rotate(Collection)}, and committers of such records wait
+ *  for the rotation.
+ * @author Salvatore Correnti
+ * @see ActionRegistry
+ */
+public final class ActionJournal implements Closeable {
+	
+	/* Kinds of records: PUT and END contain the whole action, ABORT and CARRY only its seq */
+	private static final byte PUT = 0, END = 1, ABORT = 2, CARRY = 3;
+	
+	private static final int HEADER = 2 * Integer.BYTES;
+	/* Maximum length of a single record, larger values are considered as corruption */
+	private static final int MAXRECORD = 1 << 20;
+	private static final String SEGMENTFORMAT = "%s.%020d", TMPEXT = ".tmp";
+	
+	/* Path of the journal without the segment suffix */
+	@NotNull
+	private final Path path;
+	private final boolean force;
+	/* Map round -> segment file and map round -> actions put and not aborted (nor carried) in the segment, read when opening */
+	@NotNull
+	private final NavigableMap<Long, Path> segments;
+	private NavigableMap<Long, Map<Long, Action>> loaded;
+	/* Channel of the current segment (guarded by flushLock) */
+	private FileChannel channel;
+	/* Round of the current segment and next seq (guarded by this) */
+	private long round, nextSeq;
+	/* Records appended but not yet written (guarded by this) */
+	private final ByteArrayOutputStream pending;
+	private final DataOutputStream pendingOut;
+	/* Epoch of the registry whose records belong to the current segment and records of the next epoch (guarded by this) */
+	private long epoch;
+	private final ByteArrayOutputStream next;
+	private final DataOutputStream nextOut;
+	private final CRC32 crc;
+	private boolean opened, closed;
+	/* Only one leader at a time writes and forces the file */
+	private final Object flushLock = new Object();
+	/* First failure in writing a batch or rotating: since that batch is lost, no later record can be committed */
+	private volatile Exception failure;
+	
+	/**
+	 * Loads the journal with the given filename (if it exists). The journal must be opened by {@link #open(long, Collection)}
+	 *  before appending any record.
+	 * @param filename Name of the journal.
+	 * @param force If true, each batch of records is forced to disk before the committers return.
+	 * @throws IOException On I/O errors.
+	 * @throws NullPointerException If filename == null.
+	 */
+	public ActionJournal(String filename, boolean force) throws IOException {
+		Common.notNull(filename);
+		this.path = Paths.get(filename).toAbsolutePath();
+		this.force = force;
+		this.segments = new TreeMap<>();
+		this.loaded = new TreeMap<>();
+		Path parent = path.getParent();
+		if (parent != null) Files.createDirectories(parent);
+		String prefix = path.getFileName().toString() + ".";
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(parent, prefix + "*")) {
+			for (Path seg : dir) {
+				try { segments.put(Long.parseLong(seg.getFileName().toString().substring(prefix.length())), seg); }
+				catch (NumberFormatException ex) { }
+			}
+		}
+		this.crc = new CRC32();
+		this.nextSeq = 1;
+		for (Map.Entry<Long, Path> entry : segments.entrySet()) loaded.put(entry.getKey(), this.load(entry.getValue()));
+		this.channel = null;
+		this.round = 0;
+		this.pending = new ByteArrayOutputStream();
+		this.pendingOut = new DataOutputStream(pending);
+		this.epoch = 0;
+		this.next = new ByteArrayOutputStream();
+		this.nextOut = new DataOutputStream(next);
+		this.opened = false;
+		this.closed = false;
+		this.failure = null;
+	}
+	
+	private Path segmentPath(long round) { return Paths.get(String.format(SEGMENTFORMAT, path.toString(), round)); }
+	
+	/**
+	 * Reads all the valid records of a segment, truncating it at the first torn or corrupted record (if any).
+	 * @return The map seq -> action of the actions put and not aborted (nor carried) in the segment.
+	 * @throws IOException On I/O errors.
+	 */
+	private Map<Long, Action> load(Path seg) throws IOException {
+		Map<Long, Action> actions = new LinkedHashMap<>();
+		try (FileChannel in = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long pos = 0, size = in.size();
+			/* The stream is not closed, since that would close the channel */
+			DataInputStream stream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+			try {
+				while (pos + HEADER <= size) {
+					int length = stream.readInt(), checksum = stream.readInt();
+					if (length <= 0 || length > MAXRECORD || pos + HEADER + length > size) break;
+					byte[] body = new byte[length];
+					stream.readFully(body);
+					crc.reset();
+					crc.update(body);
+					if ((int)crc.getValue() != checksum) break;
+					DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+					byte kind;
+					long seq;
+					Action a = null;
+					try {
+						kind = record.readByte();
+						seq = record.readLong();
+						if (kind == PUT || kind == END) a = Action.decode(record);
+						else if (kind != ABORT && kind != CARRY) break;
+					} catch (IOException | IllegalArgumentException ex) { break; }
+					if (a != null) actions.put(seq, a); else actions.remove(seq);
+					nextSeq = Math.max(nextSeq, seq + 1);
+					pos += HEADER + length;
+				}
+			} catch (EOFException eof) { }
+			if (pos < size) { in.truncate(pos); in.force(true); }
+		}
+		return actions;
+	}
+	
+	/** @return The files of the segments of the journal, in ascending order of round (e.g. for copying them in a backup). */
+	@NotNull
+	public synchronized List<Path> files() { return new ArrayList<>(segments.values()); }
+	
+	/** @return true if the journal has no segment (e.g. it has never been opened). */
+	public synchronized boolean isEmpty() { return segments.isEmpty(); }
+	
+	/**
+	 * @param round Id of a reward round.
+	 * @return The actions rewarded by the given round as read when loading the journal (i.e. the actions ended in its
+	 *  period), or null if there is no segment for that round (e.g. if it was settled before the journal was created).
+	 * @throws IllegalStateException If the journal has already been opened.
+	 */
+	public synchronized List<Action> rewarded(long round) {
+		Common.allAndState(!opened);
+		Map<Long, Action> actions = loaded.get(round);
+		if (actions == null) return null;
+		List<Action> result = new ArrayList<>();
+		for (Action a : actions.values()) if (a.isEnded()) result.add(a);
+		return result;
+	}
+	
+	/**
+	 * Opens the journal for appending records after the server has been restored. The ended actions of all the segments
+	 *  of the rounds not yet settled and the given ones are written (keeping their seqs) to a new segment for the next
+	 *  round, which replaces all of them, while actions that were not ended when the server stopped are discarded.
+	 * @param settledRound Id of the last settled round.
+	 * @param actions Other actions to be rewarded in the next round (e.g. from a snapshot written before the journal),
+	 *  or null.
+	 * @return The actions to be rewarded in the next round.
+	 * @throws IOException On I/O errors.
+	 * @throws IllegalStateException If the journal has already been opened.
+	 */
+	@NotNull
+	public List<Action> open(long settledRound, Collection<Action> actions) throws IOException {
+		synchronized (flushLock) {
+			synchronized (this) {
+				Common.allAndState(!opened);
+				/* An action could be in more segments if the server stopped while opening the journal */
+				Map<Long, Action> unsettled = new LinkedHashMap<>();
+				for (Map<Long, Action> seg : loaded.tailMap(settledRound, false).values())
+					for (Map.Entry<Long, Action> entry : seg.entrySet())
+						if (entry.getValue().isEnded()) unsettled.putIfAbsent(entry.getKey(), entry.getValue());
+				List<Action> result = new ArrayList<>(unsettled.values());
+				if (actions != null) result.addAll(actions);
+				this.loaded = null;
+				this.round = settledRound + 1;
+				Path seg = this.segmentPath(round), tmp = seg.resolveSibling(seg.getFileName() + TMPEXT);
+				try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+					for (Action a : result) { this.append(PUT, a, pendingOut); this.append(END, a, pendingOut); }
+					ByteBuffer buf = ByteBuffer.wrap(pending.toByteArray());
+					pending.reset();
+					while (buf.hasRemaining()) out.write(buf);
+					out.force(true);
+				}
+				Files.move(tmp, seg, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				/* Segments of the rounds not yet settled are replaced by the new one */
+				Iterator<Path> iter = segments.tailMap(round, false).values().iterator();
+				while (iter.hasNext()) { Files.deleteIfExists(iter.next()); iter.remove(); }
+				segments.put(round, seg);
+				this.channel = FileChannel.open(seg, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				this.opened = true;
+				return result;
+			}
+		}
+	}
+	
+	/** Appends a record to the given batch (a new seq is assigned to actions put for the first time). This must be held. */
+	private void append(byte kind, Action a, DataOutputStream batch) {
+		if (kind == PUT && a.getSeq() == 0) a.setSeq(nextSeq++);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(kind);
+			out.writeLong(a.getSeq());
+			if (kind == PUT || kind == END) a.encode(out);
+			out.flush();
+			byte[] body = bytes.toByteArray();
+			crc.reset();
+			crc.update(body);
+			batch.writeInt(body.length);
+			batch.writeInt((int)crc.getValue());
+			batch.write(body);
+		} catch (IOException ioe) { throw new IllegalStateException(ioe); }
+	}
+	
+	/** Appends a record of the given epoch of the registry to the batch of the current or of the next segment. */
+	private void append(byte kind, Action a, long epoch) {
+		Common.allAndState(opened, !closed, epoch == this.epoch || epoch == this.epoch + 1);
+		this.append(kind, a, (epoch == this.epoch ? pendingOut : nextOut));
+	}
+	
+	/** Appends a record for a newly registered action (the record is NOT durable until {@link #commit()}). */
+	synchronized void put(Action a, long epoch) { this.append(PUT, a, epoch); }
+	
+	/** Appends a record for an ended action (the record is NOT durable until {@link #commit()}). */
+	synchronized void end(Action a, long epoch) { this.append(END, a, epoch); }
+	
+	/** Appends a record for an aborted action (the record is NOT durable until {@link #commit()}). */
+	synchronized void abort(Action a, long epoch) { this.append(ABORT, a, epoch); }
+	
+	/**
+	 * Writes all the pending records (forcing them to disk if required), unless another thread is doing it. If there
+	 *  are records of the next epoch, waits for them to be written by {@link #rotate(Collection)}. If writing a batch
+	 *  (or rotating) fails, the journal is failed: this and all the successive invocations (and rotations) throw an
+	 *  IOException, such that no record of that batch (and no later one) is ever acknowledged.
+	 * @throws IOException On I/O errors, or if the journal has failed.
+	 * @throws InterruptedIOException If interrupted while waiting for the rotation.
+	 */
+	public void commit() throws IOException {
+		synchronized (this) {
+			try { while (next.size() > 0 && !closed && failure == null) this.wait(); }
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the rotation of the journal");
+			}
+		}
+		this.flush();
+	}
+	
+	/** Writes the pending records of the current segment (forcing them to disk if required). */
+	private void flush() throws IOException {
+		synchronized (flushLock) {
+			this.checkFailure();
+			byte[] batch;
+			synchronized (this) {
+				if (pending.size() == 0 || closed) return;
+				batch = pending.toByteArray();
+				pending.reset();
+			}
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(batch);
+				while (buf.hasRemaining()) channel.write(buf);
+				if (force) channel.force(false);
+			} catch (IOException | RuntimeException ex) { this.fail(ex); throw ex; }
+		}
+	}
+	
+	/** @throws IOException If writing a batch or rotating has failed (see {@link #commit()}). */
+	private void checkFailure() throws IOException {
+		Exception failure = this.failure;
+		if (failure != null) throw new IOException("Action journal failed", failure);
+	}
+	
+	/** Records the given failure (if it is the first one) and wakes up the committers waiting for a rotation. */
+	private void fail(Exception ex) {
+		synchronized (this) {
+			if (failure == null) failure = ex;
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes the period of the current round: the given actions (which are not rewarded by it) are marked as carried
+	 *  in the current segment and put again (as they are) in a new segment for the next round, followed by the records
+	 *  of the next epoch of the registry appended until now.
+	 * @param carried Actions carried to the next period.
+	 * @return The id of the round of the closed period.
+	 * @throws IOException On I/O errors, or if the journal has failed (see {@link #commit()}).
+	 * @throws IllegalStateException If the journal has not been opened or it is closed.
+	 */
+	long rotate(Collection<Action> carried) throws IOException {
+		Common.notNull(carried);
+		synchronized (flushLock) {
+			synchronized (this) {
+				Common.allAndState(opened, !closed);
+				this.checkFailure();
+				try {
+					for (Action a : carried) this.append(CARRY, a, pendingOut);
+					this.flush();
+					channel.force(true);
+					channel.close();
+					long closedRound = round++;
+					Path seg = this.segmentPath(round);
+					this.channel = FileChannel.open(seg, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+					segments.put(round, seg);
+					for (Action a : carried) {
+						this.append(PUT, a, pendingOut);
+						if (a.isEnded()) this.append(END, a, pendingOut);
+					}
+					/* Records of the next epoch follow the carried actions they may refer to */
+					pending.writeBytes(next.toByteArray());
+					next.reset();
+					epoch++;
+					this.flush();
+					channel.force(true);
+					this.notifyAll();
+					return closedRound;
+				} catch (IOException | RuntimeException ex) { this.fail(ex); throw ex; }
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the segments of the given round and of the previous ones (except the current segment), i.e. the
+	 *  segments of the rounds whose settlement is covered by a snapshot.
+	 * @param settledRound Id of the last settled round contained in a snapshot.
+	 * @return The number of deleted segments.
+	 * @throws IOException On I/O errors.
+	 */
+	public int trim(long settledRound) throws IOException {
+		synchronized (flushLock) {
+			synchronized (this) {
+				int deleted = 0;
+				while (!segments.isEmpty() && segments.firstKey() <= settledRound && segments.firstKey() < round) {
+					Files.deleteIfExists(segments.pollFirstEntry().getValue());
+					deleted++;
+				}
+				return deleted;
+			}
+		}
+	}
+	
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed || !opened) { closed = true; this.notifyAll(); return; }
+			/* The round is not settled, so the records of the next epoch can stay in its segment */
+			pending.writeBytes(next.toByteArray());
+			next.reset();
+		}
+		try { this.flush(); }
+		finally {
+			synchronized (flushLock) {
+				synchronized (this) { closed = true; this.notifyAll(); }
+				if (channel != null) {
+					try { if (failure == null) channel.force(true); }
+					finally { channel.close(); }
+				}
+			}
+		}
+	}
+	
+	@NotNull
+	public synchronized String toString() { return String.format("%s : %s (round %d)", this.getClass().getSimpleName(), path, round); }
+}
\ No newline at end of file
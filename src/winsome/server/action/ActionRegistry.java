@@ -1,7 +1,9 @@
 package winsome.server.action;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.*;
 import java.util.function.*;
 
@@ -23,6 +25,18 @@ import winsome.util.*;
  *  The thread that handles this registry periodically (with a specificable policy) scans the list of
  *  all actions removing the ones that are already marked as ended and calculates the rewards basing
  *  on them.
+ *  Actions are registered in epochs (see {@link Epoch}), i.e. multi-producer single-consumer logs that are appended
+ *  to without locks: the state of an action (registered, ended, aborted) is kept in the action itself, such that
+ *  ending and aborting it need no scan of the log. At the end of each period, the current epoch is atomically swapped
+ *  with a new one and, once the threads that were still appending to it have left, it is handed as a whole to
+ *  {@link #getActions(List)}: the actions that are not rewarded in the period are carried to the new epoch. Epochs are
+ *  double-buffered, i.e. threads never wait for the end of a period, since they register and end actions in the new
+ *  epoch while rewards are calculated on the swapped one.
+ *  If a journal is set ({@link #setJournal(ActionJournal)}), all these operations are recorded in it, such that
+ *  the actions of the current reward period survive a crash of the server.
+ *  If an aggregator is set ({@link #setAggregator(Supplier)}), each epoch has an aggregate that is updated with each
+ *  action as soon as it is ended in the epoch, such that rewards can be calculated from the aggregate of the swapped
+ *  epoch ({@link #lastAggregate()}) instead of from all its actions.
  * @author Salvatore Correnti
  * @see Action
  * @see WinsomeServer
@@ -38,9 +52,6 @@ public final class ActionRegistry {
 	 */
 	private static enum State { INIT, OPEN, CLOSED };
 	
-	/** Default wait value (1000 milliseconds). */
-	private static final long DFLWAIT = 1000;
-	
 	/** Conversion map from MILLISECONDS to other TimeUnits not "less than" milliseconds. */
 	private static final Map<String, Long> convMap = Common.newHashMapFromLists(
 		Common.toList("DAYS", "HOURS", "MILLISECONDS", "MINUTES", "SECONDS"),
@@ -55,21 +66,52 @@ public final class ActionRegistry {
 		flatTimeout = (reg) -> (reg.now + reg.period),
 		afterWriteTimeout = (reg) -> (System.currentTimeMillis() + reg.period);
 	
+	/**
+	 * Epoch of the registry, i.e. the lock-free queue of the actions registered (or carried) in a period. Threads enter
+	 *  the current epoch ({@link ActionRegistry#enter()}) for appending an action or changing its state and leave it
+	 *  afterwards, while the consumer swaps the epoch with a new one and then waits for the threads that entered it to
+	 *  leave, such that a swapped epoch is never modified again.
+	 */
+	private static final class Epoch {
+		
+		private final long id;
+		private final ConcurrentLinkedQueue<Action> actions;
+		/* Number of threads that entered this epoch */
+		private final AtomicInteger writers;
+		/* Aggregate of the actions ended in this epoch (null if no aggregator is set) */
+		private final Consumer<Action> aggregate;
+		
+		private Epoch(long id, Consumer<Action> aggregate) {
+			this.id = id;
+			this.actions = new ConcurrentLinkedQueue<>();
+			this.writers = new AtomicInteger(0);
+			this.aggregate = aggregate;
+		}
+	}
+	
 	@NotNull
-	private State state;
+	private volatile State state;
 	@NotNull
-	private long period, wait;
-	private TimeUnit periodUnit, waitUnit;
+	private long period;
+	private TimeUnit periodUnit;
 	@NotNull
-	private List<Action> registry;
-	private long start, now;
+	private transient volatile Epoch current;
+	private long start;
+	private volatile long now;
+	/* Supplier of the aggregates of the epochs (null if not aggregated) and aggregate of the last swapped epoch */
+	private transient Supplier<? extends Consumer<Action>> aggregator = null;
+	private transient Consumer<Action> lastAggregate = null;
+	/* true while the consumer is waiting on writeCond for the end of the period */
+	private transient volatile boolean waiting;
 	private transient ReentrantLock lock;
-	private transient Condition readCond, writeCond;
+	private transient Condition writeCond;
 	private Date timeout;
 	@NotNull
 	private ToLongFunction<ActionRegistry> timeoutPolicy;
 	@NotNull
 	private Predicate<ActionRegistry> writeWaitPolicy;
+	/* Journal of the actions (null if not journaled) */
+	private transient ActionJournal journal = null;
 	
 	/**
 	 * Conversion of a period expressed in a TimeUnit into its equivalent in milliseconds.
@@ -90,68 +132,120 @@ public final class ActionRegistry {
 	/** Sets next timeout. */
 	private void setTimeout() { this.timeout = new Date(this.now + this.period); }
 	
-	/** While true, no-one can register any new action. */
-	private boolean readerShouldWait() { return ( lock.hasWaiters(writeCond) && timeoutElapsed() ); }
+	/** @return The current epoch, after having entered it (the caller must then {@link #leave(Epoch)} it). */
+	@NotNull
+	private Epoch enter() {
+		while (true) {
+			Epoch epoch = this.current;
+			epoch.writers.incrementAndGet();
+			if (epoch == this.current) return epoch;
+			/* Swapped in the meanwhile */
+			epoch.writers.decrementAndGet();
+		}
+	}
+	
+	private static void leave(Epoch epoch) { epoch.writers.decrementAndGet(); }
+	
+	/**
+	 * Replaces the current epoch with a new one and waits for the threads that entered it to leave.
+	 *  NOTE: This method must be executed only by the consumer.
+	 * @return The swapped epoch.
+	 */
+	@NotNull
+	private Epoch swap() {
+		Epoch epoch = this.current;
+		this.current = new Epoch(epoch.id + 1, (aggregator != null ? aggregator.get() : null));
+		while (epoch.writers.get() > 0) Thread.yield();
+		return epoch;
+	}
 	
 	/**
 	 * Initializes a new AcionRegistry.
 	 * @param periodData Time extension of the timeout period.
-	 * @param waitData Timeout for waiting for a {@link #putAction(Action)} call.
 	 * @param timeoutPolicy Policy for calculating the next timeout.
 	 * @param writeWaitPolicy Policy for waiting for a {@link #getActions(List)} call.
-	 * @throws NullPointerException If any of periodData, period, wait is null.
-	 * @throws IllegalArgumentException If period <= 0 or wait <= 0.
+	 * @throws NullPointerException If any of periodData, period is null.
+	 * @throws IllegalArgumentException If period <= 0.
 	 */
-	public ActionRegistry(Pair<Long, TimeUnit> periodData, Pair<Long, TimeUnit> waitData, 
-		ToLongFunction<ActionRegistry> timeoutPolicy, Predicate<ActionRegistry> writeWaitPolicy) {
+	public ActionRegistry(Pair<Long, TimeUnit> periodData, ToLongFunction<ActionRegistry> timeoutPolicy,
+		Predicate<ActionRegistry> writeWaitPolicy) {
 		
-		Common.notNull(periodData, periodData.getKey(), waitData.getKey());
+		Common.notNull(periodData, periodData.getKey());
 		
 		long period = periodData.getKey().longValue();
 		TimeUnit periodUnit = periodData.getValue();
 		
-		long wait = waitData.getKey().longValue();
-		TimeUnit waitUnit = waitData.getValue();
-		
-		Common.allAndArgs(period > 0, wait > 0);
+		Common.allAndArgs(period > 0);
 		this.state = State.INIT;
 		this.periodUnit = (periodUnit != null ? periodUnit : TimeUnit.MILLISECONDS);
-		this.waitUnit = (waitUnit != null ? waitUnit : TimeUnit.MILLISECONDS);
 		this.period = this.normalize(period, this.periodUnit);
-		this.wait = this.normalize(wait, this.waitUnit);
-		this.registry = new ArrayList<>();
+		this.current = new Epoch(0, null);
 		this.start = -1;
 		this.now = -1;
+		this.waiting = false;
 		this.lock = new ReentrantLock();
-		this.readCond = this.lock.newCondition();
 		this.writeCond = this.lock.newCondition();
 		this.timeout = null;
 		this.timeoutPolicy = (timeoutPolicy != null ? timeoutPolicy : flatTimeout);
 		this.writeWaitPolicy = (writeWaitPolicy != null ? writeWaitPolicy : timeoutOnlyWriteWait);
 	}
 	
-	/** @see #ActionRegistry(Pair, Pair, ToLongFunction, Predicate) */
-	public ActionRegistry(Pair<Long, TimeUnit> periodData, ToLongFunction<ActionRegistry> timeoutPolicy,
-			Predicate<ActionRegistry> writeWaitPolicy) {
-		this(periodData, new Pair<>(DFLWAIT, null), timeoutPolicy, writeWaitPolicy); }
-	
-	/** @see #ActionRegistry(Pair, Pair, ToLongFunction, Predicate) */
+	/** @see #ActionRegistry(Pair, ToLongFunction, Predicate) */
 	public ActionRegistry(Pair<Long, TimeUnit> periodData, ToLongFunction<ActionRegistry> timeoutPolicy) {
-		this(periodData, new Pair<>(DFLWAIT, null), timeoutPolicy, timeoutOnlyWriteWait);
+		this(periodData, timeoutPolicy, timeoutOnlyWriteWait);
 	}
 	
-	/** @see #ActionRegistry(Pair, Pair, ToLongFunction, Predicate) */
+	/** @see #ActionRegistry(Pair, ToLongFunction, Predicate) */
 	public ActionRegistry(Pair<Long, TimeUnit> periodData, Predicate<ActionRegistry> writeWaitPolicy) {
-		this(periodData, new Pair<>(DFLWAIT, null), flatTimeout, writeWaitPolicy);
+		this(periodData, flatTimeout, writeWaitPolicy);
 	}
 	
-	/** @see #ActionRegistry(Pair, Pair, ToLongFunction, Predicate) */
+	/** @see #ActionRegistry(Pair, ToLongFunction, Predicate) */
 	public ActionRegistry(Pair<Long, TimeUnit> periodData) {
-		this(periodData, new Pair<>(DFLWAIT, null), flatTimeout, timeoutOnlyWriteWait);
+		this(periodData, flatTimeout, timeoutOnlyWriteWait);
+	}
+	
+	/** @see #ActionRegistry(Pair, ToLongFunction, Predicate) */
+	public ActionRegistry(long period) { this(new Pair<>(period, null), null, null); }
+	
+	/**
+	 * Sets the journal in which actions are recorded (see {@link ActionJournal}).
+	 * @param journal The journal (already opened, see {@link ActionJournal#open(long, Collection)}).
+	 * @throws NullPointerException If journal == null.
+	 * @throws IllegalStateException If the registry has already been opened.
+	 */
+	public void setJournal(ActionJournal journal) {
+		Common.notNull(journal);
+		try {
+			this.lock.lock();
+			Common.allAndState(this.state == State.INIT);
+			this.journal = journal;
+		} finally { this.lock.unlock(); }
+	}
+	
+	/**
+	 * Sets the supplier of the aggregates of the epochs: each action ended in an epoch (or added to it by
+	 *  {@link #putOldActions(List)}) is passed to the aggregate of the epoch, concurrently by the threads that end them.
+	 * @param aggregator Supplier of thread-safe aggregates.
+	 * @throws NullPointerException If aggregator == null.
+	 * @throws IllegalStateException If the registry has already been opened or it already contains actions.
+	 */
+	public void setAggregator(Supplier<? extends Consumer<Action>> aggregator) {
+		Common.notNull(aggregator);
+		try {
+			this.lock.lock();
+			Common.allAndState(this.state == State.INIT, this.current.actions.isEmpty());
+			this.aggregator = aggregator;
+			this.current = new Epoch(this.current.id, aggregator.get());
+		} finally { this.lock.unlock(); }
 	}
 	
-	/** @see #ActionRegistry(Pair, Pair, ToLongFunction, Predicate) */
-	public ActionRegistry(long period) { this(new Pair<>(period, null), new Pair<>(DFLWAIT, null), null, null); }
+	/** Writes the pending records of the journal (if any). */
+	private void commitJournal() {
+		if (journal == null) return;
+		try { journal.commit(); }
+		catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to write to the action journal: %s", ioe.getMessage())); }
+	}
 	
 	/**
 	 * Opens the registry, enabling calls of {@link #putAction(Action)}, {@link #endAction(Action)},
@@ -182,7 +276,6 @@ public final class ActionRegistry {
 			this.lock.lock();
 			if (this.state == State.OPEN) {
 				this.state = State.CLOSED;
-				readCond.signalAll();
 				writeCond.signalAll();
 				return true;
 			} else return false;
@@ -190,23 +283,21 @@ public final class ActionRegistry {
 	}
 	
 	/**
-	 * Register an action before "executing" it on the server.
+	 * Register an action before "executing" it on the server. This method never waits, not even while a period is
+	 *  being closed (the action is registered in the new epoch).
 	 * @param a The action.
 	 * @return true if the state is not closed and the action is successfully registered, false otherwise.
-	 * @throws InterruptedException If an interruption occurs.
 	 * @throws NullPointerException If action is null.
 	 */
-	public boolean putAction(Action a) throws InterruptedException {
+	public boolean putAction(Action a) {
 		Common.notNull(a);
+		Epoch epoch = this.enter();
 		try {
-			this.lock.lock();
-			while ((this.state != State.CLOSED) && this.readerShouldWait())
-				this.readCond.await(this.wait, this.waitUnit);
-			if (this.state == State.CLOSED) return false;
-			registry.add(a);
+			if (this.state == State.CLOSED || !a.register()) return false;
+			epoch.actions.add(a);
+			if (journal != null) journal.put(a, epoch.id);
 			return true;
-		}
-		finally { this.lock.unlock(); }
+		} finally { leave(epoch); }
 	}
 	
 	/**
@@ -214,71 +305,109 @@ public final class ActionRegistry {
 	 * @param a The action.
 	 * @return true if the state is not closed and the action is successfully marked as completed, false otherwise.
 	 * @throws NullPointerException If action is null.
+	 * @throws IllegalStateException On I/O errors when writing the journal.
 	 */
 	public boolean endAction(Action a) {
 		Common.notNull(a);
+		Epoch epoch = this.enter();
 		try {
-			this.lock.lock();
-			if (!registry.contains(a)) return false;
-			a.markEnded();
-			if (lock.hasWaiters(writeCond)) writeCond.signal();
-			else if (lock.hasWaiters(readCond)) readCond.signalAll();
-			return true;
-		} finally { this.lock.unlock(); }
+			if (this.state == State.CLOSED || !a.end(epoch.id)) return false;
+			if (epoch.aggregate != null) epoch.aggregate.accept(a);
+			if (journal != null) journal.end(a, epoch.id);
+		} finally { leave(epoch); }
+		if (this.waiting) {
+			try {
+				this.lock.lock();
+				if (lock.hasWaiters(writeCond)) writeCond.signal();
+			} finally { this.lock.unlock(); }
+		}
+		/* The journal is written outside of the epoch, such that concurrent committers are grouped */
+		this.commitJournal();
+		return true;
 	}
 	
 	/**
-	 * Signals that a registered action has failed to complete and removes it from the registry.
+	 * Signals that a registered action has failed to complete, such that it is discarded by the registry.
 	 * @param a The action.
-	 * @return true if the action was previously registered, false otherwise.
+	 * @return true if the action was previously registered and not ended, false otherwise.
 	 * @throws NullPointerException If action is null.
 	 */
 	public boolean abortAction(Action a) {
 		Common.notNull(a);
+		Epoch epoch = this.enter();
 		try {
-			this.lock.lock();
-			return registry.remove(a);
-		} finally { this.lock.unlock(); }
+			if (this.state == State.CLOSED || !a.abort()) return false;
+			if (journal != null) journal.abort(a, epoch.id);
+			return true;
+		} finally { leave(epoch); }
 	}
 	
 	/**
-	 * Retrieves from the action list all the actions that has been marked as ended with {@link #endAction(Action)}
-	 *  appending them to the list provided.
+	 * Retrieves from the current epoch all the actions that has been marked as ended with {@link #endAction(Action)}
+	 *  in it (or in a previous one), appending them to the list provided. The epoch is swapped with a new one, in which
+	 *  the other actions are carried: since an action is rewarded in the epoch in which it has been ended, an action
+	 *  registered before the swap and ended after it is rewarded exactly once, in the next period. Threads that register,
+	 *  end or abort actions meanwhile never wait, since they work on the new epoch.
+	 *  NOTE: This method must be executed by only one thread (the consumer).
 	 * @param l List of actions.
 	 * @return true on success if the state is not closed, false otherwise.
 	 * @throws NullPointerException If l is null.
+	 * @throws IllegalStateException On I/O errors when writing the journal (the period is closed anyway).
 	 */
 	public boolean getActions(List<Action> l) throws InterruptedException {
 		Common.notNull(l);
 		try {
 			this.lock.lock();
+			this.waiting = true;
 			while ((this.state != State.CLOSED) && writeWaitPolicy.test(this)) this.writeCond.awaitUntil(timeout);
-			if (this.state == State.CLOSED) {
-				l.addAll(registry); registry.clear(); return false; }
-			Action a;
-			Iterator<Action> iter = registry.iterator();
-			while (iter.hasNext()) {
-				a = iter.next();
-				if (a.isEnded() && a.getEndTime() <= this.now + this.period) {
-					iter.remove();
-					l.add(a);
-				}
-			}
-			this.now = timeoutPolicy.applyAsLong(this);
-			this.setTimeout();
-			if (lock.hasWaiters(readCond)) readCond.signalAll();
-			return true;
-		} finally { this.lock.unlock(); }
+		} finally { this.waiting = false; this.lock.unlock(); }
+		Epoch epoch = this.swap();
+		this.lastAggregate = epoch.aggregate;
+		if (this.state == State.CLOSED) {
+			for (Action a : epoch.actions) if (!a.isAborted()) l.add(a);
+			return false;
+		}
+		List<Action> carried = new ArrayList<>();
+		for (Action a : epoch.actions) {
+			if (a.isAborted()) continue;
+			else if (a.isEnded() && a.getEndEpoch() <= epoch.id) l.add(a);
+			else carried.add(a);
+		}
+		/* The remaining actions are rewarded in the next period */
+		this.current.actions.addAll(carried);
+		this.now = timeoutPolicy.applyAsLong(this);
+		this.setTimeout();
+		if (journal != null) {
+			try { journal.rotate(carried); }
+			catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to write to the action journal: %s", ioe.getMessage())); }
+		}
+		return true;
 	}
 	
+	/**
+	 * @return The aggregate of the actions returned by the last invocation of {@link #getActions(List)}, or null if no
+	 *  aggregator is set (see {@link #setAggregator(Supplier)}).
+	 *  NOTE: This method must be executed only by the consumer.
+	 */
+	public Consumer<Action> lastAggregate() { return lastAggregate; }
+	
 	public long getNow() { return now; }
 	public long getTimeout() { return now + period; }
 	
+	/**
+	 * Adds the given (ended) actions to the registry without recording them in the journal, e.g. when they are
+	 *  restored from the journal itself.
+	 * @param actions The actions.
+	 */
 	public void putOldActions(List<Action> actions) {
+		Epoch epoch = this.enter();
 		try {
-			this.lock.lock();
-			this.registry.addAll(actions);
-		} finally { this.lock.unlock(); }
+			for (Action a : actions) {
+				if (!a.register()) continue;
+				epoch.actions.add(a);
+				if (epoch.aggregate != null && a.isEnded()) epoch.aggregate.accept(a);
+			}
+		} finally { leave(epoch); }
 	}
 	
 	@NotNull
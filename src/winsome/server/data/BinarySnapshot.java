@@ -0,0 +1,447 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+import com.google.gson.reflect.TypeToken;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * Versioned binary snapshots of the tables of the server, as an alternative to the JSON ones of {@link Snapshot}.
+ *  A table saved in "name.json" is written as a single file "name.bin" with the following layout (big-endian):
+ *  	1) header: [int magic][short version][short kind of table][int number of sections][int CRC-32 of the index];
+ *  	2) index: [long offset][long length][int number of records][int CRC-32] for each section;
+ *  	3) sections: the i-th section contains the elements of the i-th partition of the table (see {@link Table#partitions()}),
+ *  		each one as a record [int length][bytes] written by the encode(DataOutput) method of its class.
+ *  Sections are encoded in parallel and the file is written through a temporary file that is forced to disk and then
+ *  atomically renamed, as in {@link Snapshot}. When loading, each section is mapped in memory by
+ *  {@link FileChannel#map(FileChannel.MapMode, long, long)}, verified against its checksum and decoded in parallel,
+ *  without copying the file on the heap nor parsing any text.
+ *  This class can also be run as a standalone program for converting a table between the two formats (see
+ *  {@link #main(String[])}).
+ * @author Salvatore Correnti
+ * @see Snapshot
+ */
+public final class BinarySnapshot {
+	
+	private BinarySnapshot() {}
+	
+	/** Magic number of binary snapshots ("WSNB"). */
+	public static final int MAGIC = 0x57534E42;
+	/** Current version of the format (2 since posts are saved with their birth instead of their reward iteration). */
+	public static final short VERSION = 2;
+	
+	private static final String BINEXT = ".bin";
+	
+	/* Sizes in bytes of the header and of an entry of the index */
+	private static final int
+		HEADERSIZE = 3 * Integer.BYTES + 2 * Short.BYTES,
+		ENTRYSIZE = 2 * Long.BYTES + 2 * Integer.BYTES;
+	
+	private static final String USAGE = "Usage: BinarySnapshot (tobinary | tojson) (users | posts | wallets) <file.json>";
+	
+	/** Kinds of tables that can be written in binary format. */
+	private static enum Kind {
+		USERS(1, User.class, new TypeToken<Table<String, User>>() {}.getType()),
+		POSTS(2, Post.class, new TypeToken<Table<Long, Post>>() {}.getType()),
+		WALLETS(3, Wallet.class, new TypeToken<Table<String, Wallet>>() {}.getType());
+	
+		/* Code written in the header */
+		private final short code;
+		private final Class<?> type;
+		/* Type of the table for Gson */
+		private final Type tableType;
+	
+		private Kind(int code, Class<?> type, Type tableType) {
+			this.code = (short)code;
+			this.type = type;
+			this.tableType = tableType;
+		}
+	
+		/** @throws IllegalArgumentException If no table with elements of the given class can be written. */
+		@NotNull
+		static Kind of(Class<?> type) {
+			for (Kind kind : Kind.values()) if (kind.type == type) return kind;
+			throw new IllegalArgumentException(Common.excStr("No binary format for %s", type.getSimpleName()));
+		}
+	
+		void encode(Object elem, DataOutput out) throws IOException {
+			switch (this) {
+				case USERS : { ((User)elem).encode(out); break; }
+				case POSTS : { ((Post)elem).encode(out); break; }
+				case WALLETS : { ((Wallet)elem).encode(out); break; }
+			}
+		}
+	
+		@NotNull
+		Object decode(DataInput in) throws IOException {
+			switch (this) {
+				case USERS : return User.decode(in);
+				case POSTS : return Post.decode(in);
+				default : return Wallet.decode(in);
+			}
+		}
+	}
+	
+	/** Byte array output stream whose buffer can be written without copying it. */
+	private static final class Buffer extends ByteArrayOutputStream {
+	
+		Buffer() { super(Serialization.BUFFERSIZE); }
+	
+		ByteBuffer wrap() { return ByteBuffer.wrap(buf, 0, count); }
+	}
+	
+	/** An encoded section. */
+	private static final class Section {
+	
+		private final Buffer data;
+		private final int records;
+		private final int crc;
+	
+		Section(Buffer data, int records) {
+			this.data = data;
+			this.records = records;
+			CRC32 crc = new CRC32();
+			crc.update(data.wrap());
+			this.crc = (int)crc.getValue();
+		}
+	}
+	
+	/** {@link DataInput} over a byte buffer, that throws {@link BufferUnderflowException} at the end of the buffer. */
+	static final class BufferInput implements DataInput {
+	
+		private final ByteBuffer buffer;
+	
+		BufferInput(ByteBuffer buffer) { this.buffer = buffer; }
+	
+		public void readFully(byte[] b) { buffer.get(b); }
+		public void readFully(byte[] b, int off, int len) { buffer.get(b, off, len); }
+	
+		public int skipBytes(int n) {
+			n = Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + n);
+			return n;
+		}
+	
+		public boolean readBoolean() { return (buffer.get() != 0); }
+		public byte readByte() { return buffer.get(); }
+		public int readUnsignedByte() { return buffer.get() & 0xFF; }
+		public short readShort() { return buffer.getShort(); }
+		public int readUnsignedShort() { return buffer.getShort() & 0xFFFF; }
+		public char readChar() { return buffer.getChar(); }
+		public int readInt() { return buffer.getInt(); }
+		public long readLong() { return buffer.getLong(); }
+		public float readFloat() { return buffer.getFloat(); }
+		public double readDouble() { return buffer.getDouble(); }
+		public String readLine() { throw new UnsupportedOperationException(); }
+		public String readUTF() throws IOException { return DataInputStream.readUTF(this); }
+	}
+	
+	/**
+	 * @param filename Name of the (JSON) file of a table.
+	 * @return The name of the binary file of the table.
+	 */
+	@NotNull
+	public static String binaryFile(String filename) {
+		Common.notNull(filename);
+		String base = (filename.endsWith(Snapshot.JSONEXT) ? filename.substring(0, filename.length() - Snapshot.JSONEXT.length()) : filename);
+		return base + BINEXT;
+	}
+	
+	/**
+	 * Deletes the binary file of a table (e.g. after it has been written in JSON format, see {@link Snapshot}).
+	 * @param filename Name of the (JSON) file of the table.
+	 * @throws IOException On I/O errors.
+	 */
+	public static void deleteTable(String filename) throws IOException { Files.deleteIfExists(Paths.get(binaryFile(filename))); }
+	
+	/**
+	 * Encodes the given elements as a section.
+	 * @throws IOException On I/O errors.
+	 */
+	private static Section encode(List<?> elems, Kind kind) throws IOException {
+		Buffer section = new Buffer(), record = new Buffer();
+		DataOutputStream out = new DataOutputStream(section), recordOut = new DataOutputStream(record);
+		for (Object elem : elems) {
+			record.reset();
+			kind.encode(elem, recordOut);
+			recordOut.flush();
+			out.writeInt(record.size());
+			record.writeTo(out);
+		}
+		out.flush();
+		return new Section(section, elems.size());
+	}
+	
+	/**
+	 * Writes the given tables in binary format, each one in the file {@link #binaryFile(String)} of its name. A table
+	 *  is written (as a whole) only if any of its partitions is dirty or its file does not exist (see {@link Table#touch(Comparable)}),
+	 *  and its sections are encoded in parallel.
+	 * @param tables The tables.
+	 * @param filenames Names of the (JSON) files of the tables (in the same order).
+	 * @param types Classes of the elements of the tables (in the same order).
+	 * @param pool Executor for encoding sections in parallel.
+	 * @return An array {number of written sections, number of written bytes}.
+	 * @throws IOException On I/O errors (all the partitions of all the tables are marked as dirty again).
+	 * @throws InterruptedException If interrupted while waiting for sections (as above).
+	 * @throws IllegalArgumentException If the three lists do not have the same size or there is no binary format
+	 *  for a class.
+	 */
+	@NotNull
+	public static long[] writeTables(List<Table<?, ?>> tables, List<String> filenames, List<Class<?>> types,
+		ExecutorService pool) throws IOException, InterruptedException {
+		Common.notNull(tables, filenames, types, pool);
+		Common.allAndArgs(tables.size() == filenames.size(), tables.size() == types.size());
+		List<List<Future<Section>>> results = new ArrayList<>();
+		for (int i = 0; i < tables.size(); i++) {
+			Table<?, ?> table = tables.get(i);
+			Kind kind = Kind.of(types.get(i));
+			boolean dirty = false;
+			boolean[] selected = new boolean[table.partitions()];
+			Arrays.fill(selected, true);
+			for (int j = 0; j < selected.length; j++) dirty |= table.clean(j);
+			if (!dirty && Files.exists(Paths.get(binaryFile(filenames.get(i))))) { results.add(null); continue; }
+			List<Future<Section>> sections = new ArrayList<>();
+			for (List<?> part : table.split(selected)) sections.add(pool.submit(() -> encode(part, kind)));
+			results.add(sections);
+		}
+		long[] result = new long[] {0, 0};
+		Set<Path> dirs = new HashSet<>();
+		boolean done = false;
+		try {
+			for (int i = 0; i < tables.size(); i++) {
+				if (results.get(i) == null) continue;
+				List<Section> sections = new ArrayList<>();
+				for (Future<Section> section : results.get(i)) sections.add(section.get());
+				Path path = Paths.get(binaryFile(filenames.get(i))).toAbsolutePath();
+				result[0] += sections.size();
+				result[1] += write(path, Kind.of(types.get(i)), sections);
+				dirs.add(path.getParent());
+			}
+			done = true;
+		} catch (ExecutionException ex) {
+			Throwable cause = Snapshot.cause(ex);
+			if (cause instanceof IOException) throw (IOException) cause;
+			else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			else throw new IllegalStateException(cause);
+		} finally {
+			if (!done) {
+				for (List<Future<Section>> sections : results)
+					if (sections != null) for (Future<Section> section : sections) section.cancel(false);
+				for (Table<?, ?> table : tables) table.touchAll();
+			}
+		}
+		for (Path dir : dirs) Snapshot.syncDirectory(dir.resolve(BINEXT));
+		return result;
+	}
+	
+	/**
+	 * Writes a binary file through a temporary file that is forced to disk and then atomically renamed.
+	 * @return The number of written bytes.
+	 * @throws IOException On I/O errors (the previous version of the file, if any, is left untouched).
+	 */
+	private static long write(Path path, Kind kind, List<Section> sections) throws IOException {
+		int n = sections.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADERSIZE + n * ENTRYSIZE);
+		header.position(HEADERSIZE);
+		long offset = header.capacity();
+		for (Section section : sections) {
+			header.putLong(offset).putLong(section.data.size()).putInt(section.records).putInt(section.crc);
+			offset += section.data.size();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), HEADERSIZE, n * ENTRYSIZE);
+		header.putInt(0, MAGIC).putShort(4, VERSION).putShort(6, kind.code).putInt(8, n).putInt(12, (int)crc.getValue());
+		header.rewind();
+		Path tmp = path.resolveSibling(path.getFileName() + Snapshot.TMPEXT);
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining()) channel.write(header);
+			for (Section section : sections) {
+				ByteBuffer data = section.data.wrap();
+				while (data.hasRemaining()) channel.write(data);
+			}
+			channel.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return offset;
+	}
+	
+	/**
+	 * Same as {@link #readTable(String, Class, ExecutorService, List)} without recovery mode.
+	 * @throws IOException On I/O errors or if the file is not valid.
+	 * @throws InterruptedException If interrupted while waiting for sections.
+	 * @throws IllegalArgumentException If there is no binary format for type.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Class<V> type,
+		ExecutorService pool) throws IOException, InterruptedException {
+		return readTable(filename, type, pool, null);
+	}
+	
+	/**
+	 * Reads a table written by {@link #writeTables(List, List, List, ExecutorService)}. Sections are mapped in memory,
+	 *  verified and decoded in parallel, and the elements of each section are added to the resulting table as soon as
+	 *  the whole section has been decoded.
+	 *  NOTE: The elements of the table are NOT deserialized.
+	 * @param filename Name of the binary file of the table (see {@link #binaryFile(String)}).
+	 * @param type Class of the elements of the table.
+	 * @param pool Executor for decoding sections in parallel.
+	 * @param skipped If not null, recovery mode is enabled: a section that is not valid is skipped and a description
+	 *  of it is added to this list, and if the header or the index is not valid a description of it is added to this
+	 *  list and null is returned.
+	 * @return The table, or null if the file does not exist (or it is not valid in recovery mode).
+	 * @throws IOException On I/O errors or if the file is not valid (e.g. bad checksum, another kind of table
+	 *  or an unsupported version) and recovery mode is not enabled.
+	 * @throws InterruptedException If interrupted while waiting for sections.
+	 * @throws IllegalArgumentException If there is no binary format for type.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Class<V> type,
+		ExecutorService pool, List<String> skipped) throws IOException, InterruptedException {
+		return readTable(filename, type, pool, skipped, null);
+	}
+	
+	/**
+	 * Same as {@link #readTable(String, Class, ExecutorService, List)}, with the elements added to the given store.
+	 * @param store Empty store of the table (see {@link Table#Table(int, Store)}), or null for a store on the heap.
+	 *  It is left empty if null is returned.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Class<V> type,
+		ExecutorService pool, List<String> skipped, Store<T, V> store) throws IOException, InterruptedException {
+		Common.notNull(filename, type, pool);
+		Kind kind = Kind.of(type);
+		Path path = Paths.get(filename);
+		Table<T, V> table;
+		FileChannel channel;
+		try { channel = FileChannel.open(path, StandardOpenOption.READ); }
+		catch (NoSuchFileException ex) { return null; }
+		try {
+			long size = channel.size();
+			if (size < HEADERSIZE) throw new IOException(Common.excStr("'%s' is not a binary snapshot", path));
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADERSIZE);
+			if (header.getInt() != MAGIC) throw new IOException(Common.excStr("'%s' is not a binary snapshot", path));
+			short version = header.getShort(), code = header.getShort();
+			if (version != VERSION) throw new IOException(Common.excStr("Unsupported version %d of '%s'", version, path));
+			if (code != kind.code) throw new IOException(Common.excStr("'%s' does not contain %s", path, kind));
+			int n = header.getInt(), crc = header.getInt();
+			if (n < 0 || HEADERSIZE + (long)n * ENTRYSIZE > size) throw new IOException(Common.excStr("Invalid index of '%s'", path));
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADERSIZE, (long)n * ENTRYSIZE);
+			CRC32 check = new CRC32();
+			check.update(index.duplicate());
+			if ((int)check.getValue() != crc) throw new IOException(Common.excStr("Corrupted index of '%s'", path));
+			for (int i = 0; i < n; i++) {
+				long offset = index.getLong(i * ENTRYSIZE), length = index.getLong(i * ENTRYSIZE + Long.BYTES);
+				int records = index.getInt(i * ENTRYSIZE + 2 * Long.BYTES);
+				if (offset < HEADERSIZE || length < 0 || length > Integer.MAX_VALUE || offset + length > size || records < 0)
+					throw new IOException(Common.excStr("Invalid index of '%s'", path));
+			}
+			int partitions = (n > 0 ? n : Table.DFLPARTITIONS);
+			table = (store != null ? new Table<>(partitions, store) : new Table<>(partitions));
+			List<Future<Integer>> results = new ArrayList<>();
+			try {
+				for (int i = 0; i < n; i++) {
+					long offset = index.getLong(), length = index.getLong();
+					int records = index.getInt(), sectionCrc = index.getInt(), id = i;
+					ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+					results.add(pool.submit(() -> readSection(section, records, sectionCrc, kind, table,
+						String.format("section %d of '%s'", id, path))));
+				}
+				for (Future<Integer> result : results) {
+					try { result.get(); }
+					catch (ExecutionException ex) {
+						if (skipped == null || !(Snapshot.cause(ex) instanceof IOException)) throw ex;
+						skipped.add(Snapshot.cause(ex).getMessage());
+					}
+				}
+			} catch (ExecutionException ex) {
+				Throwable cause = Snapshot.cause(ex);
+				if (cause instanceof IOException) throw (IOException) cause;
+				else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				else throw new IllegalStateException(cause);
+			} finally { for (Future<Integer> result : results) result.cancel(false); }
+		} catch (IOException ioe) {
+			if (skipped == null) throw ioe;
+			skipped.add(ioe.getMessage());
+			return null;
+		} finally { channel.close(); }
+		return table;
+	}
+	
+	/** Same as {@link #readTable(String, Class, ExecutorService)} for the given kind of table. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Table<?, ?> readTable(String filename, Kind kind, ExecutorService pool) throws IOException, InterruptedException {
+		return readTable(filename, (Class) kind.type, pool);
+	}
+	
+	/**
+	 * Verifies and decodes a section, and then adds its elements to the given table.
+	 * @return The number of read elements.
+	 * @throws IOException If the section is not valid.
+	 */
+	private static <T extends Comparable<T>, V extends Indexable<T>> int readSection(ByteBuffer section, int records,
+		int crc, Kind kind, Table<T, V> table, String name) throws IOException {
+		CRC32 check = new CRC32();
+		check.update(section.duplicate());
+		if ((int)check.getValue() != crc) throw new IOException("Corrupted " + name);
+		BufferInput in = new BufferInput(section);
+		List<V> elems = new ArrayList<>();
+		try {
+			for (int i = 0; i < records; i++) {
+				int length = section.getInt();
+				if (length < 0 || length > section.remaining()) throw new IOException("Invalid record in " + name);
+				int limit = section.limit();
+				section.limit(section.position() + length);
+				@SuppressWarnings("unchecked")
+				V elem = (V) kind.decode(in);
+				if (section.hasRemaining()) throw new IOException("Invalid record in " + name);
+				section.limit(limit);
+				elems.add(elem);
+			}
+			if (section.hasRemaining()) throw new IOException("Trailing bytes in " + name);
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IOException("Invalid record in " + name, ex);
+		}
+		for (V elem : elems) table.putIfAbsent(elem);
+		return records;
+	}
+	
+	/**
+	 * Converts a table between JSON and binary format, printing the time taken for reading it.
+	 *  Usage: BinarySnapshot (tobinary | tojson) (users | posts | wallets) &lt;file.json&gt;, where file.json is the
+	 *  name of the JSON file(s) of the table (see {@link Snapshot}) and the binary file is {@link #binaryFile(String)}.
+	 *  The source files are left untouched.
+	 * @param args Arguments as above.
+	 * @throws Exception On failure.
+	 */
+	public static void main(String[] args) throws Exception {
+		Kind kind = null;
+		if (args.length == 3) for (Kind k : Kind.values()) if (k.name().equalsIgnoreCase(args[1])) kind = k;
+		if (kind == null || !(args[0].equals("tobinary") || args[0].equals("tojson"))) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		String filename = args[2];
+		boolean toBinary = args[0].equals("tobinary");
+		ExecutorService pool = ForkJoinPool.commonPool();
+		long start = System.nanoTime();
+		Table<?, ?> table = (toBinary ? Snapshot.readTable(filename, kind.tableType, pool) : readTable(binaryFile(filename), kind, pool));
+		long read = System.nanoTime() - start;
+		if (table == null) {
+			System.err.printf("No table found for '%s'%n", filename);
+			System.exit(1);
+		}
+		long[] stats = (toBinary ?
+			writeTables(Collections.singletonList(table), Collections.singletonList(filename), Collections.singletonList(kind.type), pool) :
+			Snapshot.writeTables(Collections.singletonList(table), Collections.singletonList(filename),
+				Collections.singletonList(kind.tableType), pool));
+		System.out.printf("%d %s converted (read in %d ms), %d bytes written in %d ms%n", table.size(), kind.name().toLowerCase(),
+			read / 1_000_000, stats[1], (System.nanoTime() - start - read) / 1_000_000);
+	}
+}
\ No newline at end of file
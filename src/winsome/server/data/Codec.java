@@ -0,0 +1,73 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * Binary encoding of the keys and of the elements of the tables that can be kept off the heap (see {@link Store}),
+ *  with the same format of {@link BinarySnapshot}.
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the key.
+ * @param <V> Type of the elements.
+ */
+final class Codec<T extends Comparable<T>, V extends Indexable<T>> {
+	
+	private final Class<?> type;
+	
+	private Codec(Class<?> type) { this.type = type; }
+	
+	/**
+	 * @param type Class of the elements.
+	 * @return The codec for the elements of the given class.
+	 * @throws IllegalArgumentException If elements of the given class cannot be encoded.
+	 */
+	@NotNull
+	static <T extends Comparable<T>, V extends Indexable<T>> Codec<T, V> of(Class<V> type) {
+		Common.notNull(type);
+		if (type != User.class && type != Post.class && type != Wallet.class)
+			throw new IllegalArgumentException(Common.excStr("No binary format for %s", type.getSimpleName()));
+		return new Codec<>(type);
+	}
+	
+	/** @return The encoding of the given element. */
+	@NotNull
+	byte[] encode(V elem) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (type == User.class) ((User)elem).encode(out);
+		else if (type == Post.class) ((Post)elem).encode(out);
+		else ((Wallet)elem).encode(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	/** @return The element encoded in the given bytes. */
+	@NotNull
+	@SuppressWarnings("unchecked")
+	V decode(byte[] bytes) throws IOException {
+		DataInput in = new BinarySnapshot.BufferInput(ByteBuffer.wrap(bytes));
+		try {
+			if (type == User.class) return (V) User.decode(in);
+			else if (type == Post.class) return (V) Post.decode(in);
+			else return (V) Wallet.decode(in);
+		} catch (RuntimeException ex) { throw new IOException("Malformed element", ex); }
+	}
+	
+	/** Writes the given key (a username or the id of a post). */
+	void writeKey(DataOutput out, T key) throws IOException {
+		if (type == Post.class) out.writeLong((Long)key);
+		else Serialization.writeString(out, (String)key);
+	}
+	
+	/** Reads a key written by {@link #writeKey(DataOutput, Comparable)}. */
+	@NotNull
+	@SuppressWarnings("unchecked")
+	T readKey(DataInput in) throws IOException {
+		if (type == Post.class) return (T) Long.valueOf(in.readLong());
+		else return (T) Serialization.readString(in);
+	}
+}
\ No newline at end of file
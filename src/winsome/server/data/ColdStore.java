@@ -0,0 +1,199 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * On-disk store for the state of "cold" {@link Post}s, i.e. posts that are not expected to earn rewards nor to be
+ *  accessed anymore and whose votes, comments and rewinners have been moved out of the heap (see
+ *  {@link Post#demote(long, long)}). The store is an append-only file of records [long idPost][int length][data],
+ *  indexed in memory by post id; the last record of a post is the valid one, such that the index can be rebuilt
+ *  by scanning the file when opening it. The file is rewritten without the stale records by {@link #compact()}.
+ *  This class also keeps statistics about the reloads of cold posts.
+ * @author Salvatore Correnti
+ * @see Post
+ */
+public final class ColdStore implements Closeable {
+	
+	private static final int RECHEADER = Long.BYTES + Integer.BYTES;
+	
+	private final Path path;
+	private FileChannel channel;
+	/* Map idPost -> position of its valid record */
+	private final Map<Long, Long> index;
+	private long liveBytes;
+	/* Reload statistics */
+	private long reloads, reloadNanos;
+	
+	/**
+	 * Opens (or creates) the store in the given file.
+	 * @param filename Name of the file.
+	 * @throws IOException On I/O errors.
+	 */
+	public ColdStore(String filename) throws IOException {
+		Common.notNull(filename);
+		this.path = Paths.get(filename).toAbsolutePath();
+		this.index = new HashMap<>();
+		this.liveBytes = 0;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		this.scan();
+	}
+	
+	/** Rebuilds the index from the file, truncating a partially written last record. */
+	private void scan() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECHEADER);
+		long pos = 0, size = channel.size();
+		while (pos + RECHEADER <= size) {
+			header.clear();
+			readFully(header, pos);
+			header.flip();
+			long id = header.getLong();
+			int length = header.getInt();
+			if (length < 0 || pos + RECHEADER + length > size) break;
+			Long old = index.put(id, pos);
+			if (old != null) liveBytes -= this.recordLength(old);
+			liveBytes += RECHEADER + length;
+			pos += RECHEADER + length;
+		}
+		if (pos < size) channel.truncate(pos);
+	}
+	
+	private void readFully(ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) throw new EOFException();
+			pos += n;
+		}
+	}
+	
+	private long recordLength(long pos) throws IOException {
+		ByteBuffer len = ByteBuffer.allocate(Integer.BYTES);
+		readFully(len, pos + Long.BYTES);
+		return RECHEADER + len.getInt(0);
+	}
+	
+	/**
+	 * Stores the state of a post, replacing the previous one (if any).
+	 * @param idPost Id of the post.
+	 * @param data Serialized state of the post.
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized void put(long idPost, byte[] data) throws IOException {
+		Common.notNull(data);
+		long pos = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate(RECHEADER + data.length);
+		buf.putLong(idPost).putInt(data.length).put(data).flip();
+		while (buf.hasRemaining()) pos += channel.write(buf, pos);
+		Long old = index.put(idPost, pos - buf.capacity());
+		if (old != null) liveBytes -= this.recordLength(old);
+		liveBytes += buf.capacity();
+	}
+	
+	/**
+	 * Removes and returns the state of a post.
+	 * @param idPost Id of the post.
+	 * @return The serialized state of the post, or null if it is not in the store.
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized byte[] take(long idPost) throws IOException {
+		Long pos = index.remove(idPost);
+		if (pos == null) return null;
+		int length = (int)(this.recordLength(pos) - RECHEADER);
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		readFully(buf, pos + RECHEADER);
+		liveBytes -= RECHEADER + length;
+		return buf.array();
+	}
+	
+	/** Removes the state of a post (e.g. after it has been deleted). */
+	public synchronized void remove(long idPost) throws IOException {
+		Long pos = index.remove(idPost);
+		if (pos != null) liveBytes -= this.recordLength(pos);
+	}
+	
+	public synchronized boolean contains(long idPost) { return index.containsKey(idPost); }
+	
+	/**
+	 * Removes from the store all the posts whose id is not in the given set (e.g. the ones that have been
+	 *  reloaded before the last shutdown).
+	 * @param ids Ids of the posts to keep.
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized void retainAll(Set<Long> ids) throws IOException {
+		Common.notNull(ids);
+		Iterator<Map.Entry<Long, Long>> iter = index.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Long> entry = iter.next();
+			if (!ids.contains(entry.getKey())) { liveBytes -= this.recordLength(entry.getValue()); iter.remove(); }
+		}
+	}
+	
+	/** Records a reload of a cold post that took the given time. */
+	synchronized void recordReload(long nanos) { reloads++; reloadNanos += nanos; }
+	
+	/** @return The number of posts in the store. */
+	public synchronized int size() { return index.size(); }
+	
+	/** @return The number of bytes of valid records in the store. */
+	public synchronized long liveBytes() { return liveBytes; }
+	
+	/** @return The size of the file of the store. */
+	public synchronized long fileSize() throws IOException { return channel.size(); }
+	
+	/** @return The number of reloads of cold posts since the store has been opened. */
+	public synchronized long reloads() { return reloads; }
+	
+	/** @return The average time in milliseconds of the reloads of cold posts (0.0 if none). */
+	public synchronized double avgReloadMillis() { return (reloads > 0 ? reloadNanos / (reloads * 1e6) : 0.0); }
+	
+	/**
+	 * Rewrites the file of the store without stale records (through a temporary file and an atomic rename).
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized void compact() throws IOException {
+		if (liveBytes == channel.size()) return;
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Map<Long, Long> moved = new HashMap<>();
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING)) {
+			long outPos = 0;
+			for (Map.Entry<Long, Long> entry : index.entrySet()) {
+				long length = this.recordLength(entry.getValue());
+				moved.put(entry.getKey(), outPos);
+				long done = 0;
+				while (done < length) done += channel.transferTo(entry.getValue() + done, length - done, out);
+				outPos += length;
+			}
+			out.force(true);
+		}
+		channel.close();
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		index.putAll(moved);
+	}
+	
+	/** @return The file of the store (e.g. for copying it in a backup). */
+	@NotNull
+	public Path file() { return path; }
+	
+	/** Flushes the store to disk. */
+	public synchronized void flush() throws IOException { channel.force(false); }
+	
+	public synchronized void close() throws IOException {
+		if (liveBytes * 2 < channel.size()) this.compact();
+		channel.force(true);
+		channel.close();
+	}
+	
+	@NotNull
+	public synchronized String toString() {
+		return String.format("%s : {posts = %d, liveBytes = %d, reloads = %d}", this.getClass().getSimpleName(),
+			index.size(), liveBytes, reloads);
+	}
+}
\ No newline at end of file
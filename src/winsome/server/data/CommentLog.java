@@ -0,0 +1,272 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.util.*;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * Append-only log of the comments of a {@link Post}. Comments are stored in time order as chunked arrays of
+ *  times, author ids and contents, where author ids are indexes in a per-post dictionary of the usernames of
+ *  the authors, such that adding a comment never copies the existing ones and each username is stored once.
+ *  The number of comments of each author is also maintained for {@link Post#addComment(String, String)}.
+ *  NOTE: This class is NOT thread-safe: concurrent access must be synchronized externally (see {@link Post}).
+ * @author Salvatore Correnti
+ * @see Post
+ */
+@JsonAdapter(CommentLog.Adapter.class)
+public final class CommentLog {
+	
+	/* Chunks have fixed capacity (CHUNKSIZE), except the first one that grows by doubling up to CHUNKSIZE */
+	private static final int
+		CHUNKBITS = 8,
+		CHUNKSIZE = 1 << CHUNKBITS,
+		CHUNKMASK = CHUNKSIZE - 1,
+		MINCAP = 2;
+	
+	/* Dictionary of authors: authors.get(id) is the username with the given id, counts[id] its number of comments */
+	private final List<String> authors;
+	private final Map<String, Integer> authorIds;
+	private int[] counts;
+	
+	private long[][] times;
+	private int[][] authorOf;
+	private String[][] contents;
+	private int size;
+	
+	public CommentLog() {
+		this.authors = new ArrayList<>();
+		this.authorIds = new HashMap<>();
+		this.counts = new int[MINCAP];
+		this.times = new long[1][MINCAP];
+		this.authorOf = new int[1][MINCAP];
+		this.contents = new String[1][MINCAP];
+		this.size = 0;
+	}
+	
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Common.excStr("Index %d out of [0, %d)", index, size));
+	}
+	
+	/** Ensures that there is room for (size + 1) comments. */
+	private void ensureCapacity() {
+		int chunk = size >>> CHUNKBITS, offset = size & CHUNKMASK;
+		if (chunk == times.length) {
+			times = Arrays.copyOf(times, chunk + 1);
+			authorOf = Arrays.copyOf(authorOf, chunk + 1);
+			contents = Arrays.copyOf(contents, chunk + 1);
+			times[chunk] = new long[CHUNKSIZE];
+			authorOf[chunk] = new int[CHUNKSIZE];
+			contents[chunk] = new String[CHUNKSIZE];
+		} else if (offset == times[chunk].length) {
+			int cap = Math.min(2 * offset, CHUNKSIZE);
+			times[chunk] = Arrays.copyOf(times[chunk], cap);
+			authorOf[chunk] = Arrays.copyOf(authorOf[chunk], cap);
+			contents[chunk] = Arrays.copyOf(contents[chunk], cap);
+		}
+	}
+	
+	/** @return The id of the given author, adding it to the dictionary if absent. */
+	private int authorId(String author) {
+		Integer id = authorIds.get(author);
+		if (id != null) return id;
+		id = authors.size();
+		authors.add(author);
+		authorIds.put(author, id);
+		if (id == counts.length) counts = Arrays.copyOf(counts, 2 * counts.length);
+		return id;
+	}
+	
+	/**
+	 * Appends a new comment.
+	 * @param author Author of the comment.
+	 * @param content Content of the comment.
+	 * @param time Time in milliseconds of the comment. If it is less than the time of the last comment,
+	 *  the latter is used instead, so that times are never decreasing.
+	 * @return The number of comments of the given author after having added this one.
+	 * @throws NullPointerException If author == null or content == null.
+	 */
+	public int append(String author, String content, long time) {
+		Common.notNull(author, content);
+		if (size > 0) time = Math.max(time, time(size - 1));
+		int id = authorId(author);
+		ensureCapacity();
+		int chunk = size >>> CHUNKBITS, offset = size & CHUNKMASK;
+		times[chunk][offset] = time;
+		authorOf[chunk][offset] = id;
+		contents[chunk][offset] = content;
+		size++;
+		return ++counts[id];
+	}
+	
+	/** @return The number of comments in this log. */
+	public int size() { return size; }
+	
+	/**
+	 * @param author Username.
+	 * @return The number of comments of the given author.
+	 */
+	public int count(String author) {
+		Integer id = authorIds.get(author);
+		return (id != null ? counts[id] : 0);
+	}
+	
+	/**
+	 * @param index Index of the comment (comments are indexed in time order).
+	 * @return The time of the comment at the given index.
+	 * @throws IndexOutOfBoundsException If index is out of [0, size).
+	 */
+	public long time(int index) { checkIndex(index); return times[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/** @see #time(int) */
+	@NotNull
+	public String author(int index) { checkIndex(index); return authors.get(authorOf[index >>> CHUNKBITS][index & CHUNKMASK]); }
+	
+	/** @see #time(int) */
+	@NotNull
+	public String content(int index) { checkIndex(index); return contents[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/**
+	 * Pages are numbered starting from 0 and from the most recent comment.
+	 * @param page Number of the page.
+	 * @param pageSize Number of comments per page.
+	 * @return An array {first, last} such that the comments in [first, last) are exactly the ones
+	 *  in the given page.
+	 * @throws IllegalArgumentException If page &lt; 0 or pageSize &le; 0.
+	 */
+	@NotNull
+	public int[] page(int page, int pageSize) {
+		Common.allAndArgs(page >= 0, pageSize > 0);
+		long last = (long)size - (long)page * pageSize;
+		if (last <= 0) return new int[] {0, 0};
+		return new int[] {(int)Math.max(0, last - pageSize), (int)last};
+	}
+	
+	public String toString() { return Common.jsonString(this); }
+	
+	/**
+	 * Writes this log in binary format as [int #authors][authors][int size] followed by [long time][int author id]
+	 *  [content] for each comment (see {@link Serialization#writeString(DataOutput, String)} for strings).
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	void encode(DataOutput out) throws IOException {
+		out.writeInt(authors.size());
+		for (String author : authors) Serialization.writeString(out, author);
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeLong(time(i));
+			out.writeInt(authorOf[i >>> CHUNKBITS][i & CHUNKMASK]);
+			Serialization.writeString(out, content(i));
+		}
+	}
+	
+	/**
+	 * Reads a log written by {@link #encode(DataOutput)}.
+	 * @param in Input.
+	 * @return The log.
+	 * @throws IOException On I/O errors or if the log is malformed.
+	 */
+	@NotNull
+	static CommentLog decode(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) throw new IOException("Malformed comment log");
+		String[] authors = new String[n];
+		for (int i = 0; i < n; i++) authors[i] = Serialization.readString(in);
+		int size = in.readInt();
+		if (size < 0) throw new IOException("Malformed comment log");
+		CommentLog log = new CommentLog();
+		for (int i = 0; i < size; i++) {
+			long time = in.readLong();
+			int id = in.readInt();
+			if (id < 0 || id >= n) throw new IOException("Invalid author id in comment log");
+			log.append(authors[id], Serialization.readString(in), time);
+		}
+		return log;
+	}
+	
+	/**
+	 * Gson adapter that writes a log as {"authors" : [...], "times" : [...], "ids" : [...], "contents" : [...]}
+	 *  (where ids are indexes in authors). When reading, it also accepts the previous format of post comments,
+	 *  i.e. a map from each author to an array of {"idAuthor", "content", "idPost", "time"} objects.
+	 */
+	static final class Adapter extends TypeAdapter<CommentLog> {
+	
+		private static final String AUTHORS = "authors", TIMES = "times", IDS = "ids", CONTENTS = "contents",
+			LEGACYTIME = "time", LEGACYCONTENT = "content";
+	
+		public void write(JsonWriter out, CommentLog log) throws IOException {
+			if (log == null) { out.nullValue(); return; }
+			out.beginObject();
+			out.name(AUTHORS).beginArray();
+			for (String author : log.authors) out.value(author);
+			out.endArray();
+			out.name(TIMES).beginArray();
+			for (int i = 0; i < log.size; i++) out.value(log.time(i));
+			out.endArray();
+			out.name(IDS).beginArray();
+			for (int i = 0; i < log.size; i++) out.value(log.authorOf[i >>> CHUNKBITS][i & CHUNKMASK]);
+			out.endArray();
+			out.name(CONTENTS).beginArray();
+			for (int i = 0; i < log.size; i++) out.value(log.content(i));
+			out.endArray();
+			out.endObject();
+		}
+	
+		public CommentLog read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			List<String> authors = new ArrayList<>(), contents = new ArrayList<>();
+			List<Long> times = new ArrayList<>();
+			List<Integer> ids = new ArrayList<>();
+			/* Comments in the previous format as {time, author, content} */
+			List<String[]> legacy = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				in.beginArray();
+				if (in.hasNext() && in.peek() == JsonToken.BEGIN_OBJECT) {
+					while (in.hasNext()) legacy.add(readLegacy(in, name));
+				} else while (in.hasNext()) {
+					switch (name) {
+						case AUTHORS : { authors.add(in.nextString()); break; }
+						case TIMES : { times.add(in.nextLong()); break; }
+						case IDS : { ids.add(in.nextInt()); break; }
+						case CONTENTS : { contents.add(in.nextString()); break; }
+						default : { in.skipValue(); break; }
+					}
+				}
+				in.endArray();
+			}
+			in.endObject();
+			if (times.size() != ids.size() || times.size() != contents.size())
+				throw new IOException("Comment log columns have different lengths");
+			CommentLog log = new CommentLog();
+			for (int i = 0; i < times.size(); i++) {
+				int id = ids.get(i);
+				if (id < 0 || id >= authors.size()) throw new IOException("Invalid author id in comment log");
+				log.append(authors.get(id), contents.get(i), times.get(i));
+			}
+			legacy.sort((c1, c2) -> Long.compare(Long.parseLong(c1[0]), Long.parseLong(c2[0])));
+			for (String[] c : legacy) log.append(c[1], c[2], Long.parseLong(c[0]));
+			return log;
+		}
+	
+		private static String[] readLegacy(JsonReader in, String author) throws IOException {
+			String[] comment = new String[] {"0", author, ""};
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (LEGACYTIME.equals(name)) comment[0] = Long.toString(in.nextLong());
+				else if (LEGACYCONTENT.equals(name)) comment[2] = in.nextString();
+				else in.skipValue();
+			}
+			in.endObject();
+			return comment;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,328 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Off-heap store for titles and contents of {@link Post}s. Data are appended to memory-mapped segment files of
+ *  fixed size ("content-&lt;n&gt;.seg" in a directory), such that a post only keeps the offset and the length of
+ *  its record and strings are decoded only when needed. When the current segment is full, a new one is created
+ *  ("rollover"). When the records of deleted posts make up more than a half of a (not current) segment, its
+ *  live records are copied to the current segment and the segment file is deleted ("compaction").
+ *  Segment layout: [int MAGIC][int used bytes] followed by records [long idPost][int title bytes][int content bytes]
+ *  [title][content], where strings are UTF-8 encoded. Offsets are of the form (segment id &lt;&lt; 32 | position).
+ *  Reads are lock-free, while appends and compactions are mutually exclusive. Relocation of a record during
+ *  compaction is done by {@link Post#relocate(long, long)} under the lock of the post, such that a reader that
+ *  holds that lock always sees a valid record. Since compaction finds the posts of the records in the table, a
+ *  segment is never compacted while it contains records of posts that have not been inserted into the table yet
+ *  (see {@link #commit(long)}). Files of compacted segments are not deleted immediately but
+ *  "retired" with the current epoch (see {@link #retireEpoch()}), such that a snapshot of the posts that still
+ *  refers to them remains valid until a newer snapshot is completed (see {@link #purge(long)}).
+ * @author Salvatore Correnti
+ * @see Post
+ */
+public final class ContentStore implements Closeable {
+	
+	private static final int MAGIC = 0x57434F4E, HEADER = 2 * Integer.BYTES, RECHEADER = Long.BYTES + 2 * Integer.BYTES;
+	
+	/** Minimum size of a segment (a record must always fit into a new segment). */
+	public static final int MINSEGMENTSIZE = 1 << 16;
+	
+	private static final String PREFIX = "content-", SUFFIX = ".seg";
+	
+	/**
+	 * A mapped segment file with the number of bytes of live records in it and the number of its records whose
+	 *  posts have not been inserted into the table yet.
+	 */
+	private static final class Segment {
+		
+		private final int id;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int used, live, pending;
+		
+		private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer, int used) {
+			this.id = id; this.path = path; this.channel = channel; this.buffer = buffer; this.used = used; this.live = 0;
+			this.pending = 0;
+		}
+	}
+	
+	private final Path dir;
+	private final int segmentSize;
+	private final ConcurrentMap<Integer, Segment> segments;
+	private Segment current;
+	/* Table used for relocating records during compaction (null disables compaction) */
+	private Table<Long, Post> posts;
+	/* Files of compacted segments that have not been deleted yet, with the epoch in which they were retired */
+	private final List<Map.Entry<Long, Path>> retired;
+	private long epoch;
+	
+	/**
+	 * Opens (or creates) the store in the given directory.
+	 * @param dir Directory of the segment files.
+	 * @param segmentSize Size of the new segments (existing ones keep their size).
+	 * @throws IOException On I/O errors or if an existing file is not a valid segment.
+	 * @throws IllegalArgumentException If segmentSize &lt; {@link #MINSEGMENTSIZE}.
+	 */
+	public ContentStore(String dir, int segmentSize) throws IOException {
+		Common.notNull(dir);
+		Common.allAndArgs(segmentSize >= MINSEGMENTSIZE);
+		this.dir = Paths.get(dir);
+		this.segmentSize = segmentSize;
+		this.segments = new ConcurrentHashMap<>();
+		this.posts = null;
+		this.retired = new ArrayList<>();
+		this.epoch = 0;
+		Files.createDirectories(this.dir);
+		int last = -1;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir, PREFIX + "*" + SUFFIX)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				int id;
+				try { id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())); }
+				catch (NumberFormatException ex) { continue; }
+				Segment seg = this.map(id, path, false);
+				segments.put(id, seg);
+				last = Math.max(last, id);
+			}
+		}
+		this.current = (last >= 0 ? segments.get(last) : this.newSegment(0));
+	}
+	
+	private Segment map(int id, Path path, boolean create) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		long size = (create ? segmentSize : channel.size());
+		if (size < HEADER || size > Integer.MAX_VALUE) { channel.close(); throw new IOException("Invalid segment size: " + path); }
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		int used;
+		if (create) { buffer.putInt(0, MAGIC); buffer.putInt(Integer.BYTES, HEADER); used = HEADER; }
+		else {
+			used = buffer.getInt(Integer.BYTES);
+			if (buffer.getInt(0) != MAGIC || used < HEADER || used > size) {
+				channel.close();
+				throw new IOException("Corrupted segment: " + path);
+			}
+		}
+		return new Segment(id, path, channel, buffer, used);
+	}
+	
+	private Segment newSegment(int id) throws IOException {
+		Segment seg = this.map(id, dir.resolve(PREFIX + id + SUFFIX), true);
+		segments.put(id, seg);
+		return seg;
+	}
+	
+	private static int segmentOf(long offset) { return (int)(offset >>> 32); }
+	
+	private static int positionOf(long offset) { return (int)offset; }
+	
+	/** Sets the table of posts used for relocating records when compacting segments. */
+	public synchronized void attach(Table<Long, Post> posts) { this.posts = posts; }
+	
+	/**
+	 * Appends a new record of a post that has not been inserted into the table yet: its segment is not compacted
+	 *  until the record is committed by {@link #commit(long)}.
+	 * @param idPost Id of the post.
+	 * @param title Title of the post.
+	 * @param content Content of the post.
+	 * @return An array {offset, length} of the new record.
+	 * @throws IOException On I/O errors when creating a new segment.
+	 */
+	@NotNull
+	public synchronized long[] append(long idPost, String title, String content) throws IOException {
+		Common.notNull(title, content);
+		byte[] tbytes = title.getBytes(StandardCharsets.UTF_8), cbytes = content.getBytes(StandardCharsets.UTF_8);
+		long[] record = this.append(idPost, tbytes, cbytes);
+		current.pending++;
+		return record;
+	}
+	
+	/**
+	 * Commits a record appended by {@link #append(long, String, String)} after its post has been inserted into the
+	 *  table (or after it has failed to), such that its segment can be compacted again. NOTE: The caller must NOT hold
+	 *  any post lock.
+	 * @param offset Offset of the record.
+	 * @throws IOException On I/O errors when compacting.
+	 */
+	public synchronized void commit(long offset) throws IOException {
+		Segment seg = segments.get(segmentOf(offset));
+		if (seg == null || seg.pending == 0) return;
+		seg.pending--;
+		if (seg != current && 2 * seg.live <= seg.used - HEADER) this.compact(seg);
+	}
+	
+	private long[] append(long idPost, byte[] tbytes, byte[] cbytes) throws IOException {
+		int length = RECHEADER + tbytes.length + cbytes.length;
+		if (length > segmentSize - HEADER) throw new IOException("Record too large");
+		if (current.buffer.capacity() - current.used < length) current = this.newSegment(current.id + 1);
+		ByteBuffer buf = current.buffer.duplicate();
+		buf.position(current.used);
+		buf.putLong(idPost).putInt(tbytes.length).putInt(cbytes.length).put(tbytes).put(cbytes);
+		long offset = ((long)current.id << 32) | current.used;
+		current.used += length;
+		current.live += length;
+		current.buffer.putInt(Integer.BYTES, current.used);
+		return new long[] {offset, length};
+	}
+	
+	/**
+	 * Marks the record at the given offset as live (used when loading posts).
+	 * @throws IOException If there is not such a record.
+	 */
+	public synchronized void retain(long offset, int length) throws IOException {
+		Segment seg = segments.get(segmentOf(offset));
+		if (seg == null || positionOf(offset) + length > seg.used) throw new IOException("Invalid content record");
+		seg.live += length;
+	}
+	
+	/**
+	 * Marks the record at the given offset as deleted, and compacts its segment if at least a half of it
+	 *  is made up of deleted records. NOTE: The caller must NOT hold any post lock.
+	 * @throws IOException On I/O errors when compacting.
+	 */
+	public synchronized void release(long offset, int length) throws IOException {
+		Segment seg = segments.get(segmentOf(offset));
+		if (seg == null) return;
+		seg.live -= length;
+		if (seg != current && seg.pending == 0 && 2 * seg.live <= seg.used - HEADER) this.compact(seg);
+	}
+	
+	/**
+	 * Compacts all the (not current) segments with at least a half of deleted records. NOTE: The caller must
+	 *  NOT hold any post lock.
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized void compact() throws IOException {
+		for (Segment seg : new ArrayList<>(segments.values()))
+			if (seg != current && seg.pending == 0 && 2 * seg.live <= seg.used - HEADER) this.compact(seg);
+	}
+	
+	private void compact(Segment seg) throws IOException {
+		if (seg.live > 0) {
+			if (posts == null) return;
+			ByteBuffer buf = seg.buffer.duplicate();
+			int pos = HEADER;
+			while (pos < seg.used) {
+				buf.position(pos);
+				long idPost = buf.getLong();
+				int tlen = buf.getInt(), clen = buf.getInt();
+				int length = RECHEADER + tlen + clen;
+				Post post = posts.get(idPost);
+				long oldOffset = ((long)seg.id << 32) | pos;
+				if (post != null && post.contentOffset() == oldOffset) {
+					byte[] tbytes = new byte[tlen], cbytes = new byte[clen];
+					buf.get(tbytes).get(cbytes);
+					long[] moved = this.append(idPost, tbytes, cbytes);
+					/* If the post has been deleted (or moved) meanwhile, the new copy is already garbage */
+					if (!post.relocate(oldOffset, moved[0])) current.live -= length;
+					else posts.touch(idPost);
+				}
+				pos += length;
+			}
+		}
+		segments.remove(seg.id);
+		seg.channel.close();
+		retired.add(new AbstractMap.SimpleEntry<>(epoch, seg.path));
+	}
+	
+	/**
+	 * Starts a new epoch for retiring compacted segments (e.g. when capturing a snapshot).
+	 * @return The epoch that has been closed, to be passed to {@link #purge(long)} when the snapshot is completed.
+	 */
+	public synchronized long retireEpoch() { return epoch++; }
+	
+	/**
+	 * Deletes the files of the segments retired in the given epoch or before.
+	 * @param epoch Epoch returned by {@link #retireEpoch()}.
+	 * @return The number of deleted files.
+	 * @throws IOException On I/O errors.
+	 */
+	public synchronized int purge(long epoch) throws IOException {
+		int count = 0;
+		Iterator<Map.Entry<Long, Path>> iter = retired.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Path> entry = iter.next();
+			if (entry.getKey() > epoch) continue;
+			Files.deleteIfExists(entry.getValue());
+			iter.remove();
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * @param offset Offset of a record.
+	 * @return A pair {title, content} decoded from the record.
+	 * @throws IllegalStateException If the record does not exist.
+	 */
+	@NotNull
+	public String[] read(long offset) {
+		Segment seg = segments.get(segmentOf(offset));
+		if (seg == null) throw new IllegalStateException("Content record not found");
+		ByteBuffer buf = seg.buffer.duplicate();
+		buf.position(positionOf(offset) + Long.BYTES);
+		byte[] tbytes = new byte[buf.getInt()], cbytes = new byte[buf.getInt()];
+		buf.get(tbytes).get(cbytes);
+		return new String[] {new String(tbytes, StandardCharsets.UTF_8), new String(cbytes, StandardCharsets.UTF_8)};
+	}
+	
+	/** Same as {@link #read(long)} but decodes only the title. */
+	@NotNull
+	public String readTitle(long offset) {
+		Segment seg = segments.get(segmentOf(offset));
+		if (seg == null) throw new IllegalStateException("Content record not found");
+		ByteBuffer buf = seg.buffer.duplicate();
+		buf.position(positionOf(offset) + Long.BYTES);
+		byte[] tbytes = new byte[buf.getInt()];
+		buf.position(buf.position() + Integer.BYTES);
+		buf.get(tbytes);
+		return new String(tbytes, StandardCharsets.UTF_8);
+	}
+	
+	/** @return The number of segments of the store. */
+	public int segments() { return segments.size(); }
+	
+	/**
+	 * @return A map from the file of each segment to a pair of read-only buffers {header, records} with the content of
+	 *  the segment as it is now, i.e. with the records appended until now and a header that counts only them, such that
+	 *  the segment can be copied (e.g. in a backup) while other records are appended to it. Since records are never
+	 *  modified once appended, the buffers stay valid afterwards.
+	 */
+	@NotNull
+	public synchronized Map<Path, ByteBuffer[]> contents() {
+		Map<Path, ByteBuffer[]> contents = new TreeMap<>();
+		for (Segment seg : segments.values()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(seg.used);
+			header.flip();
+			ByteBuffer records = seg.buffer.asReadOnlyBuffer();
+			records.limit(seg.used).position(HEADER);
+			contents.put(seg.path, new ByteBuffer[] {header.asReadOnlyBuffer(), records});
+		}
+		return contents;
+	}
+	
+	/** @return The files of the retired segments that have not been purged yet (e.g. for copying them in a backup). */
+	@NotNull
+	public synchronized List<Path> retiredFiles() {
+		List<Path> files = new ArrayList<>();
+		for (Map.Entry<Long, Path> entry : retired) files.add(entry.getValue());
+		return files;
+	}
+	
+	/** Flushes all segments to disk. */
+	public synchronized void flush() { for (Segment seg : segments.values()) seg.buffer.force(); }
+	
+	public synchronized void close() throws IOException {
+		this.flush();
+		for (Segment seg : segments.values()) seg.channel.close();
+	}
+}
\ No newline at end of file
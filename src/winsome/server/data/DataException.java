@@ -19,7 +19,9 @@ public final class DataException extends Exception {
 		NOT_AUTHOR = "Current User is not the author of the post",
 		SAME_AUTHOR = "Current User is the author of the post",
 		POST_NEXISTS = "No existing post with given id",
-		POST_NULLGEN = "Id generator of the posts is NULL";
+		POST_NULLGEN = "Id generator of the posts is NULL",
+		POST_STORE = "Unable to store post content",
+		POST_COLD = "Unable to reload post from cold store";
 	
 	public static final String
 		UNRETRIEVE_HISTORY = "Unable to retrieve wallet history",
@@ -0,0 +1,44 @@
+package winsome.server.data;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * {@link Store} that keeps the elements in a concurrent skip list on the heap, such that lookups never block and
+ *  iterators are weakly consistent snapshots.
+ * @author Salvatore Correnti
+ */
+final class HeapStore<T extends Comparable<T>, V extends Indexable<T>> implements Store<T, V> {
+	
+	private final ConcurrentNavigableMap<T, V> map;
+	
+	HeapStore() { this.map = new ConcurrentSkipListMap<>(); }
+	
+	public V get(T key) { return map.get(key); }
+	
+	public boolean putIfAbsent(V elem) { return (map.putIfAbsent(elem.key(), elem) == null); }
+	
+	public V remove(T key) { return map.remove(key); }
+	
+	public boolean contains(T key) { return map.containsKey(key); }
+	
+	@NotNull
+	public Iterator<V> scan(T from, T to) {
+		ConcurrentNavigableMap<T, V> range = map;
+		if (from != null) range = range.tailMap(from, true);
+		if (to != null) range = range.headMap(to, false);
+		return range.values().iterator();
+	}
+	
+	@NotNull
+	public NavigableSet<T> keySet() { return map.navigableKeySet(); }
+	
+	public void touch(T key) { Common.notNull(key); }
+	
+	public void setLoader(Loader<V> loader) {}
+	
+	public void close() {}
+}
\ No newline at end of file
@@ -1,13 +1,17 @@
 package winsome.server.data;
 
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import winsome.annotations.NotNull;
 import winsome.util.*;
 
 /**
- * A class for "indexing" items in a table.
+ * A class for "indexing" items in a table. Keys are kept in a concurrent sorted set, such that values can be
+ *  iterated directly (resolving each key on the table) without copying neither the keys nor the values.
+ *  Keys whose item has been removed from the table are pruned lazily when they are found. After deserialization,
+ *  the keys are validated against the table only at the first operation that needs all of them (e.g. {@link #size()}),
+ *  such that loading a large number of indexes does not take time proportional to their size.
  * @author Salvatore Correnti
  *
  * @param <T> Type of key.
@@ -16,21 +20,39 @@ import winsome.util.*;
 public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 		
 	@NotNull
-	private final NavigableSet<T> keys;
+	private final ConcurrentSkipListSet<T> keys;
 	private transient Table<T, V> table;
-	private transient ReentrantReadWriteLock lock;
+	/* true if the keys have been validated against the table after deserialization */
+	private transient volatile boolean validated;
 	
 	public Index(Table<T,V> table) {
 		Common.notNull(table);
-		this.keys = new TreeSet<>();
+		this.keys = new ConcurrentSkipListSet<>();
 		this.table = table;
-		this.lock = new ReentrantReadWriteLock();
+		this.validated = true;
 	}
 	
-	public synchronized boolean isDeserialized() { return (table != null && lock != null); }
+	/**
+	 * Creates an index with the given set of keys (e.g. when decoding a snapshot), whose transient fields must be
+	 *  restored by {@link #deserialize(Table)}.
+	 * @param keys The keys (the set is NOT copied).
+	 */
+	Index(ConcurrentSkipListSet<T> keys) {
+		Common.notNull(keys);
+		this.keys = keys;
+		this.table = null;
+		this.validated = false;
+	}
+	
+	/** @return The (live) set of keys of this index, including the ones not yet pruned. */
+	@NotNull
+	NavigableSet<T> keys() { return this.keys; }
+	
+	public synchronized boolean isDeserialized() { return (table != null); }
 	
 	/**
-	 * Restores transient fields after deserialization from JSON.
+	 * Restores transient fields after deserialization from JSON. Keys without an item in the table are removed
+	 *  lazily (see {@link #validate()}).
 	 * @param table Table from which to update maintained keys.
 	 * @throws DeserializationException If table is not already deserialized.
 	 */	
@@ -38,8 +60,17 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 		Common.notNull(table);
 		if (!table.isDeserialized()) throw new DeserializationException();
 		if (this.table == null) this.table = table;
-		this.keys.retainAll(table.keySet());
-		if (lock == null) lock = new ReentrantReadWriteLock();
+		this.validated = false;
+	}
+	
+	/** Removes all the keys that do not have a corresponding item in the table, if not already done after deserialization. */
+	private void validate() {
+		if (validated) return;
+		synchronized (this) {
+			if (validated) return;
+			this.keys.removeIf((key) -> !table.contains(key));
+			this.validated = true;
+		}
 	}
 	
 	/**
@@ -48,10 +79,10 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public V get(T key) {
 		Common.notNull(key);
-		try {
-			lock.readLock().lock();
-			return (keys.contains(key) ? this.table.get(key) : null);
-		} finally { lock.readLock().unlock(); }
+		if (!keys.contains(key)) return null;
+		V value = this.table.get(key);
+		if (value == null) keys.remove(key);
+		return value;
 	}
 	
 	/**
@@ -61,10 +92,7 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public boolean add(T key) {
 		Common.notNull(key);
-		try {
-			lock.writeLock().lock();
-			return this.keys.add(key);
-		} finally { lock.writeLock().unlock(); }
+		return this.keys.add(key);
 	}
 	
 	/**
@@ -73,7 +101,8 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public boolean contains(T key) {
 		Common.notNull(key);
-		try {lock.readLock().lock(); return this.keys.contains(key);} finally {lock.readLock().unlock();}
+		this.validate();
+		return this.keys.contains(key);
 	}
 	
 	/**
@@ -83,10 +112,37 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public boolean remove(T key) {
 		Common.notNull(key);
-		try {
-			lock.writeLock().lock();
-			return this.keys.remove(key);
-		} finally {lock.writeLock().unlock();}
+		return this.keys.remove(key);
+	}
+	
+	/** @return The number of keys of this index (including the ones not yet pruned). */
+	public int size() { this.validate(); return this.keys.size(); }
+	
+	/**
+	 * @return A weakly consistent iterator over the items in the associated table whose key is contained in
+	 *  {@link #keys}, in ascending order of key. Keys that do not have a corresponding item are removed
+	 *  from this index when found.
+	 */
+	@NotNull
+	public Iterator<V> values() { return new ValueIterator<>(this.keys.iterator(), this.table); }
+	
+	/** Same as {@link #values()}, but in descending order of key. */
+	@NotNull
+	public Iterator<V> descendingValues() { return new ValueIterator<>(this.keys.descendingIterator(), this.table); }
+	
+	/**
+	 * Appends to the given collection all the items in the associated table whose key is contained in
+	 *  {@link #keys}, in ascending order of key, pruning the other keys as in {@link #values()}.
+	 * @param out Collection (e.g. a buffer reused by the caller) to which items are added.
+	 * @return The number of items added to out.
+	 * @throws NullPointerException If out == null.
+	 */
+	public int getAll(Collection<? super V> out) {
+		Common.notNull(out);
+		int count = 0;
+		Iterator<V> iter = this.values();
+		while (iter.hasNext()) { out.add(iter.next()); count++; }
+		return count;
 	}
 	
 	/**
@@ -96,33 +152,45 @@ public final class Index<T extends Comparable<T>, V extends Indexable<T>> {
 	@NotNull
 	public NavigableSet<V> getAll(){
 		NavigableSet<V> result = new TreeSet<>();
-		try {
-			lock.readLock().lock();
-			result.addAll(this.table.get(keys));
-			return result;
-		} finally { lock.readLock().unlock(); }
+		this.getAll(result);
+		return result;
 	}
 	
 	
-	/** @return An unmodifiable set containing all the keys of this index. */
+	/** @return An unmodifiable (weakly consistent) view of all the keys of this index. */
 	@NotNull
-	public NavigableSet<T> unmodifiableKeySet(){
-		try {lock.readLock().lock(); return Collections.unmodifiableNavigableSet(this.keys);}
-		finally {lock.readLock().unlock();}
-	}
+	public NavigableSet<T> unmodifiableKeySet(){ this.validate(); return Collections.unmodifiableNavigableSet(this.keys); }
 	
 	/** @return A modifiable set containing all the keys of this index. */
 	@NotNull
-	public NavigableSet<T> keySet(){
-		NavigableSet<T> result = new TreeSet<>();
-		try {
-			lock.readLock().lock();
-			result.addAll(this.keys);
-			return result;
-		} finally {lock.readLock().unlock();}
-	}
+	public NavigableSet<T> keySet(){ this.validate(); return new TreeSet<>(this.keys); }
 	
 	public boolean equals(Object obj) { return (this == obj); }
 	
 	public String toString() { return Common.jsonString(this); }
+	
+	/** Iterator that resolves keys on a table, skipping (and removing) the ones without an item. */
+	private static final class ValueIterator<T extends Comparable<T>, V extends Indexable<T>> implements Iterator<V> {
+		
+		private final Iterator<T> keys;
+		private final Table<T, V> table;
+		private V next;
+		
+		private ValueIterator(Iterator<T> keys, Table<T, V> table) { this.keys = keys; this.table = table; this.next = null; }
+		
+		public boolean hasNext() {
+			while (next == null && keys.hasNext()) {
+				next = table.get(keys.next());
+				if (next == null) keys.remove();
+			}
+			return (next != null);
+		}
+		
+		public V next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+			V result = next;
+			next = null;
+			return result;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.util.*;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Append-only ledger of the transactions of a {@link Wallet}. Transactions are stored in a "columnar" way
+ *  as chunked arrays of times, amounts and running balances, such that appending never copies the already
+ *  existing data and the i-th transaction has sequence number (i+1). Times are kept in non-decreasing order,
+ *  so that time-range queries can be answered by binary search. Each transaction can also record the id of
+ *  the reward round that generated it (0 if none), see {@link Settlement}.
+ *  NOTE: This class is NOT thread-safe: concurrent access must be synchronized externally (see {@link Wallet}).
+ * @author Salvatore Correnti
+ * @see Wallet
+ */
+@JsonAdapter(Ledger.Adapter.class)
+public final class Ledger {
+	
+	/* Chunks have fixed capacity (CHUNKSIZE), except the first one that grows by doubling up to CHUNKSIZE */
+	private static final int
+		CHUNKBITS = 10,
+		CHUNKSIZE = 1 << CHUNKBITS,
+		CHUNKMASK = CHUNKSIZE - 1,
+		MINCAP = 4;
+	
+	private long[][] times, rounds;
+	private double[][] amounts, balances;
+	private int size;
+	
+	public Ledger() {
+		this.times = new long[1][MINCAP];
+		this.rounds = new long[1][MINCAP];
+		this.amounts = new double[1][MINCAP];
+		this.balances = new double[1][MINCAP];
+		this.size = 0;
+	}
+	
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Common.excStr("Index %d out of [0, %d)", index, size));
+	}
+	
+	/** Ensures that there is room for (size + 1) transactions. */
+	private void ensureCapacity() {
+		int chunk = size >>> CHUNKBITS, offset = size & CHUNKMASK;
+		if (chunk == times.length) {
+			times = Arrays.copyOf(times, chunk + 1);
+			rounds = Arrays.copyOf(rounds, chunk + 1);
+			amounts = Arrays.copyOf(amounts, chunk + 1);
+			balances = Arrays.copyOf(balances, chunk + 1);
+			times[chunk] = new long[CHUNKSIZE];
+			rounds[chunk] = new long[CHUNKSIZE];
+			amounts[chunk] = new double[CHUNKSIZE];
+			balances[chunk] = new double[CHUNKSIZE];
+		} else if (offset == times[chunk].length) {
+			int cap = Math.min(2 * offset, CHUNKSIZE);
+			times[chunk] = Arrays.copyOf(times[chunk], cap);
+			rounds[chunk] = Arrays.copyOf(rounds[chunk], cap);
+			amounts[chunk] = Arrays.copyOf(amounts[chunk], cap);
+			balances[chunk] = Arrays.copyOf(balances[chunk], cap);
+		}
+	}
+	
+	/**
+	 * Appends a new transaction.
+	 * @param time Time in milliseconds of the transaction. If it is less than the time of the last transaction,
+	 *  the latter is used instead, so that times are never decreasing.
+	 * @param amount Amount of the transaction.
+	 * @param round Id of the reward round of the transaction (0 if none).
+	 * @return The sequence number of the new transaction.
+	 */
+	public int append(long time, double amount, long round) {
+		Common.allAndArgs(round >= 0);
+		if (size > 0) time = Math.max(time, time(size - 1));
+		ensureCapacity();
+		int chunk = size >>> CHUNKBITS, offset = size & CHUNKMASK;
+		times[chunk][offset] = time;
+		rounds[chunk][offset] = round;
+		amounts[chunk][offset] = amount;
+		balances[chunk][offset] = (size > 0 ? balance(size - 1) : 0.0) + amount;
+		return ++size;
+	}
+	
+	/** Same as {@link #append(long, double, long)} with no reward round. */
+	public int append(long time, double amount) { return append(time, amount, 0); }
+	
+	/**
+	 * Removes the last transactions such that only the first newSize ones are kept.
+	 * @param newSize New size of the ledger.
+	 * @throws IllegalArgumentException If newSize is out of [0, size].
+	 */
+	public void truncate(int newSize) {
+		Common.allAndArgs(newSize >= 0, newSize <= size);
+		size = newSize;
+	}
+	
+	/** @return The number of transactions in this ledger. */
+	public int size() { return size; }
+	
+	/**
+	 * @param index Index of the transaction (i.e. its sequence number - 1).
+	 * @return The time of the transaction at the given index.
+	 * @throws IndexOutOfBoundsException If index is out of [0, size).
+	 */
+	public long time(int index) { checkIndex(index); return times[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/** @see #time(int) */
+	public long round(int index) { checkIndex(index); return rounds[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/** @return The greatest reward round id among the transactions in this ledger (0 if none). */
+	public long lastRound() {
+		for (int i = size - 1; i >= 0; i--) { long r = round(i); if (r > 0) return r; }
+		return 0;
+	}
+	
+	/**
+	 * @param round Id of a reward round.
+	 * @return The number of leading transactions that do not belong to any reward round greater than the given one.
+	 *  Since rounds are appended in increasing order, the other transactions are always at the end of the ledger.
+	 */
+	public int sizeUpTo(long round) {
+		int n = size;
+		while (n > 0 && round(n - 1) > round) n--;
+		return n;
+	}
+	
+	/** @see #time(int) */
+	public double amount(int index) { checkIndex(index); return amounts[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/**
+	 * @param index Index of the transaction.
+	 * @return The sum of the amounts of all the transactions up to index (included).
+	 */
+	public double balance(int index) { checkIndex(index); return balances[index >>> CHUNKBITS][index & CHUNKMASK]; }
+	
+	/** @return The sum of the amounts of all the transactions in this ledger. */
+	public double balance() { return (size > 0 ? balance(size - 1) : 0.0); }
+	
+	/**
+	 * @param time Time in milliseconds.
+	 * @return The index of the first transaction whose time is greater than or equal to the given one, or
+	 *  {@link #size()} if there is none.
+	 */
+	public int lowerBound(long time) {
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (time(mid) < time) low = mid + 1; else high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * @param from Lower bound (inclusive) of the time range.
+	 * @param to Upper bound (exclusive) of the time range.
+	 * @return An array {first, last} such that the transactions in [first, last) are exactly the ones
+	 *  whose time is in [from, to).
+	 */
+	@NotNull
+	public int[] range(long from, long to) {
+		int first = lowerBound(from);
+		return new int[] {first, Math.max(first, lowerBound(to))};
+	}
+	
+	/**
+	 * Pages are numbered starting from 0 and from the most recent transaction.
+	 * @param page Number of the page.
+	 * @param pageSize Number of transactions per page.
+	 * @param limit Only the first limit transactions are considered.
+	 * @return An array {first, last} such that the transactions in [first, last) are exactly the ones
+	 *  in the given page.
+	 * @throws IllegalArgumentException If page &lt; 0 or pageSize &le; 0 or limit is out of [0, size].
+	 */
+	@NotNull
+	public int[] page(int page, int pageSize, int limit) {
+		Common.allAndArgs(page >= 0, pageSize > 0, limit >= 0, limit <= size);
+		long last = (long)limit - (long)page * pageSize;
+		if (last <= 0) return new int[] {0, 0};
+		return new int[] {(int)Math.max(0, last - pageSize), (int)last};
+	}
+	
+	/** Same as {@link #page(int, int, int)} with limit equal to {@link #size()}. */
+	@NotNull
+	public int[] page(int page, int pageSize) { return page(page, pageSize, size); }
+	
+	public String toString() { return Common.jsonString(this); }
+	
+	/**
+	 * Writes this ledger in binary format as [int size] followed by [long time][double amount][long round]
+	 *  for each transaction.
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	void encode(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeLong(time(i));
+			out.writeDouble(amount(i));
+			out.writeLong(round(i));
+		}
+	}
+	
+	/**
+	 * Reads a ledger written by {@link #encode(DataOutput)}, rebuilding running balances.
+	 * @param in Input.
+	 * @return The ledger.
+	 * @throws IOException On I/O errors or if the ledger is malformed.
+	 */
+	@NotNull
+	static Ledger decode(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) throw new IOException("Malformed ledger");
+		Ledger ledger = new Ledger();
+		for (int i = 0; i < size; i++) {
+			long time = in.readLong();
+			double amount = in.readDouble();
+			ledger.append(time, amount, in.readLong());
+		}
+		return ledger;
+	}
+	
+	/**
+	 * Gson adapter that writes a ledger as {"times" : [...], "amounts" : [...], "rounds" : [...]} without any
+	 *  unused capacity, and rebuilds running balances when reading ("rounds" may be absent).
+	 */
+	static final class Adapter extends TypeAdapter<Ledger> {
+	
+		private static final String TIMES = "times", AMOUNTS = "amounts", ROUNDS = "rounds";
+	
+		public void write(JsonWriter out, Ledger ledger) throws IOException {
+			if (ledger == null) { out.nullValue(); return; }
+			out.beginObject();
+			out.name(TIMES).beginArray();
+			for (int i = 0; i < ledger.size; i++) out.value(ledger.time(i));
+			out.endArray();
+			out.name(AMOUNTS).beginArray();
+			for (int i = 0; i < ledger.size; i++) out.value(ledger.amount(i));
+			out.endArray();
+			out.name(ROUNDS).beginArray();
+			for (int i = 0; i < ledger.size; i++) out.value(ledger.round(i));
+			out.endArray();
+			out.endObject();
+		}
+	
+		public Ledger read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			List<Long> times = new ArrayList<>(), rounds = new ArrayList<>();
+			List<Double> amounts = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				List<?> target = (TIMES.equals(name) ? times : AMOUNTS.equals(name) ? amounts : ROUNDS.equals(name) ? rounds : null);
+				if (target == null) { in.skipValue(); continue; }
+				in.beginArray();
+				while (in.hasNext()) {
+					if (target == amounts) amounts.add(in.nextDouble());
+					else if (target == times) times.add(in.nextLong());
+					else rounds.add(in.nextLong());
+				}
+				in.endArray();
+			}
+			in.endObject();
+			if (times.size() != amounts.size() || (!rounds.isEmpty() && rounds.size() != times.size()))
+				throw new IOException("Ledger columns have different lengths");
+			Ledger ledger = new Ledger();
+			for (int i = 0; i < times.size(); i++)
+				ledger.append(times.get(i), amounts.get(i), (rounds.isEmpty() ? 0 : rounds.get(i)));
+			return ledger;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,396 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * {@link Store} organized as a log-structured merge tree. Writes go to a sorted in-memory table (memtable) that,
+ *  when it exceeds {@link #MEMTABLESIZE} bytes, is frozen and flushed by a background thread as an immutable sorted
+ *  "run" file "path-n.run" of records [key][int length][bytes] (length = -1 for deletions), mapped in memory in
+ *  chunks of {@link #CHUNKSIZE} bytes (each record being entirely contained in a chunk, as in {@link MappedStore})
+ *  and indexed by a sparse index on the heap (a key every {@link #SPARSE} records). When there are more than
+ *  {@link #MAXRUNS} runs, the same thread merges all of them in a single one, dropping overwritten records and
+ *  deletions. Lookups read the memtable, then the frozen memtables and finally the runs from the newest to the
+ *  oldest, while range scans merge all of them.
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the key.
+ * @param <V> Type of the elements.
+ */
+final class LogStructuredStore<T extends Comparable<T>, V extends Indexable<T>> extends ResidentStore<T, V> {
+	
+	/** Maximum size in bytes of the memtable before being frozen. */
+	public static final int MEMTABLESIZE = 4 << 20; //4 MB
+	/** Number of records of a run between two keys of its sparse index. */
+	public static final int SPARSE = 32;
+	/** Maximum number of runs before compacting them. */
+	public static final int MAXRUNS = 4;
+	/** Size in bytes of a mapped chunk of a run. */
+	public static final int CHUNKSIZE = MappedStore.CHUNKSIZE;
+	
+	private static final String EXT = ".run";
+	/* Value of deleted keys */
+	private static final byte[] TOMBSTONE = new byte[0];
+	
+	/** An immutable sorted run. */
+	private static final class Run<T extends Comparable<T>> {
+	
+		private final Path path;
+		/* Mapped chunks, each one limited to its last record */
+		private final ByteBuffer[] chunks;
+		/* Sparse index: keys[i] is the key of the record at offsets[i] */
+		private final List<T> keys;
+		private final long[] offsets;
+	
+		Run(Path path, ByteBuffer[] chunks, List<T> keys, long[] offsets) {
+			this.path = path;
+			this.chunks = chunks;
+			this.keys = keys;
+			this.offsets = offsets;
+		}
+	
+		/** @return The offset of the last indexed record whose key is not greater than the given one (0 if key is null). */
+		long floor(T key) {
+			if (key == null || keys.isEmpty()) return 0;
+			int index = Collections.binarySearch(keys, key);
+			if (index < 0) index = Math.max(0, -index - 2);
+			return offsets[index];
+		}
+	}
+	
+	/** Sequential reader of the records of a run, from a given offset. */
+	private final class RunCursor {
+	
+		private final ByteBuffer[] chunks;
+		private int index;
+		private ByteBuffer buffer;
+		private BinarySnapshot.BufferInput input;
+		private T key;
+		private byte[] value;
+	
+		RunCursor(Run<T> run, long offset) {
+			this.chunks = run.chunks;
+			this.index = (int)(offset / CHUNKSIZE);
+			this.buffer = chunks[index].duplicate();
+			this.buffer.position((int)(offset % CHUNKSIZE));
+			this.input = new BinarySnapshot.BufferInput(buffer);
+		}
+	
+		/** @return true if another record has been read, false at the end of the run. */
+		boolean advance() throws IOException {
+			while (!buffer.hasRemaining()) {
+				if (++index >= chunks.length) return false;
+				buffer = chunks[index].duplicate();
+				input = new BinarySnapshot.BufferInput(buffer);
+			}
+			try {
+				key = codec.readKey(input);
+				int length = input.readInt();
+				if (length < 0) value = TOMBSTONE;
+				else { value = new byte[length]; input.readFully(value); }
+				return true;
+			} catch (BufferUnderflowException | NegativeArraySizeException ex) { throw new IOException("Corrupted run"); }
+		}
+	}
+	
+	private final Path path;
+	private volatile ConcurrentSkipListMap<T, byte[]> memtable;
+	/* Frozen memtables and runs, from the newest to the oldest (replaced on each change) */
+	private volatile List<ConcurrentSkipListMap<T, byte[]>> frozen;
+	private volatile List<Run<T>> runs;
+	/* Approximate size of the memtable */
+	private final AtomicLong memsize;
+	/* Guards writes to the memtable */
+	private final Object writeLock;
+	/* Background thread for flushes and compactions */
+	private final ExecutorService compactor;
+	private long nextRun;
+	private volatile Throwable failure;
+	
+	/**
+	 * @param path Base path of the run files ("path-n.run").
+	 * @param codec Codec of the elements.
+	 * @param capacity Capacity of the cache of resident elements.
+	 * @throws IOException On I/O errors.
+	 */
+	LogStructuredStore(Path path, Codec<T, V> codec, int capacity) throws IOException {
+		super(codec, capacity);
+		this.path = path.toAbsolutePath();
+		Files.createDirectories(this.path.getParent());
+		String prefix = this.path.getFileName() + "-";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.path.getParent(), prefix + "*" + EXT)) {
+			for (Path file : files) Files.deleteIfExists(file);
+		}
+		this.memtable = new ConcurrentSkipListMap<>();
+		this.frozen = Collections.emptyList();
+		this.runs = Collections.emptyList();
+		this.memsize = new AtomicLong(0);
+		this.writeLock = new Object();
+		this.compactor = Executors.newSingleThreadExecutor((r) -> {
+			Thread thread = new Thread(r, "Compactor-" + this.path.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.nextRun = 0;
+		this.failure = null;
+	}
+	
+	/** @return The latest value of the given key (possibly {@link #TOMBSTONE}) or null if it has never been written. */
+	private byte[] lookup(T key) throws IOException {
+		byte[] value = memtable.get(key);
+		if (value != null) return value;
+		for (ConcurrentSkipListMap<T, byte[]> table : frozen) if ((value = table.get(key)) != null) return value;
+		for (Run<T> run : runs) {
+			RunCursor cursor = new RunCursor(run, run.floor(key));
+			for (int i = 0; i <= SPARSE && cursor.advance(); i++) {
+				int cmp = cursor.key.compareTo(key);
+				if (cmp == 0) return cursor.value;
+				else if (cmp > 0) break;
+			}
+		}
+		return null;
+	}
+	
+	protected byte[] read(T key) throws IOException {
+		byte[] value = this.lookup(key);
+		return (value == TOMBSTONE ? null : value);
+	}
+	
+	protected void write(T key, byte[] value) throws IOException { this.put(key, value); }
+	
+	protected void delete(T key) throws IOException { this.put(key, TOMBSTONE); }
+	
+	protected boolean exists(T key) {
+		try { return (this.read(key) != null); }
+		catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to read '%s': %s", key, ioe.getMessage())); }
+	}
+	
+	private void put(T key, byte[] value) throws IOException {
+		Throwable failure = this.failure;
+		if (failure != null) throw new IOException("Background flush failed", failure);
+		synchronized (writeLock) {
+			memtable.put(key, value);
+			if (memsize.addAndGet(value.length + 16) < MEMTABLESIZE) return;
+			/* The memtable is added to the frozen ones before being replaced, such that readers always find its records */
+			ConcurrentSkipListMap<T, byte[]> table = memtable;
+			List<ConcurrentSkipListMap<T, byte[]>> frozen = new ArrayList<>(this.frozen.size() + 1);
+			frozen.add(table);
+			frozen.addAll(this.frozen);
+			this.frozen = Collections.unmodifiableList(frozen);
+			this.memtable = new ConcurrentSkipListMap<>();
+			memsize.set(0);
+			compactor.execute(() -> this.flush(table));
+		}
+	}
+	
+	/** Writes the given frozen memtable as a new run and then compacts the runs if needed (on the background thread). */
+	private void flush(ConcurrentSkipListMap<T, byte[]> table) {
+		try {
+			Run<T> run = this.writeRun(table.entrySet().iterator(), false);
+			/* The run is installed before removing the memtable, such that readers always find its records */
+			List<Run<T>> runs = new ArrayList<>(this.runs.size() + 1);
+			if (run != null) runs.add(run);
+			runs.addAll(this.runs);
+			this.runs = Collections.unmodifiableList(runs);
+			synchronized (writeLock) {
+				List<ConcurrentSkipListMap<T, byte[]>> frozen = new ArrayList<>(this.frozen);
+				frozen.removeIf((t) -> t == table);
+				this.frozen = Collections.unmodifiableList(frozen);
+			}
+			if (runs.size() > MAXRUNS) this.compact();
+		} catch (Throwable t) { this.failure = t; }
+	}
+	
+	/**
+	 * Merges all the runs in a single one (on the background thread). Since no older record exists, deletions are dropped.
+	 * @throws IOException On I/O errors.
+	 */
+	private void compact() throws IOException {
+		List<Run<T>> merged = this.runs;
+		Run<T> run = this.writeRun(new MergeIterator(Collections.emptyList(), merged, null, null), true);
+		/* Only this thread installs runs */
+		this.runs = (run != null ? Collections.singletonList(run) : Collections.emptyList());
+		/* Mapped buffers of deleted files stay valid while readers are using them */
+		for (Run<T> old : merged) Files.deleteIfExists(old.path);
+	}
+	
+	/**
+	 * Writes the given sorted records in a new run.
+	 * @param dropDeleted If true, deletions are not written.
+	 * @return The run, or null if no record has been written.
+	 */
+	private Run<T> writeRun(Iterator<Map.Entry<T, byte[]>> records, boolean dropDeleted) throws IOException {
+		Path file = path.resolveSibling(String.format("%s-%d%s", path.getFileName(), nextRun++, EXT));
+		List<T> keys = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		/* Used bytes of each chunk */
+		List<Integer> limits = new ArrayList<>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		long position = 0;
+		int count = 0;
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), Serialization.BUFFERSIZE)) {
+			while (records.hasNext()) {
+				Map.Entry<T, byte[]> entry = records.next();
+				byte[] value = entry.getValue();
+				if (dropDeleted && value == TOMBSTONE) continue;
+				bytes.reset();
+				codec.writeKey(record, entry.getKey());
+				if (value == TOMBSTONE) record.writeInt(-1);
+				else { record.writeInt(value.length); record.write(value); }
+				int size = bytes.size();
+				if (size > CHUNKSIZE) throw new IOException(Common.excStr("Element '%s' too large (%d bytes)", entry.getKey(), size));
+				int offset = (int)(position % CHUNKSIZE);
+				if (offset + size > CHUNKSIZE) {
+					/* The rest of the chunk is left unused */
+					limits.add(offset);
+					byte[] padding = new byte[Math.min(CHUNKSIZE - offset, Serialization.BUFFERSIZE)];
+					for (int left = CHUNKSIZE - offset; left > 0; left -= padding.length)
+						out.write(padding, 0, Math.min(left, padding.length));
+					position += CHUNKSIZE - offset;
+				} else if (offset == 0 && position > 0) limits.add(CHUNKSIZE);
+				if (count % SPARSE == 0) { keys.add(entry.getKey()); offsets.add(position); }
+				bytes.writeTo(out);
+				position += size;
+				count++;
+			}
+		} catch (IOException | RuntimeException ex) {
+			Files.deleteIfExists(file);
+			throw ex;
+		}
+		if (count == 0) { Files.deleteIfExists(file); return null; }
+		int last = (int)(position % CHUNKSIZE);
+		limits.add(last == 0 ? CHUNKSIZE : last);
+		ByteBuffer[] chunks = new ByteBuffer[limits.size()];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, (long)i * CHUNKSIZE, limits.get(i));
+		}
+		long[] offs = new long[offsets.size()];
+		for (int i = 0; i < offs.length; i++) offs[i] = offsets.get(i);
+		return new Run<>(file, chunks, keys, offs);
+	}
+	
+	/**
+	 * Iterator over the records of some memtables and runs (each one ordered from the newest to the oldest) in
+	 *  ascending order by key, that returns only the newest record of each key (including deletions).
+	 */
+	private final class MergeIterator implements Iterator<Map.Entry<T, byte[]>> {
+	
+		/* Head of a source: [key, value, rank of the source (0 = newest), iterator or cursor] */
+		private final PriorityQueue<Object[]> heads;
+		private final T to;
+		private Map.Entry<T, byte[]> next;
+	
+		MergeIterator(List<ConcurrentSkipListMap<T, byte[]>> tables, List<Run<T>> runs, T from, T to) throws IOException {
+			this.to = to;
+			this.heads = new PriorityQueue<>((a, b) -> {
+				@SuppressWarnings("unchecked")
+				int cmp = ((T)a[0]).compareTo((T)b[0]);
+				return (cmp != 0 ? cmp : Integer.compare((int)a[2], (int)b[2]));
+			});
+			int rank = 0;
+			for (ConcurrentSkipListMap<T, byte[]> table : tables) {
+				Iterator<Map.Entry<T, byte[]>> iter = (from != null ? table.tailMap(from, true) : table).entrySet().iterator();
+				this.advance(iter, rank++);
+			}
+			for (Run<T> run : runs) {
+				RunCursor cursor = new RunCursor(run, run.floor(from));
+				/* Records before from in the same block */
+				boolean found;
+				do { found = cursor.advance(); } while (found && from != null && cursor.key.compareTo(from) < 0);
+				if (found) heads.add(new Object[] {cursor.key, cursor.value, rank, cursor});
+				rank++;
+			}
+			this.next = null;
+		}
+	
+		@SuppressWarnings("unchecked")
+		private void advance(Object source, int rank) throws IOException {
+			if (source instanceof Iterator) {
+				Iterator<Map.Entry<T, byte[]>> iter = (Iterator<Map.Entry<T, byte[]>>) source;
+				if (iter.hasNext()) {
+					Map.Entry<T, byte[]> entry = iter.next();
+					heads.add(new Object[] {entry.getKey(), entry.getValue(), rank, iter});
+				}
+			} else {
+				RunCursor cursor = (RunCursor) source;
+				if (cursor.advance()) heads.add(new Object[] {cursor.key, cursor.value, rank, cursor});
+			}
+		}
+	
+		@SuppressWarnings("unchecked")
+		public boolean hasNext() {
+			if (next != null) return true;
+			Object[] head = heads.poll();
+			if (head == null) return false;
+			T key = (T)head[0];
+			if (to != null && key.compareTo(to) >= 0) { heads.clear(); return false; }
+			next = new AbstractMap.SimpleImmutableEntry<>(key, (byte[])head[1]);
+			try {
+				this.advance(head[3], (int)head[2]);
+				/* Older records of the same key */
+				while (!heads.isEmpty() && ((T)heads.peek()[0]).compareTo(key) == 0) {
+					Object[] old = heads.poll();
+					this.advance(old[3], (int)old[2]);
+				}
+			} catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to read a run: %s", ioe.getMessage())); }
+			return true;
+		}
+	
+		public Map.Entry<T, byte[]> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+			Map.Entry<T, byte[]> result = next;
+			next = null;
+			return result;
+		}
+	}
+	
+	@NotNull
+	protected Iterator<T> keys(T from, T to) {
+		List<ConcurrentSkipListMap<T, byte[]>> tables = new ArrayList<>();
+		tables.add(memtable);
+		tables.addAll(frozen);
+		MergeIterator records;
+		try { records = new MergeIterator(tables, runs, from, to); }
+		catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to read a run: %s", ioe.getMessage())); }
+		return new Iterator<T>() {
+	
+			private T next = null;
+	
+			public boolean hasNext() {
+				while (next == null && records.hasNext()) {
+					Map.Entry<T, byte[]> record = records.next();
+					if (record.getValue() != TOMBSTONE) next = record.getKey();
+				}
+				return (next != null);
+			}
+	
+			public T next() {
+				if (!this.hasNext()) throw new NoSuchElementException();
+				T result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+	
+	/** Stops the background thread and deletes the runs. */
+	protected void release() throws IOException {
+		compactor.shutdown();
+		try { compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+		catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+		for (Run<T> run : runs) Files.deleteIfExists(run.path);
+		this.runs = Collections.emptyList();
+		this.frozen = Collections.emptyList();
+		this.memtable = new ConcurrentSkipListMap<>();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,189 @@
+package winsome.server.data;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * {@link Store} that appends the encoded elements to a file mapped in memory, and keeps on the heap only a hash
+ *  table from keys to the position of their latest record (as in Bitcask). The file is mapped in chunks of
+ *  {@link #CHUNKSIZE} bytes, each record [int length][bytes] being entirely contained in a chunk, such that the
+ *  elements are read from the page cache without system calls and the operating system can page them out.
+ *  Records that are replaced or deleted become garbage, and the file is compacted by rewriting the live records in
+ *  a new file when garbage exceeds both live data and a chunk. Since keys are hashed, they are also kept in a sorted
+ *  set that is used only by range scans (and so by ordered iteration).
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the key.
+ * @param <V> Type of the elements.
+ */
+final class MappedStore<T extends Comparable<T>, V extends Indexable<T>> extends ResidentStore<T, V> {
+	
+	/** Size in bytes of a mapped chunk of the file. */
+	public static final int CHUNKSIZE = 1 << 26; //64 MB
+	
+	private static final String EXT = ".db", TMPEXT = ".tmp";
+	
+	private final Path path;
+	/* Position of the latest record of each key */
+	private final ConcurrentMap<T, Long> keydir;
+	/* Keys of keydir in ascending order */
+	private final ConcurrentSkipListSet<T> sorted;
+	/* Read lock for reading records, write lock for appending them and compacting */
+	private final ReadWriteLock lock;
+	private FileChannel channel;
+	private List<MappedByteBuffer> chunks;
+	/* Position of the next record, bytes of live records and garbage bytes */
+	private long tail, live, garbage;
+	
+	/**
+	 * @param path Base path of the file ("path.db").
+	 * @param codec Codec of the elements.
+	 * @param capacity Capacity of the cache of resident elements.
+	 * @throws IOException On I/O errors.
+	 */
+	MappedStore(Path path, Codec<T, V> codec, int capacity) throws IOException {
+		super(codec, capacity);
+		this.path = path.resolveSibling(path.getFileName() + EXT).toAbsolutePath();
+		Files.createDirectories(this.path.getParent());
+		this.keydir = new ConcurrentHashMap<>();
+		this.sorted = new ConcurrentSkipListSet<>();
+		this.lock = new ReentrantReadWriteLock();
+		this.channel = open(this.path);
+		this.chunks = new ArrayList<>();
+		this.tail = 0; this.live = 0; this.garbage = 0;
+	}
+	
+	/** Creates an empty file, replacing the existing one. */
+	private static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+	
+	/** @return A view of the given chunk (mapping it and the previous ones if needed), with its position at offset. */
+	private static ByteBuffer chunk(FileChannel channel, List<MappedByteBuffer> chunks, long position) throws IOException {
+		int index = (int)(position / CHUNKSIZE);
+		while (chunks.size() <= index) chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)chunks.size() * CHUNKSIZE, CHUNKSIZE));
+		ByteBuffer chunk = chunks.get(index).duplicate();
+		chunk.position((int)(position % CHUNKSIZE));
+		return chunk;
+	}
+	
+	/** @return The position of a record of the given size appended at tail, skipping the rest of the chunk if needed. */
+	private static long align(long tail, int size) {
+		long offset = tail % CHUNKSIZE;
+		return (offset + size <= CHUNKSIZE ? tail : tail - offset + CHUNKSIZE);
+	}
+	
+	protected byte[] read(T key) throws IOException {
+		try {
+			lock.readLock().lock();
+			Long position = keydir.get(key);
+			if (position == null) return null;
+			ByteBuffer chunk = chunk(channel, chunks, position);
+			byte[] value = new byte[chunk.getInt()];
+			chunk.get(value);
+			return value;
+		} catch (BufferUnderflowException | NegativeArraySizeException ex) {
+			throw new IOException(Common.excStr("Corrupted record of '%s'", key));
+		} finally { lock.readLock().unlock(); }
+	}
+	
+	protected void write(T key, byte[] value) throws IOException {
+		int size = Integer.BYTES + value.length;
+		if (size > CHUNKSIZE) throw new IOException(Common.excStr("Element '%s' too large (%d bytes)", key, value.length));
+		try {
+			lock.writeLock().lock();
+			long position = align(tail, size);
+			garbage += position - tail;
+			chunk(channel, chunks, position).putInt(value.length).put(value);
+			tail = position + size;
+			live += size;
+			Long previous = keydir.put(key, position);
+			if (previous != null) this.discard(previous);
+			else sorted.add(key);
+			if (garbage > live && garbage > CHUNKSIZE) this.compact();
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	/** Marks as garbage the record at the given position. */
+	private void discard(long position) throws IOException {
+		int size = Integer.BYTES + chunk(channel, chunks, position).getInt();
+		live -= size;
+		garbage += size;
+	}
+	
+	protected void delete(T key) throws IOException {
+		try {
+			lock.writeLock().lock();
+			Long previous = keydir.remove(key);
+			if (previous != null) { this.discard(previous); sorted.remove(key); }
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	protected boolean exists(T key) { return keydir.containsKey(key); }
+	
+	@NotNull
+	protected Iterator<T> keys(T from, T to) {
+		NavigableSet<T> keys = sorted;
+		if (from != null) keys = keys.tailSet(from, true);
+		if (to != null) keys = keys.headSet(to, false);
+		return keys.iterator();
+	}
+	
+	/**
+	 * Rewrites the live records in a new file that atomically replaces the current one.
+	 *  NOTE: The caller must hold the write lock.
+	 */
+	private void compact() throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + TMPEXT);
+		FileChannel target = open(tmp);
+		List<MappedByteBuffer> targetChunks = new ArrayList<>();
+		Map<T, Long> moved = new HashMap<>();
+		long position = 0, live = 0;
+		try {
+			for (Map.Entry<T, Long> entry : keydir.entrySet()) {
+				ByteBuffer source = chunk(channel, chunks, entry.getValue());
+				int length = source.getInt();
+				source.limit(source.position() + length);
+				position = align(position, Integer.BYTES + length);
+				chunk(target, targetChunks, position).putInt(length).put(source);
+				moved.put(entry.getKey(), position);
+				position += Integer.BYTES + length;
+				live += Integer.BYTES + length;
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			target.close();
+			Files.deleteIfExists(tmp);
+			throw ioe;
+		}
+		/* Mapped chunks of the old file stay valid until they are collected */
+		channel.close();
+		this.channel = target;
+		this.chunks = targetChunks;
+		this.keydir.putAll(moved);
+		this.live = live;
+		this.garbage = position - live;
+		this.tail = position;
+	}
+	
+	/** Closes and deletes the file. */
+	protected void release() throws IOException {
+		try {
+			lock.writeLock().lock();
+			keydir.clear();
+			sorted.clear();
+			chunks = new ArrayList<>();
+			channel.close();
+			Files.deleteIfExists(path);
+		} finally { lock.writeLock().unlock(); }
+	}
+}
\ No newline at end of file
@@ -1,9 +1,16 @@
 package winsome.server.data;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.locks.*;
 import java.lang.reflect.Type;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
 
 import winsome.annotations.NotNull;
 import winsome.server.ServerUtils;
@@ -13,12 +20,34 @@ import winsome.util.*;
  * Winsome posts.
  * @author Salvatore Correnti
  */
+@JsonAdapter(Post.Adapter.class)
 public final class Post implements Indexable<Long>, Comparable<Post> {
 	
 	/** Id generator for posts. */
 	private static IDGen gen = null;
+	
+	/** Off-heap store for titles and contents (if null, they are kept on heap). */
+	private static ContentStore store = null;
+	
+	/** On-disk store for the state of cold posts (if null, posts are never demoted). */
+	private static ColdStore coldStore = null;
+	
+	/** Number of locks shared among all posts (see {@link #lock()}). */
+	private static final int LOCKSTRIPES = 1 << 12;
+	
+	/** Locks shared among all posts, each one guarding votes, comments and rewinners of the posts mapped to it. */
+	private static final StripedLocks LOCKS = new StripedLocks(LOCKSTRIPES);
 		
 	public static final Type TYPE = new TypeToken<Post>() {}.getType();
+	
+	/* Flags of the binary format (see encode(DataOutput)) */
+	private static final int HEAPFLAG = 1, COLDFLAG = 2;
+	
+	/**
+	 * Birth of the posts that have not been rewarded yet (see {@link #getBirth()}). Other births may be negative, since
+	 *  the ones of posts saved with their reward iteration may precede the first round (see {@link #migrateIteration(long)}).
+	 */
+	public static final long NOBIRTH = Long.MIN_VALUE;
 		
 	/**
 	 * Converts a string representing a rate into its boolean correspondent.
@@ -35,87 +64,360 @@ public final class Post implements Indexable<Long>, Comparable<Post> {
 	/* These fields are immutable and can be accessed without synchronization */
 	private final long idPost;
 	@NotNull
-	private final String title, content, author;
+	private final String author;
 	
-	/* These fields should be accessed in read/write mode */
-	private final NavigableMap<String, Boolean> votes;
-	private transient ReentrantReadWriteLock voteLock;
-	
-	/* This field should be accessed in read/write mode */
-	private final Map<String, NavigableSet<Comment>> comments;
-	private transient ReentrantReadWriteLock commentLock;
+	/*
+	 * Title and content are kept on heap only if there is no content store (or before migrating a post saved
+	 *  in that way), otherwise (offset, length) locate their record in the store (length == 0 if deleted).
+	 *  These fields should be accessed with the lock returned by lock().
+	 */
+	private String title, content;
+	private long offset;
+	private int length;
 	
-	@NotNull
+	/*
+	 * These fields should be accessed in read/write mode with the lock returned by lock(). If the post
+	 *  is cold, they are null and their values are in the cold store (see demote(long, long)).
+	 */
+	private NavigableMap<String, Boolean> votes;
+	private CommentLog comments;
 	private NavigableSet<String> rewinners;
+	private boolean cold;
+	
+	private transient boolean deserialized = false;
+	/* True until the content record appended on creation is committed (see inserted()) */
+	private transient boolean uncommitted = false;
+	/* Last time (in milliseconds) at which votes, comments or rewinners have been accessed */
+	private transient volatile long lastAccess;
 	
 	@NotNull
 	//private NavigableSet<Action> actions;
-	private double iteration;
+	/*
+	 * Reward round before the first one that has rewarded this post (NOBIRTH if none), such that the reward
+	 *  iteration of the post in round r is r - birth. It never changes once set.
+	 */
+	private long birth;
+	/* Reward iteration read from a snapshot written before births (0 if none), see migrateIteration(long) */
+	private transient double iteration = 0.0;
 	
 	/** Sets the id generator to the given one (has effect only once e.g. after deserialization of the server) */
 	public synchronized static void setGen(IDGen gen) {	if (Post.gen == null) Post.gen = gen; }
 	
-	public synchronized boolean isDeserialized() {
-		return (voteLock != null && commentLock != null);
-	}
+	/** Sets the content store to the given one (has effect only once e.g. after deserialization of the server) */
+	public synchronized static void setStore(ContentStore store) { if (Post.store == null) Post.store = store; }
+	
+	/** Sets the cold store to the given one (has effect only once e.g. after deserialization of the server) */
+	public synchronized static void setColdStore(ColdStore coldStore) { if (Post.coldStore == null) Post.coldStore = coldStore; }
+	
+	public synchronized boolean isDeserialized() { return deserialized; }
 	
 	/**
-	 * Restores transient fields after deserialization from JSON.
+	 * Restores transient fields after deserialization from JSON, moving title and content to the content
+	 *  store if they are on heap.
 	 * @throws DeserializationException On failure.
 	 */	
 	public synchronized void deserialize() throws DeserializationException {
-		if (voteLock == null) voteLock = new ReentrantReadWriteLock();
-		if (commentLock == null) commentLock = new ReentrantReadWriteLock();
+		if (deserialized) return;
+		ContentStore store = Post.store;
+		try {
+			if (store != null && title != null) {
+				long[] record = store.append(idPost, title, content);
+				/* The post is already in the table */
+				store.commit(record[0]);
+				this.offset = record[0]; this.length = (int)record[1];
+				this.title = null; this.content = null;
+			} else if (store != null && length > 0) store.retain(offset, length);
+		} catch (IOException ioe) { throw new DeserializationException(ioe); }
+		if (cold && (coldStore == null || !coldStore.contains(idPost)))
+			throw new DeserializationException("Cold post state not found");
+		lastAccess = System.currentTimeMillis();
+		deserialized = true;
 	}
 	
+	/**
+	 * Restores transient fields of a post that is read again by a store of the posts table after having been deserialized
+	 *  and written back (see {@link Store.Loader}), whose title and content are already retained in the content store.
+	 * @throws DeserializationException On failure.
+	 */
+	public synchronized void restore() throws DeserializationException {
+		if (deserialized) return;
+		else if (title != null) { this.deserialize(); return; }
+		lastAccess = System.currentTimeMillis();
+		deserialized = true;
+	}
+	
+	private static long newId() throws DataException {
+		if (Post.gen == null) throw new DataException(DataException.POST_NULLGEN);
+		return Post.gen.nextId();
+	}
+	
+	/** @return The lock (shared with other posts) that guards votes, comments and rewinners of this post. */
+	ReentrantReadWriteLock lock() { return LOCKS.get(idPost); }
+	
 	/**
 	 * @throws DataException If Post.gen == null.
 	 */
 	public Post(String title, String content, User author) throws DataException {
+		this(Post.newId(), title, content, author.key());
+	}
+	
+	/**
+	 * Creates a post with the given id (e.g. when replaying a log), such that the id is never generated again.
+	 * @throws DataException If Post.gen == null or on I/O errors in the content store.
+	 */
+	public Post(long idPost, String title, String content, String author) throws DataException {
 		Common.notNull(title, content, author);
+		Common.allAndArgs(idPost > 0);
 		if (Post.gen == null) throw new DataException(DataException.POST_NULLGEN);
-		this.idPost = Post.gen.nextId();
-		this.title = title;
-		this.content = content;
-		this.author = author.key();
+		Post.gen.advance(idPost);
+		this.idPost = idPost;
+		this.author = author;
+		ContentStore store = Post.store;
+		if (store != null) {
+			try {
+				long[] record = store.append(idPost, title, content);
+				this.offset = record[0]; this.length = (int)record[1];
+				this.uncommitted = true;
+			} catch (IOException ioe) { throw new DataException(DataException.POST_STORE, ioe); }
+		} else { this.title = title; this.content = content; }
 		this.votes = new TreeMap<>();
-		this.voteLock = new ReentrantReadWriteLock();
-		this.comments = new HashMap<>();
-		this.commentLock = new ReentrantReadWriteLock();
+		this.comments = new CommentLog();
 		this.rewinners = new TreeSet<>();
-		this.iteration = 1.0;
+		this.cold = false;
+		this.deserialized = true;
+		this.lastAccess = System.currentTimeMillis();
+		this.birth = NOBIRTH;
 		//this.actions = new TreeSet<>();
 	}
 	
 	/* No sync need */
 	public Long key() { return this.idPost; }
 
-	/* This method does NOT need synchronization (only immutable fields) */
 	/** @return A list containing post info for {@link User#getBlog()} and {@link User#getFeed()}. */
 	@NotNull
 	public List<String> getPostInfo() {
+		String title;
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.readLock().lock();
+			if (this.title != null) title = this.title;
+			else title = (length > 0 ? store.readTitle(offset) : "");
+		} finally { lock.readLock().unlock(); }
 		return Common.toList(Long.toString(idPost), author, title);
 	}
 	
-	/* No sync need */
-	public String getAuthor() { return new String(author); }
+	/** @return An array {title, content} (decoded from the content store if needed). Lock must be held. */
+	@NotNull
+	private String[] titleContent() {
+		if (this.title != null) return new String[] {title, content};
+		else return (length > 0 ? store.read(offset) : new String[] {"", ""});
+	}
+	
+	/** @return The offset of the record of this post in the content store, or -1 if there is not. */
+	long contentOffset() {
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.readLock().lock();
+			return (title == null && length > 0 ? offset : -1);
+		} finally { lock.readLock().unlock(); }
+	}
 	
 	/**
-	 * Formats an entry in the map {@link #comments} into a list of string of the form "  author: comment".
-	 * @param entry An entry in {@link #comments}.
-	 * @return A list of string as specified above.
+	 * Moves the record of this post in the content store (used by {@link ContentStore} when compacting).
+	 * @param oldOffset Expected current offset.
+	 * @param newOffset New offset.
+	 * @return true if the record was at oldOffset (and now it is at newOffset), false otherwise.
+	 */
+	boolean relocate(long oldOffset, long newOffset) {
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			if (title != null || length == 0 || offset != oldOffset) return false;
+			offset = newOffset;
+			return true;
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	/**
+	 * Commits the content record of this post (see {@link ContentStore#commit(long)}) after it has been inserted into
+	 *  the posts table (or after it has failed to), such that its segment can be compacted. It has no effect after
+	 *  the first invocation. NOTE: The caller must NOT hold any post lock.
+	 * @throws DataException On I/O errors in the content store.
+	 */
+	public void inserted() throws DataException {
+		long offset;
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			if (!uncommitted) return;
+			uncommitted = false;
+			offset = this.offset;
+		} finally { lock.writeLock().unlock(); }
+		/* No post lock must be held here, since the store may compact (and relocate other posts) */
+		try { store.commit(offset); }
+		catch (IOException ioe) { throw new DataException(DataException.POST_STORE, ioe); }
+	}
+	
+	/**
+	 * Releases the record of this post in the content store after the post has been deleted.
+	 * @throws DataException On I/O errors in the content store.
+	 */
+	public void discard() throws DataException {
+		long offset;
+		int length;
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			offset = this.offset; length = this.length;
+			if (title != null) length = 0;
+			this.length = 0;
+			if (cold) coldStore.remove(idPost);
+		} catch (IOException ioe) { throw new DataException(DataException.POST_STORE, ioe); }
+		finally { lock.writeLock().unlock(); }
+		/* No post lock must be held here, since the store may compact (and relocate other posts) */
+		try { if (length > 0) store.release(offset, length); }
+		catch (IOException ioe) { throw new DataException(DataException.POST_STORE, ioe); }
+	}
+	
+	/** Creates an empty post with the given id and author, used by {@link #decode(DataInput)}. */
+	private Post(long idPost, String author) {
+		this.idPost = idPost;
+		this.author = author;
+		this.birth = NOBIRTH;
+	}
+	
+	/**
+	 * Writes this post in binary format while holding its read lock: [long idPost][author][byte flags], then
+	 *  [title][content] if they are on heap or [long offset][int length] otherwise, [long birth] and,
+	 *  if the post is not cold, votes as [int n]([user][boolean like])*, comments (see {@link CommentLog})
+	 *  and rewinners as [int n]([user])*.
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	void encode(DataOutput out) throws IOException {
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.readLock().lock();
+			out.writeLong(idPost);
+			Serialization.writeString(out, author);
+			out.writeByte((title != null ? HEAPFLAG : 0) | (cold ? COLDFLAG : 0));
+			if (title != null) { Serialization.writeString(out, title); Serialization.writeString(out, content); }
+			else { out.writeLong(offset); out.writeInt(length); }
+			out.writeLong(birth);
+			if (cold) return;
+			out.writeInt(votes.size());
+			for (Map.Entry<String, Boolean> vote : votes.entrySet()) {
+				Serialization.writeString(out, vote.getKey());
+				out.writeBoolean(vote.getValue());
+			}
+			comments.encode(out);
+			out.writeInt(rewinners.size());
+			for (String user : rewinners) Serialization.writeString(out, user);
+		} finally { lock.readLock().unlock(); }
+	}
+	
+	/**
+	 * Reads a post written by {@link #encode(DataOutput)}.
+	 *  NOTE: The post is NOT deserialized (see {@link #deserialize()}).
+	 * @param in Input.
+	 * @return The post.
+	 * @throws IOException On I/O errors or if the post is malformed.
 	 */
 	@NotNull
-	private List<String> formatComments(Map.Entry<String, NavigableSet<Comment>> entry){
-		List<String> result = new ArrayList<>();
-		Iterator<Comment> iter = entry.getValue().iterator();
-		String authStr = String.format("  %s: ", entry.getKey());
-		while (iter.hasNext()) {
-			StringBuilder sb = new StringBuilder();
-			sb.append(authStr + iter.next().getContent());
-			result.add(sb.toString());
+	static Post decode(DataInput in) throws IOException {
+		long idPost = in.readLong();
+		if (idPost <= 0) throw new IOException("Invalid post id");
+		Post post = new Post(idPost, Serialization.readString(in));
+		int flags = in.readUnsignedByte();
+		if ((flags & HEAPFLAG) != 0) { post.title = Serialization.readString(in); post.content = Serialization.readString(in); }
+		else { post.offset = in.readLong(); post.length = in.readInt(); }
+		post.birth = in.readLong();
+		post.cold = ((flags & COLDFLAG) != 0);
+		if (post.cold) return post;
+		int n = in.readInt();
+		if (n < 0) throw new IOException("Malformed post votes");
+		post.votes = new TreeMap<>();
+		for (int i = 0; i < n; i++) {
+			String user = Serialization.readString(in);
+			post.votes.put(user, in.readBoolean());
 		}
-		return result;
+		post.comments = CommentLog.decode(in);
+		n = in.readInt();
+		if (n < 0) throw new IOException("Malformed post rewinners");
+		post.rewinners = new TreeSet<>();
+		for (int i = 0; i < n; i++) post.rewinners.add(Serialization.readString(in));
+		return post;
+	}
+	
+	/** State of a post that is moved to the cold store. */
+	private static final class ColdState {
+	
+		private NavigableMap<String, Boolean> votes;
+		private CommentLog comments;
+		private NavigableSet<String> rewinners;
+	}
+	
+	/**
+	 * Moves votes, comments and rewinners of this post to the cold store if they have not been accessed in the
+	 *  last minIdle milliseconds. They will be reloaded transparently at the first access.
+	 * @param minIdle Minimum idle time in milliseconds.
+	 * @param now Current time in milliseconds.
+	 * @return true if the post has been demoted, false otherwise (e.g. already cold or recently accessed).
+	 * @throws DataException On I/O errors in the cold store.
+	 */
+	public boolean demote(long minIdle, long now) throws DataException {
+		ColdStore coldStore = Post.coldStore;
+		if (coldStore == null || now - lastAccess < minIdle) return false;
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			if (cold || now - lastAccess < minIdle) return false;
+			ColdState state = new ColdState();
+			state.votes = votes; state.comments = comments; state.rewinners = rewinners;
+			coldStore.put(idPost, Serialization.GSON.toJson(state).getBytes(StandardCharsets.UTF_8));
+			votes = null; comments = null; rewinners = null;
+			cold = true;
+			return true;
+		} catch (IOException ioe) { throw new DataException(DataException.POST_STORE, ioe); }
+		finally { lock.writeLock().unlock(); }
+	}
+	
+	/** @return true if this post is currently cold. */
+	public boolean isCold() {
+		ReentrantReadWriteLock lock = this.lock();
+		try { lock.readLock().lock(); return cold; } finally { lock.readLock().unlock(); }
+	}
+	
+	/**
+	 * Reloads the state of this post from the cold store if it is cold and updates {@link #lastAccess}.
+	 *  The write lock of the post must be held.
+	 * @throws DataException On I/O errors in the cold store or if the state is missing or malformed (the post stays cold).
+	 */
+	private void warm() throws DataException {
+		lastAccess = System.currentTimeMillis();
+		if (!cold) return;
+		long start = System.nanoTime();
+		try {
+			byte[] data = coldStore.take(idPost);
+			if (data == null) throw new DataException(DataException.POST_COLD);
+			ColdState state = Serialization.GSON.fromJson(new String(data, StandardCharsets.UTF_8), ColdState.class);
+			votes = state.votes; comments = state.comments; rewinners = state.rewinners;
+			cold = false;
+		} catch (IOException | JsonParseException ex) { throw new DataException(DataException.POST_COLD, ex); }
+		coldStore.recordReload(System.nanoTime() - start);
+	}
+	
+	/* No sync need */
+	public String getAuthor() { return new String(author); }
+	
+	/**
+	 * Formats the comments in {@link #comments} with index in [first, last) as strings of the form "  author: comment".
+	 * @param first Index of the first comment.
+	 * @param last Index after the last comment.
+	 * @param result List to which formatted comments are appended.
+	 */
+	private void formatComments(int first, int last, List<String> result){
+		for (int i = first; i < last; i++) result.add("  " + comments.author(i) + ": " + comments.content(i));
 	}
 	
 	/**
@@ -123,66 +425,103 @@ public final class Post implements Indexable<Long>, Comparable<Post> {
 	 * @param user Username of the user that is adding rate.
 	 * @param like If true, a positive rate, otherwise a negative one.
 	 * @return true if this post has not been rated before by user, false otherwise.
+	 * @throws DataException If the post cannot be reloaded from the cold store.
 	 */
-	public boolean addRate(String user, boolean like) {
+	public boolean addRate(String user, boolean like) throws DataException {
 		Common.notNull(user);
+		ReentrantReadWriteLock lock = this.lock();
 		try{
-			voteLock.writeLock().lock();
+			lock.writeLock().lock();
+			this.warm();
 			return (this.votes.putIfAbsent(user, like) == null);
-		} finally { voteLock.writeLock().unlock(); }
+		} finally { lock.writeLock().unlock(); }
 	}
 	
 	/**
 	 * Adds a comment with given content.
 	 * @param author Author of the comment.
 	 * @param content Content of the comment.
-	 * @return The number of comments that this post has after having added this one.
+	 * @return The number of comments of author to this post after having added this one.
 	 *  NOTE: This method does NEVER return a negative value.
-	 * @throws DataException On failure in adding comments (same author of the post,
-	 *  error when adding comment).
+	 * @throws DataException If author is also the author of the post or if the post cannot be reloaded from the cold store.
 	 *  @throws NullPointerException If author == null or content == null.
 	 *  @throws IllegalArgumentException If author or content are empty.
 	 */
 	public int addComment(String author, String content) throws DataException {
+		return this.addComment(author, content, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Same as {@link #addComment(String, String)} with the given time of the comment (e.g. when replaying a log).
+	 * @param time Time in milliseconds of the comment.
+	 */
+	public int addComment(String author, String content, long time) throws DataException {
 		Common.notNull(author, content);
 		Common.allAndArgs(author.length() > 0, content.length() > 0);
 		if (author.equals(this.author)) throw new DataException(DataException.SAME_AUTHOR);
-		NavigableSet<Comment> set;
+		ReentrantReadWriteLock lock = this.lock();
 		try {
-			commentLock.writeLock().lock();
-			if (this.comments.get(author) == null) {
-				set = new TreeSet<>();
-				this.comments.put( new String(author), set );
-			} else set = this.comments.get(author);
-			if (! set.add(new Comment(author, this.idPost, content)) ) throw new DataException(DataException.UNADD_COMMENT);
-			else return set.size();
-		} finally { commentLock.writeLock().unlock(); }
+			lock.writeLock().lock();
+			this.warm();
+			return this.comments.append(author, content, time);
+		} finally { lock.writeLock().unlock(); }
 	}
 	
 	/**
+	 * @param author Username.
+	 * @return The number of comments of author to this post.
+	 * @throws DataException If the post cannot be reloaded from the cold store.
+	 */
+	public int commentCount(String author) throws DataException {
+		Common.notNull(author);
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			this.warm();
+			return this.comments.count(author);
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	/**
+	 * @return A list of strings of the form { title, content, likes, dislikes, (comments)}, where comments
+	 * are sorted in ascending order of time.
+	 * @throws DataException If the post cannot be reloaded from the cold store.
+	 */
+	@NotNull
+	public List<String> getPostData() throws DataException { return this.getPostData(0, Integer.MAX_VALUE); }
+	
+	/**
+	 * @param page Number of the page of comments (0 for the most recent ones).
+	 * @param pageSize Number of comments per page.
 	 * @return A list of strings of the form { title, content, likes, dislikes, (comments)}, where comments
-	 * are sorted in ascending order by username of their authors.
+	 * are the ones in the given page sorted in ascending order of time.
+	 * @throws IllegalArgumentException If page &lt; 0 or pageSize &le; 0.
+	 * @throws DataException If the post cannot be reloaded from the cold store.
 	 */
 	@NotNull
-	public List<String> getPostData() {
+	public List<String> getPostData(int page, int pageSize) throws DataException {
 		int[] votes = new int[2];
+		ReentrantReadWriteLock lock = this.lock();
+		List<String> result;
+		lastAccess = System.currentTimeMillis();
 		
-		try {
-			voteLock.readLock().lock();
-			for (String user : this.votes.keySet()) {
-				votes[this.votes.get(user) ? 0 : 1]++;
-			}
-		} finally { voteLock.readLock().unlock(); }
-		
-		List<String> result = 
-				Common.toList(title, content, Integer.toString(votes[0]), Integer.toString(votes[1]));
-		
-		try {
-			commentLock.readLock().lock();
-			for (Map.Entry<String, NavigableSet<Comment>> entry : comments.entrySet()) {
-				result.addAll(this.formatComments(entry));
-			}
-		} finally { commentLock.readLock().unlock(); }
+		/* Cold posts are first reloaded in write mode, then read as usual */
+		while (true) {
+			try {
+				lock.readLock().lock();
+				if (!cold) {
+					for (String user : this.votes.keySet()) {
+						votes[this.votes.get(user) ? 0 : 1]++;
+					}
+					String[] data = this.titleContent();
+					result = Common.toList(data[0], data[1], Integer.toString(votes[0]), Integer.toString(votes[1]));
+					int[] range = comments.page(page, pageSize);
+					this.formatComments(range[0], range[1], result);
+					break;
+				}
+			} finally { lock.readLock().unlock(); }
+			try { lock.writeLock().lock(); this.warm(); } finally { lock.writeLock().unlock(); }
+		}
 		
 		return result;
 	}
@@ -191,34 +530,170 @@ public final class Post implements Indexable<Long>, Comparable<Post> {
 	 * Rewins the post for user, i.e. adds this post to the blog of user.
 	 * @param user Username of the "rewinner".
 	 * @return true if user is not the author of the post and has not already rewon this post.
-	 * @throws DataException If user is also the author of the post.
+	 * @throws DataException If user is also the author of the post or if the post cannot be reloaded from the cold store.
 	 */
 	public boolean rewin(String user) throws DataException {
 		if (user.equals(this.author)) throw new DataException(DataException.SAME_AUTHOR);
 		String copy = new String(user);
-		synchronized (rewinners) { return this.rewinners.add(copy); }
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			this.warm();
+			return this.rewinners.add(copy);
+		} finally { lock.writeLock().unlock(); }
 	}
 	
 	@NotNull
 	public String toString() {
+		ReentrantReadWriteLock lock = this.lock();
 		try {
-			if (voteLock != null && commentLock != null) {
-				voteLock.readLock().lock();
-				commentLock.readLock().lock();
-			}
+			lock.readLock().lock();
 			return String.format("%s : %s", this.getClass().getSimpleName(), Serialization.GSON.toJson(this));
-		} finally {
-			if (voteLock != null && commentLock != null)
-				{ voteLock.readLock().unlock(); commentLock.readLock().unlock(); }
-		}
+		} finally { lock.readLock().unlock(); }
 	}
 	
-	public double getIteration() { return this.iteration; }
+	/**
+	 * @return The reward round before the first one that has rewarded this post, or {@link #NOBIRTH} if it has not
+	 *  been rewarded yet: the reward iteration of the post in round r is r - birth.
+	 */
+	public long getBirth() {
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.readLock().lock();
+			return this.birth;
+		} finally { lock.readLock().unlock(); }
+	}
 	
-	public void setIteration(double iter) { Common.allAndArgs(iter >= 0); this.iteration = iter; }
+	/**
+	 * Sets the birth of this post (see {@link #getBirth()}).
+	 * @param birth The birth.
+	 * @throws IllegalArgumentException If birth == {@link #NOBIRTH}.
+	 */
+	public void setBirth(long birth) {
+		Common.allAndArgs(birth != NOBIRTH);
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			this.birth = birth;
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	/**
+	 * Converts the reward iteration read from a snapshot written before births (if any) into the birth of this post,
+	 *  such that its next reward iteration is the old one plus 1 as before: since that iteration has been saved after
+	 *  the last settled round, the birth is that round minus the iteration. It has no effect on other posts.
+	 * @param settledRound Last reward round settled when the snapshot has been written.
+	 * @return true if the birth of this post has been set.
+	 */
+	public boolean migrateIteration(long settledRound) {
+		ReentrantReadWriteLock lock = this.lock();
+		try {
+			lock.writeLock().lock();
+			if (birth != NOBIRTH || iteration <= 0.0) return false;
+			this.birth = settledRound - (long)iteration;
+			this.iteration = 0.0;
+			return true;
+		} finally { lock.writeLock().unlock(); }
+	}
 		
 	public int compareTo(Post other) {
 		if (this.idPost == other.idPost) return 0;
 		else return (this.idPost > other.idPost ? 1 : -1);
 	}
+	
+	/**
+	 * Gson adapter that writes a post with the same fields as the reflective one while holding its read lock,
+	 *  and reads it directly into its final data structures.
+	 */
+	static final class Adapter extends TypeAdapter<Post> {
+	
+		private static final String IDPOST = "idPost", AUTHOR = "author", TITLE = "title", CONTENT = "content",
+			OFFSET = "offset", LENGTH = "length", VOTES = "votes", COMMENTS = "comments", REWINNERS = "rewinners",
+			COLD = "cold", BIRTH = "birth", ITERATION = "iteration";
+	
+		private static final CommentLog.Adapter COMMENTS_ADAPTER = new CommentLog.Adapter();
+	
+		public void write(JsonWriter out, Post post) throws IOException {
+			if (post == null) { out.nullValue(); return; }
+			ReentrantReadWriteLock lock = post.lock();
+			try {
+				lock.readLock().lock();
+				out.beginObject();
+				out.name(IDPOST).value(post.idPost);
+				out.name(AUTHOR).value(post.author);
+				if (post.title != null) out.name(TITLE).value(post.title);
+				if (post.content != null) out.name(CONTENT).value(post.content);
+				out.name(OFFSET).value(post.offset);
+				out.name(LENGTH).value(post.length);
+				if (post.votes != null) {
+					out.name(VOTES).beginObject();
+					for (Map.Entry<String, Boolean> vote : post.votes.entrySet()) out.name(vote.getKey()).value(vote.getValue());
+					out.endObject();
+				}
+				if (post.comments != null) COMMENTS_ADAPTER.write(out.name(COMMENTS), post.comments);
+				if (post.rewinners != null) {
+					out.name(REWINNERS).beginArray();
+					for (String user : post.rewinners) out.value(user);
+					out.endArray();
+				}
+				out.name(COLD).value(post.cold);
+				if (post.birth != NOBIRTH) out.name(BIRTH).value(post.birth);
+				out.endObject();
+			} finally { lock.readLock().unlock(); }
+		}
+	
+		public Post read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			long idPost = 0, offset = 0;
+			int length = 0;
+			String author = null, title = null, content = null;
+			NavigableMap<String, Boolean> votes = null;
+			CommentLog comments = null;
+			NavigableSet<String> rewinners = null;
+			boolean cold = false;
+			long birth = NOBIRTH;
+			double iteration = 0.0;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case IDPOST : { idPost = in.nextLong(); break; }
+					case AUTHOR : { author = in.nextString(); break; }
+					case TITLE : { title = in.nextString(); break; }
+					case CONTENT : { content = in.nextString(); break; }
+					case OFFSET : { offset = in.nextLong(); break; }
+					case LENGTH : { length = in.nextInt(); break; }
+					case VOTES : {
+						votes = new TreeMap<>();
+						in.beginObject();
+						while (in.hasNext()) votes.put(in.nextName(), in.nextBoolean());
+						in.endObject();
+						break;
+					}
+					case COMMENTS : { comments = COMMENTS_ADAPTER.read(in); break; }
+					case REWINNERS : {
+						rewinners = new TreeSet<>();
+						in.beginArray();
+						while (in.hasNext()) rewinners.add(in.nextString());
+						in.endArray();
+						break;
+					}
+					case COLD : { cold = in.nextBoolean(); break; }
+					case BIRTH : { birth = in.nextLong(); break; }
+					/* Snapshots written before births */
+					case ITERATION : { iteration = in.nextDouble(); break; }
+					default : { in.skipValue(); break; }
+				}
+			}
+			in.endObject();
+			if (author == null) throw new IOException("Malformed post");
+			Post post = new Post(idPost, author);
+			post.title = title; post.content = content;
+			post.offset = offset; post.length = length;
+			post.votes = votes; post.comments = comments; post.rewinners = rewinners;
+			post.cold = cold;
+			post.birth = birth;
+			post.iteration = iteration;
+			return post;
+		}
+	}
 }
\ No newline at end of file
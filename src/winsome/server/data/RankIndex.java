@@ -0,0 +1,133 @@
+package winsome.server.data;
+
+import java.util.*;
+
+import winsome.util.Common;
+
+/**
+ * An order-statistic set of keys implemented as a treap whose nodes are augmented with the size of their subtree,
+ *  such that insertion, removal and rank queries all take O(log n) expected time. Used by {@link Table} as its
+ *  optional sorted view.
+ *  NOTE: This class is NOT thread-safe: concurrent access must be synchronized externally.
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the keys.
+ */
+final class RankIndex<T extends Comparable<T>> {
+	
+	private static final class Node<T> {
+		private final T key;
+		private final int priority;
+		private int size;
+		private Node<T> left, right;
+	
+		private Node(T key, int priority) { this.key = key; this.priority = priority; this.size = 1; }
+	}
+	
+	private final Random random;
+	private Node<T> root;
+	
+	public RankIndex() { this.random = new Random(); this.root = null; }
+	
+	private static int size(Node<?> node) { return (node != null ? node.size : 0); }
+	
+	private static void update(Node<?> node) { node.size = 1 + size(node.left) + size(node.right); }
+	
+	/** Merges two treaps such that all keys in left are less than all keys in right. */
+	private Node<T> merge(Node<T> left, Node<T> right) {
+		if (left == null) return right;
+		if (right == null) return left;
+		if (left.priority > right.priority) { left.right = merge(left.right, right); update(left); return left; }
+		else { right.left = merge(left, right.left); update(right); return right; }
+	}
+	
+	/**
+	 * Splits the given treap into {keys &lt; key, keys &ge; key} (if inclusive is false) or
+	 *  {keys &le; key, keys &gt; key} (if inclusive is true).
+	 */
+	@SuppressWarnings("unchecked")
+	private Node<T>[] split(Node<T> node, T key, boolean inclusive) {
+		if (node == null) return (Node<T>[]) new Node<?>[] {null, null};
+		int cmp = node.key.compareTo(key);
+		if (cmp < 0 || (inclusive && cmp == 0)) {
+			Node<T>[] parts = split(node.right, key, inclusive);
+			node.right = parts[0]; update(node); parts[0] = node;
+			return parts;
+		} else {
+			Node<T>[] parts = split(node.left, key, inclusive);
+			node.left = parts[1]; update(node); parts[1] = node;
+			return parts;
+		}
+	}
+	
+	/**
+	 * @param key The key to add.
+	 * @return true if the key was not already contained, false otherwise.
+	 */
+	public boolean add(T key) {
+		Common.notNull(key);
+		if (this.contains(key)) return false;
+		Node<T>[] parts = split(root, key, false);
+		root = merge(merge(parts[0], new Node<>(key, random.nextInt())), parts[1]);
+		return true;
+	}
+	
+	/**
+	 * @param key The key to remove.
+	 * @return true if the key was contained, false otherwise.
+	 */
+	public boolean remove(T key) {
+		Common.notNull(key);
+		if (!this.contains(key)) return false;
+		Node<T>[] lower = split(root, key, false);
+		Node<T>[] upper = split(lower[1], key, true);
+		root = merge(lower[0], upper[1]);
+		return true;
+	}
+	
+	public boolean contains(T key) {
+		Node<T> node = root;
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) return true;
+			node = (cmp < 0 ? node.left : node.right);
+		}
+		return false;
+	}
+	
+	/**
+	 * @param key The key.
+	 * @return The number of keys less than the given one if key is contained, -1 otherwise.
+	 */
+	public int rank(T key) {
+		Common.notNull(key);
+		Node<T> node = root;
+		int rank = 0;
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) return rank + size(node.left);
+			else if (cmp < 0) node = node.left;
+			else { rank += size(node.left) + 1; node = node.right; }
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param rank Rank of the key, i.e. number of keys less than it.
+	 * @return The key with the given rank, or null if rank is out of [0, size).
+	 */
+	public T select(int rank) {
+		if (rank < 0 || rank >= size(root)) return null;
+		Node<T> node = root;
+		while (true) {
+			int leftSize = size(node.left);
+			if (rank == leftSize) return node.key;
+			else if (rank < leftSize) node = node.left;
+			else { rank -= leftSize + 1; node = node.right; }
+		}
+	}
+	
+	public int size() { return size(root); }
+	
+	public void clear() { root = null; }
+}
\ No newline at end of file
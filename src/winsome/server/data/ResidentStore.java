@@ -0,0 +1,286 @@
+package winsome.server.data;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Base class of the {@link Store}s that keep the encoded elements off the heap, that handles the elements which
+ *  are "resident" on the heap. Each resident element is referenced weakly, such that the same instance is returned
+ *  for its key as long as it is referenced somewhere else, and it is also "pinned" (i.e. referenced strongly) after
+ *  being returned by {@link #get(Comparable)} or modified. When the number of residents exceeds the capacity of the
+ *  cache, they are swept as by the CLOCK algorithm: pinned elements that have not been accessed since the previous
+ *  sweep are written back (if modified) and unpinned, while the others are given a second chance.
+ *  Insertions and removals are written through, such that the stored keys are always the ones of the table.
+ *  Subclasses implement the storage of the encoded elements, that must be safe for concurrent access.
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the key.
+ * @param <V> Type of the elements.
+ */
+abstract class ResidentStore<T extends Comparable<T>, V extends Indexable<T>> implements Store<T, V> {
+	
+	/** An element resident on the heap (fields are guarded by its monitor). */
+	private static final class Resident<V> {
+	
+		private final WeakReference<V> ref;
+		/* Not null if pinned */
+		private V value;
+		private boolean accessed;
+		private boolean dirty;
+	
+		Resident(V value, boolean pinned) {
+			this.ref = new WeakReference<>(value);
+			this.value = (pinned ? value : null);
+			this.accessed = pinned;
+			this.dirty = false;
+		}
+	
+		/** @return The element if it is still referenced (pinning it if pin is true), null otherwise. */
+		synchronized V get(boolean pin) {
+			V value = (this.value != null ? this.value : ref.get());
+			if (value != null && pin) { this.value = value; this.accessed = true; }
+			return value;
+		}
+	}
+	
+	protected final Codec<T, V> codec;
+	private final int capacity;
+	private final ConcurrentMap<T, Resident<V>> residents;
+	/* Read lock for lookups and write-backs, write lock for insertions and removals */
+	private final ReadWriteLock lock;
+	/* Residents added since the last sweep */
+	private final AtomicInteger added;
+	private final ReentrantLock sweepLock;
+	private volatile Loader<V> loader;
+	private boolean closed;
+	
+	protected ResidentStore(Codec<T, V> codec, int capacity) {
+		Common.notNull(codec);
+		Common.allAndArgs(capacity > 0);
+		this.codec = codec;
+		this.capacity = capacity;
+		this.residents = new ConcurrentHashMap<>();
+		this.lock = new ReentrantReadWriteLock();
+		this.added = new AtomicInteger(0);
+		this.sweepLock = new ReentrantLock();
+		this.loader = null;
+		this.closed = false;
+	}
+	
+	/** @return The encoded element with the given key if present, null otherwise. */
+	protected abstract byte[] read(T key) throws IOException;
+	
+	/** Writes the encoded element with the given key, replacing the previous one (if any). */
+	protected abstract void write(T key, byte[] value) throws IOException;
+	
+	/** Deletes the element with the given key (if any). */
+	protected abstract void delete(T key) throws IOException;
+	
+	/** @return true if there is an element with the given key. */
+	protected abstract boolean exists(T key);
+	
+	/** @return A weakly consistent iterator over the keys in [from, to) (null for no bound), in ascending order. */
+	@NotNull
+	protected abstract Iterator<T> keys(T from, T to);
+	
+	/** Releases the storage. */
+	protected abstract void release() throws IOException;
+	
+	public void setLoader(Loader<V> loader) { this.loader = loader; }
+	
+	public V get(T key) {
+		Common.notNull(key);
+		V value;
+		try {
+			lock.readLock().lock();
+			value = this.load(key, true);
+		} finally { lock.readLock().unlock(); }
+		this.sweepIfFull();
+		return value;
+	}
+	
+	/**
+	 * Returns the resident element with the given key or, if it is not resident, decodes it and makes it resident.
+	 *  NOTE: The caller must hold the read lock.
+	 * @param pin If true, the element is pinned.
+	 */
+	private V load(T key, boolean pin) {
+		Resident<V> resident = residents.get(key);
+		V value = (resident != null ? resident.get(pin) : null);
+		if (value != null) return value;
+		byte[] bytes;
+		try { bytes = this.read(key); }
+		catch (IOException ioe) { throw new IllegalStateException(Common.excStr("Unable to read '%s': %s", key, ioe.getMessage())); }
+		if (bytes == null) return null;
+		V decoded = this.decode(bytes);
+		List<V> result = new ArrayList<>(1);
+		/* If another thread has made it resident meanwhile, its instance is returned */
+		residents.compute(key, (k, r) -> {
+			V current = (r != null ? r.get(pin) : null);
+			if (current != null) { result.add(current); return r; }
+			result.add(decoded);
+			added.incrementAndGet();
+			return new Resident<>(decoded, pin);
+		});
+		return result.get(0);
+	}
+	
+	private V decode(byte[] bytes) {
+		try {
+			V value = codec.decode(bytes);
+			Loader<V> loader = this.loader;
+			if (loader != null) loader.load(value);
+			return value;
+		} catch (IOException | DeserializationException ex) {
+			throw new IllegalStateException(String.format("Unable to decode element: %s", ex.getMessage()));
+		}
+	}
+	
+	public boolean putIfAbsent(V elem) {
+		Common.notNull(elem);
+		T key = elem.key();
+		boolean result;
+		try {
+			lock.writeLock().lock();
+			Common.allAndState(!closed);
+			result = !this.exists(key);
+			if (result) {
+				this.write(key, codec.encode(elem));
+				residents.put(key, new Resident<>(elem, false));
+				added.incrementAndGet();
+			}
+		} catch (IOException ioe) {
+			throw new IllegalStateException(Common.excStr("Unable to write '%s': %s", key, ioe.getMessage()));
+		} finally { lock.writeLock().unlock(); }
+		this.sweepIfFull();
+		return result;
+	}
+	
+	public V remove(T key) {
+		Common.notNull(key);
+		try {
+			lock.writeLock().lock();
+			Common.allAndState(!closed);
+			Resident<V> resident = residents.remove(key);
+			V value = (resident != null ? resident.get(false) : null);
+			if (value == null) {
+				byte[] bytes = this.read(key);
+				if (bytes == null) return null;
+				value = this.decode(bytes);
+			}
+			this.delete(key);
+			return value;
+		} catch (IOException ioe) {
+			throw new IllegalStateException(Common.excStr("Unable to remove '%s': %s", key, ioe.getMessage()));
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	public boolean contains(T key) {
+		Common.notNull(key);
+		return this.exists(key);
+	}
+	
+	/**
+	 * Marks the resident element with the given key as modified (and pins it), such that it is written back
+	 *  when it is unpinned. If the element is not resident, it cannot have been modified.
+	 */
+	public void touch(T key) {
+		Common.notNull(key);
+		Resident<V> resident = residents.get(key);
+		if (resident != null) synchronized (resident) {
+			if (resident.get(true) != null) resident.dirty = true;
+		}
+	}
+	
+	/** Elements are returned without pinning them (i.e. they are resident only as long as they are referenced). */
+	@NotNull
+	public Iterator<V> scan(T from, T to) {
+		Iterator<T> keys = this.keys(from, to);
+		return new Iterator<V>() {
+	
+			private V next = null;
+	
+			public boolean hasNext() {
+				while (next == null && keys.hasNext()) {
+					T key = keys.next();
+					try {
+						lock.readLock().lock();
+						next = load(key, false);
+					} finally { lock.readLock().unlock(); }
+				}
+				return (next != null);
+			}
+	
+			public V next() {
+				if (!this.hasNext()) throw new NoSuchElementException();
+				V result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+	
+	/** @return A sorted copy of the keys of this store. */
+	@NotNull
+	public NavigableSet<T> keySet() {
+		NavigableSet<T> keys = new TreeSet<>();
+		Iterator<T> iter = this.keys(null, null);
+		while (iter.hasNext()) keys.add(iter.next());
+		return keys;
+	}
+	
+	/** Sweeps the residents if at least {@link #capacity} residents have been added since the last sweep. */
+	private void sweepIfFull() {
+		if (added.get() < capacity || !sweepLock.tryLock()) return;
+		try {
+			lock.readLock().lock();
+			if (!closed) this.sweep(false);
+		} finally {
+			lock.readLock().unlock();
+			sweepLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes back the modified elements that have not been accessed since the previous sweep (or all of them if
+	 *  all is true) and unpins them, and removes the residents that are no longer referenced.
+	 *  NOTE: The caller must hold the read lock.
+	 */
+	private void sweep(boolean all) {
+		added.set(0);
+		for (Map.Entry<T, Resident<V>> entry : residents.entrySet()) {
+			Resident<V> resident = entry.getValue();
+			synchronized (resident) {
+				if (resident.accessed && !all) { resident.accessed = false; continue; }
+				if (resident.dirty && resident.value != null) {
+					try { this.write(entry.getKey(), codec.encode(resident.value)); }
+					catch (IOException ioe) {
+						throw new IllegalStateException(Common.excStr("Unable to write back '%s': %s", entry.getKey(), ioe.getMessage()));
+					}
+					resident.dirty = false;
+				}
+				resident.value = null;
+				if (resident.ref.get() == null) residents.remove(entry.getKey(), resident);
+			}
+		}
+	}
+	
+	/** Writes back all the modified elements and releases the storage. */
+	public void close() throws IOException {
+		try {
+			lock.writeLock().lock();
+			if (closed) return;
+			this.sweep(true);
+			residents.clear();
+			closed = true;
+			this.release();
+		} finally { lock.writeLock().unlock(); }
+	}
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package winsome.server.data;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * Batch settlement of a reward round into the wallets table. The rewards of a round are split into
+ *  partitions that are applied in parallel: each partition looks up all its wallets acquiring the lock of the
+ *  table only once ({@link Table#get(List, List)}) and then stages the transactions into them
+ *  ({@link Wallet#stage(long, long, double)}). Only when all partitions have been applied, the round is published
+ *  ({@link Wallet#publishRound(long)}) and so it becomes visible to readers all at once.
+ *  Settlement is idempotent: replaying an already (partially or totally) applied round after a restart
+ *  does not add any transaction twice. If any partition fails, the transactions already staged for the round are
+ *  removed ({@link Wallet#unstage()}), such that the round can be settled again.
+ * @author Salvatore Correnti
+ * @see Wallet
+ */
+public final class Settlement {
+	
+	private Settlement() {}
+	
+	/** Minimum number of rewards per partition. */
+	private static final int MINPARTSIZE = 1024;
+	
+	/**
+	 * Applies the given reward round to the wallets table.
+	 * @param wallets Wallets table.
+	 * @param round Id of the round (it must be greater than the last published one to have any effect).
+	 * @param time Time in milliseconds of the transactions of this round.
+	 * @param rewards Map user -> reward of the round.
+	 * @param pool Executor for applying partitions in parallel.
+	 * @return The number of transactions staged by this invocation (0 if the round was already published).
+	 * @throws NullPointerException If any of wallets, rewards, pool is null.
+	 * @throws IllegalArgumentException If round &le; 0 or time &le; 0.
+	 * @throws IllegalStateException If a rewarded user has no wallet (nothing is staged in this case).
+	 * @throws InterruptedException If interrupted while waiting for partitions (nothing is staged in this case).
+	 */
+	public static int settle(Table<String, Wallet> wallets, long round, long time, Map<String, Double> rewards,
+		ExecutorService pool) throws InterruptedException {
+		Common.notNull(wallets, rewards, pool);
+		Common.allAndArgs(round > 0, time > 0);
+		if (round <= Wallet.visibleRound()) return 0;
+		
+		List<List<String>> partitions = partition(rewards.keySet());
+		List<Future<Integer>> results = new ArrayList<>();
+		for (List<String> part : partitions) results.add( pool.submit(() -> applyPartition(wallets, round, time, part, rewards)) );
+		int staged = 0;
+		boolean published = false;
+		try {
+			Throwable failure = null;
+			for (Future<Integer> result : results) {
+				try { staged += result.get(); }
+				catch (ExecutionException ex) { if (failure == null) failure = ex.getCause(); }
+			}
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			else if (failure instanceof Error) throw (Error) failure;
+			else if (failure != null) throw new IllegalStateException(failure);
+			Wallet.publishRound(round);
+			published = true;
+			return staged;
+		} finally {
+			if (!published) {
+				/* Partitions still running (e.g. on interruption) are waited for, such that none of them stages after */
+				boolean interrupted = false;
+				for (Future<Integer> result : results) {
+					while (!result.isDone()) {
+						try { result.get(); }
+						catch (InterruptedException ie) { interrupted = true; }
+						catch (ExecutionException | CancellationException ex) {}
+					}
+				}
+				unstage(wallets, rewards.keySet());
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Checks that every rewarded user has a wallet, e.g. before logging a settlement.
+	 * @param wallets Wallets table.
+	 * @param users Rewarded users.
+	 * @throws IllegalStateException If a user has no wallet.
+	 */
+	public static void validate(Table<String, Wallet> wallets, Collection<String> users) {
+		Common.notNull(wallets, users);
+		List<String> keys = new ArrayList<>(users);
+		List<Wallet> found = new ArrayList<>(keys.size());
+		wallets.get(keys, found);
+		for (int i = 0; i < keys.size(); i++)
+			if (found.get(i) == null) throw new IllegalStateException(Common.excStr("No wallet for user '%s'", keys.get(i)));
+	}
+	
+	/** Removes the transactions staged (and not yet published) for the given users. */
+	private static void unstage(Table<String, Wallet> wallets, Collection<String> users) {
+		List<String> keys = new ArrayList<>(users);
+		List<Wallet> found = new ArrayList<>(keys.size());
+		wallets.get(keys, found);
+		for (Wallet w : found) if (w != null) w.unstage();
+	}
+	
+	/**
+	 * Stages the rewards of a single partition.
+	 * @return The number of staged transactions.
+	 * @throws IllegalStateException If a user of the partition has no wallet.
+	 */
+	private static int applyPartition(Table<String, Wallet> wallets, long round, long time, List<String> users,
+		Map<String, Double> rewards) {
+		List<Wallet> found = new ArrayList<>(users.size());
+		wallets.get(users, found);
+		int staged = 0;
+		for (int i = 0; i < users.size(); i++) {
+			Wallet w = found.get(i);
+			if (w == null) throw new IllegalStateException(Common.excStr("No wallet for user '%s'", users.get(i)));
+			if (w.stage(round, time, rewards.get(users.get(i)))) staged++;
+		}
+		return staged;
+	}
+	
+	/**
+	 * Splits users into partitions of at least {@link #MINPARTSIZE} users each (except possibly
+	 *  the last one), at most one for each available processor.
+	 */
+	@NotNull
+	private static List<List<String>> partition(Collection<String> users) {
+		int nparts = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), users.size() / MINPARTSIZE));
+		List<List<String>> result = new ArrayList<>(nparts);
+		int partSize = (users.size() + nparts - 1) / nparts;
+		for (int i = 0; i < nparts; i++) result.add(new ArrayList<>(partSize));
+		int index = 0;
+		for (String user : users) result.get(index++ / Math.max(1, partSize)).add(user);
+		return result;
+	}
+}
\ No newline at end of file
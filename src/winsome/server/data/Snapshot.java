@@ -0,0 +1,587 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.*;
+
+/**
+ * Online snapshots of the tables of the server. A table saved in "name.json" is written as {@link Table#partitions()}
+ *  segment files "name-i.g.json", each one containing the elements of the i-th partition as of the g-th snapshot
+ *  of the table (generation), and a manifest "name-manifest.json" that lists the current segment of each partition
+ *  together with its number of elements, size and CRC-32. Only the partitions marked as dirty since the previous
+ *  snapshot are written again (see {@link Table#touch(Comparable)}), in parallel and in compact form: the new
+ *  manifest references the new segments of those partitions and the old ones of the others, and it is written
+ *  (atomically) only after all the new segments, such that a crash while taking a snapshot always leaves the
+ *  previous manifest and all of its segments. Segments that are no more referenced are deleted afterwards.
+ *  Each file is first written to a temporary file through a buffered channel, forced to disk and then atomically
+ *  renamed (the directory is forced too).
+ *  Partitions are loaded in parallel and verified against the manifest; in recovery mode a missing or corrupted
+ *  partition is skipped and reported instead of failing the whole table (see {@link #readTable(String, Type, ExecutorService, List)}).
+ *  Snapshots can be taken while the tables are modified, since each {@link Post} and each {@link Wallet} is written
+ *  while holding its own lock: such a snapshot is "fuzzy", i.e. it does not correspond to a single point in time,
+ *  and it becomes consistent by replaying the write-ahead log of the server from the checkpoint of the snapshot.
+ * @author Salvatore Correnti
+ * @see Table
+ */
+public final class Snapshot {
+	
+	private Snapshot() {}
+	
+	static final String JSONEXT = ".json", TMPEXT = ".tmp";
+	
+	/* Name of the field of Table that contains its elements */
+	private static final String MAPFIELD = "map";
+	
+	/* Suffix of the manifest of a table */
+	private static final String MANIFEST = "-manifest";
+	
+	/**
+	 * Gson used for writing snapshots: it writes compact JSON (posts and wallets are locked while written by
+	 *  their adapters, see {@link Post.Adapter} and {@link Wallet.Adapter}).
+	 */
+	public static final Gson GSON = new GsonBuilder().create();
+	
+	/** Writes the content of a file. */
+	@FunctionalInterface
+	private static interface Content { void write(Writer writer) throws IOException; }
+	
+	/** Segment of a partition as listed in a manifest. */
+	private static final class Segment {
+		
+		private int partition;
+		/* Name of the file (in the same directory of the manifest) */
+		private String file;
+		private int elements;
+		private long bytes;
+		private long crc;
+		
+		Segment(int partition, String file, int elements, long bytes, long crc) {
+			this.partition = partition;
+			this.file = file;
+			this.elements = elements;
+			this.bytes = bytes;
+			this.crc = crc;
+		}
+	}
+	
+	/** Manifest of a table, i.e. the list of the current segments of its partitions. */
+	private static final class Manifest {
+		
+		private long generation;
+		private int partitions;
+		private List<Segment> segments;
+		
+		Manifest(long generation, int partitions, List<Segment> segments) {
+			this.generation = generation;
+			this.partitions = partitions;
+			this.segments = segments;
+		}
+		
+		/** @throws IOException If this manifest is not valid. */
+		void validate(Path path) throws IOException {
+			boolean valid = (generation > 0 && partitions > 0 && segments != null);
+			Set<Integer> seen = new HashSet<>();
+			if (valid) for (Segment seg : segments) {
+				valid = (seg != null && seg.partition >= 0 && seg.partition < partitions && seen.add(seg.partition)
+					&& seg.file != null && seg.elements >= 0 && seg.bytes >= 0
+					&& Paths.get(seg.file).getFileName().toString().equals(seg.file));
+				if (!valid) break;
+			}
+			if (!valid) throw new IOException(Common.excStr("Invalid manifest '%s'", path));
+		}
+	}
+	
+	/** A channel that computes the CRC-32 of all the bytes read from or written to a file through it. */
+	private static final class CheckedChannel implements ByteChannel {
+		
+		private final FileChannel channel;
+		private final CRC32 crc = new CRC32();
+		
+		CheckedChannel(FileChannel channel) { this.channel = channel; }
+		
+		public int read(ByteBuffer dst) throws IOException {
+			int pos = dst.position(), n = channel.read(dst);
+			if (n > 0) {
+				ByteBuffer read = dst.duplicate();
+				read.position(pos).limit(pos + n);
+				crc.update(read);
+			}
+			return n;
+		}
+		
+		public int write(ByteBuffer src) throws IOException {
+			ByteBuffer written = src.duplicate();
+			int n = channel.write(src);
+			written.limit(written.position() + n);
+			crc.update(written);
+			return n;
+		}
+		
+		/** Reads (and checksums) all the remaining bytes. */
+		void drain() throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(Serialization.BUFFERSIZE);
+			while (this.read(buffer) >= 0) buffer.clear();
+		}
+		
+		long crc() { return crc.getValue(); }
+		
+		public boolean isOpen() { return channel.isOpen(); }
+		public void close() throws IOException { channel.close(); }
+	}
+	
+	/** Base name of the files of a table. */
+	private static String baseName(String filename) {
+		return (filename.endsWith(JSONEXT) ? filename.substring(0, filename.length() - JSONEXT.length()) : filename);
+	}
+	
+	/**
+	 * @param filename Name of the file of a table.
+	 * @param partition Partition.
+	 * @param generation Generation of the segment.
+	 * @return The name of the segment file of the given partition as written by the snapshot of the given generation.
+	 */
+	@NotNull
+	public static String partitionFile(String filename, int partition, long generation) {
+		Common.notNull(filename);
+		return baseName(filename) + "-" + partition + "." + generation + JSONEXT;
+	}
+	
+	/**
+	 * @param filename Name of the file of a table.
+	 * @return The name of the manifest of the table.
+	 */
+	@NotNull
+	public static String manifestFile(String filename) {
+		Common.notNull(filename);
+		return baseName(filename) + MANIFEST + JSONEXT;
+	}
+	
+	/**
+	 * @return A pattern that matches the names of the segment files of the given table, such that group 1 is the
+	 *  partition and group 2 is the generation (if any, since files written without a manifest have none).
+	 */
+	private static Pattern segmentPattern(Path path) {
+		return Pattern.compile(Pattern.quote(baseName(path.getFileName().toString())) + "-(\\d+)(?:\\.(\\d+))?" + Pattern.quote(JSONEXT));
+	}
+	
+	/**
+	 * Lists the segment files of a table that are in its directory.
+	 * @return A map from the name of each segment file to the matcher of its name by {@link #segmentPattern(Path)}.
+	 * @throws IOException On I/O errors.
+	 */
+	private static Map<String, Matcher> listSegments(Path path) throws IOException {
+		Pattern pattern = segmentPattern(path);
+		Map<String, Matcher> result = new HashMap<>();
+		Path dir = path.getParent();
+		if (!Files.isDirectory(dir)) return result;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				Matcher matcher = pattern.matcher(name);
+				if (matcher.matches()) result.put(name, matcher);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes a file through a temporary file that is forced to disk and then atomically renamed.
+	 * @param path Path of the file.
+	 * @param content Content of the file.
+	 * @return An array {number of written bytes, CRC-32 of the content}.
+	 * @throws IOException On I/O errors (the previous version of the file, if any, is left untouched).
+	 */
+	private static long[] write(Path path, Content content) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + TMPEXT);
+		FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		CheckedChannel checked = new CheckedChannel(channel);
+		long size;
+		try (Writer writer = Serialization.bufferedWriter(checked)) {
+			content.write(writer);
+			writer.flush();
+			channel.force(true);
+			size = channel.size();
+		} catch (JsonIOException ex) { throw new IOException(ex); }
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new long[] {size, checked.crc()};
+	}
+	
+	/**
+	 * @param ex Exception thrown by {@link Future#get()}.
+	 * @return The exception thrown by the task, also when it is a checked exception wrapped by {@link ForkJoinPool}
+	 *  into a {@link RuntimeException} (possibly more than once).
+	 */
+	public static Throwable cause(ExecutionException ex) {
+		Throwable cause = ex.getCause();
+		while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null) cause = cause.getCause();
+		return cause;
+	}
+	
+	/** Forces the directory of the given file to disk, such that renames in it are durable (not supported everywhere). */
+	static void syncDirectory(Path path) {
+		try (FileChannel dir = FileChannel.open(path.getParent(), StandardOpenOption.READ)) { dir.force(true); }
+		catch (IOException ioe) {}
+	}
+	
+	/**
+	 * Writes a string to a file through a temporary file and an atomic rename.
+	 * @param json String to write.
+	 * @param filename Name of the file.
+	 * @return The number of written bytes.
+	 * @throws IOException On I/O errors.
+	 */
+	public static long writeString(String json, String filename) throws IOException {
+		Common.notNull(json, filename);
+		Path path = Paths.get(filename).toAbsolutePath();
+		long size = write(path, (writer) -> writer.write(json))[0];
+		syncDirectory(path);
+		return size;
+	}
+	
+	/**
+	 * Writes an object as JSON through a temporary file and an atomic rename.
+	 * @param obj The object.
+	 * @param type Type of the object.
+	 * @param filename Name of the file.
+	 * @return The number of written bytes.
+	 * @throws IOException On I/O errors.
+	 */
+	public static long writeJson(Object obj, Type type, String filename) throws IOException {
+		Common.notNull(obj, type, filename);
+		Path path = Paths.get(filename).toAbsolutePath();
+		long size = write(path, (writer) -> GSON.toJson(obj, type, GSON.newJsonWriter(writer)))[0];
+		syncDirectory(path);
+		return size;
+	}
+	
+	/** Snapshot of a table that is being written. */
+	private static final class Job {
+		
+		/* Path of the file of the table */
+		private final Path path;
+		private final long generation;
+		private final int partitions;
+		/* Segments of the previous manifest that are still current */
+		private final List<Segment> kept;
+		private final List<Future<Segment>> written;
+		
+		Job(Path path, long generation, int partitions, List<Segment> kept, List<Future<Segment>> written) {
+			this.path = path;
+			this.generation = generation;
+			this.partitions = partitions;
+			this.kept = kept;
+			this.written = written;
+		}
+	}
+	
+	/**
+	 * Writes the partitions of the given tables that are dirty (or whose segment does not exist), all in parallel,
+	 *  and then the manifest of each table that has been written.
+	 * @param tables The tables.
+	 * @param filenames Names of the files of the tables (in the same order).
+	 * @param types Types of the tables (in the same order).
+	 * @param pool Executor for writing partitions in parallel.
+	 * @return An array {number of written partitions, number of written bytes}.
+	 * @throws IOException On I/O errors (all the partitions of all the tables are marked as dirty again).
+	 * @throws InterruptedException If interrupted while waiting for partitions (as above).
+	 * @throws IllegalArgumentException If the three lists do not have the same size.
+	 */
+	@NotNull
+	public static long[] writeTables(List<Table<?, ?>> tables, List<String> filenames, List<Type> types,
+		ExecutorService pool) throws IOException, InterruptedException {
+		Common.notNull(tables, filenames, types, pool);
+		Common.allAndArgs(tables.size() == filenames.size(), tables.size() == types.size());
+		List<Job> jobs = new ArrayList<>();
+		long[] result = new long[] {0, 0};
+		boolean done = false;
+		try {
+			for (int i = 0; i < tables.size(); i++) jobs.add(submit(tables.get(i), filenames.get(i), types.get(i), pool));
+			for (Job job : jobs) {
+				if (job.written.isEmpty()) continue;
+				List<Segment> segments = new ArrayList<>(job.kept);
+				for (Future<Segment> segment : job.written) {
+					Segment seg = segment.get();
+					segments.add(seg);
+					result[1] += seg.bytes;
+				}
+				result[0] += job.written.size();
+				segments.sort((s1, s2) -> Integer.compare(s1.partition, s2.partition));
+				Manifest manifest = new Manifest(job.generation, job.partitions, segments);
+				result[1] += writeJson(manifest, Manifest.class, manifestFile(job.path.toString()));
+				clean(job.path, manifest);
+			}
+			done = true;
+		} catch (ExecutionException ex) {
+			Throwable cause = cause(ex);
+			if (cause instanceof IOException) throw (IOException) cause;
+			else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			else throw new IllegalStateException(cause);
+		} finally {
+			if (!done) {
+				for (Job job : jobs) for (Future<Segment> segment : job.written) segment.cancel(false);
+				for (Table<?, ?> table : tables) table.touchAll();
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Deletes the segments of a table that are not referenced by its (just written) manifest and the file of the
+	 *  table as a single file, if any.
+	 * @throws IOException On I/O errors.
+	 */
+	private static void clean(Path path, Manifest manifest) throws IOException {
+		Set<String> current = new HashSet<>();
+		for (Segment seg : manifest.segments) current.add(seg.file);
+		for (String name : listSegments(path).keySet())
+			if (!current.contains(name)) Files.deleteIfExists(path.resolveSibling(name));
+		Files.deleteIfExists(path);
+		syncDirectory(path);
+	}
+	
+	/**
+	 * Deletes all the JSON files of a table (e.g. after it has been written in binary format, see {@link BinarySnapshot}).
+	 * @param filename Name of the file of the table.
+	 * @throws IOException On I/O errors.
+	 */
+	public static void deleteTable(String filename) throws IOException {
+		Common.notNull(filename);
+		Path path = Paths.get(filename).toAbsolutePath();
+		/* The manifest is deleted first, such that it never references a deleted segment */
+		Files.deleteIfExists(Paths.get(manifestFile(path.toString())));
+		for (String name : listSegments(path).keySet()) Files.deleteIfExists(path.resolveSibling(name));
+		Files.deleteIfExists(path);
+	}
+	
+	/**
+	 * Reads the manifest of a table.
+	 * @param path Path of the file of the table.
+	 * @return The manifest, or null if it does not exist.
+	 * @throws IOException On I/O errors or if the manifest is not valid.
+	 */
+	private static Manifest readManifest(Path path) throws IOException {
+		Path file = Paths.get(manifestFile(path.toString()));
+		Manifest manifest;
+		try (Reader reader = Serialization.bufferedReader(file)) { manifest = GSON.fromJson(reader, Manifest.class); }
+		catch (NoSuchFileException ex) { return null; }
+		catch (JsonParseException ex) { throw new IOException(Common.excStr("Invalid manifest '%s'", file), ex); }
+		if (manifest == null) throw new IOException(Common.excStr("Invalid manifest '%s'", file));
+		manifest.validate(file);
+		return manifest;
+	}
+	
+	/**
+	 * Cleans the dirty partitions of a table and submits a task for writing each of them (or all of them if the table
+	 *  has no valid manifest or its number of partitions has changed) as a segment of a new generation.
+	 * @throws IOException On I/O errors.
+	 */
+	private static <T extends Comparable<T>, V extends Indexable<T>> Job submit(Table<T, V> table, String filename,
+		Type type, ExecutorService pool) throws IOException {
+		Path path = Paths.get(filename).toAbsolutePath();
+		Manifest previous;
+		try { previous = readManifest(path); }
+		catch (IOException ioe) { previous = null; }
+		/* The new generation must be greater than the one of any existing segment, since they could still be referenced */
+		long generation = (previous != null ? previous.generation : 0);
+		for (Matcher matcher : listSegments(path).values()) {
+			try { if (matcher.group(2) != null) generation = Math.max(generation, Long.parseLong(matcher.group(2))); }
+			catch (NumberFormatException ex) {}
+		}
+		generation++;
+		int partitions = table.partitions();
+		Segment[] current = new Segment[partitions];
+		if (previous != null && previous.partitions == partitions) {
+			for (Segment seg : previous.segments)
+				if (Files.exists(path.resolveSibling(seg.file))) current[seg.partition] = seg;
+		}
+		boolean[] selected = new boolean[partitions];
+		for (int i = 0; i < partitions; i++) selected[i] = table.clean(i) || current[i] == null;
+		List<List<V>> parts = table.split(selected);
+		List<Segment> kept = new ArrayList<>();
+		List<Future<Segment>> written = new ArrayList<>();
+		for (int i = 0; i < partitions; i++) {
+			if (!selected[i]) { kept.add(current[i]); continue; }
+			List<V> elems = parts.get(i);
+			int partition = i;
+			Path file = Paths.get(partitionFile(path.toString(), partition, generation));
+			written.add(pool.submit(() -> {
+				Table<T, V> part = new Table<>();
+				for (V elem : elems) part.putIfAbsent(elem);
+				long[] stats = write(file, (writer) -> GSON.toJson(part, type, GSON.newJsonWriter(writer)));
+				return new Segment(partition, file.getFileName().toString(), elems.size(), stats[0], stats[1]);
+			}));
+		}
+		return new Job(path, generation, partitions, kept, written);
+	}
+	
+	/**
+	 * Same as {@link #readTable(String, Type, ExecutorService, List)} without recovery mode.
+	 * @throws IOException On I/O errors or if a partition is not valid.
+	 * @throws DeserializationException On table deserialization failure.
+	 * @throws InterruptedException If interrupted while waiting for partitions.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Type type,
+		ExecutorService pool) throws IOException, DeserializationException, InterruptedException {
+		return readTable(filename, type, pool, null);
+	}
+	
+	/**
+	 * Reads a table written by {@link #writeTables(List, List, List, ExecutorService)} or, if it has neither a manifest
+	 *  nor any segment, a table written as a single JSON file. Partitions are parsed in parallel, each one is verified
+	 *  against the manifest (checksum and number of elements) and its elements are then added to the resulting table.
+	 *  If the manifest is missing or not valid (recovery mode), the latest segment of each partition is read without
+	 *  verifying it.
+	 *  NOTE: The elements of the table are NOT deserialized.
+	 * @param filename Name of the file of the table.
+	 * @param type Type of the table.
+	 * @param pool Executor for reading partitions in parallel.
+	 * @param skipped If not null, recovery mode is enabled: a partition (or manifest) that is missing or not valid
+	 *  is skipped and a description of it is added to this list, instead of failing the whole table.
+	 * @return The table, or null if there is no file for it (or the single JSON file is not valid).
+	 * @throws IOException On I/O errors or if a partition is not valid (and recovery mode is not enabled).
+	 * @throws DeserializationException On table deserialization failure.
+	 * @throws InterruptedException If interrupted while waiting for partitions.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Type type,
+		ExecutorService pool, List<String> skipped) throws IOException, DeserializationException, InterruptedException {
+		return readTable(filename, type, pool, skipped, null);
+	}
+	
+	/**
+	 * Same as {@link #readTable(String, Type, ExecutorService, List)}, with the elements added to the given store.
+	 * @param store Empty store of the table (see {@link Table#Table(int, Store)}), or null for a store on the heap.
+	 *  It is left empty if null is returned.
+	 */
+	public static <T extends Comparable<T>, V extends Indexable<T>> Table<T, V> readTable(String filename, Type type,
+		ExecutorService pool, List<String> skipped, Store<T, V> store) throws IOException, DeserializationException, InterruptedException {
+		Common.notNull(filename, type, pool);
+		Common.allAndArgs(type instanceof ParameterizedType);
+		@SuppressWarnings("unchecked")
+		TypeAdapter<V> adapter = (TypeAdapter<V>) GSON.getAdapter(TypeToken.get(((ParameterizedType)type).getActualTypeArguments()[1]));
+		Path path = Paths.get(filename).toAbsolutePath();
+		Manifest manifest = null;
+		try { manifest = readManifest(path); }
+		catch (IOException ioe) {
+			if (skipped == null) throw ioe;
+			skipped.add(ioe.getMessage());
+		}
+		List<Segment> segments;
+		int partitions;
+		if (manifest != null) {
+			segments = manifest.segments;
+			partitions = manifest.partitions;
+		} else {
+			/* Latest segment of each partition (elements = -1 since it cannot be verified) */
+			Map<Integer, Long> generations = new HashMap<>();
+			Map<Integer, Segment> latest = new TreeMap<>();
+			for (Map.Entry<String, Matcher> entry : listSegments(path).entrySet()) {
+				Matcher matcher = entry.getValue();
+				int partition;
+				long generation;
+				try {
+					partition = Integer.parseInt(matcher.group(1));
+					generation = (matcher.group(2) != null ? Long.parseLong(matcher.group(2)) : 0);
+				} catch (NumberFormatException ex) { continue; }
+				Long previous = generations.get(partition);
+				if (previous != null && previous >= generation) continue;
+				generations.put(partition, generation);
+				latest.put(partition, new Segment(partition, entry.getKey(), -1, -1, -1));
+			}
+			segments = new ArrayList<>(latest.values());
+			partitions = (latest.isEmpty() ? Table.DFLPARTITIONS : Math.max(Table.DFLPARTITIONS, segments.get(segments.size() - 1).partition + 1));
+		}
+		if (manifest != null || !segments.isEmpty()) {
+			Table<T, V> merged = (store != null ? new Table<>(partitions, store) : new Table<>(partitions));
+			List<Future<Integer>> results = new ArrayList<>();
+			for (Segment seg : segments) {
+				Path file = path.resolveSibling(seg.file);
+				results.add(pool.submit(() -> readPartition(file, seg, adapter, merged)));
+			}
+			boolean done = false;
+			try {
+				for (Future<Integer> result : results) {
+					try { result.get(); }
+					catch (ExecutionException ex) {
+						if (skipped == null || !(cause(ex) instanceof IOException)) throw ex;
+						skipped.add(cause(ex).getMessage());
+					}
+				}
+				done = true;
+			} catch (ExecutionException ex) {
+				Throwable cause = cause(ex);
+				if (cause instanceof IOException) throw (IOException) cause;
+				else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				else throw new IllegalStateException(cause);
+			} finally { if (!done) for (Future<Integer> result : results) result.cancel(false); }
+			return merged;
+		}
+		Table<T, V> table = null;
+		JsonReader reader = Serialization.fileReader(filename);
+		if (reader != null) {
+			try { table = Serialization.GSON.fromJson(reader, type); }
+			catch (JsonIOException | JsonSyntaxException ex) { ex.printStackTrace(); table = null; }
+			finally { reader.close(); }
+		}
+		if (table != null) table.deserialize();
+		if (table != null && store != null) {
+			/* Single JSON files are always read on the heap */
+			Table<T, V> moved = new Table<>(Table.DFLPARTITIONS, store);
+			for (V elem : table.getAll()) moved.putIfAbsent(elem);
+			table = moved;
+		}
+		return table;
+	}
+	
+	/**
+	 * Verifies a segment file against its entry in the manifest (if any) and then parses it, adding each element
+	 *  to the given table. The file is checksummed before parsing it (it is usually still in the page cache), such
+	 *  that the elements of a corrupted segment are never added to the table.
+	 * @return The number of read elements.
+	 * @throws IOException On I/O errors or if the file is not valid.
+	 */
+	private static <T extends Comparable<T>, V extends Indexable<T>> int readPartition(Path path, Segment seg,
+		TypeAdapter<V> adapter, Table<T, V> table) throws IOException {
+		if (seg.elements >= 0) {
+			try (CheckedChannel channel = new CheckedChannel(FileChannel.open(path, StandardOpenOption.READ))) {
+				channel.drain();
+				if (channel.crc() != seg.crc) throw new IOException(Common.excStr("Corrupted partition '%s' (bad checksum)", path));
+			} catch (NoSuchFileException ex) { throw new IOException(Common.excStr("Missing partition '%s'", path), ex); }
+		}
+		int count = 0;
+		try (JsonReader reader = GSON.newJsonReader(Serialization.bufferedReader(path))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals(MAPFIELD)) { reader.skipValue(); continue; }
+				reader.beginObject();
+				while (reader.hasNext()) {
+					reader.nextName();
+					V elem = adapter.read(reader);
+					if (elem != null) { table.putIfAbsent(elem); count++; }
+				}
+				reader.endObject();
+			}
+			reader.endObject();
+		} catch (NoSuchFileException ex) {
+			throw new IOException(Common.excStr("Missing partition '%s'", path), ex);
+		} catch (IllegalStateException | JsonParseException ex) {
+			throw new IOException(Common.excStr("Invalid partition '%s'", path), ex);
+		}
+		if (seg.elements >= 0 && count != seg.elements)
+			throw new IOException(Common.excStr("Partition '%s' contains %d elements instead of %d", path, count, seg.elements));
+		return count;
+	}
+}
\ No newline at end of file
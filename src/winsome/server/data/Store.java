@@ -0,0 +1,121 @@
+package winsome.server.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import winsome.annotations.NotNull;
+import winsome.util.Common;
+
+/**
+ * Storage of the elements of a {@link Table}, that the table delegates to for lookups, insertions, removals and
+ *  scans. Elements returned by a store are "live" objects: as long as an element is referenced, the store returns
+ *  the same instance for its key, such that it can be locked and modified in place. Stores that keep elements off
+ *  the heap ({@link Kind#MAPPED}, {@link Kind#LSM}) write back the modified elements lazily: an element modified
+ *  in place must be notified by {@link #touch(Comparable)} (as already done by {@link Table#touch(Comparable)} for
+ *  snapshots) before the last reference to it is dropped.
+ *  The content of a store is NOT durable: it is rebuilt from the snapshot at each start of the server, while
+ *  durability is given by snapshots and by the write-ahead log.
+ * @author Salvatore Correnti
+ *
+ * @param <T> Type of the key.
+ * @param <V> Type of the elements.
+ * @see Table
+ */
+public interface Store<T extends Comparable<T>, V extends Indexable<T>> extends Closeable {
+	
+	/** Kinds of stores. */
+	public static enum Kind {
+		/** Elements in a concurrent skip list on the heap. */
+		HEAP,
+		/** Elements in an append-only file mapped in memory, indexed by a hash table of keys (see {@link MappedStore}). */
+		MAPPED,
+		/** Elements in a log-structured merge tree, i.e. a memtable and sorted runs on disk (see {@link LogStructuredStore}). */
+		LSM;
+	}
+	
+	/**
+	 * Restores the transient fields of an element that has been read again from a store (e.g. after being
+	 *  written back and collected).
+	 */
+	@FunctionalInterface
+	public static interface Loader<V> {
+		public void load(V elem) throws DeserializationException;
+	}
+	
+	/**
+	 * @param key The key.
+	 * @return The element with the given key if present, null otherwise.
+	 * @throws IllegalStateException On I/O errors when reading the element.
+	 */
+	public V get(T key);
+	
+	/**
+	 * Adds the given element if no element with the same key is present.
+	 * @param elem The element.
+	 * @return true if the element has been added, false otherwise.
+	 * @throws IllegalStateException On I/O errors when writing the element.
+	 */
+	public boolean putIfAbsent(V elem);
+	
+	/**
+	 * @param key The key.
+	 * @return The removed element if present, null otherwise.
+	 * @throws IllegalStateException On I/O errors.
+	 */
+	public V remove(T key);
+	
+	/**
+	 * @param key The key.
+	 * @return true if the store contains an element with the given key, false otherwise.
+	 */
+	public boolean contains(T key);
+	
+	/**
+	 * @param from Lowest key (inclusive), or null for no lower bound.
+	 * @param to Highest key (exclusive), or null for no upper bound.
+	 * @return A weakly consistent iterator over the elements with key in the given range, in ascending order by key.
+	 */
+	@NotNull
+	public Iterator<V> scan(T from, T to);
+	
+	/** @return A weakly consistent sorted set of the keys of the store (that may be a copy of them). */
+	@NotNull
+	public NavigableSet<T> keySet();
+	
+	/**
+	 * Notifies that the element with the given key has been modified in place.
+	 * @param key The key.
+	 */
+	public void touch(T key);
+	
+	/**
+	 * Sets the loader that is invoked on each element read again by this store.
+	 * @param loader The loader.
+	 */
+	public void setLoader(Loader<V> loader);
+	
+	/**
+	 * Opens a store of the given kind, deleting its previous content (if any).
+	 * @param kind Kind of store.
+	 * @param path Base path of the files of the store (ignored by {@link Kind#HEAP}).
+	 * @param type Class of the elements (one of {@link User}, {@link Post} and {@link Wallet} if the store is not
+	 *  {@link Kind#HEAP}).
+	 * @param cache Maximum number of elements that are kept on the heap after having been accessed (ignored by
+	 *  {@link Kind#HEAP}).
+	 * @return The store.
+	 * @throws IOException On I/O errors.
+	 * @throws IllegalArgumentException If cache &le; 0 or elements of the given class cannot be stored off the heap.
+	 */
+	@NotNull
+	public static <T extends Comparable<T>, V extends Indexable<T>> Store<T, V> open(Kind kind, String path,
+		Class<V> type, int cache) throws IOException {
+		Common.notNull(kind, path, type);
+		Common.allAndArgs(cache > 0);
+		switch (kind) {
+			case MAPPED : return new MappedStore<>(Paths.get(path), Codec.of(type), cache);
+			case LSM : return new LogStructuredStore<>(Paths.get(path), Codec.of(type), cache);
+			default : return new HeapStore<>();
+		}
+	}
+}
\ No newline at end of file
@@ -1,10 +1,15 @@
 package winsome.server.data;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
+import com.google.gson.*;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
 
 import winsome.annotations.NotNull;
 import winsome.util.Common;
@@ -12,24 +17,79 @@ import winsome.util.Serialization;
 
 /**
  * A class representing a table of objects indexed by a unique "key", inspired from a database table.
+ *  Elements are kept by a {@link Store}: by default, they are stored in a concurrent skip list on the heap, such that
+ *  lookups never block and iterators are weakly consistent snapshots (i.e., they never throw
+ *  {@link ConcurrentModificationException} and reflect the state of the table at some point at or since their creation),
+ *  while other stores keep them off the heap, such that the table can grow past the heap size. If ranking is enabled (see
+ *  {@link #enableRanking()}), the table also maintains a sorted view of its keys for answering rank
+ *  queries ({@link #index(Comparable)}) in O(log n), otherwise they are answered in O(n).
+ *  Keys are also hashed into a configurable number of partitions (see {@link #repartition(int)}), each one with a
+ *  "dirty" flag that is set whenever an element of the partition is added, removed or modified ({@link #touch(Comparable)}),
+ *  such that snapshots can skip the partitions that did not change since the previous one (see {@link Snapshot}).
  * @author Salvatore Correnti
  *
  * @param <T> Type of the key.
  * @param <V> Type of the objects.
  */
+@JsonAdapter(Table.AdapterFactory.class)
 public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	
+	/** Default number of partitions of a table. */
+	public static final int DFLPARTITIONS = 16;
+	
 	@NotNull
-	private final NavigableMap<T, V> map;
-	private transient ReentrantReadWriteLock lock = null;
+	private final transient Store<T, V> store;
+	/* Number of elements (counting the elements of the store takes linear time) */
+	private transient AtomicInteger size = null;
+	/* Sorted view for rank queries (null if ranking is not enabled), mutations are synchronized on it */
+	private transient volatile RankIndex<T> ranks = null;
+	/*
+	 * Read-locked by insertions and removals, write-locked by enableRanking() while filling the sorted view,
+	 *  such that no key is added or removed during the copy
+	 */
+	private final transient ReentrantReadWriteLock rankLock = new ReentrantReadWriteLock();
 	private transient Type type = null;
+	/* Dirty flags of the partitions (1 = dirty), its length is the number of partitions */
+	private transient volatile AtomicIntegerArray dirty = null;
+	
+	public Table() { this(DFLPARTITIONS); }
+	
+	/**
+	 * @param partitions Number of partitions.
+	 * @throws IllegalArgumentException If partitions &le; 0.
+	 */
+	public Table(int partitions) { this(partitions, new HeapStore<>()); }
 	
-	public Table() {
-		this.map = new TreeMap<>();
-		this.lock = new ReentrantReadWriteLock();
+	/**
+	 * @param partitions Number of partitions.
+	 * @param store Empty store of the elements (see {@link Store#open(Store.Kind, String, Class, int)}).
+	 * @throws IllegalArgumentException If partitions &le; 0.
+	 */
+	public Table(int partitions, Store<T, V> store) {
+		Common.notNull(store);
+		Common.allAndArgs(partitions > 0);
+		this.store = store;
+		this.size = new AtomicInteger(0);
+		this.dirty = new AtomicIntegerArray(partitions);
 		this.type = new TypeToken<Table<T,V>>(){}.getType();
 	}
 	
+	/**
+	 * Enables the sorted view of the keys of this table, needed by {@link #index(Comparable)}.
+	 *  Successive invocations of this method have no effect.
+	 */
+	public synchronized void enableRanking() {
+		if (ranks != null) return;
+		RankIndex<T> index = new RankIndex<>();
+		try {
+			rankLock.writeLock().lock();
+			synchronized (index) {
+				for (T key : store.keySet()) index.add(key);
+				this.ranks = index;
+			}
+		} finally { rankLock.writeLock().unlock(); }
+	}
+	
 	/**
 	 * Puts the given element in the table if absent, otherwise returns the already existing
 	 *  element with that key.
@@ -40,42 +100,44 @@ public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	public boolean putIfAbsent(V elem) {
 		Common.notNull(elem);
 		T key = elem.key();
+		boolean result;
 		try {
-			lock.writeLock().lock();
-			return (this.map.putIfAbsent(key, elem) == null);
-		} finally { lock.writeLock().unlock(); }
+			rankLock.readLock().lock();
+			RankIndex<T> index = this.ranks;
+			if (index == null) result = this.added(this.store.putIfAbsent(elem));
+			else synchronized (index) {
+				result = this.added(this.store.putIfAbsent(elem));
+				if (result) index.add(key);
+			}
+		} finally { rankLock.readLock().unlock(); }
+		if (result) this.mark(key);
+		return result;
 	}
 	
+	private boolean added(boolean result) { if (result) size.incrementAndGet(); return result; }
+	
 	/**
 	 * @param key The key.
 	 * @return The element with the given key if present, null otherwise.
 	 */
 	public V get(T key) {
 		Common.notNull(key);
-		try {
-			lock.readLock().lock();
-			return this.map.get(key);
-		} finally { lock.readLock().unlock(); }
+		return this.store.get(key);
 	}
 	
 	/**
 	 * @param key The key.
 	 * @return The index in the table of the element with the given key
 	 *  if present, -1 otherwise.
+	 *  This takes O(log n) if ranking is enabled (see {@link #enableRanking()}), O(n) otherwise.
 	 * @throws NullPointerException If key == null.
 	 */
 	public int index(T key) {
 		Common.notNull(key);
-		try {
-			lock.readLock().lock();
-			Iterator<T> iter = this.map.keySet().iterator();
-			int index = 0;
-			while (iter.hasNext()) {
-				if (iter.next().equals(key)) return index;
-				else index++;
-			}
-			return -1;
-		} finally { lock.readLock().unlock(); }
+		RankIndex<T> index = this.ranks;
+		if (index != null) synchronized (index) { return index.rank(key); }
+		NavigableSet<T> keys = store.keySet();
+		return (keys.contains(key) ? keys.headSet(key, false).size() : -1);
 	}
 	
 	/**
@@ -86,28 +148,140 @@ public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public V remove(T key) {
 		Common.notNull(key);
+		V result;
 		try {
-			lock.writeLock().lock();
-			return this.map.remove(key);
-		} finally { lock.writeLock().unlock(); }
+			rankLock.readLock().lock();
+			RankIndex<T> index = this.ranks;
+			if (index == null) result = this.store.remove(key);
+			else synchronized (index) {
+				result = this.store.remove(key);
+				if (result != null) index.remove(key);
+			}
+		} finally { rankLock.readLock().unlock(); }
+		if (result != null) { size.decrementAndGet(); this.mark(key); }
+		return result;
 	}
 	
+	/** @return The number of elements in the table. */
+	public int size() { return size.get(); }
+	
+	/** @return The number of partitions of this table. */
+	public int partitions() { return dirty.length(); }
+	
 	/**
-	 * @return An unmodifiable view of the set of keys of the elements stored in the table.
+	 * Changes the number of partitions of this table, marking all of them as dirty. This must NOT be done
+	 *  while the table is being written (e.g. by a snapshot).
+	 * @param partitions New number of partitions.
+	 * @throws IllegalArgumentException If partitions &le; 0.
+	 */
+	public synchronized void repartition(int partitions) {
+		Common.allAndArgs(partitions > 0);
+		AtomicIntegerArray dirty = new AtomicIntegerArray(partitions);
+		for (int i = 0; i < partitions; i++) dirty.set(i, 1);
+		this.dirty = dirty;
+	}
+	
+	/**
+	 * @param key The key.
+	 * @param partitions Number of partitions.
+	 * @return The partition of the given key, in [0, partitions).
+	 */
+	public static int partition(Object key, int partitions) { return Math.floorMod(key.hashCode(), partitions); }
+	
+	/**
+	 * Marks as dirty the partition of the given key after the element with that key has been modified, and notifies
+	 *  the store of the modification (see {@link Store#touch(Comparable)}).
+	 * @param key The key.
+	 * @throws NullPointerException If key == null.
+	 */
+	public void touch(T key) {
+		Common.notNull(key);
+		this.mark(key);
+		this.store.touch(key);
+	}
+	
+	/** Marks as dirty the partition of the given key. */
+	private void mark(T key) {
+		AtomicIntegerArray dirty = this.dirty;
+		dirty.set(partition(key, dirty.length()), 1);
+	}
+	
+	/** Marks as dirty all the partitions. */
+	public void touchAll() {
+		AtomicIntegerArray dirty = this.dirty;
+		for (int i = 0; i < dirty.length(); i++) dirty.set(i, 1);
+	}
+	
+	/**
+	 * Clears the dirty flag of the given partition. This must be done BEFORE reading the elements of the partition,
+	 *  such that any concurrent modification marks it as dirty again.
+	 * @param partition Partition.
+	 * @return true if the partition was dirty, false otherwise.
+	 */
+	public boolean clean(int partition) { return (dirty.getAndSet(partition, 0) != 0); }
+	
+	/**
+	 * Splits the (current) elements of the table by partition.
+	 * @param selected Array of {@link #partitions()} flags: only the elements of the partitions whose flag is true
+	 *  are returned.
+	 * @return An array of lists of elements such that the i-th one contains the elements of the i-th partition
+	 *  if it is selected, and is null otherwise.
+	 * @throws IllegalArgumentException If selected.length != {@link #partitions()}.
 	 */
 	@NotNull
-	public Set<T> keySet(){
-		try { lock.readLock().lock(); return this.map.keySet(); } finally { lock.readLock().unlock(); }
+	public List<List<V>> split(boolean[] selected) {
+		Common.notNull(selected);
+		int partitions = this.partitions();
+		Common.allAndArgs(selected.length == partitions);
+		List<List<V>> result = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i++) result.add(selected[i] ? new ArrayList<>() : null);
+		Iterator<V> iter = store.scan(null, null);
+		while (iter.hasNext()) {
+			V elem = iter.next();
+			List<V> part = result.get(partition(elem.key(), partitions));
+			if (part != null) part.add(elem);
+		}
+		return result;
 	}
 	
 	/**
-	 * @return An unmodifiable view of the set of values of the elements stored in the table.
+	 * @return An unmodifiable, weakly consistent view (or a copy, if the store is not on the heap) of the set of keys of
+	 *  the elements stored in the table.
+	 */
+	@NotNull
+	public NavigableSet<T> keySet(){ return Collections.unmodifiableNavigableSet(this.store.keySet()); }
+	
+	/**
+	 * @return An unmodifiable, weakly consistent view of the set of values of the elements stored in the table.
 	 */
 	@NotNull
 	public Collection<V> getAll(){
-		try { lock.readLock().lock(); return this.map.values(); } finally { lock.readLock().unlock(); }
+		return new AbstractCollection<V>() {
+			public Iterator<V> iterator() { return store.scan(null, null); }
+			public int size() { return Table.this.size(); }
+		};
 	}
 	
+	/**
+	 * @param from Lowest key (inclusive), or null for no lower bound.
+	 * @param to Highest key (exclusive), or null for no upper bound.
+	 * @return A weakly consistent iterator over the elements with key in [from, to), in ascending order by key.
+	 */
+	@NotNull
+	public Iterator<V> scan(T from, T to) { return this.store.scan(from, to); }
+	
+	/**
+	 * Sets the loader of the elements that are read again by the store of this table (see {@link Store.Loader}).
+	 * @param loader The loader.
+	 */
+	public void setLoader(Store.Loader<V> loader) { this.store.setLoader(loader); }
+	
+	/**
+	 * Closes the store of this table.
+	 * @throws IOException On I/O errors.
+	 */
+	public void close() throws IOException { this.store.close(); }
+	
 	/**
 	 * @param key Given key.
 	 * @return true if the table contains an element with given key.
@@ -115,19 +289,24 @@ public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	 */
 	public boolean contains(T key) {
 		Common.notNull(key);
-		try { lock.readLock().lock(); return this.map.containsKey(key); } finally { lock.readLock().unlock(); }
+		return this.store.contains(key);
 	}
 	
 	/**
-	 * Restores transient fields after deserialization from JSON.
+	 * Restores transient fields after deserialization from JSON (the element counter is always recomputed).
 	 * @throws DeserializationException On failure.
 	 */
 	public synchronized void deserialize() throws DeserializationException {
-		if (lock == null) lock = new ReentrantReadWriteLock();
+		size = new AtomicInteger(store.keySet().size());
+		if (dirty == null) dirty = new AtomicIntegerArray(DFLPARTITIONS);
 		if (type == null) type = new TypeToken<Table<T,V>>(){}.getType();
+		if (ranks != null) synchronized (ranks) {
+			ranks.clear();
+			for (T key : store.keySet()) ranks.add(key);
+		}
 	}
 	
-	public synchronized boolean isDeserialized() { return (lock != null && type != null); }
+	public synchronized boolean isDeserialized() { return (size != null && type != null); }
 	
 	/**
 	 * @param ext Sorted set of keys.
@@ -140,15 +319,32 @@ public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	public NavigableSet<V> get(SortedSet<T> ext, boolean retain) {
 		Common.notNull(ext);
 		NavigableSet<V> result = new TreeSet<>();
-		SortedSet<T> set;
-		try {
-			lock.readLock().lock();
-			if (retain) set = ext;
-			else { set = new TreeSet<>(); set.addAll(ext); }
-			set.retainAll(map.keySet());
-			for (T key : set) result.add(map.get(key));
-			return result;
-		} finally { lock.readLock().unlock(); }
+		Iterator<T> iter = ext.iterator();
+		while (iter.hasNext()) {
+			V elem = store.get(iter.next());
+			if (elem != null) result.add(elem);
+			else if (retain) iter.remove();
+		}
+		return result;
+	}
+	
+	/**
+	 * Looks up all the given keys.
+	 * @param keys List of keys.
+	 * @param out List to which the element corresponding to each key (or null if absent) is appended,
+	 *  in the same order of keys.
+	 * @return The number of keys that have a corresponding element in the table.
+	 * @throws NullPointerException If keys == null, out == null or keys contains null.
+	 */
+	public int get(List<T> keys, List<V> out) {
+		Common.notNull(keys, out);
+		int found = 0;
+		for (T key : keys) {
+			V elem = this.store.get(key);
+			if (elem != null) found++;
+			out.add(elem);
+		}
+		return found;
 	}
 	
 	/** The same as {@link #get(SortedSet, boolean)} but with the second parameter as true. */
@@ -157,48 +353,89 @@ public class Table<T extends Comparable<T>, V extends Indexable<T>> {
 	
 	@NotNull
 	public String toString() {
-		try {
-			if (lock != null) lock.readLock().lock();
-			String jsond = Serialization.GSON.toJson(this);
-			return String.format("%s : %s", this.getClass().getSimpleName(), jsond);
-		} finally { if (lock != null) lock.readLock().unlock(); }
+		String jsond = Serialization.GSON.toJson(this, type);
+		return String.format("%s : %s", this.getClass().getSimpleName(), jsond);
 	}
 	
-	/** @return An iterator over the keys in the table, in ascending order. */
-	public Iterator<T> keysIterator() { return this.map.keySet().iterator(); }
-
-	/** @return An iterator over the values in the table, in ascending order (by key). */
+	/** @return A weakly consistent iterator over the keys in the table, in ascending order. */
+	public Iterator<T> keysIterator() { return this.keySet().iterator(); }
+	
+	/** @return A weakly consistent iterator over the values in the table, in ascending order (by key). */
 	public Iterator<V> valuesIterator() { return new Iter<>(this); }
 	
+	/**
+	 * Weakly consistent iterator over the values of a table, that does not support removal.
+	 *  Iteration starts after the first invocation of {@link #open()}.
+	 */
 	public static class Iter<T extends Comparable<T>, V extends Indexable<T>> implements Iterator<V> {
 		
-		private boolean scanning = false;
-		private Table<T, V> table;
+		private final Table<T, V> table;
 		private Iterator<V> iterator;
-				
-		public Iter(Table<T,V> table) { this.table = table; }
 		
-		public synchronized void open() {
-			if (!scanning) {
-				scanning = true;
-				iterator = table.map.values().iterator();
-				table.lock.readLock().lock();
-			}
-		}
+		public Iter(Table<T,V> table) { this.table = table; this.iterator = null; }
+		
+		public synchronized void open() { if (iterator == null) iterator = table.getAll().iterator(); }
+		
+		public synchronized boolean hasNext() { return iterator != null && iterator.hasNext(); }
 		
-		public synchronized boolean hasNext() { return scanning && iterator.hasNext(); }
-
 		public synchronized V next() {
-			try {
-				if (scanning) return iterator.next();
-				else return null;
-			} catch (NoSuchElementException ex) {
-				scanning = false;
-				iterator = null;
-				table.lock.readLock().unlock();
-				throw ex;
+			if (iterator == null) return null;
+			else return iterator.next();
+		}
+	}
+	
+	/**
+	 * Gson adapter factory that writes a table as {"map" : {key : element, ...}} and reads each element directly into
+	 *  the table by {@link Table#putIfAbsent(Indexable)}, without an intermediate map. Tables whose type is not
+	 *  parameterized are handled by reflection.
+	 */
+	static final class AdapterFactory implements TypeAdapterFactory {
+		
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public <X> TypeAdapter<X> create(Gson gson, TypeToken<X> type) {
+			if (type.getRawType() != Table.class || !(type.getType() instanceof ParameterizedType)) return null;
+			Type elemType = ((ParameterizedType)type.getType()).getActualTypeArguments()[1];
+			return (TypeAdapter<X>) new Adapter(gson.getAdapter(TypeToken.get(elemType)));
+		}
+	}
+	
+	private static final class Adapter<T extends Comparable<T>, V extends Indexable<T>> extends TypeAdapter<Table<T, V>> {
+		
+		private static final String MAP = "map";
+		
+		private final TypeAdapter<V> elemAdapter;
+		
+		Adapter(TypeAdapter<V> elemAdapter) { this.elemAdapter = elemAdapter; }
+		
+		public void write(JsonWriter out, Table<T, V> table) throws IOException {
+			if (table == null) { out.nullValue(); return; }
+			out.beginObject();
+			out.name(MAP).beginObject();
+			Iterator<V> iter = table.store.scan(null, null);
+			while (iter.hasNext()) {
+				V elem = iter.next();
+				elemAdapter.write(out.name(String.valueOf(elem.key())), elem);
 			}
+			out.endObject();
+			out.endObject();
 		}
 		
+		public Table<T, V> read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			Table<T, V> table = new Table<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				if (!in.nextName().equals(MAP)) { in.skipValue(); continue; }
+				in.beginObject();
+				while (in.hasNext()) {
+					in.nextName();
+					V elem = elemAdapter.read(in);
+					if (elem != null) table.putIfAbsent(elem);
+				}
+				in.endObject();
+			}
+			in.endObject();
+			return table;
+		}
 	}
 }
\ No newline at end of file
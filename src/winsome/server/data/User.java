@@ -1,10 +1,16 @@
 package winsome.server.data;
 
+import java.io.*;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.lang.reflect.*;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
 
 import winsome.annotations.NotNull;
 import winsome.util.*;
@@ -13,6 +19,7 @@ import winsome.util.*;
  * A Winsome user.
  * @author Salvatore Correnti
  */
+@JsonAdapter(User.Adapter.class)
 public final class User implements Indexable<String>, Comparable<User> {
 	
 	private static final int NUM_RCHARS = 8, RCHAR_MIN = Math.min('A', 'a'), RCHAR_MAX = Math.max('Z', 'z');
@@ -59,11 +66,10 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 * @return The post with the given id on success, null if that post does not exist.
 	 */
 	private Post feedSearch(long idPost) {
-		NavigableSet<User> set;
-		synchronized (this) { set = this.following.getAll(); }
+		Iterator<User> iter = this.following.values();
 		Post p = null;
-		for (User user : set) {
-			if ((p = user.blog.get(idPost)) != null) break;
+		while (iter.hasNext()) {
+			if ((p = iter.next().blog.get(idPost)) != null) break;
 		}
 		return p;
 	}
@@ -121,6 +127,28 @@ public final class User implements Indexable<String>, Comparable<User> {
 		return 0;
 	}
 	
+	/**
+	 * Sets both sides of the "follow" relation between two users regardless of their current state, e.g. when
+	 *  replaying a log on top of a snapshot in which only one of the two users reflects the relation.
+	 * @param follower The follower.
+	 * @param followed The followed.
+	 * @param follow If true, follower follows followed after this call, otherwise it does not.
+	 * @return true if any of the two users has been modified, false otherwise.
+	 * @throws NullPointerException If any of {follower, followed} is null.
+	 */
+	public static final boolean restoreFollower(User follower, User followed, boolean follow) {
+		Common.notNull(follower, followed);
+		if (follower.equals(followed)) return false;
+		User umin = min(follower, followed), umax = max(follower, followed);
+		synchronized (umin) {
+			synchronized (umax) {
+				String u1 = follower.key(), u2 = followed.key();
+				if (follow) return follower.following.add(new String(u2)) | followed.followers.add(new String(u1));
+				else return follower.following.remove(u2) | followed.followers.remove(u1);
+			}
+		}
+	}
+	
 	
 	public static User newUser(String username, String password, Table<String, User> users, Table<Long, Post> posts,
 			Table<String, Wallet> wallets, List<String> tags) throws IllegalStateException {
@@ -145,15 +173,87 @@ public final class User implements Indexable<String>, Comparable<User> {
 		this.deserialized = true;
 		this.username = username;
 		
-		Random r = new Random(System.currentTimeMillis());
+		this.pwAppend = pwAppend(new Random(System.currentTimeMillis()));
+		this.hashStr = hash(password, pwAppend);
+		
+		this.wallet = new Wallet(username);
+		if (!wallets.putIfAbsent(wallet)) throw new IllegalStateException();
+		
+		this.tags = tags;
+		this.followers = new Index<>(users);
+		this.following = new Index<>(users);
+		this.blog = new Index<>(posts);
+		this.posts = posts;
+	}
+	
+	/** @return A random string to be concatenated with a password (see {@link #pwAppend}). */
+	private static String pwAppend(Random r) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < NUM_RCHARS; i++) sb.append((char)(r.nextInt(RCHAR_MAX - RCHAR_MIN) + RCHAR_MIN));
-		this.pwAppend = sb.toString();
-		try { this.hashStr = Hash.bytesToHex(Hash.sha256(password + pwAppend)); }
+		return sb.toString();
+	}
+	
+	/** @return The SHA-256 (as an hex string) of the concatenation of password and pwAppend. */
+	private static String hash(String password, String pwAppend) {
+		try { return Hash.bytesToHex(Hash.sha256(password + pwAppend)); }
 		catch (NoSuchAlgorithmException ex) { throw new IllegalStateException(); }
+	}
+	
+	/**
+	 * Creates a user with the given password and indexes, without creating its wallet (e.g. when importing data offline,
+	 *  see {@link winsome.server.Importer}).
+	 *  NOTE: The user is NOT deserialized (see {@link #deserialize(Table, Table, Table)}).
+	 * @param username Username.
+	 * @param password Password.
+	 * @param tags Tags of the user.
+	 * @param following Usernames of the users followed by this one.
+	 * @param followers Usernames of the followers of this user.
+	 * @param blog Ids of the posts in the blog of this user.
+	 * @return The user.
+	 * @throws NullPointerException If any of the parameters is null.
+	 * @throws IllegalArgumentException If username or password are empty or the number of tags is not in [1, 5].
+	 */
+	@NotNull
+	public static User build(String username, String password, List<String> tags, Collection<String> following,
+		Collection<String> followers, Collection<Long> blog) {
+		Common.notNull(username, password, tags, following, followers, blog);
+		Common.allAndArgs(username.length() > 0, password.length() > 0, tags.size() >= 1, tags.size() <= 5);
+		String pwAppend = pwAppend(ThreadLocalRandom.current());
+		return new User(username, pwAppend, hash(password, pwAppend), tags, new Index<>(new ConcurrentSkipListSet<>(following)),
+			new Index<>(new ConcurrentSkipListSet<>(followers)), new Index<>(new ConcurrentSkipListSet<>(blog)));
+	}
+	
+	/**
+	 * Restores a user with the given password data (e.g. when replaying a log). The wallet of the user is reused
+	 *  if it already exists in wallets.
+	 * @param username Username.
+	 * @param pwAppend String concatenated with the password (see {@link #pwAppend}).
+	 * @param hashStr Hash of the password (see {@link #hashStr}).
+	 * @return The restored user, or null if users already contains a user with the given username.
+	 */
+	public static User restore(String username, String pwAppend, String hashStr, Table<String, User> users,
+		Table<Long, Post> posts, Table<String, Wallet> wallets, List<String> tags) {
+		if (users.contains(username)) return null;
+		return new User(username, pwAppend, hashStr, users, posts, wallets, tags);
+	}
+	
+	/** @see #restore(String, String, String, Table, Table, Table, List) */
+	private User(String username, String pwAppend, String hashStr, Table<String, User> users, Table<Long, Post> posts,
+		Table<String, Wallet> wallets, List<String> tags) {
+		Common.notNull(username, pwAppend, hashStr, posts, wallets, tags);
+		Common.allAndArgs(username.length() > 0, tags.size() >= 1, tags.size() <= 5);
 		
-		this.wallet = new Wallet(username);
-		if (!wallets.putIfAbsent(wallet)) throw new IllegalStateException();
+		this.deserialized = true;
+		this.username = username;
+		this.pwAppend = pwAppend;
+		this.hashStr = hashStr;
+		
+		Wallet wallet = wallets.get(username);
+		if (wallet == null) {
+			wallet = new Wallet(username);
+			if (!wallets.putIfAbsent(wallet)) throw new IllegalStateException();
+		}
+		this.wallet = wallet;
 		
 		this.tags = tags;
 		this.followers = new Index<>(users);
@@ -162,6 +262,72 @@ public final class User implements Indexable<String>, Comparable<User> {
 		this.posts = posts;
 	}
 	
+	/** Creates a user with the given fields, used by {@link #decode(DataInput)}. */
+	private User(String username, String pwAppend, String hashStr, List<String> tags, Index<String, User> following,
+		Index<String, User> followers, Index<Long, Post> blog) {
+		this.username = username;
+		this.pwAppend = pwAppend;
+		this.hashStr = hashStr;
+		this.tags = tags;
+		this.following = following;
+		this.followers = followers;
+		this.blog = blog;
+	}
+	
+	/** Writes a list of usernames as [int n]([username])*. */
+	private static void writeNames(DataOutput out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		for (String name : names) Serialization.writeString(out, name);
+	}
+	
+	/** Reads a list of usernames written by {@link #writeNames(DataOutput, List)} into the given collection. */
+	private static <C extends Collection<String>> C readNames(DataInput in, C names) throws IOException {
+		int n = in.readInt();
+		if (n < 0) throw new IOException("Malformed user");
+		for (int i = 0; i < n; i++) names.add(Serialization.readString(in));
+		return names;
+	}
+	
+	/**
+	 * Writes this user in binary format as [username][pwAppend][hashStr], followed by tags, following and followers
+	 *  as [int n]([username])* and blog as [int n]([long idPost])*. Indexes are copied before being written, so this
+	 *  user can be modified concurrently.
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	void encode(DataOutput out) throws IOException {
+		Serialization.writeString(out, username);
+		Serialization.writeString(out, pwAppend);
+		Serialization.writeString(out, hashStr);
+		writeNames(out, tags);
+		writeNames(out, new ArrayList<>(following.keys()));
+		writeNames(out, new ArrayList<>(followers.keys()));
+		List<Long> blog = new ArrayList<>(this.blog.keys());
+		out.writeInt(blog.size());
+		for (long idPost : blog) out.writeLong(idPost);
+	}
+	
+	/**
+	 * Reads a user written by {@link #encode(DataOutput)}.
+	 *  NOTE: The user is NOT deserialized (see {@link #deserialize(Table, Table, Table)}).
+	 * @param in Input.
+	 * @return The user.
+	 * @throws IOException On I/O errors or if the user is malformed.
+	 */
+	@NotNull
+	static User decode(DataInput in) throws IOException {
+		String username = Serialization.readString(in), pwAppend = Serialization.readString(in),
+			hashStr = Serialization.readString(in);
+		List<String> tags = readNames(in, new ArrayList<>());
+		Index<String, User> following = new Index<>(readNames(in, new ConcurrentSkipListSet<>())),
+			followers = new Index<>(readNames(in, new ConcurrentSkipListSet<>()));
+		int n = in.readInt();
+		if (n < 0) throw new IOException("Malformed user");
+		ConcurrentSkipListSet<Long> blog = new ConcurrentSkipListSet<>();
+		for (int i = 0; i < n; i++) blog.add(in.readLong());
+		return new User(username, pwAppend, hashStr, tags, following, followers, new Index<>(blog));
+	}
+	
 	/**
 	 * Restores transient fields after deserialization from JSON.
 	 * @param users Table of users for deserialization (usually the one of the server).
@@ -179,6 +345,11 @@ public final class User implements Indexable<String>, Comparable<User> {
 		if (this.posts == null) this.posts = posts; else this.posts.deserialize();
 		blog.deserialize(this.posts);
 		if (this.wallet == null) this.wallet = wallets.get(username);
+		/* The wallet could have been lost with a skipped partition (see Snapshot) */
+		if (this.wallet == null) {
+			Wallet wallet = new Wallet(username);
+			this.wallet = (wallets.putIfAbsent(wallet) ? wallet : wallets.get(username));
+		}
 		this.wallet.deserialize();
 		deserialized = true;
 	}
@@ -195,10 +366,7 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 */
 	public boolean checkPassword(String password) {
 		Common.notNull(password); Common.allAndArgs(!password.isEmpty());
-		String h;
-		try { h = Hash.bytesToHex(Hash.sha256(password + pwAppend)); }
-		catch (NoSuchAlgorithmException ex) { throw new IllegalStateException(); }
-		return this.hashStr.equals(h);
+		return this.hashStr.equals(hash(password, pwAppend));
 	}
 	
 	public String key() { return new String(username); }
@@ -219,9 +387,8 @@ public final class User implements Indexable<String>, Comparable<User> {
 	@NotNull
 	public ConcurrentMap<String, List<String>> getFollowers() { //list followers
 		ConcurrentMap<String, List<String>> result = new ConcurrentHashMap<>();
-		NavigableSet<User> users;
-		synchronized (this) { users = followers.getAll(); } //For following static methods
-		for (User u : users) result.put(u.key(), u.tags());
+		Iterator<User> iter = followers.values();
+		while (iter.hasNext()) { User u = iter.next(); result.put(u.key(), u.tags()); }
 		return result;
 	}
 	
@@ -234,9 +401,8 @@ public final class User implements Indexable<String>, Comparable<User> {
 	@NotNull
 	public ConcurrentMap<String, List<String>> getFollowing() { //list following
 		ConcurrentMap<String, List<String>> result = new ConcurrentHashMap<>();
-		NavigableSet<User> users;
-		synchronized (this) { users = following.getAll(); } //For following static methods
-		for (User u : users) result.put(u.key(), u.tags());
+		Iterator<User> iter = following.values();
+		while (iter.hasNext()) { User u = iter.next(); result.put(u.key(), u.tags()); }
 		return result;
 	}
 		
@@ -248,34 +414,43 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 */
 	@NotNull
 	public List<String> getBlog() { //blog
-		NavigableSet<Post> posts = new TreeSet<>();
-		posts.addAll(this.blog.getAll());
 		List<String> result = new ArrayList<>();
-		Iterator<Post> iter = posts.iterator();
+		Iterator<Post> iter = this.blog.values();
 		/* TODO NOTE: Posts will appear ordered by id to the client. */
 		while (iter.hasNext()) result.addAll(iter.next().getPostInfo());
 		return result;
 	}
 	
 	/**
-	 * Retrieves the feed of the current user as a list of formatted strings as got
-	 *  by {@link Post#getPostInfo()}.
-	 *  NOTE: The strings in the list follow the order of the posts by id.
+	 * @return A lazy iterator over the feed of the current user, i.e. the posts in the blogs of the followed
+	 *  users from the newest to the oldest one (by id), such that each post appears only once even if it has
+	 *  been rewinned by more than one followed user. The feed is built as a k-way merge of the (sorted) blogs
+	 *  of the followed users, hence it takes O(following) memory regardless of the number of posts.
+	 */
+	@NotNull
+	public Iterator<Post> feed() { return new FeedIterator(this.following.values()); }
+	
+	/**
+	 * Retrieves (at most) the limit newest posts of the feed of the current user as a list of formatted strings
+	 *  as got by {@link Post#getPostInfo()}.
+	 *  NOTE: The strings in the list follow the order of the posts by id, from the newest one.
+	 * @param limit Maximum number of posts to retrieve.
 	 * @return A list of formatted strings as described above.
+	 * @throws IllegalArgumentException If limit &lt; 0.
 	 */
 	@NotNull
-	public List<String> getFeed() { //show feed
-		NavigableSet<User> users;
-		synchronized (this) {users = this.following.getAll();}
-		NavigableSet<Post> posts = new TreeSet<>();
+	public List<String> getFeed(int limit) { //show feed
+		Common.allAndArgs(limit >= 0);
 		List<String> result = new ArrayList<>();
-		for (User u : users) posts.addAll(u.blog.getAll());
-		Iterator<Post> iter = posts.iterator();
-		/* TODO NOTE: Posts will appear ordered by id to the client. */
-		while (iter.hasNext()) result.addAll(iter.next().getPostInfo());
+		Iterator<Post> iter = this.feed();
+		for (int i = 0; i < limit && iter.hasNext(); i++) result.addAll(iter.next().getPostInfo());
 		return result;
 	}
 	
+	/** Same as {@link #getFeed(int)} with no limit. */
+	@NotNull
+	public List<String> getFeed() { return this.getFeed(Integer.MAX_VALUE); }
+	
 	/**
 	 * Retrieves the info of the post specified by idPost as a list of strings
 	 * { title, content, likes, dislikes, (comments) }.
@@ -284,11 +459,24 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 * @throws DataException If it does not exist a post with that id.
 	 */
 	@NotNull
-	public List<String> getPost(long idPost) throws DataException { //show post <idPost>
+	public List<String> getPost(long idPost) throws DataException { return this.getPost(idPost, 0, Integer.MAX_VALUE); }
+	
+	/**
+	 * Retrieves the info of the post specified by idPost as a list of strings
+	 * { title, content, likes, dislikes, (comments) } with only the given page of comments
+	 * as specified in {@link Post#getPostData(int, int)}.
+	 * @param idPost Id of the post.
+	 * @param page Number of the page of comments (0 for the most recent ones).
+	 * @param pageSize Number of comments per page.
+	 * @return A list of strings as specified above.
+	 * @throws DataException If it does not exist a post with that id.
+	 */
+	@NotNull
+	public List<String> getPost(long idPost, int page, int pageSize) throws DataException { //show post <idPost> [page]
 		Common.allAndArgs(idPost > 0);
 		Post p = this.blog.get(idPost);
 		if (p == null) p = this.posts.get(idPost);
-		if (p != null) { return p.getPostData(); }
+		if (p != null) { return p.getPostData(page, pageSize); }
 		else { throw new DataException(DataException.POST_NEXISTS); }
 	}
 	
@@ -300,9 +488,17 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 * @throws DataException If post is not in user's feed.
 	 */
 	public int addComment(long idPost, String content) throws DataException { //comment <idPost> <comment>
+		return this.addComment(idPost, content, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Same as {@link #addComment(long, String)} with the given time of the comment.
+	 * @param time Time in milliseconds of the comment.
+	 */
+	public int addComment(long idPost, String content, long time) throws DataException {
 		Common.allAndArgs(idPost > 0, content != null);
 		Post p;
-		if ( (p = this.feedSearch(idPost)) != null ) return p.addComment(key(), content);
+		if ( (p = this.feedSearch(idPost)) != null ) return p.addComment(key(), content, time);
 		else throw new DataException(DataException.NOT_IN_FEED);
 	}
 	
@@ -315,10 +511,42 @@ public final class User implements Indexable<String>, Comparable<User> {
 	 * @throws IllegalStateException If post does not exist in table.
 	 */
 	public long createPost(String title, String content) throws DataException { //post <title> <content>
-		Post p = new Post(title, content, this);
-		if (!this.posts.putIfAbsent(p)) return -1;
+		return this.createPost(title, content, null);
+	}
+	
+	/**
+	 * Same as {@link #createPost(String, String)}, but the given action is executed after the post has been added
+	 *  to the posts table and before it is published in the blog (i.e. before any other user can see it in the feed).
+	 * @param onCreate Action to execute on the new post (ignored if null).
+	 */
+	public long createPost(String title, String content, Consumer<Post> onCreate) throws DataException {
+		return this.addPost(new Post(title, content, this), onCreate);
+	}
+	
+	/**
+	 * Restores a post of this user with the given id (e.g. when replaying a log).
+	 * @return The id of the post on success, -1 on error (e.g. if a post with that id already exists).
+	 * @throws DataException If Post.gen is null or on I/O errors in the content store.
+	 */
+	public long restorePost(long idPost, String title, String content) throws DataException {
+		if (this.posts.contains(idPost)) return -1;
+		return this.addPost(new Post(idPost, title, content, key()), null);
+	}
+	
+	/**
+	 * Adds the given new post to the posts table and then to the blog of this user. On failure, the record of the
+	 *  post in the content store is released (see {@link Post#discard()}).
+	 * @return The id of the post on success, -1 on error.
+	 */
+	private long addPost(Post p, Consumer<Post> onCreate) throws DataException {
+		boolean added = this.posts.putIfAbsent(p);
+		/* Until now the segment of the content of the post must not be compacted, since the post is not in the table */
+		p.inserted();
+		if (!added) { p.discard(); return -1; }
+		if (onCreate != null) onCreate.accept(p);
 		if (!this.blog.add(p.key())) {
 			if (this.posts.remove(p.key()) == null) throw new IllegalStateException("Could not remove post");
+			p.discard();
 			return -1;
 		}
 		return p.key();
@@ -335,6 +563,7 @@ public final class User implements Indexable<String>, Comparable<User> {
 		if ( ((p = this.blog.get(idPost)) != null) && p.getAuthor().equals(key()) ) {
 			if (this.posts.remove(idPost) == null) throw new DataException(DataException.TABLE_REMOVE);
 			if ( !this.blog.remove(idPost) ) throw new IllegalStateException();
+			p.discard();
 		} else throw new DataException(DataException.NOT_AUTHOR);
 	}
 	
@@ -364,25 +593,32 @@ public final class User implements Indexable<String>, Comparable<User> {
 		Common.allAndArgs(idPost > 0);
 		Post p = null;
 		if ((p = this.feedSearch(idPost)) == null) throw new DataException(DataException.NOT_IN_FEED);
-		boolean b1 = this.blog.add(p.key()), b2 = p.rewin(this.key());
+		boolean b1 = this.blog.add(p.key()), b2;
+		try { b2 = p.rewin(this.key()); }
+		catch (DataException de) {
+			if (b1) this.blog.remove(p.key());
+			throw de;
+		}
 		if (b1 && b2) return true;
 		else if (!b1 && !b2) return false;
 		else throw new DataException(DataException.UNREWIN_POST);
 	}
 	
 	/**
-	 * @return A list of string made up by {wallet wincoin value} concatenated with the history
-	 *  as formatted by {@link Wallet#history()}.
+	 * @param page Number of the page of transactions (0 for the most recent ones).
+	 * @param pageSize Number of transactions per page.
+	 * @return A list of string made up by {wallet wincoin value} concatenated with the given page of
+	 *  the history as returned by {@link Wallet#history(int, int)}.
 	 */
 	@NotNull
-	public List<String> getWallet() {
+	public List<String> getWallet(int page, int pageSize) {
 		List<String> result = Common.toList( Double.toString(this.wallet().value()) );
-		result.addAll(this.wallet().history());
+		result.addAll(this.wallet().history(page, pageSize));
 		return result;
 	}
 	
 	public int hashCode() { return Objects.hash(key()); }
-
+	
 	public boolean equals(Object obj) {
 		if (this == obj) return true;
 		if (obj == null) return false;
@@ -397,4 +633,122 @@ public final class User implements Indexable<String>, Comparable<User> {
 		Common.notNull(other);
 		return this.key().compareTo(other.key());
 	}
+	
+	/**
+	 * Lazy k-way merge of the blogs of a set of users in descending order of post id (see {@link User#feed()}).
+	 *  The priority queue contains at most one "head" post for each blog.
+	 */
+	private static final class FeedIterator implements Iterator<Post> {
+	
+		private final PriorityQueue<Pair<Post, Iterator<Post>>> heads;
+		private long lastId;
+	
+		private FeedIterator(Iterator<User> users) {
+			this.heads = new PriorityQueue<>((h1, h2) -> h2.getKey().compareTo(h1.getKey()));
+			this.lastId = -1;
+			while (users.hasNext()) this.advance(users.next().blog.descendingValues());
+		}
+	
+		private void advance(Iterator<Post> blog) { if (blog.hasNext()) heads.add(new Pair<>(blog.next(), blog)); }
+	
+		public boolean hasNext() {
+			/* Skips the copies of the last returned post coming from other blogs (rewins) */
+			while (!heads.isEmpty() && heads.peek().getKey().key() == lastId) this.advance(heads.poll().getValue());
+			return !heads.isEmpty();
+		}
+	
+		public Post next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+			Pair<Post, Iterator<Post>> head = heads.poll();
+			lastId = head.getKey().key();
+			this.advance(head.getValue());
+			return head.getKey();
+		}
+	}
+	
+	/**
+	 * Gson adapter that writes a user with the same fields as the reflective one (indexes as {"keys" : [...]})
+	 *  and reads it directly into its final data structures.
+	 */
+	static final class Adapter extends TypeAdapter<User> {
+	
+		private static final String USERNAME = "username", PWAPPEND = "pwAppend", HASHSTR = "hashStr", TAGS = "tags",
+			FOLLOWING = "following", FOLLOWERS = "followers", BLOG = "blog", KEYS = "keys";
+	
+		public void write(JsonWriter out, User user) throws IOException {
+			if (user == null) { out.nullValue(); return; }
+			out.beginObject();
+			out.name(USERNAME).value(user.username);
+			out.name(PWAPPEND).value(user.pwAppend);
+			out.name(HASHSTR).value(user.hashStr);
+			out.name(TAGS).beginArray();
+			for (String tag : user.tags) out.value(tag);
+			out.endArray();
+			writeIndex(out, FOLLOWING, user.following);
+			writeIndex(out, FOLLOWERS, user.followers);
+			writeIndex(out, BLOG, user.blog);
+			out.endObject();
+		}
+	
+		private static void writeIndex(JsonWriter out, String name, Index<?, ?> index) throws IOException {
+			if (index == null) return;
+			out.name(name).beginObject();
+			out.name(KEYS).beginArray();
+			for (Object key : index.keys()) {
+				if (key instanceof Number) out.value((Number) key);
+				else out.value(key.toString());
+			}
+			out.endArray();
+			out.endObject();
+		}
+	
+		public User read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			String username = null, pwAppend = null, hashStr = null;
+			List<String> tags = null;
+			Index<String, User> following = null, followers = null;
+			Index<Long, Post> blog = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case USERNAME : { username = in.nextString(); break; }
+					case PWAPPEND : { pwAppend = in.nextString(); break; }
+					case HASHSTR : { hashStr = in.nextString(); break; }
+					case TAGS : {
+						tags = new ArrayList<>();
+						in.beginArray();
+						while (in.hasNext()) tags.add(in.nextString());
+						in.endArray();
+						break;
+					}
+					case FOLLOWING : { following = readIndex(in, false); break; }
+					case FOLLOWERS : { followers = readIndex(in, false); break; }
+					case BLOG : { blog = readIndex(in, true); break; }
+					default : { in.skipValue(); break; }
+				}
+			}
+			in.endObject();
+			if (username == null || pwAppend == null || hashStr == null || tags == null) throw new IOException("Malformed user");
+			if (following == null) following = new Index<>(new ConcurrentSkipListSet<String>());
+			if (followers == null) followers = new Index<>(new ConcurrentSkipListSet<String>());
+			if (blog == null) blog = new Index<>(new ConcurrentSkipListSet<Long>());
+			return new User(username, pwAppend, hashStr, tags, following, followers, blog);
+		}
+	
+		/** Reads an index written as {"keys" : [...]}, whose keys are post ids if ids == true and usernames otherwise. */
+		@SuppressWarnings("unchecked")
+		private static <T extends Comparable<T>, V extends Indexable<T>> Index<T, V> readIndex(JsonReader in, boolean ids)
+			throws IOException {
+			ConcurrentSkipListSet<T> keys = new ConcurrentSkipListSet<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				if (!in.nextName().equals(KEYS)) { in.skipValue(); continue; }
+				in.beginArray();
+				while (in.hasNext()) keys.add((T) (ids ? (Object) in.nextLong() : in.nextString()));
+				in.endArray();
+			}
+			in.endObject();
+			return new Index<>(keys);
+		}
+	}
 }
\ No newline at end of file
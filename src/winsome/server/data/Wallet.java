@@ -1,43 +1,75 @@
 package winsome.server.data;
 
+import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
 
 import winsome.annotations.NotNull;
 import winsome.util.*;
 
 /**
- * Wincoin wallet of a user.
+ * Wincoin wallet of a user. Transactions generated by a reward round are first staged in the wallet by
+ *  {@link #stage(long, long, double)} and become visible to readers only after the round has been published
+ *  by {@link #publishRound(long)}, such that a whole round becomes visible atomically (see {@link Settlement}).
  * @author Salvatore Correnti
  */
+@JsonAdapter(Wallet.Adapter.class)
 public final class Wallet implements Indexable<String> {
 	
-	private static final String TRANSMARK = "#", SEPAR = " : ";	
-	
 	public static final Type TYPE = new TypeToken<Wallet>() {}.getType();
 	
+	/** Id of the last published reward round: transactions of greater rounds are not visible. */
+	private static volatile long visibleRound = 0;
+	
+	/**
+	 * Publishes the given reward round, making all its staged transactions visible.
+	 * @param round Id of the round.
+	 * @return true if round was greater than the last published one, false otherwise (no effect).
+	 */
+	public synchronized static boolean publishRound(long round) {
+		if (round <= visibleRound) return false;
+		visibleRound = round;
+		return true;
+	}
+	
+	/** @return The id of the last published reward round. */
+	public static long visibleRound() { return visibleRound; }
+	
 	@NotNull
 	private String owner;
-	private double value;
 	@NotNull
+	private Ledger ledger;
+	/** Transactions history as stored by older versions (only read from JSON, moved into {@link #ledger}). */
 	private NavigableMap<Long, Double> history;
 	private transient ReentrantReadWriteLock lock;
 	
 	/**
-	 * Restores transient fields after deserialization from JSON.
+	 * Restores transient fields after deserialization from JSON. Transactions of reward rounds that have been
+	 *  staged but never published (see {@link #publishRound(long)}) are discarded, so that the round can be safely
+	 *  settled again.
 	 * @throws DeserializationException On failure.
 	 */
 	public synchronized void deserialize() throws DeserializationException {
 		if (lock == null) lock = new ReentrantReadWriteLock();
+		if (ledger == null) ledger = new Ledger();
+		if (history != null) {
+			if (ledger.size() > 0) throw new DeserializationException("Both ledger and history found for " + owner);
+			for (Map.Entry<Long, Double> entry : history.entrySet()) ledger.append(entry.getKey(), entry.getValue());
+			history = null;
+		}
+		ledger.truncate(ledger.sizeUpTo(visibleRound));
 	}
 	
 	/**
 	 * @return True if transient fields are not restored after deserialization from JSON.
 	 */
-	public synchronized boolean isDeserialized() { return (lock != null); }
+	public synchronized boolean isDeserialized() { return (lock != null && ledger != null && history == null); }
 	
 	/**
 	 * @param owner Username of the owner of the wallet.
@@ -45,49 +77,112 @@ public final class Wallet implements Indexable<String> {
 	public Wallet(String owner) {
 		Common.notNull(owner);
 		this.owner = new String(owner);
-		this.value = 0.0;
-		this.history = new TreeMap<>();
+		this.ledger = new Ledger();
+		this.history = null;
 		this.lock = new ReentrantReadWriteLock();
 	}
 	
 	public String key() { return owner; }
 	
 	/**
-	 * @return A list of formatted string from {@link #history} for printing history of transactions.
+	 * Writes this wallet in binary format as [owner][ledger] (see {@link Ledger}), while holding its read lock
+	 *  (if any). A transactions history stored by older versions is written as a ledger.
+	 * @param out Output.
+	 * @throws IOException On I/O errors.
+	 */
+	void encode(DataOutput out) throws IOException {
+		ReentrantReadWriteLock lock = this.lock;
+		if (lock != null) lock.readLock().lock();
+		try {
+			Serialization.writeString(out, owner);
+			Ledger ledger = this.ledger;
+			if (history != null || ledger == null) {
+				ledger = new Ledger();
+				if (history != null) for (Map.Entry<Long, Double> entry : history.entrySet()) ledger.append(entry.getKey(), entry.getValue());
+			}
+			ledger.encode(out);
+		} finally { if (lock != null) lock.readLock().unlock(); }
+	}
+	
+	/**
+	 * Reads a wallet written by {@link #encode(DataOutput)}.
+	 * @param in Input.
+	 * @return The wallet.
+	 * @throws IOException On I/O errors or if the wallet is malformed.
+	 */
+	@NotNull
+	static Wallet decode(DataInput in) throws IOException {
+		String owner = Serialization.readString(in);
+		return new Wallet(owner, Ledger.decode(in));
+	}
+	
+	/** Creates a wallet with the given ledger, used by {@link #decode(DataInput)}. */
+	private Wallet(String owner, Ledger ledger) {
+		this.owner = owner;
+		this.ledger = ledger;
+		this.history = null;
+		this.lock = new ReentrantReadWriteLock();
+	}
+	
+	/**
+	 * Retrieves a page of transactions, from the most recent to the least recent, in the raw format
+	 *  of {@link Serialization#serializeTransaction(long, long, double)}: formatting is left to the client.
+	 * @param page Number of the page (0 for the most recent transactions).
+	 * @param pageSize Number of transactions per page.
+	 * @return A list of serialized transactions as described above.
+	 * @throws IllegalArgumentException If page &lt; 0 or pageSize &le; 0.
 	 */
 	@NotNull
-	public List<String> history(){
-		List<String> result = new ArrayList<>();
+	public List<String> history(int page, int pageSize){
 		try {
 			lock.readLock().lock();
-			NavigableSet<Long> transactions = this.history.descendingKeySet();
-			Iterator<Long> iter = transactions.iterator();
-			int num = transactions.size();
-			Long next;
-			while (iter.hasNext()) {
-				next = iter.next();
-				result.add(
-					new String(TRANSMARK + num + SEPAR + new Date(next).toString() + SEPAR + "+" + history.get(next))
-				);
-				num--;
-			}
-			return result;
+			return this.serializeRange(ledger.page(page, pageSize, ledger.sizeUpTo(visibleRound)));
 		} finally { lock.readLock().unlock(); }
 	}
 	
+	/**
+	 * Retrieves all the transactions in the time range [from, to), from the most recent to the least recent,
+	 *  in the same format of {@link #history(int, int)}.
+	 * @param from Lower bound (inclusive) of the time range.
+	 * @param to Upper bound (exclusive) of the time range.
+	 * @return A list of serialized transactions as described above.
+	 */
+	@NotNull
+	public List<String> historyRange(long from, long to){
+		try {
+			lock.readLock().lock();
+			int[] range = ledger.range(from, to);
+			range[1] = Math.max(range[0], Math.min(range[1], ledger.sizeUpTo(visibleRound)));
+			return this.serializeRange(range);
+		} finally { lock.readLock().unlock(); }
+	}
+	
+	/** Serializes the transactions with indexes in [range[0], range[1]) in reverse order (lock must be held). */
+	@NotNull
+	private List<String> serializeRange(int[] range){
+		List<String> result = new ArrayList<>(range[1] - range[0]);
+		for (int i = range[1] - 1; i >= range[0]; i--)
+			result.add( Serialization.serializeTransaction(i + 1, ledger.time(i), ledger.amount(i)) );
+		return result;
+	}
+	
+	/** @return The number of (visible) transactions of this wallet. */
+	public int historySize() {
+		try { lock.readLock().lock(); return ledger.sizeUpTo(visibleRound); } finally { lock.readLock().unlock(); }
+	}
+	
 	/**
 	 * Adds a new transaction to history.
 	 * @param time Time in milliseconds from Jan 01 1970 00:00:00 at which the transaction happened.
 	 * @param value Value of the transaction.
-	 * @return true on success, false if exists another transaction at the same time.
+	 * @return true on success (transactions happening at the same time are all recorded).
 	 */
 	public boolean newTransaction(long time, double value) {
 		Common.allAndArgs(time > 0, value >= 0.0);
 		try {
 			lock.writeLock().lock();
-			boolean result = (this.history.putIfAbsent(time, value) == null);
-			if (result) this.value += value;
-			return result;
+			ledger.append(time, value);
+			return true;
 		} finally { lock.writeLock().unlock(); }
 	}
 	
@@ -95,21 +190,116 @@ public final class Wallet implements Indexable<String> {
 	 * Same as {@link #newTransaction(long, double)} but using {@link System#currentTimeMillis()}
 	 *  for first parameter.
 	 * @param value Value of the transaction.
-	 * @return true on success, false if exists another transaction at the same time.
+	 * @return true on success.
 	 */
 	public boolean newTransaction(double value) { return newTransaction(System.currentTimeMillis(), value); }
 	
+	/**
+	 * Stages a transaction of the given reward round, that will be visible only after the round
+	 *  has been published by {@link #publishRound(long)}.
+	 * @param round Id of the round.
+	 * @param time Time in milliseconds of the transaction.
+	 * @param value Value of the transaction.
+	 * @return true if the transaction has been staged, false if this wallet already contains a transaction
+	 *  of the same (or a following) round, i.e. if the round has already been applied to this wallet.
+	 * @throws IllegalArgumentException If round &le; 0, time &le; 0 or value &lt; 0.
+	 */
+	public boolean stage(long round, long time, double value) {
+		Common.allAndArgs(round > 0, time > 0, value >= 0.0);
+		try {
+			lock.writeLock().lock();
+			if (ledger.lastRound() >= round) return false;
+			ledger.append(time, value, round);
+			return true;
+		} finally { lock.writeLock().unlock(); }
+	}
+	
+	/**
+	 * Removes the transactions staged for rounds that have not been published yet, e.g. after a settlement
+	 *  that has failed before publishing its round.
+	 * @return The number of removed transactions.
+	 */
+	public int unstage() {
+		try {
+			lock.writeLock().lock();
+			int size = ledger.size(), visible = ledger.sizeUpTo(visibleRound);
+			ledger.truncate(visible);
+			return size - visible;
+		} finally { lock.writeLock().unlock(); }
+	}
+	
 	public double value() {
-		try { lock.readLock().lock(); return value; } finally { lock.readLock().unlock(); }
+		try {
+			lock.readLock().lock();
+			int n = ledger.sizeUpTo(visibleRound);
+			return (n > 0 ? ledger.balance(n - 1) : 0.0);
+		} finally { lock.readLock().unlock(); }
 	}
 	
 	@NotNull
 	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		sb.append(this.getClass().getSimpleName() + " [");
 		try {
 			if (lock != null) lock.readLock().lock();
 			return String.format("%s : %s", this.getClass().getSimpleName(), Serialization.GSON.toJson(this));
 		} finally { if (lock != null) lock.readLock().unlock(); }
 	}
+	
+	/**
+	 * Gson adapter that writes a wallet with the same fields as the reflective one while holding its read lock
+	 *  (if any), and reads it directly into its final data structures.
+	 */
+	static final class Adapter extends TypeAdapter<Wallet> {
+	
+		private static final String OWNER = "owner", LEDGER = "ledger", HISTORY = "history";
+	
+		private static final Ledger.Adapter LEDGER_ADAPTER = new Ledger.Adapter();
+	
+		public void write(JsonWriter out, Wallet wallet) throws IOException {
+			if (wallet == null) { out.nullValue(); return; }
+			ReentrantReadWriteLock lock = wallet.lock;
+			try {
+				if (lock != null) lock.readLock().lock();
+				out.beginObject();
+				out.name(OWNER).value(wallet.owner);
+				if (wallet.ledger != null) LEDGER_ADAPTER.write(out.name(LEDGER), wallet.ledger);
+				if (wallet.history != null) {
+					out.name(HISTORY).beginObject();
+					for (Map.Entry<Long, Double> entry : wallet.history.entrySet()) out.name(entry.getKey().toString()).value(entry.getValue());
+					out.endObject();
+				}
+				out.endObject();
+			} finally { if (lock != null) lock.readLock().unlock(); }
+		}
+	
+		public Wallet read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			String owner = null;
+			Ledger ledger = null;
+			NavigableMap<Long, Double> history = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case OWNER : { owner = in.nextString(); break; }
+					case LEDGER : { ledger = LEDGER_ADAPTER.read(in); break; }
+					case HISTORY : {
+						history = new TreeMap<>();
+						in.beginObject();
+						while (in.hasNext()) {
+							String time = in.nextName();
+							try { history.put(Long.parseLong(time), in.nextDouble()); }
+							catch (NumberFormatException ex) { throw new IOException("Malformed wallet history", ex); }
+						}
+						in.endObject();
+						break;
+					}
+					default : { in.skipValue(); break; }
+				}
+			}
+			in.endObject();
+			if (owner == null) throw new IOException("Malformed wallet");
+			Wallet wallet = new Wallet(owner, ledger);
+			wallet.history = history;
+			return wallet;
+		}
+	}
 }
\ No newline at end of file
@@ -12,6 +12,9 @@ public final class IDGen {
 	public synchronized long getId() { return id; }
 	public synchronized long nextId() { return id++; }
 	
+	/** Ensures that the given id (e.g. restored from a log) will never be generated again. */
+	public synchronized void advance(long used) { if (id <= used) id = used + 1; }
+	
 	public IDGen(long start) { this.id = start; }
 	
 	public IDGen() { this(0); }
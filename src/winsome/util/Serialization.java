@@ -4,6 +4,9 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
@@ -24,6 +27,70 @@ public final class Serialization {
 	 */
 	public static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
 	
+	/** Size in characters of the buffers of file readers and writers. */
+	public static final int BUFFERSIZE = 1 << 16; //64 K
+	
+	/**
+	 * Returns a buffered UTF-8 {@link Writer} over the given channel (closing the writer closes the channel).
+	 * @param channel Output channel.
+	 * @return A Writer as above.
+	 */
+	@NotNull
+	public static final Writer bufferedWriter(WritableByteChannel channel) {
+		Common.notNull(channel);
+		return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), BUFFERSIZE);
+	}
+	
+	/**
+	 * Returns a buffered UTF-8 {@link Reader} over the given file.
+	 * @param path Path of the file.
+	 * @return A Reader as above.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	@NotNull
+	public static final Reader bufferedReader(Path path) throws IOException {
+		Common.notNull(path);
+		return bufferedReader(FileChannel.open(path, StandardOpenOption.READ));
+	}
+	
+	/**
+	 * Returns a buffered UTF-8 {@link Reader} over the given channel (closing the reader closes the channel).
+	 * @param channel Input channel.
+	 * @return A Reader as above.
+	 */
+	@NotNull
+	public static final Reader bufferedReader(ReadableByteChannel channel) {
+		Common.notNull(channel);
+		return new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1), BUFFERSIZE);
+	}
+	
+	/**
+	 * Writes a string in binary format as [int length][UTF-8 bytes].
+	 * @param out Output.
+	 * @param str The string.
+	 * @throws IOException On I/O errors.
+	 */
+	public static final void writeString(DataOutput out, String str) throws IOException {
+		byte[] data = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 * @param in Input.
+	 * @return The string.
+	 * @throws IOException On I/O errors or if the length is negative.
+	 */
+	@NotNull
+	public static final String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) throw new IOException("Negative string length");
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+	
 	/**
 	 * Returns a {@link JsonWriter} object derived by {@link #GSON}.
 	 * @param filename Name of the output file.
@@ -32,8 +99,11 @@ public final class Serialization {
 	 */
 	public static final JsonWriter fileWriter(String filename) throws IOException {
 		Common.notNull(filename);
-		try { return GSON.newJsonWriter( new OutputStreamWriter(new FileOutputStream(filename)) ); }
-		catch (FileNotFoundException ex) { return null; }
+		try {
+			FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+			return GSON.newJsonWriter( bufferedWriter(channel) );
+		} catch (NoSuchFileException ex) { return null; }
 	}
 	
 	/**
@@ -42,10 +112,10 @@ public final class Serialization {
 	 * @return A {@link JsonReader} for the specified file with the same settings as the {@link #GSON} object.
 	 * @throws IOException If thrown by {@link Gson#newJsonReader(Reader)}.
 	 */
-	public static final JsonReader fileReader(String filename) {
+	public static final JsonReader fileReader(String filename) throws IOException {
 		Common.notNull(filename);
-		try { return GSON.newJsonReader( new InputStreamReader(new FileInputStream(filename)) ); }
-		catch (FileNotFoundException ex) { return null; }
+		try { return GSON.newJsonReader( bufferedReader(Paths.get(filename)) ); }
+		catch (NoSuchFileException ex) { return null; }
 	}
 	
 	/**
@@ -93,6 +163,39 @@ public final class Serialization {
 		return result;
 	}
 	
+	/** Separator of the fields of a serialized transaction. */
+	private static final String TRANSEPAR = " ";
+	
+	/**
+	 * Serializes a wallet transaction into a compact string of the form "seq time amount", leaving
+	 *  any formatting (e.g. of the date) to the receiver.
+	 * @param seq Sequence number of the transaction.
+	 * @param time Time in milliseconds of the transaction.
+	 * @param amount Amount of the transaction.
+	 * @return A string as described above.
+	 */
+	@NotNull
+	public static String serializeTransaction(long seq, long time, double amount) {
+		return seq + TRANSEPAR + time + TRANSEPAR + amount;
+	}
+	
+	/**
+	 * Deserializes a string in the format of the output of {@link #serializeTransaction(long, long, double)}.
+	 * @param str The string to deserialize.
+	 * @return A pair ({seq, time}, amount).
+	 * @throws IllegalArgumentException If str is not a correctly serialized transaction.
+	 */
+	@NotNull
+	public static Pair<long[], Double> deserializeTransaction(String str) {
+		Common.notNull(str);
+		String[] fields = str.split(TRANSEPAR);
+		Common.allAndArgs(fields.length == 3);
+		try {
+			long[] seqTime = new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) };
+			return new Pair<>(seqTime, Double.parseDouble(fields[2]));
+		} catch (NumberFormatException ex) { throw new IllegalArgumentException(ex); }
+	}
+	
 	@NotNull
 	/**
 	 * Deserializes a list of string into a list of string lists such that each item in the output contains
@@ -0,0 +1,49 @@
+package winsome.util;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed pool of read/write locks shared among many objects identified by a long id ("lock striping"):
+ *  each id is mapped to one of the locks of the pool, such that objects with the same id always use the
+ *  same lock, while the memory occupied by the locks does not depend on the number of objects.
+ *  NOTE: Since distinct ids can share the same lock, a thread must NOT acquire more than one lock of the
+ *  same pool at a time unless it does that in ascending order of {@link #stripe(long)}.
+ * @author Salvatore Correnti
+ */
+public final class StripedLocks {
+	
+	private final ReentrantReadWriteLock[] locks;
+	private final int mask;
+	
+	/**
+	 * @param stripes Minimum number of locks of the pool (rounded up to a power of two).
+	 * @throws IllegalArgumentException If stripes &le; 0 or stripes &gt; 2^30.
+	 */
+	public StripedLocks(int stripes) {
+		Common.allAndArgs(stripes > 0, stripes <= (1 << 30));
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) size <<= 1;
+		this.locks = new ReentrantReadWriteLock[size];
+		for (int i = 0; i < size; i++) this.locks[i] = new ReentrantReadWriteLock();
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * @param id Id of an object.
+	 * @return The index of the lock associated to the given id.
+	 */
+	public int stripe(long id) {
+		/* Spreads consecutive ids (e.g. of posts created together) over distinct locks */
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * @param id Id of an object.
+	 * @return The lock associated to the given id.
+	 */
+	public ReentrantReadWriteLock get(long id) { return locks[stripe(id)]; }
+	
+	/** @return The number of locks of the pool. */
+	public int size() { return locks.length; }
+}
\ No newline at end of file